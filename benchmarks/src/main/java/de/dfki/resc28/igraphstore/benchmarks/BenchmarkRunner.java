@@ -0,0 +1,77 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.benchmarks;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * @author resc01
+ *
+ * Runs the benchmarks once per thread count and writes the results of
+ * each run as JMH JSON to threads-N.json in the results directory, to be
+ * compared with {@link CompareResults}.
+ *
+ * Takes the usual JMH options, e.g. a benchmark pattern or -p backend=tdb2.
+ * The thread counts are set with -Dbenchmark.threads=1,4,16 (unless -t is
+ * given) and the results directory with -Dbenchmark.results=DIR, which
+ * defaults to results/TIMESTAMP.
+ */
+public class BenchmarkRunner
+{
+	public static void main(final String[] args) throws Exception
+	{
+		final CommandLineOptions options = new CommandLineOptions(args);
+		if (options.shouldHelp() || options.shouldList() || options.shouldListWithParams()
+				|| options.shouldListProfilers() || options.shouldListResultFormats())
+		{
+			Main.main(args);
+			return;
+		}
+
+		final File results = new File(System.getProperty(RESULTS_PROPERTY,
+				"results" + File.separator + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date())));
+		if (!results.isDirectory() && !results.mkdirs())
+		{
+			throw new IllegalStateException("Cannot create results directory " + results);
+		}
+
+		final String[] threadCounts = options.getThreads().hasValue()
+				? new String[] { String.valueOf(options.getThreads().get()) }
+				: System.getProperty(THREADS_PROPERTY, DEFAULT_THREADS).split(",");
+
+		for (String threadCount : threadCounts)
+		{
+			final int threads = Integer.parseInt(threadCount.trim());
+			final File result = new File(results, "threads-" + threads + ".json");
+
+			new Runner(new OptionsBuilder()
+					.parent(options)
+					.threads(threads)
+					.resultFormat(ResultFormatType.JSON)
+					.result(result.getPath())
+					.build()).run();
+
+			System.out.println("Results written to " + result);
+		}
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private static final String THREADS_PROPERTY = "benchmark.threads";
+	private static final String RESULTS_PROPERTY = "benchmark.results";
+	private static final String DEFAULT_THREADS = "1,4,16";
+}
@@ -0,0 +1,170 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.jena.atlas.json.JSON;
+import org.apache.jena.atlas.json.JsonObject;
+import org.apache.jena.atlas.json.JsonValue;
+
+/**
+ * @author resc01
+ *
+ * Compares the JMH JSON results of two benchmark runs and reports the
+ * benchmarks that got slower by more than a threshold.
+ *
+ * Usage: CompareResults BASELINE CURRENT [THRESHOLD_PERCENT]
+ *
+ * BASELINE and CURRENT are result files or directories of them as written
+ * by {@link BenchmarkRunner}. The threshold defaults to 10 percent. Exits
+ * with status 1 if there is a regression, so it can fail a build.
+ */
+public class CompareResults
+{
+	public static void main(final String[] args) throws IOException
+	{
+		if (args.length < 2)
+		{
+			System.err.println("Usage: CompareResults BASELINE CURRENT [THRESHOLD_PERCENT]");
+			System.exit(2);
+		}
+
+		final Map<String, Score> baseline = read(new File(args[0]));
+		final Map<String, Score> current = read(new File(args[1]));
+		final double threshold = args.length > 2 ? Double.parseDouble(args[2]) / 100 : DEFAULT_THRESHOLD;
+
+		int regressions = 0;
+		System.out.println(String.format("%-12s %14s %14s %9s  %s", "", "baseline", "current", "change", "benchmark"));
+		for (Map.Entry<String, Score> entry : current.entrySet())
+		{
+			final Score before = baseline.get(entry.getKey());
+			final Score after = entry.getValue();
+			if (before == null)
+			{
+				System.out.println(String.format("%-12s %14s %14.3f %9s  %s", "NEW", "", after.fValue, "", entry.getKey()));
+				continue;
+			}
+
+			final double change = (after.fValue - before.fValue) / before.fValue;
+			// throughput should go up, times should go down
+			final double slowdown = after.fHigherIsBetter ? -change : change;
+			final boolean regression = slowdown > threshold;
+			if (regression)
+			{
+				regressions++;
+			}
+			System.out.println(String.format("%-12s %14.3f %14.3f %+8.1f%%  %s [%s]",
+					regression ? "REGRESSION" : slowdown < -threshold ? "IMPROVED" : "",
+					before.fValue, after.fValue, 100 * change, entry.getKey(), after.fUnit));
+		}
+
+		for (String key : baseline.keySet())
+		{
+			if (!current.containsKey(key))
+			{
+				System.out.println(String.format("%-12s %14.3f %14s %9s  %s", "MISSING", baseline.get(key).fValue, "", "", key));
+			}
+		}
+
+		System.out.println(regressions + " regression(s) above " + Math.round(100 * threshold) + "%");
+		System.exit(regressions > 0 ? 1 : 0);
+	}
+
+
+	//================================================================================
+	// Helpers
+	//================================================================================
+
+	private static class Score
+	{
+		private final double fValue;
+		private final String fUnit;
+		private final boolean fHigherIsBetter;
+
+		Score(final double value, final String unit, final boolean higherIsBetter)
+		{
+			fValue = value;
+			fUnit = unit;
+			fHigherIsBetter = higherIsBetter;
+		}
+	}
+
+	/**
+	 * Reads the scores of a result file or of all result files in a
+	 * directory, keyed by benchmark, mode, threads and parameters.
+	 */
+	private static Map<String, Score> read(final File file) throws IOException
+	{
+		final List<File> files = new ArrayList<File>();
+		if (file.isDirectory())
+		{
+			final File[] children = file.listFiles();
+			if (children != null)
+			{
+				for (File child : children)
+				{
+					if (child.getName().endsWith(".json"))
+					{
+						files.add(child);
+					}
+				}
+			}
+		}
+		else
+		{
+			files.add(file);
+		}
+
+		final Map<String, Score> scores = new TreeMap<String, Score>();
+		for (File result : files)
+		{
+			try (InputStream in = new FileInputStream(result))
+			{
+				for (JsonValue value : JSON.parseAny(in).getAsArray())
+				{
+					final JsonObject run = value.getAsObject();
+					final String mode = run.get("mode").getAsString().value();
+
+					final StringBuilder key = new StringBuilder(run.get("benchmark").getAsString().value());
+					key.append(" mode=").append(mode);
+					key.append(" threads=").append(run.get("threads").getAsNumber().value().intValue());
+					if (run.hasKey("params"))
+					{
+						// sorted, so the key does not depend on the order in the file
+						final JsonObject params = run.get("params").getAsObject();
+						for (String name : new TreeSet<String>(params.keys()))
+						{
+							key.append(' ').append(name).append('=').append(params.get(name).getAsString().value());
+						}
+					}
+
+					final JsonObject metric = run.get("primaryMetric").getAsObject();
+					scores.put(key.toString(), new Score(
+							metric.get("score").getAsNumber().value().doubleValue(),
+							metric.get("scoreUnit").getAsString().value(),
+							"thrpt".equals(mode)));
+				}
+			}
+		}
+		return scores;
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private static final double DEFAULT_THRESHOLD = 0.10;
+}
@@ -0,0 +1,72 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.rdf.model.Model;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author resc01
+ *
+ * CRUD operations on the default graph, which all threads share.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DefaultGraphBenchmark
+{
+	/**
+	 * Refills the default graph before each call of a benchmark that
+	 * clears it.
+	 */
+	@State(Scope.Thread)
+	public static class Refill
+	{
+		@Setup(Level.Invocation)
+		public void setUp(final GraphStoreState state)
+		{
+			state.store.replaceDefaultGraph(state.graph);
+		}
+	}
+
+	@Benchmark
+	public Model getDefaultGraph(final GraphStoreState state)
+	{
+		return state.store.getDefaultGraph();
+	}
+
+	@Benchmark
+	public void replaceDefaultGraph(final GraphStoreState state)
+	{
+		state.store.replaceDefaultGraph(state.graph);
+	}
+
+	@Benchmark
+	public void addToDefaultGraph(final GraphStoreState state)
+	{
+		state.store.addToDefaultGraph(state.delta);
+	}
+
+	@Benchmark
+	public void clearDefaultGraph(final GraphStoreState state, final Refill refill)
+	{
+		state.store.clearDefaultGraph();
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jena.fuseki.main.FusekiServer;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.sparql.core.DatasetGraphFactory;
+import org.apache.jena.tdb.StoreConnection;
+import org.apache.jena.tdb.base.file.Location;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import de.dfki.resc28.igraphstore.IGraphStore;
+import de.dfki.resc28.igraphstore.jena.DictionaryGraphStore;
+import de.dfki.resc28.igraphstore.jena.FusekiGraphStore;
+import de.dfki.resc28.igraphstore.jena.TDB2GraphStore;
+import de.dfki.resc28.igraphstore.jena.TDBGraphStore;
+
+/**
+ * @author resc01
+ *
+ * The store under test, shared by all benchmark threads.
+ *
+ * backend is one of "tdb" and "tdb2" (disk-based in a temporary directory),
+ * "dictionary" (in memory) and "fuseki" (a FusekiGraphStore talking to an
+ * embedded Fuseki server with an in-memory dataset on a local port). The
+ * default graph holds graphSize triples when a benchmark starts.
+ */
+@State(Scope.Benchmark)
+public class GraphStoreState
+{
+	public static final String GRAPH_PREFIX = "http://example.org/benchmark/graph/";
+
+	@Param({ "tdb", "fuseki" })
+	public String backend;
+
+	@Param({ "1000", "100000" })
+	public int graphSize;
+
+	/**
+	 * The store under test.
+	 */
+	public IGraphStore store;
+
+	/**
+	 * A graph of graphSize triples.
+	 */
+	public Model graph;
+
+	/**
+	 * A graph of graphSize / 10 triples that are not in {@link #graph}.
+	 */
+	public Model delta;
+
+	//================================================================================
+	// Lifecycle
+	//================================================================================
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		graph = generate(graphSize, 1);
+		delta = generate(Math.max(1, graphSize / 10), 2);
+
+		if ("tdb".equals(backend))
+		{
+			fDirectory = Files.createTempDirectory("igraphstore-bench-tdb").toFile();
+			store = new TDBGraphStore(fDirectory.getPath());
+		}
+		else if ("tdb2".equals(backend))
+		{
+			fDirectory = Files.createTempDirectory("igraphstore-bench-tdb2").toFile();
+			store = new TDB2GraphStore(fDirectory.getPath());
+		}
+		else if ("dictionary".equals(backend))
+		{
+			store = new DictionaryGraphStore();
+		}
+		else if ("fuseki".equals(backend))
+		{
+			final int port = freePort();
+			fFuseki = FusekiServer.create()
+					.port(port)
+					.add("/ds", DatasetGraphFactory.createTxnMem())
+					.build()
+					.start();
+			final String base = "http://localhost:" + port + "/ds";
+			store = new FusekiGraphStore(base + "/data", base + "/query", base + "/update");
+		}
+		else
+		{
+			throw new IllegalArgumentException("Unknown backend: " + backend);
+		}
+
+		store.replaceDefaultGraph(graph);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		if (fFuseki != null)
+		{
+			fFuseki.stop();
+			fFuseki = null;
+		}
+		if (fDirectory != null)
+		{
+			if ("tdb".equals(backend))
+			{
+				StoreConnection.release(Location.create(fDirectory.getPath()));
+			}
+			FileUtils.deleteQuietly(fDirectory);
+			fDirectory = null;
+		}
+		store = null;
+	}
+
+
+	//================================================================================
+	// Helpers
+	//================================================================================
+
+	/**
+	 * Generates a graph of the given size with a mix of resources and
+	 * literals, the same for the same seed.
+	 */
+	public static Model generate(final int size, final long seed)
+	{
+		final Model model = ModelFactory.createDefaultModel();
+		final Random random = new Random(seed);
+		final String base = "http://example.org/benchmark/" + seed + "/";
+
+		while (model.size() < size)
+		{
+			final Resource subject = model.createResource(base + "s" + random.nextInt(Math.max(1, size / 10)));
+			final RDFNode object = random.nextBoolean()
+					? model.createResource(base + "o" + random.nextInt(size))
+					: model.createLiteral("value " + random.nextInt(size));
+			model.add(subject, model.createProperty(base + "p" + random.nextInt(20)), object);
+		}
+		return model;
+	}
+
+	private static int freePort() throws IOException
+	{
+		try (ServerSocket socket = new ServerSocket(0))
+		{
+			return socket.getLocalPort();
+		}
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private File fDirectory;
+	private FusekiServer fFuseki;
+}
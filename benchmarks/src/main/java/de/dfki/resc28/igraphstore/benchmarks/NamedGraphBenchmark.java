@@ -0,0 +1,105 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.rdf.model.Model;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author resc01
+ *
+ * CRUD operations on named graphs, each thread working on a graph of its
+ * own, see {@link NamedGraphState}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NamedGraphBenchmark
+{
+	/**
+	 * Restores the graph of the thread before each call of a benchmark that
+	 * deletes it.
+	 */
+	@State(Scope.Thread)
+	public static class Recreate
+	{
+		@Setup(Level.Invocation)
+		public void setUp(final GraphStoreState state, final NamedGraphState graph)
+		{
+			state.store.createNamedGraph(graph.graphURI, state.graph);
+		}
+	}
+
+	/**
+	 * Deletes the graph of the thread before each call of a benchmark that
+	 * creates it.
+	 */
+	@State(Scope.Thread)
+	public static class Delete
+	{
+		@Setup(Level.Invocation)
+		public void setUp(final GraphStoreState state, final NamedGraphState graph)
+		{
+			state.store.deleteNamedGraph(graph.graphURI);
+		}
+	}
+
+	@Benchmark
+	public Model getNamedGraph(final GraphStoreState state, final NamedGraphState graph)
+	{
+		return state.store.getNamedGraph(graph.graphURI);
+	}
+
+	@Benchmark
+	public boolean containsNamedGraph(final GraphStoreState state, final NamedGraphState graph)
+	{
+		return state.store.containsNamedGraph(graph.graphURI);
+	}
+
+	@Benchmark
+	public boolean containsMissingNamedGraph(final GraphStoreState state, final NamedGraphState graph)
+	{
+		return state.store.containsNamedGraph(graph.missingGraphURI);
+	}
+
+	@Benchmark
+	public void replaceNamedGraph(final GraphStoreState state, final NamedGraphState graph)
+	{
+		state.store.replaceNamedGraph(graph.graphURI, state.graph);
+	}
+
+	@Benchmark
+	public void addToNamedGraph(final GraphStoreState state, final NamedGraphState graph)
+	{
+		state.store.addToNamedGraph(graph.graphURI, state.delta);
+	}
+
+	@Benchmark
+	public void createNamedGraph(final GraphStoreState state, final NamedGraphState graph, final Delete delete)
+	{
+		state.store.createNamedGraph(graph.graphURI, state.graph);
+	}
+
+	@Benchmark
+	public void deleteNamedGraph(final GraphStoreState state, final NamedGraphState graph, final Recreate recreate)
+	{
+		state.store.deleteNamedGraph(graph.graphURI);
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.benchmarks;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * @author resc01
+ *
+ * A named graph of its own for each benchmark thread, so that threads do
+ * not write to the same graph. It holds the graph of the
+ * {@link GraphStoreState} when a benchmark starts. The graphs are dropped
+ * with the store at the end of the trial.
+ */
+@State(Scope.Thread)
+public class NamedGraphState
+{
+	/**
+	 * The URI of the graph of this thread.
+	 */
+	public String graphURI;
+
+	/**
+	 * The URI of a graph that does not exist.
+	 */
+	public String missingGraphURI;
+
+	@Setup(Level.Trial)
+	public void setUp(final GraphStoreState state)
+	{
+		final int thread = NEXT_THREAD.getAndIncrement();
+		graphURI = GraphStoreState.GRAPH_PREFIX + "thread-" + thread;
+		missingGraphURI = GraphStoreState.GRAPH_PREFIX + "missing-" + thread;
+
+		state.store.deleteNamedGraph(graphURI);
+		state.store.createNamedGraph(graphURI, state.graph);
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private static final AtomicInteger NEXT_THREAD = new AtomicInteger();
+}
@@ -0,0 +1,112 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.riot.RDFDataMgr;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.dfki.resc28.igraphstore.Constants;
+import de.dfki.resc28.igraphstore.util.RDFStreams;
+
+/**
+ * @author resc01
+ *
+ * Reading and writing named graphs as serialized RDF, parameterized by
+ * the RDF format.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamBenchmark
+{
+	/**
+	 * The graphs of the GraphStoreState serialized in the format.
+	 */
+	@State(Scope.Benchmark)
+	public static class Serialized
+	{
+		@Param({ Constants.CT_TEXT_TURTLE, Constants.CT_APPLICATION_NTRIPLES, Constants.CT_APPLICATION_RDF_THRIFT })
+		public String format;
+
+		public byte[] graph;
+		public byte[] delta;
+
+		@Setup(Level.Trial)
+		public void setUp(final GraphStoreState state)
+		{
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			RDFDataMgr.write(out, state.graph, RDFStreams.toLang(format));
+			graph = out.toByteArray();
+
+			out.reset();
+			RDFDataMgr.write(out, state.delta, RDFStreams.toLang(format));
+			delta = out.toByteArray();
+		}
+	}
+
+	@Benchmark
+	public void writeNamedGraph(final GraphStoreState state, final NamedGraphState graph, final Serialized serialized, final Blackhole blackhole)
+	{
+		state.store.writeNamedGraph(graph.graphURI, new BlackholeOutputStream(blackhole), serialized.format);
+	}
+
+	@Benchmark
+	public void replaceNamedGraph(final GraphStoreState state, final NamedGraphState graph, final Serialized serialized)
+	{
+		state.store.replaceNamedGraph(graph.graphURI, new ByteArrayInputStream(serialized.graph), serialized.format);
+	}
+
+	@Benchmark
+	public void addToNamedGraph(final GraphStoreState state, final NamedGraphState graph, final Serialized serialized)
+	{
+		state.store.addToNamedGraph(graph.graphURI, new ByteArrayInputStream(serialized.delta), serialized.format);
+	}
+
+	/**
+	 * Consumes the written bytes without storing them.
+	 */
+	private static class BlackholeOutputStream extends OutputStream
+	{
+		private final Blackhole fBlackhole;
+
+		BlackholeOutputStream(final Blackhole blackhole)
+		{
+			fBlackhole = blackhole;
+		}
+
+		@Override
+		public void write(final int b)
+		{
+			fBlackhole.consume(b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len)
+		{
+			fBlackhole.consume(b);
+			fBlackhole.consume(len);
+		}
+	}
+}
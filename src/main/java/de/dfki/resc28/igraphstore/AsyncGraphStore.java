@@ -0,0 +1,137 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.system.StreamRDF;
+
+/**
+ * @author resc01
+ *
+ * The non-blocking counterpart of {@link IGraphStore}. Every method returns
+ * at once with a future that completes with the result of the corresponding
+ * IGraphStore method, or exceptionally with its exception.
+ *
+ * Cancelling a future skips the call if it has not started yet. A running
+ * call is not interrupted, as an interrupt breaks TDB datasets; it finishes
+ * and its result is dropped. A future that does not complete within the
+ * timeout of the store completes exceptionally with a
+ * {@link java.util.concurrent.TimeoutException}.
+ */
+public interface AsyncGraphStore
+{
+	//================================================================================
+	// CRUD-related methods for the default graph
+	//================================================================================
+
+	CompletableFuture<Model> getDefaultGraph();
+
+	CompletableFuture<Void> replaceDefaultGraph(final Model model);
+
+	CompletableFuture<Void> addToDefaultGraph(final Model model);
+
+	CompletableFuture<Void> clearDefaultGraph();
+
+
+	//================================================================================
+	// CRUD-related methods for named graphs
+	//================================================================================
+
+	CompletableFuture<Boolean> containsNamedGraph(final String graphURI);
+
+	CompletableFuture<Model> getNamedGraph(final String graphURI);
+
+	/**
+	 * Completes with the graphs that exist, see
+	 * {@link IGraphStore#getNamedGraphs(Collection)}.
+	 */
+	CompletableFuture<Map<String, Model>> getNamedGraphs(final Collection<String> graphURIs);
+
+	CompletableFuture<Void> deleteNamedGraph(final String graphURI);
+
+	CompletableFuture<Void> replaceNamedGraph(final String graphURI, final Model model);
+
+	CompletableFuture<Void> addToNamedGraph(final String graphURI, final Model model);
+
+	CompletableFuture<Void> createNamedGraph(final String graphURI, final Model model);
+
+	CompletableFuture<Void> replaceNamedGraph(final String graphURI, final InputStream inStream, final String contentType);
+
+	CompletableFuture<Void> addToNamedGraph(final String graphURI, final InputStream inStream, final String contentType);
+
+	CompletableFuture<Void> writeNamedGraph(final String graphURI, final OutputStream outStream, final String contentType);
+
+	CompletableFuture<Void> streamNamedGraph(final String graphURI, final StreamRDF sink);
+
+	/**
+	 * Finds the triples of a named graph that match the given pattern.
+	 * Unlike {@link IGraphStore#find} the matches are collected into a list,
+	 * since a lazy iterator may be bound to the thread that opened it.
+	 */
+	CompletableFuture<List<Triple>> find(final String graphURI, final Node s, final Node p, final Node o);
+
+
+	//================================================================================
+	// Catalog-related Methods
+	//================================================================================
+
+	/**
+	 * Lists the URIs of the named graphs. Unlike 
+	 * {@link IGraphStore#listNamedGraphs} the URIs are collected into a list.
+	 */
+	CompletableFuture<List<String>> listNamedGraphs();
+
+	CompletableFuture<Long> graphSize(final String graphURI);
+
+	CompletableFuture<GraphStats> getGraphStats(final String graphURI);
+
+
+	//================================================================================
+	// Delta- and batch-related Methods
+	//================================================================================
+
+	CompletableFuture<Void> patch(final String graphURI, final Model additions, final Model removals);
+
+	CompletableFuture<Void> apply(final GraphBatch batch);
+
+
+	//================================================================================
+	// Query-related Methods
+	//================================================================================
+
+	CompletableFuture<Boolean> ask(final String queryString);
+
+	CompletableFuture<Void> select(final OutputStream outStream, final String queryString);
+
+	CompletableFuture<Void> select(final OutputStream outStream, final String queryString, final String contentType);
+
+	CompletableFuture<Void> construct(final OutputStream outStream, final String queryString, final String contentType);
+
+	CompletableFuture<Void> describe(final OutputStream outStream, final String queryString, final String contentType);
+
+
+	//================================================================================
+	// Timeouts
+	//================================================================================
+
+	/**
+	 * Returns a view of this store that shares its execution but times out
+	 * calls after the given duration, e.g.
+	 * {@code store.withTimeout(2, TimeUnit.SECONDS).getNamedGraph(uri)}.
+	 * A duration of zero or less disables the timeout.
+	 */
+	AsyncGraphStore withTimeout(final long timeout, final TimeUnit unit);
+}
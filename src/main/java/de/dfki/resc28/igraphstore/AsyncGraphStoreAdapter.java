@@ -0,0 +1,624 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.system.StreamRDF;
+
+/**
+ * @author resc01
+ *
+ * Runs the calls of a blocking {@link IGraphStore}, e.g. a FusekiGraphStore
+ * or a TDBGraphStore, on an executor and exposes them as an
+ * {@link AsyncGraphStore}.
+ *
+ * By default every call runs on a virtual thread if the JVM supports them
+ * and on a pooled daemon thread otherwise. At most maxConcurrency calls run
+ * against the store at the same time, further calls wait in a queue without
+ * blocking the caller or occupying a thread.
+ */
+public class AsyncGraphStoreAdapter implements AsyncGraphStore, Closeable
+{
+	//================================================================================
+	// Constructors
+	//================================================================================
+
+	/**
+	 * Creates an adapter with the default executor, a concurrency limit of
+	 * {@value #DEFAULT_MAX_CONCURRENCY} and no timeout.
+	 */
+	public AsyncGraphStoreAdapter(final IGraphStore graphStore)
+	{
+		this(graphStore, DEFAULT_MAX_CONCURRENCY);
+	}
+
+	public AsyncGraphStoreAdapter(final IGraphStore graphStore, final int maxConcurrency)
+	{
+		this(graphStore, newDefaultExecutor(), true, maxConcurrency);
+	}
+
+	/**
+	 * Creates an adapter that runs the calls on the given executor. The
+	 * executor is owned by the caller and is not shut down by {@link #close()}.
+	 */
+	public AsyncGraphStoreAdapter(final IGraphStore graphStore, final ExecutorService executor, final int maxConcurrency)
+	{
+		this(graphStore, executor, false, maxConcurrency);
+	}
+
+	private AsyncGraphStoreAdapter(final IGraphStore graphStore, final ExecutorService executor, final boolean ownsExecutor, final int maxConcurrency)
+	{
+		if (maxConcurrency < 1)
+		{
+			throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+		}
+
+		fGraphStore = graphStore;
+		fExecution = new Execution(executor, ownsExecutor, maxConcurrency);
+		fTimeoutNanos = 0;
+	}
+
+	private AsyncGraphStoreAdapter(final AsyncGraphStoreAdapter other, final long timeoutNanos)
+	{
+		fGraphStore = other.fGraphStore;
+		fExecution = other.fExecution;
+		fTimeoutNanos = timeoutNanos;
+	}
+
+	/**
+	 * Returns an executor that starts a virtual thread per task if the JVM
+	 * supports virtual threads and a cached pool of daemon threads otherwise.
+	 */
+	public static ExecutorService newDefaultExecutor()
+	{
+		try
+		{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			return Executors.newCachedThreadPool(new DaemonThreadFactory("igraphstore-async"));
+		}
+	}
+
+
+	//================================================================================
+	// CRUD-related methods for the default graph
+	//================================================================================
+
+	@Override
+	public CompletableFuture<Model> getDefaultGraph()
+	{
+		return submit(() -> fGraphStore.getDefaultGraph());
+	}
+
+	@Override
+	public CompletableFuture<Void> replaceDefaultGraph(final Model model)
+	{
+		return run(() -> fGraphStore.replaceDefaultGraph(model));
+	}
+
+	@Override
+	public CompletableFuture<Void> addToDefaultGraph(final Model model)
+	{
+		return run(() -> fGraphStore.addToDefaultGraph(model));
+	}
+
+	@Override
+	public CompletableFuture<Void> clearDefaultGraph()
+	{
+		return run(() -> fGraphStore.clearDefaultGraph());
+	}
+
+
+	//================================================================================
+	// CRUD-related methods for named graphs
+	//================================================================================
+
+	@Override
+	public CompletableFuture<Boolean> containsNamedGraph(final String graphURI)
+	{
+		return submit(() -> fGraphStore.containsNamedGraph(graphURI));
+	}
+
+	@Override
+	public CompletableFuture<Model> getNamedGraph(final String graphURI)
+	{
+		return submit(() -> fGraphStore.getNamedGraph(graphURI));
+	}
+
+	@Override
+	public CompletableFuture<Map<String, Model>> getNamedGraphs(final Collection<String> graphURIs)
+	{
+		return submitCancellable(cancelled -> {
+			final Map<String, Model> graphs = new LinkedHashMap<String, Model>();
+			try (CloseableIterator<Map.Entry<String, Model>> it = fGraphStore.getNamedGraphs(graphURIs))
+			{
+				while (it.hasNext())
+				{
+					if (cancelled.getAsBoolean())
+					{
+						throw new CancellationException();
+					}
+					final Map.Entry<String, Model> graph = it.next();
+					graphs.put(graph.getKey(), graph.getValue());
+				}
+			}
+			return graphs;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> deleteNamedGraph(final String graphURI)
+	{
+		return run(() -> fGraphStore.deleteNamedGraph(graphURI));
+	}
+
+	@Override
+	public CompletableFuture<Void> replaceNamedGraph(final String graphURI, final Model model)
+	{
+		return run(() -> fGraphStore.replaceNamedGraph(graphURI, model));
+	}
+
+	@Override
+	public CompletableFuture<Void> addToNamedGraph(final String graphURI, final Model model)
+	{
+		return run(() -> fGraphStore.addToNamedGraph(graphURI, model));
+	}
+
+	@Override
+	public CompletableFuture<Void> createNamedGraph(final String graphURI, final Model model)
+	{
+		return run(() -> fGraphStore.createNamedGraph(graphURI, model));
+	}
+
+	@Override
+	public CompletableFuture<Void> replaceNamedGraph(final String graphURI, final InputStream inStream, final String contentType)
+	{
+		return run(() -> fGraphStore.replaceNamedGraph(graphURI, inStream, contentType));
+	}
+
+	@Override
+	public CompletableFuture<Void> addToNamedGraph(final String graphURI, final InputStream inStream, final String contentType)
+	{
+		return run(() -> fGraphStore.addToNamedGraph(graphURI, inStream, contentType));
+	}
+
+	@Override
+	public CompletableFuture<Void> writeNamedGraph(final String graphURI, final OutputStream outStream, final String contentType)
+	{
+		return run(() -> fGraphStore.writeNamedGraph(graphURI, outStream, contentType));
+	}
+
+	@Override
+	public CompletableFuture<Void> streamNamedGraph(final String graphURI, final StreamRDF sink)
+	{
+		return run(() -> fGraphStore.streamNamedGraph(graphURI, sink));
+	}
+
+	@Override
+	public CompletableFuture<List<Triple>> find(final String graphURI, final Node s, final Node p, final Node o)
+	{
+		return submitCancellable(cancelled -> {
+			final List<Triple> triples = new ArrayList<Triple>();
+			try (CloseableIterator<Triple> it = fGraphStore.find(graphURI, s, p, o))
+			{
+				while (it.hasNext())
+				{
+					if (cancelled.getAsBoolean())
+					{
+						throw new CancellationException();
+					}
+					triples.add(it.next());
+				}
+			}
+			return triples;
+		});
+	}
+
+
+	//================================================================================
+	// Catalog-related Methods
+	//================================================================================
+
+	@Override
+	public CompletableFuture<List<String>> listNamedGraphs()
+	{
+		return submitCancellable(cancelled -> {
+			final List<String> graphURIs = new ArrayList<String>();
+			try (CloseableIterator<String> it = fGraphStore.listNamedGraphs())
+			{
+				while (it.hasNext())
+				{
+					if (cancelled.getAsBoolean())
+					{
+						throw new CancellationException();
+					}
+					graphURIs.add(it.next());
+				}
+			}
+			return graphURIs;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Long> graphSize(final String graphURI)
+	{
+		return submit(() -> fGraphStore.graphSize(graphURI));
+	}
+
+	@Override
+	public CompletableFuture<GraphStats> getGraphStats(final String graphURI)
+	{
+		return submit(() -> fGraphStore.getGraphStats(graphURI));
+	}
+
+
+	//================================================================================
+	// Delta- and batch-related Methods
+	//================================================================================
+
+	@Override
+	public CompletableFuture<Void> patch(final String graphURI, final Model additions, final Model removals)
+	{
+		return run(() -> fGraphStore.patch(graphURI, additions, removals));
+	}
+
+	@Override
+	public CompletableFuture<Void> apply(final GraphBatch batch)
+	{
+		return run(() -> fGraphStore.apply(batch));
+	}
+
+
+	//================================================================================
+	// Query-related Methods
+	//================================================================================
+
+	@Override
+	public CompletableFuture<Boolean> ask(final String queryString)
+	{
+		return submit(() -> fGraphStore.ask(queryString));
+	}
+
+	@Override
+	public CompletableFuture<Void> select(final OutputStream outStream, final String queryString)
+	{
+		return run(() -> fGraphStore.select(outStream, queryString));
+	}
+
+	@Override
+	public CompletableFuture<Void> select(final OutputStream outStream, final String queryString, final String contentType)
+	{
+		return run(() -> fGraphStore.select(outStream, queryString, contentType));
+	}
+
+	@Override
+	public CompletableFuture<Void> construct(final OutputStream outStream, final String queryString, final String contentType)
+	{
+		return run(() -> fGraphStore.construct(outStream, queryString, contentType));
+	}
+
+	@Override
+	public CompletableFuture<Void> describe(final OutputStream outStream, final String queryString, final String contentType)
+	{
+		return run(() -> fGraphStore.describe(outStream, queryString, contentType));
+	}
+
+
+	//================================================================================
+	// Timeouts and life cycle
+	//================================================================================
+
+	@Override
+	public AsyncGraphStoreAdapter withTimeout(final long timeout, final TimeUnit unit)
+	{
+		return new AsyncGraphStoreAdapter(this, timeout > 0 ? unit.toNanos(timeout) : 0);
+	}
+
+	public IGraphStore getGraphStore()
+	{
+		return fGraphStore;
+	}
+
+	/**
+	 * Returns the number of calls that are running against the store.
+	 */
+	public int getActiveCount()
+	{
+		return fExecution.fMaxConcurrency - fExecution.fPermits.availablePermits();
+	}
+
+	/**
+	 * Shuts down the executor if it was created by this adapter and stops
+	 * the timeout timer. Running calls complete; calls still waiting for a
+	 * thread and new calls fail with a RejectedExecutionException.
+	 * Closing an adapter also closes all views created by withTimeout.
+	 */
+	@Override
+	public void close()
+	{
+		fExecution.close();
+	}
+
+
+	//================================================================================
+	// Helpers
+	//================================================================================
+
+	private interface BlockingCall
+	{
+		void run() throws Exception;
+	}
+
+	/**
+	 * A call that reads results in a loop and stops once the given flag
+	 * tells that its future has completed, e.g. by cancellation.
+	 */
+	private interface CancellableCall<T>
+	{
+		T call(BooleanSupplier cancelled) throws Exception;
+	}
+
+	private CompletableFuture<Void> run(final BlockingCall call)
+	{
+		return submit(() -> {
+			call.run();
+			return null;
+		});
+	}
+
+	private <T> CompletableFuture<T> submit(final Callable<T> call)
+	{
+		return submitCancellable(cancelled -> call.call());
+	}
+
+	/**
+	 * Queues the call and hands it to the executor once a permit is
+	 * available, so that no more than maxConcurrency threads are used.
+	 *
+	 * Cancelling the returned future or a timeout never interrupts a
+	 * running call, since an interrupt closes the file channels of TDB. A
+	 * call that has not started yet is skipped, a running one finishes and
+	 * its result is dropped; calls that iterate results stop early.
+	 */
+	private <T> CompletableFuture<T> submitCancellable(final CancellableCall<T> call)
+	{
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+
+		fExecution.enqueue(result, () -> {
+			if (result.isDone())
+			{
+				return;
+			}
+			try
+			{
+				result.complete(call.call(result::isDone));
+			}
+			catch (Throwable t)
+			{
+				result.completeExceptionally(t);
+			}
+		});
+
+		if (fTimeoutNanos > 0)
+		{
+			final ScheduledFuture<?> timeout = fExecution.timer().schedule(() -> {
+				result.completeExceptionally(new TimeoutException("Graph store call timed out after " + TimeUnit.NANOSECONDS.toMillis(fTimeoutNanos) + " ms"));
+			}, fTimeoutNanos, TimeUnit.NANOSECONDS);
+			result.whenComplete((value, error) -> timeout.cancel(false));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Execution state shared by an adapter and its timeout views.
+	 */
+	private static class Execution
+	{
+		private final ExecutorService fExecutor;
+		private final boolean fOwnsExecutor;
+		private final int fMaxConcurrency;
+		private final Semaphore fPermits;
+		private final Queue<Task> fWaiting = new ConcurrentLinkedQueue<Task>();
+		private volatile boolean fClosed = false;
+		private ScheduledExecutorService fTimer;
+
+		Execution(final ExecutorService executor, final boolean ownsExecutor, final int maxConcurrency)
+		{
+			fExecutor = executor;
+			fOwnsExecutor = ownsExecutor;
+			fMaxConcurrency = maxConcurrency;
+			fPermits = new Semaphore(maxConcurrency);
+		}
+
+		/**
+		 * Runs the task on the executor once a permit is available. If the
+		 * task cannot be run, e.g. after close, its result fails instead.
+		 */
+		void enqueue(final CompletableFuture<?> result, final Runnable task)
+		{
+			fWaiting.add(new Task(result, task));
+			// re-checked after adding, as close may have drained the queue just before
+			if (fClosed)
+			{
+				rejectWaiting();
+				return;
+			}
+			dispatch();
+		}
+
+		/**
+		 * Hands waiting tasks to the executor while permits are available.
+		 * Called after every enqueue and every release, so that no task
+		 * waits while a permit is free.
+		 */
+		private void dispatch()
+		{
+			while (!fWaiting.isEmpty() && fPermits.tryAcquire())
+			{
+				final Task task = fWaiting.poll();
+				if (task == null)
+				{
+					fPermits.release();
+					continue;
+				}
+				if (fClosed)
+				{
+					fPermits.release();
+					task.fResult.completeExceptionally(new RejectedExecutionException("Graph store adapter is closed"));
+					continue;
+				}
+				try
+				{
+					fExecutor.execute(() -> {
+						try
+						{
+							task.fRun.run();
+						}
+						finally
+						{
+							fPermits.release();
+							dispatch();
+						}
+					});
+				}
+				catch (RuntimeException e)
+				{
+					// may run in a worker's finally, where a thrown exception is lost
+					fPermits.release();
+					LOGGER.log(Level.WARNING, "Could not run graph store call", e);
+					task.fResult.completeExceptionally(e);
+				}
+			}
+		}
+
+		/**
+		 * Fails the results of all tasks that wait for a thread.
+		 */
+		private void rejectWaiting()
+		{
+			Task task;
+			while ((task = fWaiting.poll()) != null)
+			{
+				task.fResult.completeExceptionally(new RejectedExecutionException("Graph store adapter is closed"));
+			}
+		}
+
+		synchronized ScheduledExecutorService timer()
+		{
+			if (fTimer == null)
+			{
+				fTimer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("igraphstore-async-timeout"));
+			}
+			return fTimer;
+		}
+
+		synchronized void close()
+		{
+			fClosed = true;
+			rejectWaiting();
+			if (fTimer != null)
+			{
+				fTimer.shutdownNow();
+			}
+			if (fOwnsExecutor)
+			{
+				fExecutor.shutdown();
+				try
+				{
+					if (!fExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+					{
+						LOGGER.log(Level.WARNING, "Graph store calls still running after {0} s", SHUTDOWN_TIMEOUT_SECONDS);
+					}
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A queued call with the future it completes.
+	 */
+	private static class Task
+	{
+		private final CompletableFuture<?> fResult;
+		private final Runnable fRun;
+
+		Task(final CompletableFuture<?> result, final Runnable run)
+		{
+			fResult = result;
+			fRun = run;
+		}
+	}
+
+	private static class DaemonThreadFactory implements ThreadFactory
+	{
+		private final String fPrefix;
+		private final AtomicInteger fCount = new AtomicInteger();
+
+		DaemonThreadFactory(final String prefix)
+		{
+			fPrefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(final Runnable runnable)
+		{
+			final Thread thread = new Thread(runnable, fPrefix + "-" + fCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	public static final int DEFAULT_MAX_CONCURRENCY = 256;
+
+	private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+	private static final Logger LOGGER = Logger.getLogger(AsyncGraphStoreAdapter.class.getName());
+
+	private final IGraphStore fGraphStore;
+	private final Execution fExecution;
+	private final long fTimeoutNanos;
+}
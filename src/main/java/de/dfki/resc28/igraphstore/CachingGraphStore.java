@@ -0,0 +1,573 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.sparql.core.Quad;
+
+/**
+ * @author resc01
+ *
+ * A read-through cache of the graphs returned by getDefaultGraph,
+ * getNamedGraph and getNamedGraphs of another IGraphStore.
+ *
+ * The cache holds at most maxTriples triples and evicts the least recently
+ * used graphs first. Writes through this store invalidate the graphs they
+ * touch; writes by other clients are seen once an entry is older than
+ * revalidateAfter. Stale entries of an {@link IVersionedGraphStore}, e.g. a
+ * FusekiGraphStore behind a server that sends ETags, are revalidated with a
+ * conditional request instead of being read again.
+ *
+ * Only graphs that exist are cached, and containsNamedGraph always asks
+ * the underlying store. Callers get a copy of the cached graph, which they
+ * may modify.
+ */
+public class CachingGraphStore extends ForwardingGraphStore
+{
+	/**
+	 * Cache size and freshness.
+	 */
+	public static class Settings
+	{
+		private long fMaxTriples = 1000000;
+		private long fRevalidateAfter = -1;
+
+		public long getMaxTriples()
+		{
+			return fMaxTriples;
+		}
+
+		/**
+		 * Maximum number of triples of all cached graphs together. Graphs
+		 * that are larger on their own are not cached.
+		 */
+		public Settings setMaxTriples(long maxTriples)
+		{
+			fMaxTriples = maxTriples;
+			return this;
+		}
+
+		public long getRevalidateAfter()
+		{
+			return fRevalidateAfter;
+		}
+
+		/**
+		 * Age in milliseconds after which a cached graph is revalidated with
+		 * the wrapped store. Zero revalidates on every read, a negative value
+		 * never, which is only safe if all writes go through this store.
+		 */
+		public Settings setRevalidateAfter(long revalidateAfter)
+		{
+			fRevalidateAfter = revalidateAfter;
+			return this;
+		}
+	}
+
+
+	//================================================================================
+	// Constructors
+	//================================================================================
+
+	public CachingGraphStore(final IGraphStore graphStore)
+	{
+		this(graphStore, new Settings());
+	}
+
+	public CachingGraphStore(final IGraphStore graphStore, final Settings settings)
+	{
+		super(graphStore);
+		fSettings = settings;
+		fRevalidateAfterNanos = settings.getRevalidateAfter() < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(settings.getRevalidateAfter());
+	}
+
+
+	//================================================================================
+	// CRUD-related methods for the default graph
+	//================================================================================
+
+	@Override
+	public Model getDefaultGraph()
+	{
+		return get(null);
+	}
+
+	@Override
+	public void replaceDefaultGraph(final Model model)
+	{
+		try
+		{
+			fGraphStore.replaceDefaultGraph(model);
+		}
+		finally
+		{
+			invalidate(null);
+		}
+	}
+
+	@Override
+	public void addToDefaultGraph(final Model model)
+	{
+		try
+		{
+			fGraphStore.addToDefaultGraph(model);
+		}
+		finally
+		{
+			invalidate(null);
+		}
+	}
+
+	@Override
+	public void clearDefaultGraph()
+	{
+		try
+		{
+			fGraphStore.clearDefaultGraph();
+		}
+		finally
+		{
+			invalidate(null);
+		}
+	}
+
+
+	//================================================================================
+	// CRUD-related methods for named graphs
+	//================================================================================
+
+	@Override
+	public Model getNamedGraph(final String graphURI)
+	{
+		return get(graphURI);
+	}
+
+	/**
+	 * Serves the cached graphs and fetches the others with one bulk read of 
+	 * the underlying store, caching them. Stale entries are fetched again 
+	 * with the others instead of being revalidated one by one.
+	 */
+	@Override
+	public CloseableIterator<Map.Entry<String, Model>> getNamedGraphs(final Collection<String> graphURIs)
+	{
+		final long generation;
+		synchronized (fEntries)
+		{
+			generation = fGeneration;
+		}
+
+		final Map<String, Model> graphs = new LinkedHashMap<String, Model>();
+		final List<String> missing = new ArrayList<String>();
+		for (String graphURI : new LinkedHashSet<String>(graphURIs))
+		{
+			final Entry cached = lookup(graphURI);
+			if (cached != null)
+			{
+				fHits.incrementAndGet();
+				graphs.put(graphURI, copy(cached.fModel));
+			}
+			else
+			{
+				missing.add(graphURI);
+			}
+		}
+
+		if (!missing.isEmpty())
+		{
+			fMisses.addAndGet(missing.size());
+			try (CloseableIterator<Map.Entry<String, Model>> fetched = fGraphStore.getNamedGraphs(missing))
+			{
+				while (fetched.hasNext())
+				{
+					final Map.Entry<String, Model> graph = fetched.next();
+					put(graph.getKey(), new Entry(graph.getValue(), null), generation);
+					graphs.put(graph.getKey(), copy(graph.getValue()));
+				}
+			}
+		}
+		return CloseableIterator.wrap(graphs.entrySet().iterator());
+	}
+
+	@Override
+	public void deleteNamedGraph(final String graphURI)
+	{
+		try
+		{
+			fGraphStore.deleteNamedGraph(graphURI);
+		}
+		finally
+		{
+			invalidate(graphURI);
+		}
+	}
+
+	@Override
+	public void replaceNamedGraph(final String graphURI, final Model model)
+	{
+		try
+		{
+			fGraphStore.replaceNamedGraph(graphURI, model);
+		}
+		finally
+		{
+			invalidate(graphURI);
+		}
+	}
+
+	@Override
+	public void addToNamedGraph(final String graphURI, final Model model)
+	{
+		try
+		{
+			fGraphStore.addToNamedGraph(graphURI, model);
+		}
+		finally
+		{
+			invalidate(graphURI);
+		}
+	}
+
+	@Override
+	public void createNamedGraph(final String graphURI, final Model model)
+	{
+		try
+		{
+			fGraphStore.createNamedGraph(graphURI, model);
+		}
+		finally
+		{
+			invalidate(graphURI);
+		}
+	}
+
+	@Override
+	public void replaceNamedGraph(final String graphURI, final InputStream inStream, final String contentType)
+	{
+		try
+		{
+			fGraphStore.replaceNamedGraph(graphURI, inStream, contentType);
+		}
+		finally
+		{
+			invalidate(graphURI);
+		}
+	}
+
+	@Override
+	public void addToNamedGraph(final String graphURI, final InputStream inStream, final String contentType)
+	{
+		try
+		{
+			fGraphStore.addToNamedGraph(graphURI, inStream, contentType);
+		}
+		finally
+		{
+			invalidate(graphURI);
+		}
+	}
+
+
+	//================================================================================
+	// Delta- and batch-related Methods
+	//================================================================================
+
+	@Override
+	public void patch(final String graphURI, final Model additions, final Model removals)
+	{
+		try
+		{
+			fGraphStore.patch(graphURI, additions, removals);
+		}
+		finally
+		{
+			invalidate(graphURI);
+		}
+	}
+
+	@Override
+	public void apply(final GraphBatch batch)
+	{
+		try
+		{
+			fGraphStore.apply(batch);
+		}
+		finally
+		{
+			for (GraphBatch.Operation operation : batch)
+			{
+				invalidate(operation.getGraphURI());
+			}
+		}
+	}
+
+
+	//================================================================================
+	// Cache management
+	//================================================================================
+
+	/**
+	 * Removes a graph from the cache. A null graph URI denotes the default
+	 * graph.
+	 */
+	public void invalidate(final String graphURI)
+	{
+		synchronized (fEntries)
+		{
+			fGeneration++;
+			remove(key(graphURI));
+		}
+	}
+
+	public void invalidateAll()
+	{
+		synchronized (fEntries)
+		{
+			fGeneration++;
+			fEntries.clear();
+			fWeight = 0;
+		}
+	}
+
+	public long getHitCount()
+	{
+		return fHits.get();
+	}
+
+	public long getMissCount()
+	{
+		return fMisses.get();
+	}
+
+	public long getEvictionCount()
+	{
+		return fEvictions.get();
+	}
+
+	/**
+	 * Returns how many stale graphs were confirmed as not modified by the
+	 * wrapped store. These are counted as hits, too.
+	 */
+	public long getRevalidationCount()
+	{
+		return fRevalidations.get();
+	}
+
+	/**
+	 * Returns the number of cached graphs.
+	 */
+	public int size()
+	{
+		synchronized (fEntries)
+		{
+			return fEntries.size();
+		}
+	}
+
+	/**
+	 * Returns the number of triples of all cached graphs.
+	 */
+	public long getWeight()
+	{
+		synchronized (fEntries)
+		{
+			return fWeight;
+		}
+	}
+
+	public Settings getSettings()
+	{
+		return fSettings;
+	}
+
+
+	//================================================================================
+	// Helpers
+	//================================================================================
+
+	private static class Entry
+	{
+		private final Model fModel;
+		private final String fVersionTag;
+		private final long fLoadedAt;
+
+		Entry(final Model model, final String versionTag)
+		{
+			fModel = model;
+			fVersionTag = versionTag;
+			fLoadedAt = System.nanoTime();
+		}
+
+		long getWeight()
+		{
+			return fModel.size() + 1;
+		}
+	}
+
+	private Model get(final String graphURI)
+	{
+		final Entry cached;
+		final long generation;
+		synchronized (fEntries)
+		{
+			cached = fEntries.get(key(graphURI));
+			generation = fGeneration;
+		}
+
+		if (cached != null && !isStale(cached))
+		{
+			fHits.incrementAndGet();
+			return copy(cached.fModel);
+		}
+
+		if (fGraphStore instanceof IVersionedGraphStore)
+		{
+			final String ifNoneMatch = cached != null ? cached.fVersionTag : null;
+			final VersionedGraph graph = ((IVersionedGraphStore) fGraphStore).getVersionedGraph(graphURI, ifNoneMatch);
+			if (graph == null)
+			{
+				fMisses.incrementAndGet();
+				invalidate(graphURI);
+				return null;
+			}
+			if (graph.isNotModified() && cached != null)
+			{
+				fHits.incrementAndGet();
+				fRevalidations.incrementAndGet();
+				put(graphURI, new Entry(cached.fModel, cached.fVersionTag), generation);
+				return copy(cached.fModel);
+			}
+			fMisses.incrementAndGet();
+			put(graphURI, new Entry(graph.getModel(), graph.getVersionTag()), generation);
+			return copy(graph.getModel());
+		}
+
+		fMisses.incrementAndGet();
+		final Model model = graphURI == null ? fGraphStore.getDefaultGraph() : getExistingGraph(graphURI);
+		if (model == null)
+		{
+			// not cached, so that whatever the store returns for a missing graph is never served as that graph
+			return graphURI == null ? null : fGraphStore.getNamedGraph(graphURI);
+		}
+		final Model snapshot = copy(model);
+		put(graphURI, new Entry(snapshot, null), generation);
+		return copy(snapshot);
+	}
+
+	/**
+	 * Returns a named graph, or null if it does not exist. Some stores, e.g.
+	 * a TDBGraphStore, return the default graph from getNamedGraph for a
+	 * missing graph, whereas getNamedGraphs skips it.
+	 */
+	private Model getExistingGraph(final String graphURI)
+	{
+		try (CloseableIterator<Map.Entry<String, Model>> graphs = fGraphStore.getNamedGraphs(Collections.singleton(graphURI)))
+		{
+			return graphs.hasNext() ? graphs.next().getValue() : null;
+		}
+	}
+
+	private Entry lookup(final String graphURI)
+	{
+		synchronized (fEntries)
+		{
+			final Entry entry = fEntries.get(key(graphURI));
+			return entry != null && !isStale(entry) ? entry : null;
+		}
+	}
+
+	/**
+	 * Caches a graph unless a write was seen since it was read, which may
+	 * have made it outdated.
+	 */
+	private void put(final String graphURI, final Entry entry, final long generation)
+	{
+		final long weight = entry.getWeight();
+		if (weight > fSettings.getMaxTriples())
+		{
+			return;
+		}
+
+		synchronized (fEntries)
+		{
+			if (generation != fGeneration)
+			{
+				return;
+			}
+
+			remove(key(graphURI));
+			fEntries.put(key(graphURI), entry);
+			fWeight += weight;
+
+			final Iterator<Map.Entry<String, Entry>> it = fEntries.entrySet().iterator();
+			while (fWeight > fSettings.getMaxTriples() && it.hasNext())
+			{
+				fWeight -= it.next().getValue().getWeight();
+				it.remove();
+				fEvictions.incrementAndGet();
+			}
+		}
+	}
+
+	private void remove(final String key)
+	{
+		final Entry removed = fEntries.remove(key);
+		if (removed != null)
+		{
+			fWeight -= removed.getWeight();
+		}
+	}
+
+	private boolean isStale(final Entry entry)
+	{
+		return fRevalidateAfterNanos >= 0 && System.nanoTime() - entry.fLoadedAt >= fRevalidateAfterNanos;
+	}
+
+	private static String key(final String graphURI)
+	{
+		return graphURI == null ? Quad.defaultGraphIRI.getURI() : graphURI;
+	}
+
+	private static Model copy(final Model model)
+	{
+		final Model copy = ModelFactory.createDefaultModel();
+		copy.setNsPrefixes(model.getNsPrefixMap());
+		copy.add(model);
+		return copy;
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private final Settings fSettings;
+	private final long fRevalidateAfterNanos;
+
+	/**
+	 * Cached graphs in least recently used order, guarded by itself.
+	 */
+	private final LinkedHashMap<String, Entry> fEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long fWeight = 0;
+	private long fGeneration = 0;
+
+	private final AtomicLong fHits = new AtomicLong();
+	private final AtomicLong fMisses = new AtomicLong();
+	private final AtomicLong fEvictions = new AtomicLong();
+	private final AtomicLong fRevalidations = new AtomicLong();
+}
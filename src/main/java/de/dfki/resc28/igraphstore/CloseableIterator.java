@@ -0,0 +1,56 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * @author resc01
+ *
+ * A lazy iterator over results that hold resources in the graph store,
+ * e.g. an open read transaction or an HTTP connection.
+ *
+ * The resources are released when the iterator is exhausted or closed,
+ * whichever happens first. Closing an iterator more than once has no effect.
+ */
+public interface CloseableIterator<T> extends Iterator<T>, Closeable
+{
+	@Override
+	void close();
+
+	/**
+	 * Wraps an iterator that holds no resources.
+	 */
+	static <T> CloseableIterator<T> wrap(final Iterator<T> iterator)
+	{
+		return new CloseableIterator<T>()
+		{
+			@Override
+			public boolean hasNext()
+			{
+				return iterator.hasNext();
+			}
+
+			@Override
+			public T next()
+			{
+				return iterator.next();
+			}
+
+			@Override
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close()
+			{
+			}
+		};
+	}
+}
@@ -21,6 +21,7 @@ public class Constants
 	public static final String CT_APPLICATION_NTRIPLES = "application/n-triples";
 	public static final String CT_APPLICATION_RDF_JSON = "application/rdf+json";
 	public static final String CT_APPLICATION_RDFXML = "application/rdf+xml";
+	public static final String CT_APPLICATION_RDF_THRIFT = "application/rdf+thrift";
 	public static final String CT_APPLICATION_TRIX = "application/trix";
 	public static final String CT_TEXT_N3 = "text/n3; charset=utf-8";
 	public static final String CT_TEXT_TRIG = "text/trig";
@@ -28,10 +29,16 @@ public class Constants
 		
 	// SPARQL Content types
 	public static final String CT_APPLICATION_SPARQLQUERY = "application/sparql-query";
+	/**
+	 * @deprecated Jena 3.17 no longer supports the BIO result format, use
+	 *             {@link #CT_APPLICATION_SPARQLRESULTS_THRIFT} instead.
+	 */
+	@Deprecated
 	public static final String CT_APPLICATION_SPARQLRESULTS_BIO = "application/sparql-results+bio";
 	public static final String CT_APPLICATION_SPARQLRESULTS_CSV = "application/sparql-results+csv";
 	public static final String CT_APPLICATION_SPARQLRESULTS_JSON = "application/sparql-results+json";
 	public static final String CT_APPLICATION_SPARQLRESULTS_SSE = "application/sparql-results+sse";
+	public static final String CT_APPLICATION_SPARQLRESULTS_THRIFT = "application/sparql-results+thrift";
 	public static final String CT_APPLICATION_SPARQLRESULTS_TSV = "application/sparql-results+tsv";
 	public static final String CT_APPLICATION_SPARQLRESULTS_XML = "application/sparql-results+xml";
 
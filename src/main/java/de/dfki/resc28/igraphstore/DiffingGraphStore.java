@@ -0,0 +1,509 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.util.iterator.ExtendedIterator;
+
+import de.dfki.resc28.igraphstore.util.RDFStreams;
+import de.dfki.resc28.igraphstore.util.StripedLocks;
+
+/**
+ * @author resc01
+ *
+ * Turns replaceDefaultGraph and replaceNamedGraph on another IGraphStore
+ * into the smallest write that has the same effect. The
+ * {@link GraphFingerprint} of the new content is compared with that of the
+ * stored graph: an unchanged graph is not written at all, a changed one is
+ * patched with the triples that differ. A full replace is only sent if the
+ * blank nodes of the graph changed, since their labels differ from store to
+ * store, or if the diff is not smaller than the graph.
+ *
+ * The fingerprints of the graphs last written or compared are remembered,
+ * so a graph without blank nodes that is replaced with the same content
+ * again is skipped without reading it while the fingerprint is fresh.
+ * Otherwise the stored graph is read for the comparison; from an
+ * {@link IVersionedGraphStore}, e.g. a FusekiGraphStore behind a server that
+ * sends ETags, an unchanged graph costs a conditional request.
+ *
+ * Writes through this store are serialized per graph. A write by another
+ * client between reading a graph and patching it is not seen, so with
+ * other writers the graphs have to be replaced through a plain store.
+ * Replace operations of a batch are applied as they are.
+ */
+public class DiffingGraphStore extends ForwardingGraphStore
+{
+	/**
+	 * Fingerprint memory.
+	 */
+	public static class Settings
+	{
+		private int fMaxFingerprints = 100000;
+		private long fRevalidateAfter = 0;
+
+		public int getMaxFingerprints()
+		{
+			return fMaxFingerprints;
+		}
+
+		/**
+		 * Maximum number of graphs whose fingerprint is remembered, zero
+		 * compares every replace with the stored graph.
+		 */
+		public Settings setMaxFingerprints(int maxFingerprints)
+		{
+			fMaxFingerprints = maxFingerprints;
+			return this;
+		}
+
+		public long getRevalidateAfter()
+		{
+			return fRevalidateAfter;
+		}
+
+		/**
+		 * Age in milliseconds after which a remembered fingerprint is no
+		 * longer trusted to skip a write without reading the graph. Zero
+		 * always reads the graph, a negative value never, which is only
+		 * safe if all writes go through this store.
+		 */
+		public Settings setRevalidateAfter(long revalidateAfter)
+		{
+			fRevalidateAfter = revalidateAfter;
+			return this;
+		}
+	}
+
+
+	//================================================================================
+	// Constructors
+	//================================================================================
+
+	public DiffingGraphStore(final IGraphStore graphStore)
+	{
+		this(graphStore, new Settings());
+	}
+
+	public DiffingGraphStore(final IGraphStore graphStore, final Settings settings)
+	{
+		super(graphStore);
+		fSettings = settings;
+		fRevalidateAfterNanos = settings.getRevalidateAfter() < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(settings.getRevalidateAfter());
+	}
+
+
+	//================================================================================
+	// Statistics
+	//================================================================================
+
+	/**
+	 * Returns how many replaces were skipped because the graph was unchanged.
+	 */
+	public long getSkippedCount()
+	{
+		return fSkipped.get();
+	}
+
+	/**
+	 * Returns how many replaces were sent as a patch.
+	 */
+	public long getPatchedCount()
+	{
+		return fPatched.get();
+	}
+
+	/**
+	 * Returns how many replaces were sent as they are.
+	 */
+	public long getReplacedCount()
+	{
+		return fReplaced.get();
+	}
+
+	/**
+	 * Forgets all fingerprints, e.g. after the graphs were written by
+	 * another client.
+	 */
+	public void invalidateAll()
+	{
+		synchronized (fFingerprints)
+		{
+			fFingerprints.clear();
+		}
+	}
+
+
+	//================================================================================
+	// CRUD-related methods for the default graph
+	//================================================================================
+
+	@Override
+	public void replaceDefaultGraph(final Model model)
+	{
+		replace(null, model);
+	}
+
+	@Override
+	public void addToDefaultGraph(final Model model)
+	{
+		write(null, () -> fGraphStore.addToDefaultGraph(model));
+	}
+
+	@Override
+	public void clearDefaultGraph()
+	{
+		write(null, () -> fGraphStore.clearDefaultGraph());
+	}
+
+
+	//================================================================================
+	// CRUD-related methods for named graphs
+	//================================================================================
+
+	@Override
+	public void deleteNamedGraph(final String graphURI)
+	{
+		write(graphURI, () -> fGraphStore.deleteNamedGraph(graphURI));
+	}
+
+	@Override
+	public void replaceNamedGraph(final String graphURI, final Model model)
+	{
+		replace(graphURI, model);
+	}
+
+	@Override
+	public void addToNamedGraph(final String graphURI, final Model model)
+	{
+		write(graphURI, () -> fGraphStore.addToNamedGraph(graphURI, model));
+	}
+
+	@Override
+	public void createNamedGraph(final String graphURI, final Model model)
+	{
+		write(graphURI, () -> fGraphStore.createNamedGraph(graphURI, model));
+	}
+
+	/**
+	 * Parses the input into a model, which is then replaced like one given
+	 * directly.
+	 */
+	@Override
+	public void replaceNamedGraph(final String graphURI, final InputStream inStream, final String contentType)
+	{
+		final Model model = ModelFactory.createDefaultModel();
+		RDFDataMgr.read(model, inStream, RDFStreams.toLang(contentType));
+		replace(graphURI, model);
+	}
+
+	@Override
+	public void addToNamedGraph(final String graphURI, final InputStream inStream, final String contentType)
+	{
+		write(graphURI, () -> fGraphStore.addToNamedGraph(graphURI, inStream, contentType));
+	}
+
+
+	//================================================================================
+	// Delta- and batch-related Methods
+	//================================================================================
+
+	@Override
+	public void patch(final String graphURI, final Model additions, final Model removals)
+	{
+		write(graphURI, () -> fGraphStore.patch(graphURI, additions, removals));
+	}
+
+	@Override
+	public void apply(final GraphBatch batch)
+	{
+		final List<String> graphURIs = new ArrayList<String>();
+		for (GraphBatch.Operation operation : batch)
+		{
+			graphURIs.add(operation.getGraphURI());
+		}
+		final boolean[] stripes = StripedLocks.stripes(graphURIs);
+
+		fStripes.lock(stripes);
+		try
+		{
+			for (GraphBatch.Operation operation : batch)
+			{
+				forget(operation.getGraphURI());
+			}
+			fGraphStore.apply(batch);
+		}
+		finally
+		{
+			fStripes.unlock(stripes);
+		}
+	}
+
+
+	//================================================================================
+	// Replace
+	//================================================================================
+
+	/**
+	 * The stored content of a graph and its version tag, if any.
+	 */
+	private static class Stored
+	{
+		final Model fModel;
+		final String fVersionTag;
+
+		Stored(final Model model, final String versionTag)
+		{
+			fModel = model;
+			fVersionTag = versionTag;
+		}
+	}
+
+	/**
+	 * A remembered fingerprint.
+	 */
+	private static class Entry
+	{
+		final GraphFingerprint fFingerprint;
+		final String fVersionTag;
+		final long fCheckedAt;
+
+		Entry(final GraphFingerprint fingerprint, final String versionTag)
+		{
+			fFingerprint = fingerprint;
+			fVersionTag = versionTag;
+			fCheckedAt = System.nanoTime();
+		}
+	}
+
+	private void replace(final String graphURI, final Model model)
+	{
+		final Lock stripe = fStripes.exclusive(graphURI);
+		stripe.lock();
+		try
+		{
+			final GraphFingerprint fingerprint = GraphFingerprint.of(model);
+			final Entry entry = lookup(graphURI);
+			if (entry != null && !fingerprint.hasBlankNodes() && entry.fFingerprint.equals(fingerprint) && !isStale(entry))
+			{
+				fSkipped.incrementAndGet();
+				return;
+			}
+
+			final Stored stored = read(graphURI, entry, fingerprint);
+			if (stored == null)
+			{
+				// unchanged according to the version tag
+				remember(graphURI, new Entry(fingerprint, entry.fVersionTag));
+				fSkipped.incrementAndGet();
+				return;
+			}
+			if (stored.fModel == null)
+			{
+				// a named graph that does not exist
+				forget(graphURI);
+				fGraphStore.replaceNamedGraph(graphURI, model);
+				fReplaced.incrementAndGet();
+				return;
+			}
+
+			final Model[] storedParts = split(stored.fModel);
+			final Model[] newParts = split(model);
+			final boolean sameBlankNodes = storedParts[1].isEmpty() && newParts[1].isEmpty()
+					|| storedParts[1].size() == newParts[1].size() && storedParts[1].isIsomorphicWith(newParts[1]);
+
+			if (sameBlankNodes && GraphFingerprint.of(stored.fModel).equals(fingerprint))
+			{
+				remember(graphURI, new Entry(fingerprint, stored.fVersionTag));
+				fSkipped.incrementAndGet();
+				return;
+			}
+
+			// the version tag of the graph is unknown once it was written
+			forget(graphURI);
+			final Model removals = storedParts[0].difference(newParts[0]);
+			final Model additions = newParts[0].difference(storedParts[0]);
+			if (sameBlankNodes && removals.size() + additions.size() < model.size())
+			{
+				fGraphStore.patch(graphURI, additions, removals);
+				fPatched.incrementAndGet();
+			}
+			else
+			{
+				if (graphURI == null)
+				{
+					fGraphStore.replaceDefaultGraph(model);
+				}
+				else
+				{
+					fGraphStore.replaceNamedGraph(graphURI, model);
+				}
+				fReplaced.incrementAndGet();
+			}
+			remember(graphURI, new Entry(fingerprint, null));
+		}
+		finally
+		{
+			stripe.unlock();
+		}
+	}
+
+	/**
+	 * Reads the stored graph, conditionally if there is a version tag for
+	 * the same content. Returns null if the graph is unchanged according to
+	 * its version tag, and a result without a model if the named graph
+	 * does not exist.
+	 */
+	private Stored read(final String graphURI, final Entry entry, final GraphFingerprint fingerprint)
+	{
+		if (fGraphStore instanceof IVersionedGraphStore)
+		{
+			final IVersionedGraphStore store = (IVersionedGraphStore) fGraphStore;
+			final boolean conditional = entry != null && entry.fVersionTag != null
+					&& !fingerprint.hasBlankNodes() && entry.fFingerprint.equals(fingerprint);
+
+			final VersionedGraph graph = store.getVersionedGraph(graphURI, conditional ? entry.fVersionTag : null);
+			if (graph != null && graph.isNotModified())
+			{
+				return null;
+			}
+			if (graph == null)
+			{
+				return new Stored(graphURI == null ? ModelFactory.createDefaultModel() : null, null);
+			}
+			return new Stored(graph.getModel(), graph.getVersionTag());
+		}
+
+		if (graphURI == null)
+		{
+			return new Stored(fGraphStore.getDefaultGraph(), null);
+		}
+		try (CloseableIterator<Map.Entry<String, Model>> graphs = fGraphStore.getNamedGraphs(Collections.singleton(graphURI)))
+		{
+			return new Stored(graphs.hasNext() ? graphs.next().getValue() : null, null);
+		}
+	}
+
+	/**
+	 * Splits a model into its triples without and with blank nodes.
+	 */
+	private static Model[] split(final Model model)
+	{
+		final Model ground = ModelFactory.createDefaultModel();
+		final Model blank = ModelFactory.createDefaultModel();
+		final ExtendedIterator<Triple> triples = model.getGraph().find(Node.ANY, Node.ANY, Node.ANY);
+		try
+		{
+			while (triples.hasNext())
+			{
+				final Triple triple = triples.next();
+				if (triple.getSubject().isBlank() || triple.getObject().isBlank())
+				{
+					blank.getGraph().add(triple);
+				}
+				else
+				{
+					ground.getGraph().add(triple);
+				}
+			}
+		}
+		finally
+		{
+			triples.close();
+		}
+		return new Model[] { ground, blank };
+	}
+
+
+	//================================================================================
+	// Helpers
+	//================================================================================
+
+	private void write(final String graphURI, final Runnable write)
+	{
+		final Lock stripe = fStripes.exclusive(graphURI);
+		stripe.lock();
+		try
+		{
+			forget(graphURI);
+			write.run();
+		}
+		finally
+		{
+			stripe.unlock();
+		}
+	}
+
+	private Entry lookup(final String graphURI)
+	{
+		synchronized (fFingerprints)
+		{
+			return fFingerprints.get(key(graphURI));
+		}
+	}
+
+	private void remember(final String graphURI, final Entry entry)
+	{
+		if (fSettings.getMaxFingerprints() <= 0)
+		{
+			return;
+		}
+		synchronized (fFingerprints)
+		{
+			fFingerprints.put(key(graphURI), entry);
+			while (fFingerprints.size() > fSettings.getMaxFingerprints())
+			{
+				fFingerprints.remove(fFingerprints.keySet().iterator().next());
+			}
+		}
+	}
+
+	private void forget(final String graphURI)
+	{
+		synchronized (fFingerprints)
+		{
+			fFingerprints.remove(key(graphURI));
+		}
+	}
+
+	private boolean isStale(final Entry entry)
+	{
+		return fRevalidateAfterNanos >= 0 && System.nanoTime() - entry.fCheckedAt >= fRevalidateAfterNanos;
+	}
+
+	private static String key(final String graphURI)
+	{
+		return graphURI == null ? Quad.defaultGraphIRI.getURI() : graphURI;
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private final Settings fSettings;
+	private final long fRevalidateAfterNanos;
+	private final StripedLocks fStripes = new StripedLocks();
+	private final LinkedHashMap<String, Entry> fFingerprints = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private final AtomicLong fSkipped = new AtomicLong();
+	private final AtomicLong fPatched = new AtomicLong();
+	private final AtomicLong fReplaced = new AtomicLong();
+}
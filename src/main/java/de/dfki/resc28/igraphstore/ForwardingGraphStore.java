@@ -0,0 +1,239 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.system.StreamRDF;
+
+/**
+ * @author resc01
+ *
+ * Base class of decorators that add behaviour to another IGraphStore.
+ * Every method forwards to the wrapped store, subclasses override the
+ * methods they decorate.
+ */
+public abstract class ForwardingGraphStore implements IGraphStore
+{
+	//================================================================================
+	// Constructors
+	//================================================================================
+
+	protected ForwardingGraphStore(final IGraphStore graphStore)
+	{
+		if (graphStore == null)
+		{
+			throw new IllegalArgumentException("No graph store given");
+		}
+		fGraphStore = graphStore;
+	}
+
+	/**
+	 * Returns the wrapped store.
+	 */
+	public IGraphStore getDelegate()
+	{
+		return fGraphStore;
+	}
+
+
+	//================================================================================
+	// CRUD-related methods for the default graph
+	//================================================================================
+
+	@Override
+	public Model getDefaultGraph()
+	{
+		return fGraphStore.getDefaultGraph();
+	}
+
+	@Override
+	public void replaceDefaultGraph(final Model model)
+	{
+		fGraphStore.replaceDefaultGraph(model);
+	}
+
+	@Override
+	public void addToDefaultGraph(final Model model)
+	{
+		fGraphStore.addToDefaultGraph(model);
+	}
+
+	@Override
+	public void clearDefaultGraph()
+	{
+		fGraphStore.clearDefaultGraph();
+	}
+
+
+	//================================================================================
+	// CRUD-related methods for named graphs
+	//================================================================================
+
+	@Override
+	public boolean containsNamedGraph(final String graphURI)
+	{
+		return fGraphStore.containsNamedGraph(graphURI);
+	}
+
+	@Override
+	public Model getNamedGraph(final String graphURI)
+	{
+		return fGraphStore.getNamedGraph(graphURI);
+	}
+
+	@Override
+	public CloseableIterator<Map.Entry<String, Model>> getNamedGraphs(final Collection<String> graphURIs)
+	{
+		return fGraphStore.getNamedGraphs(graphURIs);
+	}
+
+	@Override
+	public void deleteNamedGraph(final String graphURI)
+	{
+		fGraphStore.deleteNamedGraph(graphURI);
+	}
+
+	@Override
+	public void replaceNamedGraph(final String graphURI, final Model model)
+	{
+		fGraphStore.replaceNamedGraph(graphURI, model);
+	}
+
+	@Override
+	public void addToNamedGraph(final String graphURI, final Model model)
+	{
+		fGraphStore.addToNamedGraph(graphURI, model);
+	}
+
+	@Override
+	public void createNamedGraph(final String graphURI, final Model model)
+	{
+		fGraphStore.createNamedGraph(graphURI, model);
+	}
+
+	@Override
+	public void replaceNamedGraph(final String graphURI, final InputStream inStream, final String contentType)
+	{
+		fGraphStore.replaceNamedGraph(graphURI, inStream, contentType);
+	}
+
+	@Override
+	public void addToNamedGraph(final String graphURI, final InputStream inStream, final String contentType)
+	{
+		fGraphStore.addToNamedGraph(graphURI, inStream, contentType);
+	}
+
+	@Override
+	public void writeNamedGraph(final String graphURI, final OutputStream outStream, final String contentType)
+	{
+		fGraphStore.writeNamedGraph(graphURI, outStream, contentType);
+	}
+
+	@Override
+	public void streamNamedGraph(final String graphURI, final StreamRDF sink)
+	{
+		fGraphStore.streamNamedGraph(graphURI, sink);
+	}
+
+	@Override
+	public CloseableIterator<Triple> find(final String graphURI, final Node s, final Node p, final Node o)
+	{
+		return fGraphStore.find(graphURI, s, p, o);
+	}
+
+
+	//================================================================================
+	// Catalog-related Methods
+	//================================================================================
+
+	@Override
+	public CloseableIterator<String> listNamedGraphs()
+	{
+		return fGraphStore.listNamedGraphs();
+	}
+
+	@Override
+	public long graphSize(final String graphURI)
+	{
+		return fGraphStore.graphSize(graphURI);
+	}
+
+	@Override
+	public GraphStats getGraphStats(final String graphURI)
+	{
+		return fGraphStore.getGraphStats(graphURI);
+	}
+
+
+	//================================================================================
+	// Delta-related Methods
+	//================================================================================
+
+	@Override
+	public void patch(final String graphURI, final Model additions, final Model removals)
+	{
+		fGraphStore.patch(graphURI, additions, removals);
+	}
+
+
+	//================================================================================
+	// Batch-related Methods
+	//================================================================================
+
+	@Override
+	public void apply(final GraphBatch batch)
+	{
+		fGraphStore.apply(batch);
+	}
+
+
+	//================================================================================
+	// Query-related Methods
+	//================================================================================
+
+	@Override
+	public boolean ask(final String queryString)
+	{
+		return fGraphStore.ask(queryString);
+	}
+
+	@Override
+	public void select(final OutputStream outStream, final String queryString)
+	{
+		fGraphStore.select(outStream, queryString);
+	}
+
+	@Override
+	public void select(final OutputStream outStream, final String queryString, final String contentType)
+	{
+		fGraphStore.select(outStream, queryString, contentType);
+	}
+
+	@Override
+	public void construct(final OutputStream outStream, final String queryString, final String contentType)
+	{
+		fGraphStore.construct(outStream, queryString, contentType);
+	}
+
+	@Override
+	public void describe(final OutputStream outStream, final String queryString, final String contentType)
+	{
+		fGraphStore.describe(outStream, queryString, contentType);
+	}
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	protected final IGraphStore fGraphStore;
+}
@@ -0,0 +1,210 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+
+/**
+ * @author resc01
+ *
+ * A GraphBatch collects write operations on the default graph and on
+ * named graphs, which are then applied atomically and in order by
+ * {@link IGraphStore#apply(GraphBatch)}.
+ *
+ * Each operation has the same semantics as the corresponding single
+ * IGraphStore method of the store the batch is applied to.
+ */
+public class GraphBatch implements Iterable<GraphBatch.Operation>
+{
+	//================================================================================
+	// Operations
+	//================================================================================
+
+	public enum OperationType
+	{
+		CREATE,
+		REPLACE,
+		ADD,
+		DELETE,
+		PATCH
+	}
+
+	/**
+	 * A single operation of a batch. The graph URI is null for operations
+	 * on the default graph, the model is null for DELETE operations.
+	 * For PATCH operations the model holds the additions and the removals
+	 * model the statements to remove.
+	 */
+	public static class Operation
+	{
+		private final OperationType fType;
+		private final String fGraphURI;
+		private final Model fModel;
+		private final Model fRemovals;
+
+		Operation(final OperationType type, final String graphURI, final Model model, final Model removals)
+		{
+			fType = type;
+			fGraphURI = graphURI;
+			fModel = model;
+			fRemovals = removals;
+		}
+
+		public OperationType getType()
+		{
+			return fType;
+		}
+
+		public String getGraphURI()
+		{
+			return fGraphURI;
+		}
+
+		public Model getModel()
+		{
+			return fModel;
+		}
+
+		public Model getRemovals()
+		{
+			return fRemovals;
+		}
+
+		public boolean isDefaultGraph()
+		{
+			return fGraphURI == null;
+		}
+	}
+
+
+	//================================================================================
+	// Builder methods for the default graph
+	//================================================================================
+
+	public GraphBatch replaceDefaultGraph(final Model model)
+	{
+		return add(OperationType.REPLACE, null, model);
+	}
+
+	public GraphBatch addToDefaultGraph(final Model model)
+	{
+		return add(OperationType.ADD, null, model);
+	}
+
+	public GraphBatch clearDefaultGraph()
+	{
+		return add(OperationType.DELETE, null, null);
+	}
+
+
+	//================================================================================
+	// Builder methods for named graphs
+	//================================================================================
+
+	public GraphBatch createNamedGraph(final String graphURI, final Model model)
+	{
+		return add(OperationType.CREATE, checkGraphURI(graphURI), model);
+	}
+
+	public GraphBatch replaceNamedGraph(final String graphURI, final Model model)
+	{
+		return add(OperationType.REPLACE, checkGraphURI(graphURI), model);
+	}
+
+	public GraphBatch addToNamedGraph(final String graphURI, final Model model)
+	{
+		return add(OperationType.ADD, checkGraphURI(graphURI), model);
+	}
+
+	public GraphBatch deleteNamedGraph(final String graphURI)
+	{
+		return add(OperationType.DELETE, checkGraphURI(graphURI), null);
+	}
+
+
+	//================================================================================
+	// Builder methods for deltas
+	//================================================================================
+
+	/**
+	 * Removes the removals from and then adds the additions to a graph. 
+	 * A null graph URI denotes the default graph, a null model an empty delta.
+	 */
+	public GraphBatch patch(final String graphURI, final Model additions, final Model removals)
+	{
+		fOperations.add(new Operation(OperationType.PATCH, graphURI, 
+				additions != null ? additions : ModelFactory.createDefaultModel(),
+				removals != null ? removals : ModelFactory.createDefaultModel()));
+		return this;
+	}
+
+
+	//================================================================================
+	// Accessors
+	//================================================================================
+
+	/**
+	 * Returns the operations in the order they were added.
+	 */
+	public List<Operation> getOperations()
+	{
+		return Collections.unmodifiableList(fOperations);
+	}
+
+	@Override
+	public Iterator<Operation> iterator()
+	{
+		return getOperations().iterator();
+	}
+
+	public int size()
+	{
+		return fOperations.size();
+	}
+
+	public boolean isEmpty()
+	{
+		return fOperations.isEmpty();
+	}
+
+
+	//================================================================================
+	// Helpers
+	//================================================================================
+
+	private GraphBatch add(final OperationType type, final String graphURI, final Model model)
+	{
+		if (type != OperationType.DELETE && model == null)
+		{
+			throw new IllegalArgumentException("No model given for " + type + " operation");
+		}
+
+		fOperations.add(new Operation(type, graphURI, model, null));
+		return this;
+	}
+
+	private static String checkGraphURI(final String graphURI)
+	{
+		if (graphURI == null)
+		{
+			throw new IllegalArgumentException("No graph URI given");
+		}
+		return graphURI;
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private final List<Operation> fOperations = new ArrayList<Operation>();
+}
@@ -0,0 +1,295 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.util.iterator.ExtendedIterator;
+
+/**
+ * @author resc01
+ *
+ * A 128-bit hash of the content of a graph that does not depend on the
+ * order of its triples, so two graphs with the same triples have the same
+ * fingerprint however they were read or written.
+ *
+ * The triple hashes are summed up, so the fingerprint is built triple by
+ * triple in constant memory for graphs without blank nodes. Blank node
+ * labels are local to a store, so a blank node is hashed by the triples
+ * around it instead of its label, refined over a few rounds: isomorphic
+ * graphs have the same fingerprint. Only non-isomorphic graphs whose blank
+ * nodes have the same neighbourhoods up to that depth, such as one long
+ * cycle of blank nodes and two short ones, may collide.
+ */
+public final class GraphFingerprint
+{
+	//================================================================================
+	// Constructors
+	//================================================================================
+
+	private GraphFingerprint(final long high, final long low, final long tripleCount, final boolean hasBlankNodes)
+	{
+		fHigh = high;
+		fLow = low;
+		fTripleCount = tripleCount;
+		fHasBlankNodes = hasBlankNodes;
+	}
+
+	public static GraphFingerprint of(final Model model)
+	{
+		return of(model.getGraph());
+	}
+
+	public static GraphFingerprint of(final Graph graph)
+	{
+		final Builder builder = new Builder();
+		final ExtendedIterator<Triple> triples = graph.find(Node.ANY, Node.ANY, Node.ANY);
+		try
+		{
+			while (triples.hasNext())
+			{
+				builder.add(triples.next());
+			}
+		}
+		finally
+		{
+			triples.close();
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Computes a fingerprint from triples added one by one, e.g. while they
+	 * are streamed from a store. Each triple must be added once.
+	 */
+	public static class Builder
+	{
+		private long fHigh = 0;
+		private long fLow = 0;
+		private long fTripleCount = 0;
+		private final List<Triple> fBlankTriples = new ArrayList<Triple>();
+
+		public Builder add(final Triple triple)
+		{
+			fTripleCount++;
+			if (triple.getSubject().isBlank() || triple.getObject().isBlank())
+			{
+				fBlankTriples.add(triple);
+			}
+			else
+			{
+				fHigh += hash(triple, HIGH_SEED, null);
+				fLow += hash(triple, LOW_SEED, null);
+			}
+			return this;
+		}
+
+		public GraphFingerprint build()
+		{
+			long high = fHigh;
+			long low = fLow;
+			if (!fBlankTriples.isEmpty())
+			{
+				high += hashBlankTriples(fBlankTriples, HIGH_SEED);
+				low += hashBlankTriples(fBlankTriples, LOW_SEED);
+			}
+			return new GraphFingerprint(high, low, fTripleCount, !fBlankTriples.isEmpty());
+		}
+	}
+
+
+	//================================================================================
+	// Accessors
+	//================================================================================
+
+	public long getTripleCount()
+	{
+		return fTripleCount;
+	}
+
+	/**
+	 * Returns true if the graph has triples with blank nodes, whose
+	 * fingerprint is not an exact test of isomorphism.
+	 */
+	public boolean hasBlankNodes()
+	{
+		return fHasBlankNodes;
+	}
+
+	@Override
+	public boolean equals(final Object other)
+	{
+		if (!(other instanceof GraphFingerprint))
+		{
+			return false;
+		}
+		final GraphFingerprint that = (GraphFingerprint) other;
+		return fHigh == that.fHigh && fLow == that.fLow && fTripleCount == that.fTripleCount;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return (int) (fLow ^ (fLow >>> 32));
+	}
+
+	/**
+	 * Returns the fingerprint as 32 hex digits.
+	 */
+	@Override
+	public String toString()
+	{
+		return String.format("%016x%016x", fHigh, fLow);
+	}
+
+
+	//================================================================================
+	// Hashing
+	//================================================================================
+
+	/**
+	 * Hashes the triples with blank nodes. Each blank node starts with the
+	 * same color; each round sets it to the hash of the triples it occurs
+	 * in, with itself marked and the other blank nodes in their colors of
+	 * the previous round.
+	 */
+	private static long hashBlankTriples(final List<Triple> triples, final long seed)
+	{
+		Map<Node, Long> colors = new HashMap<Node, Long>();
+		for (Triple triple : triples)
+		{
+			if (triple.getSubject().isBlank())
+			{
+				colors.put(triple.getSubject(), BLANK);
+			}
+			if (triple.getObject().isBlank())
+			{
+				colors.put(triple.getObject(), BLANK);
+			}
+		}
+
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			final Map<Node, Long> next = new HashMap<Node, Long>();
+			for (Map.Entry<Node, Long> color : colors.entrySet())
+			{
+				next.put(color.getKey(), color.getValue());
+			}
+			for (Triple triple : triples)
+			{
+				if (triple.getSubject().isBlank())
+				{
+					next.merge(triple.getSubject(), hash(triple, seed, colors, triple.getSubject()), Long::sum);
+				}
+				if (triple.getObject().isBlank() && !triple.getObject().equals(triple.getSubject()))
+				{
+					next.merge(triple.getObject(), hash(triple, seed, colors, triple.getObject()), Long::sum);
+				}
+			}
+			for (Map.Entry<Node, Long> color : next.entrySet())
+			{
+				color.setValue(mix(color.getValue()));
+			}
+			colors = next;
+		}
+
+		long sum = 0;
+		for (Triple triple : triples)
+		{
+			sum += hash(triple, seed, colors);
+		}
+		return sum;
+	}
+
+	private static long hash(final Triple triple, final long seed, final Map<Node, Long> colors)
+	{
+		return hash(triple, seed, colors, null);
+	}
+
+	private static long hash(final Triple triple, final long seed, final Map<Node, Long> colors, final Node self)
+	{
+		long h = seed;
+		h = combine(h, hash(triple.getSubject(), seed, colors, self));
+		h = combine(h, hash(triple.getPredicate(), seed, colors, self));
+		h = combine(h, hash(triple.getObject(), seed, colors, self));
+		return mix(h);
+	}
+
+	private static long hash(final Node node, final long seed, final Map<Node, Long> colors, final Node self)
+	{
+		if (node.isBlank())
+		{
+			return node.equals(self) ? SELF : colors.get(node);
+		}
+		if (node.isURI())
+		{
+			return hash(hash(seed, 'U'), node.getURI());
+		}
+		if (node.isLiteral())
+		{
+			long h = hash(seed, 'L');
+			h = hash(h, node.getLiteralLexicalForm());
+			h = hash(h, node.getLiteralLanguage());
+			return hash(h, node.getLiteralDatatypeURI());
+		}
+		return hash(hash(seed, 'X'), node.toString());
+	}
+
+	/**
+	 * 64-bit FNV-1a of the characters, finished with the MurmurHash3 mix.
+	 */
+	private static long hash(long h, final String s)
+	{
+		for (int i = 0; i < s.length(); i++)
+		{
+			h = (h ^ s.charAt(i)) * 0x100000001b3L;
+		}
+		return mix(h ^ s.length());
+	}
+
+	private static long hash(final long h, final char c)
+	{
+		return (h ^ c) * 0x100000001b3L;
+	}
+
+	private static long combine(final long h, final long x)
+	{
+		return mix(h ^ (x + 0x9e3779b97f4a7c15L + (h << 6) + (h >>> 2)));
+	}
+
+	private static long mix(long h)
+	{
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private static final long HIGH_SEED = 0xcbf29ce484222325L;
+	private static final long LOW_SEED = 0x84222325cbf29ce4L;
+	private static final long BLANK = 0x5bd1e9955bd1e995L;
+	private static final long SELF = 0x27d4eb2f165667c5L;
+	private static final int ROUNDS = 3;
+
+	private final long fHigh;
+	private final long fLow;
+	private final long fTripleCount;
+	private final boolean fHasBlankNodes;
+}
@@ -0,0 +1,71 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore;
+
+/**
+ * @author resc01
+ *
+ * The size and shape of a graph as returned by
+ * {@link IGraphStore#getGraphStats}, computed without fetching its content.
+ */
+public class GraphStats
+{
+	public static final long UNKNOWN = -1;
+
+	public GraphStats(final String graphURI, final long tripleCount, final long distinctSubjects, final long distinctPredicates, final long lastModified)
+	{
+		fGraphURI = graphURI;
+		fTripleCount = tripleCount;
+		fDistinctSubjects = distinctSubjects;
+		fDistinctPredicates = distinctPredicates;
+		fLastModified = lastModified;
+	}
+
+	/**
+	 * Returns the URI of the graph, or null for the default graph.
+	 */
+	public String getGraphURI()
+	{
+		return fGraphURI;
+	}
+
+	public long getTripleCount()
+	{
+		return fTripleCount;
+	}
+
+	public long getDistinctSubjects()
+	{
+		return fDistinctSubjects;
+	}
+
+	public long getDistinctPredicates()
+	{
+		return fDistinctPredicates;
+	}
+
+	/**
+	 * Returns the time of the last change of the graph in milliseconds since
+	 * the epoch, or {@link #UNKNOWN} if the store does not record it.
+	 */
+	public long getLastModified()
+	{
+		return fLastModified;
+	}
+
+	@Override
+	public String toString()
+	{
+		return (fGraphURI != null ? fGraphURI : "default graph") + ": " + fTripleCount + " triples, "
+				+ fDistinctSubjects + " subjects, " + fDistinctPredicates + " predicates";
+	}
+
+	private final String fGraphURI;
+	private final long fTripleCount;
+	private final long fDistinctSubjects;
+	private final long fDistinctPredicates;
+	private final long fLastModified;
+}
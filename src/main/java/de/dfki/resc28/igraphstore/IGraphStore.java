@@ -5,7 +5,15 @@
  */
 package de.dfki.resc28.igraphstore;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.system.StreamRDF;
 
 /**
  * @author resc01
@@ -34,6 +42,17 @@ public interface IGraphStore
 	
 	Model getNamedGraph(final String graphURI);
 	
+	/**
+	 * Gets several named graphs at once, e.g. in one request or one read 
+	 * transaction instead of one per graph. Each entry maps a graph URI to 
+	 * a copy of the graph as returned by getNamedGraph, but graphs that do 
+	 * not exist are skipped instead of falling back to the default graph. 
+	 * The order of the entries is unspecified. The returned iterator may 
+	 * fetch the graphs as it is consumed and must be closed if it is not 
+	 * exhausted.
+	 */
+	CloseableIterator<Map.Entry<String, Model>> getNamedGraphs(final Collection<String> graphURIs);
+	
 	void deleteNamedGraph(final String graphURI);
 	
 	void replaceNamedGraph(final String graphURI, final Model model);
@@ -41,19 +60,119 @@ public interface IGraphStore
 	void addToNamedGraph(final String graphURI, final Model model);
 	
 	void createNamedGraph(final String graphURI, final Model model);
+	
+	/**
+	 * Replaces a named graph by the RDF read from the input stream, given in 
+	 * one of the Constants.CT_* RDF content types.
+	 */
+	void replaceNamedGraph(final String graphURI, final InputStream inStream, final String contentType);
+	
+	/**
+	 * Adds the RDF read from the input stream, given in one of the 
+	 * Constants.CT_* RDF content types, to a named graph.
+	 */
+	void addToNamedGraph(final String graphURI, final InputStream inStream, final String contentType);
+	
+	/**
+	 * Writes a named graph to the output stream in one of the Constants.CT_* 
+	 * RDF content types without materializing it as a Model. 
+	 * A graph that does not exist is written as an empty graph.
+	 */
+	void writeNamedGraph(final String graphURI, final OutputStream outStream, final String contentType);
+	
+	/**
+	 * Sends the triples of a named graph to the sink without materializing 
+	 * it as a Model. A graph that does not exist sends no triples.
+	 */
+	void streamNamedGraph(final String graphURI, final StreamRDF sink);
+	
+	/**
+	 * Finds the triples of a named graph that match the given pattern.
+	 * A null or Node.ANY subject, predicate or object matches any node.
+	 * The returned iterator is lazy and must be closed if it is not exhausted.
+	 */
+	CloseableIterator<Triple> find(final String graphURI, final Node s, final Node p, final Node o);
+
+
+	//================================================================================
+	// Catalog-related Methods
+	//================================================================================
+
+	/**
+	 * Lists the URIs of the named graphs without reading their content. 
+	 * The returned iterator fetches the URIs page by page as it is consumed 
+	 * and must be closed if it is not exhausted. Graphs created or deleted 
+	 * meanwhile may or may not be listed.
+	 */
+	CloseableIterator<String> listNamedGraphs();
+
+	/**
+	 * Returns the number of triples of a graph, or 0 if it does not exist.
+	 * A null graph URI denotes the default graph.
+	 */
+	long graphSize(final String graphURI);
+
+	/**
+	 * Returns the triple count and the numbers of distinct subjects and 
+	 * predicates of a graph, computed by the store, or null if the named 
+	 * graph does not exist. A null graph URI denotes the default graph.
+	 */
+	GraphStats getGraphStats(final String graphURI);
+
+
+	//================================================================================
+	// Delta-related Methods
+	//================================================================================
+
+	/**
+	 * Removes the statements of the removals model from a graph and then adds 
+	 * the statements of the additions model, touching only these statements. 
+	 * A null graph URI denotes the default graph, a null model an empty delta.
+	 */
+	void patch(final String graphURI, final Model additions, final Model removals);
+
+
+	//================================================================================
+	// Batch-related Methods
+	//================================================================================
+
+	/**
+	 * Applies all operations of the batch in order and atomically, i.e. in a 
+	 * single transaction or a single request to the store.
+	 */
+	void apply(final GraphBatch batch);
 
 
 	//================================================================================
 	// Query-related Methods
 	//================================================================================
 
-//	boolean ask(String queryString);
-//	
-//	void select(OutputStream outStream, String queryString);
-//	
-//	void select(OutputStream outStream, String queryString, String contentType);
-//	
-//	Model construct(String queryString);
-//	
-//	Model describe(String queryString);
+	/**
+	 * Evaluates a SPARQL ASK query against the RDF-Dataset.
+	 */
+	boolean ask(final String queryString);
+	
+	/**
+	 * Evaluates a SPARQL SELECT query and streams the results to the output 
+	 * stream as SPARQL results in JSON.
+	 */
+	void select(final OutputStream outStream, final String queryString);
+	
+	/**
+	 * Evaluates a SPARQL SELECT query and streams the results to the output 
+	 * stream in one of the Constants.CT_APPLICATION_SPARQLRESULTS_* formats.
+	 */
+	void select(final OutputStream outStream, final String queryString, final String contentType);
+	
+	/**
+	 * Evaluates a SPARQL CONSTRUCT query and streams the resulting triples to 
+	 * the output stream in the given RDF content type.
+	 */
+	void construct(final OutputStream outStream, final String queryString, final String contentType);
+	
+	/**
+	 * Evaluates a SPARQL DESCRIBE query and streams the resulting triples to 
+	 * the output stream in the given RDF content type.
+	 */
+	void describe(final OutputStream outStream, final String queryString, final String contentType);
 }
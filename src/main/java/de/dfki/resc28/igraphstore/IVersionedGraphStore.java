@@ -0,0 +1,25 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore;
+
+/**
+ * @author resc01
+ *
+ * Implemented by graph stores that can tell whether a graph changed since it 
+ * was last read, e.g. by HTTP entity tags, so that unchanged graphs are not 
+ * transferred again.
+ */
+public interface IVersionedGraphStore extends IGraphStore
+{
+	/**
+	 * Gets a graph together with its version tag. If the graph still has the 
+	 * version tag ifNoneMatch, a result without a model is returned for which
+	 * {@link VersionedGraph#isNotModified()} is true. Returns null if the 
+	 * graph does not exist. A null graph URI denotes the default graph, a null
+	 * version tag requests the graph unconditionally.
+	 */
+	VersionedGraph getVersionedGraph(final String graphURI, final String ifNoneMatch);
+}
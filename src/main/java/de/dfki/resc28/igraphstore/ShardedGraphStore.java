@@ -0,0 +1,1294 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.query.ResultSetFormatter;
+import org.apache.jena.query.SortCondition;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.ResultSetMgr;
+import org.apache.jena.riot.resultset.ResultSetLang;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.sparql.algebra.Algebra;
+import org.apache.jena.sparql.algebra.OpVisitorBase;
+import org.apache.jena.sparql.algebra.OpWalker;
+import org.apache.jena.sparql.algebra.op.OpGraph;
+import org.apache.jena.sparql.algebra.op.OpQuadPattern;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ResultSetStream;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingComparator;
+import org.apache.jena.sparql.engine.binding.BindingProject;
+import org.apache.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+
+import de.dfki.resc28.igraphstore.util.RDFStreams;
+import de.dfki.resc28.igraphstore.util.StripedLocks;
+
+/**
+ * @author resc01
+ *
+ * Partitions the named graphs over several IGraphStores, e.g. a mix of
+ * FusekiGraphStores and TDBGraphStores, so that storage and write capacity
+ * grow with the number of shards.
+ *
+ * Each named graph lives on exactly one shard, chosen by consistent hashing
+ * of its URI: every shard owns virtualNodes points on a hash ring and a
+ * graph belongs to the shard of the next point after the hash of its URI.
+ * The points depend only on the shard names, so the same names in any
+ * order give the same placement. Adding a shard with {@link #addShard}
+ * moves only the graphs that now hash to the new shard, about 1/N of them,
+ * while the store stays online.
+ *
+ * The default graph follows the {@link DefaultGraphPolicy}. Batches are
+ * split by shard and the parts are applied in parallel; each part is atomic
+ * on its shard, the batch as a whole is not. Queries are sent to all shards
+ * in parallel and their results are merged: DISTINCT, ORDER BY, OFFSET and
+ * LIMIT are applied to the merged results. Graph patterns that join graphs
+ * on different shards find nothing, and aggregates are rejected since they
+ * cannot be merged.
+ */
+public class ShardedGraphStore implements IGraphStore, Closeable
+{
+	/**
+	 * Where the default graph is kept.
+	 */
+	public enum DefaultGraphPolicy
+	{
+		/**
+		 * The default graph lives on the first shard only. Queries see it
+		 * once, but only graphs on the first shard can be joined with it.
+		 */
+		PRIMARY,
+
+		/**
+		 * Every shard holds a copy of the default graph. Writes go to all
+		 * shards, reads to the first one. Every shard can join its graphs
+		 * with the default graph. Queries that match the default graph only
+		 * are answered by the first shard; SELECT queries that also match
+		 * named graphs must use DISTINCT.
+		 */
+		REPLICATED
+	}
+
+	/**
+	 * Hash ring, default graph and fan-out settings.
+	 */
+	public static class Settings
+	{
+		private int fVirtualNodes = 128;
+		private DefaultGraphPolicy fDefaultGraphPolicy = DefaultGraphPolicy.PRIMARY;
+		private ExecutorService fExecutor = null;
+
+		public int getVirtualNodes()
+		{
+			return fVirtualNodes;
+		}
+
+		/**
+		 * Number of points of each shard on the hash ring. More points
+		 * spread the graphs more evenly. All stores over the same shards
+		 * must use the same value.
+		 */
+		public Settings setVirtualNodes(int virtualNodes)
+		{
+			fVirtualNodes = virtualNodes;
+			return this;
+		}
+
+		public DefaultGraphPolicy getDefaultGraphPolicy()
+		{
+			return fDefaultGraphPolicy;
+		}
+
+		public Settings setDefaultGraphPolicy(DefaultGraphPolicy defaultGraphPolicy)
+		{
+			fDefaultGraphPolicy = defaultGraphPolicy;
+			return this;
+		}
+
+		public ExecutorService getExecutor()
+		{
+			return fExecutor;
+		}
+
+		/**
+		 * Executor for the calls sent to several shards at once. It is owned
+		 * by the caller and not shut down by close(). If none is given, the
+		 * store uses AsyncGraphStoreAdapter.newDefaultExecutor().
+		 */
+		public Settings setExecutor(ExecutorService executor)
+		{
+			fExecutor = executor;
+			return this;
+		}
+	}
+
+
+	//================================================================================
+	// Constructors
+	//================================================================================
+
+	/**
+	 * Creates a store over the given shards by name. The first shard is the
+	 * primary one, which holds the default graph.
+	 */
+	public ShardedGraphStore(final Map<String, ? extends IGraphStore> shards)
+	{
+		this(shards, new Settings());
+	}
+
+	public ShardedGraphStore(final Map<String, ? extends IGraphStore> shards, final Settings settings)
+	{
+		if (shards == null || shards.isEmpty())
+		{
+			throw new IllegalArgumentException("No shards given");
+		}
+		if (settings.getVirtualNodes() < 1)
+		{
+			throw new IllegalArgumentException("virtualNodes must be positive: " + settings.getVirtualNodes());
+		}
+
+		final List<String> names = new ArrayList<String>();
+		final List<IGraphStore> stores = new ArrayList<IGraphStore>();
+		for (Map.Entry<String, ? extends IGraphStore> shard : shards.entrySet())
+		{
+			if (shard.getKey() == null || shard.getValue() == null)
+			{
+				throw new IllegalArgumentException("Shards need a name and a store");
+			}
+			names.add(shard.getKey());
+			stores.add(shard.getValue());
+		}
+
+		fSettings = settings;
+		fOwnsExecutor = settings.getExecutor() == null;
+		fExecutor = fOwnsExecutor ? AsyncGraphStoreAdapter.newDefaultExecutor() : settings.getExecutor();
+		fTopology = new Topology(names, stores, new Ring(names, settings.getVirtualNodes()), null, null);
+	}
+
+
+	//================================================================================
+	// Shards
+	//================================================================================
+
+	public List<String> getShardNames()
+	{
+		return fTopology.fNames;
+	}
+
+	/**
+	 * Returns the name of the shard that holds the named graph.
+	 */
+	public String getShardName(final String graphURI)
+	{
+		final Topology topology = fTopology;
+		return topology.fNames.get(topology.owner(graphURI, hash(graphURI)));
+	}
+
+	/**
+	 * Adds a shard and moves the named graphs that now hash to it from the
+	 * other shards, graph by graph. Only the graph being moved is blocked,
+	 * all other graphs stay readable and writable. At the very end writes
+	 * are blocked while the old shards are checked once more for graphs
+	 * created during the move.
+	 *
+	 * If a move fails, the store keeps routing every graph to the shard
+	 * that holds it and {@link #rebalance()} resumes the move.
+	 */
+	public synchronized void addShard(final String name, final IGraphStore store)
+	{
+		if (name == null || store == null)
+		{
+			throw new IllegalArgumentException("Shards need a name and a store");
+		}
+		final Topology topology = fTopology;
+		if (topology.fPreviousRing != null)
+		{
+			throw new IllegalStateException("A previous shard is still being added, call rebalance() first");
+		}
+		if (topology.fNames.contains(name))
+		{
+			throw new IllegalArgumentException("Shard exists already: " + name);
+		}
+
+		final List<String> names = new ArrayList<String>(topology.fNames);
+		final List<IGraphStore> stores = new ArrayList<IGraphStore>(topology.fStores);
+		names.add(name);
+		stores.add(store);
+		final Topology next = new Topology(names, stores, new Ring(names, fSettings.getVirtualNodes()), topology.fRing, ConcurrentHashMap.<String>newKeySet());
+
+		if (fSettings.getDefaultGraphPolicy() == DefaultGraphPolicy.REPLICATED)
+		{
+			fDefaultGraphLock.writeLock().lock();
+			try
+			{
+				store.replaceDefaultGraph(topology.fStores.get(0).getDefaultGraph());
+				fTopology = next;
+			}
+			finally
+			{
+				fDefaultGraphLock.writeLock().unlock();
+			}
+		}
+		else
+		{
+			fTopology = next;
+		}
+
+		rebalance();
+	}
+
+	/**
+	 * Completes the move of graphs to the shard added last if it was
+	 * interrupted by a failure. Does nothing otherwise.
+	 */
+	public synchronized void rebalance()
+	{
+		final Topology topology = fTopology;
+		if (topology.fPreviousRing == null)
+		{
+			return;
+		}
+
+		while (moveGraphs(topology) > 0)
+		{
+			// graphs may have been created on the old shards meanwhile
+		}
+
+		fStripes.lockAll();
+		try
+		{
+			moveGraphs(topology);
+			fTopology = new Topology(topology.fNames, topology.fStores, topology.fRing, null, null);
+		}
+		finally
+		{
+			fStripes.unlockAll();
+		}
+	}
+
+
+	//================================================================================
+	// CRUD-related methods for the default graph
+	//================================================================================
+
+	@Override
+	public Model getDefaultGraph()
+	{
+		return readDefaultGraph(store -> store.getDefaultGraph());
+	}
+
+	@Override
+	public void replaceDefaultGraph(final Model model)
+	{
+		onDefaultGraph(store -> store.replaceDefaultGraph(model));
+	}
+
+	@Override
+	public void addToDefaultGraph(final Model model)
+	{
+		onDefaultGraph(store -> store.addToDefaultGraph(model));
+	}
+
+	@Override
+	public void clearDefaultGraph()
+	{
+		onDefaultGraph(store -> store.clearDefaultGraph());
+	}
+
+
+	//================================================================================
+	// CRUD-related methods for named graphs
+	//================================================================================
+
+	@Override
+	public boolean containsNamedGraph(final String graphURI)
+	{
+		return call(graphURI, store -> store.containsNamedGraph(graphURI));
+	}
+
+	@Override
+	public Model getNamedGraph(final String graphURI)
+	{
+		return call(graphURI, store -> store.getNamedGraph(graphURI));
+	}
+
+	/**
+	 * Gets the graphs with one bulk read per shard, run in parallel. The 
+	 * graphs are read completely before this method returns, so that none 
+	 * of them can be moved by {@link #rebalance()} in between.
+	 */
+	@Override
+	public CloseableIterator<Map.Entry<String, Model>> getNamedGraphs(final Collection<String> graphURIs)
+	{
+		final Set<String> uris = new LinkedHashSet<String>(graphURIs);
+		final boolean[] stripes = StripedLocks.stripes(uris);
+		fStripes.lockShared(stripes);
+		try
+		{
+			final Topology topology = fTopology;
+			final List<List<String>> parts = new ArrayList<List<String>>();
+			for (int i = 0; i < topology.fStores.size(); i++)
+			{
+				parts.add(new ArrayList<String>());
+			}
+			for (String graphURI : uris)
+			{
+				parts.get(topology.owner(graphURI, hash(graphURI))).add(graphURI);
+			}
+
+			final List<Supplier<Map<String, Model>>> calls = new ArrayList<Supplier<Map<String, Model>>>();
+			for (int i = 0; i < parts.size(); i++)
+			{
+				final IGraphStore store = topology.fStores.get(i);
+				final List<String> part = parts.get(i);
+				if (!part.isEmpty())
+				{
+					calls.add(() -> {
+						final Map<String, Model> graphs = new HashMap<String, Model>();
+						try (CloseableIterator<Map.Entry<String, Model>> it = store.getNamedGraphs(part))
+						{
+							while (it.hasNext())
+							{
+								final Map.Entry<String, Model> graph = it.next();
+								graphs.put(graph.getKey(), graph.getValue());
+							}
+						}
+						return graphs;
+					});
+				}
+			}
+
+			final Map<String, Model> fetched = new HashMap<String, Model>();
+			for (Map<String, Model> shardGraphs : all(calls))
+			{
+				fetched.putAll(shardGraphs);
+			}
+
+			// in the order requested, like the other stores
+			final Map<String, Model> graphs = new LinkedHashMap<String, Model>();
+			for (String graphURI : uris)
+			{
+				final Model graph = fetched.get(graphURI);
+				if (graph != null)
+				{
+					graphs.put(graphURI, graph);
+				}
+			}
+			return CloseableIterator.wrap(graphs.entrySet().iterator());
+		}
+		finally
+		{
+			fStripes.unlockShared(stripes);
+		}
+	}
+
+	@Override
+	public void deleteNamedGraph(final String graphURI)
+	{
+		run(graphURI, store -> store.deleteNamedGraph(graphURI));
+	}
+
+	@Override
+	public void replaceNamedGraph(final String graphURI, final Model model)
+	{
+		run(graphURI, store -> store.replaceNamedGraph(graphURI, model));
+	}
+
+	@Override
+	public void addToNamedGraph(final String graphURI, final Model model)
+	{
+		run(graphURI, store -> store.addToNamedGraph(graphURI, model));
+	}
+
+	@Override
+	public void createNamedGraph(final String graphURI, final Model model)
+	{
+		run(graphURI, store -> store.createNamedGraph(graphURI, model));
+	}
+
+	@Override
+	public void replaceNamedGraph(final String graphURI, final InputStream inStream, final String contentType)
+	{
+		run(graphURI, store -> store.replaceNamedGraph(graphURI, inStream, contentType));
+	}
+
+	@Override
+	public void addToNamedGraph(final String graphURI, final InputStream inStream, final String contentType)
+	{
+		run(graphURI, store -> store.addToNamedGraph(graphURI, inStream, contentType));
+	}
+
+	@Override
+	public void writeNamedGraph(final String graphURI, final OutputStream outStream, final String contentType)
+	{
+		run(graphURI, store -> store.writeNamedGraph(graphURI, outStream, contentType));
+	}
+
+	@Override
+	public void streamNamedGraph(final String graphURI, final StreamRDF sink)
+	{
+		run(graphURI, store -> store.streamNamedGraph(graphURI, sink));
+	}
+
+	/**
+	 * Finds the triples on the shard of the graph. An iterator opened before
+	 * the graph is moved to another shard keeps reading the old shard.
+	 */
+	@Override
+	public CloseableIterator<Triple> find(final String graphURI, final Node s, final Node p, final Node o)
+	{
+		return call(graphURI, store -> store.find(graphURI, s, p, o));
+	}
+
+
+	//================================================================================
+	// Catalog-related Methods
+	//================================================================================
+
+	/**
+	 * Lists the named graphs of one shard after the other, each only from
+	 * the shard that owns it, so that a graph being moved by
+	 * {@link #rebalance()} is not listed twice.
+	 */
+	@Override
+	public CloseableIterator<String> listNamedGraphs()
+	{
+		final List<IGraphStore> stores = fTopology.fStores;
+
+		return new CloseableIterator<String>()
+		{
+			private int fShard = -1;
+			private CloseableIterator<String> fGraphs = null;
+			private String fNext = null;
+			private boolean fClosed = false;
+
+			@Override
+			public boolean hasNext()
+			{
+				while (fNext == null && !fClosed)
+				{
+					if (fGraphs != null && fGraphs.hasNext())
+					{
+						final String graphURI = fGraphs.next();
+						if (fTopology.owner(graphURI, hash(graphURI)) == fShard)
+						{
+							fNext = graphURI;
+						}
+					}
+					else if (fShard + 1 < stores.size())
+					{
+						if (fGraphs != null)
+						{
+							fGraphs.close();
+						}
+						fGraphs = stores.get(++fShard).listNamedGraphs();
+					}
+					else
+					{
+						close();
+					}
+				}
+				return fNext != null;
+			}
+
+			@Override
+			public String next()
+			{
+				if (!hasNext())
+				{
+					throw new NoSuchElementException();
+				}
+				final String next = fNext;
+				fNext = null;
+				return next;
+			}
+
+			@Override
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close()
+			{
+				if (!fClosed)
+				{
+					fClosed = true;
+					if (fGraphs != null)
+					{
+						fGraphs.close();
+					}
+				}
+			}
+		};
+	}
+
+	@Override
+	public long graphSize(final String graphURI)
+	{
+		if (graphURI == null)
+		{
+			return readDefaultGraph(store -> store.graphSize(null));
+		}
+		return call(graphURI, store -> store.graphSize(graphURI));
+	}
+
+	@Override
+	public GraphStats getGraphStats(final String graphURI)
+	{
+		if (graphURI == null)
+		{
+			return readDefaultGraph(store -> store.getGraphStats(null));
+		}
+		return call(graphURI, store -> store.getGraphStats(graphURI));
+	}
+
+
+	//================================================================================
+	// Delta-related Methods
+	//================================================================================
+
+	@Override
+	public void patch(final String graphURI, final Model additions, final Model removals)
+	{
+		if (graphURI == null)
+		{
+			onDefaultGraph(store -> store.patch(null, additions, removals));
+		}
+		else
+		{
+			run(graphURI, store -> store.patch(graphURI, additions, removals));
+		}
+	}
+
+
+	//================================================================================
+	// Batch-related Methods
+	//================================================================================
+
+	/**
+	 * Splits the batch by shard, keeping the order of the operations on each
+	 * shard, and applies the parts in parallel. Each part is atomic, but if
+	 * a part fails the parts applied to other shards are not rolled back.
+	 */
+	@Override
+	public void apply(final GraphBatch batch)
+	{
+		if (batch.isEmpty())
+		{
+			return;
+		}
+
+		final List<String> graphURIs = new ArrayList<String>();
+		boolean defaultGraph = false;
+		for (GraphBatch.Operation operation : batch)
+		{
+			if (operation.isDefaultGraph())
+			{
+				defaultGraph = true;
+			}
+			else
+			{
+				graphURIs.add(operation.getGraphURI());
+			}
+		}
+		final boolean[] stripes = StripedLocks.stripes(graphURIs);
+
+		// the default graph lock first, so that concurrent batches cannot deadlock
+		if (defaultGraph)
+		{
+			fDefaultGraphLock.readLock().lock();
+		}
+		fStripes.lockShared(stripes);
+		try
+		{
+			final Topology topology = fTopology;
+			final GraphBatch[] parts = new GraphBatch[topology.fStores.size()];
+			for (GraphBatch.Operation operation : batch)
+			{
+				if (!operation.isDefaultGraph())
+				{
+					add(part(parts, topology.owner(operation.getGraphURI(), hash(operation.getGraphURI()))), operation);
+				}
+				else if (fSettings.getDefaultGraphPolicy() == DefaultGraphPolicy.REPLICATED)
+				{
+					for (int i = 0; i < parts.length; i++)
+					{
+						add(part(parts, i), operation);
+					}
+				}
+				else
+				{
+					add(part(parts, 0), operation);
+				}
+			}
+
+			final List<Supplier<Void>> calls = new ArrayList<Supplier<Void>>();
+			for (int i = 0; i < parts.length; i++)
+			{
+				if (parts[i] != null)
+				{
+					final IGraphStore store = topology.fStores.get(i);
+					final GraphBatch part = parts[i];
+					calls.add(() -> {
+						store.apply(part);
+						return null;
+					});
+				}
+			}
+			all(calls);
+		}
+		finally
+		{
+			fStripes.unlockShared(stripes);
+			if (defaultGraph)
+			{
+				fDefaultGraphLock.readLock().unlock();
+			}
+		}
+	}
+
+
+	//================================================================================
+	// Query-related Methods
+	//================================================================================
+
+	/**
+	 * Asks all shards in parallel; true if any shard has a match.
+	 */
+	@Override
+	public boolean ask(final String queryString)
+	{
+		for (Boolean result : onAllShards(store -> store.ask(queryString)))
+		{
+			if (result)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void select(final OutputStream outStream, final String queryString)
+	{
+		select(outStream, queryString, Constants.CT_APPLICATION_SPARQLRESULTS_JSON);
+	}
+
+	/**
+	 * Evaluates the query on all shards in parallel and writes the union of
+	 * the results. The shards are asked for OFFSET + LIMIT rows each, which
+	 * are then distinct, ordered, offset and limited as a whole.
+	 *
+	 * Variables that ORDER BY needs but the query does not select are
+	 * selected from the shards as well and dropped before the output. A
+	 * DISTINCT or REDUCED query with such variables asks the shards for all
+	 * rows, since rows that differ only in them are merged afterwards.
+	 *
+	 * Under {@link DefaultGraphPolicy#REPLICATED}, a query that matches the
+	 * default graph only is evaluated on the first shard, so that its rows
+	 * are not repeated once per shard. A query that matches both the
+	 * default graph and named graphs must be DISTINCT or REDUCED.
+	 */
+	@Override
+	public void select(final OutputStream outStream, final String queryString, final String contentType)
+	{
+		final ResultsFormat format = RDFStreams.toResultsFormat(contentType);
+		final Query query = QueryFactory.create(queryString);
+		if (query.hasAggregators() || query.hasGroupBy())
+		{
+			throw new UnsupportedOperationException("Aggregates cannot be evaluated across shards: " + queryString);
+		}
+
+		final boolean distinct = query.isDistinct() || query.isReduced();
+		final Set<Var> sortVars = unselectedSortVars(query);
+		final long offset = query.hasOffset() ? query.getOffset() : 0;
+		final Query shardQuery = query.cloneQuery();
+		shardQuery.setOffset(Query.NOLIMIT);
+		for (Var var : sortVars)
+		{
+			shardQuery.addResultVar(var);
+		}
+		if (query.hasLimit() && !(distinct && !sortVars.isEmpty()))
+		{
+			shardQuery.setLimit(offset + query.getLimit());
+		}
+		final String shardQueryString = shardQuery.serialize();
+
+		final Function<IGraphStore, byte[]> shardSelect = store -> {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			store.select(out, shardQueryString, Constants.CT_APPLICATION_SPARQLRESULTS_THRIFT);
+			return out.toByteArray();
+		};
+		List<byte[]> shardResults = null;
+		if (fSettings.getDefaultGraphPolicy() == DefaultGraphPolicy.REPLICATED)
+		{
+			final boolean[] matched = matchedGraphs(query);
+			if (matched[0] && !matched[1])
+			{
+				shardResults = Collections.singletonList(readDefaultGraph(shardSelect));
+			}
+			else if (matched[0] && !distinct)
+			{
+				throw new UnsupportedOperationException("Queries that match the replicated default graph and named graphs must be DISTINCT or REDUCED: " + queryString);
+			}
+		}
+		if (shardResults == null)
+		{
+			shardResults = onAllShards(shardSelect);
+		}
+
+		final Collection<Binding> bindings = distinct && sortVars.isEmpty() ? new LinkedHashSet<Binding>() : new ArrayList<Binding>();
+		for (byte[] results : shardResults)
+		{
+			final ResultSet resultSet = ResultSetMgr.read(new ByteArrayInputStream(results), ResultSetLang.SPARQLResultSetThrift);
+			while (resultSet.hasNext())
+			{
+				bindings.add(resultSet.nextBinding());
+			}
+		}
+
+		List<Binding> rows = new ArrayList<Binding>(bindings);
+		if (query.hasOrderBy())
+		{
+			Collections.sort(rows, new BindingComparator(query.getOrderBy()));
+		}
+		if (!sortVars.isEmpty())
+		{
+			final Collection<Binding> projected = distinct ? new LinkedHashSet<Binding>() : new ArrayList<Binding>();
+			for (Binding row : rows)
+			{
+				projected.add(new BindingProject(query.getProjectVars(), row));
+			}
+			rows = new ArrayList<Binding>(projected);
+		}
+		final long end = query.hasLimit() ? Math.min(rows.size(), offset + query.getLimit()) : rows.size();
+		rows = rows.subList((int) Math.min(offset, end), (int) end);
+
+		ResultSetFormatter.output(outStream, new ResultSetStream(query.getResultVars(), ModelFactory.createDefaultModel(), new QueryIterPlainWrapper(rows.iterator())), format);
+	}
+
+	/**
+	 * Evaluates the query on all shards in parallel and writes the union of
+	 * the resulting triples.
+	 */
+	@Override
+	public void construct(final OutputStream outStream, final String queryString, final String contentType)
+	{
+		RDFStreams.toLang(contentType);
+		writeTriples(outStream, onAllShards(store -> {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			store.construct(out, queryString, Constants.CT_APPLICATION_RDF_THRIFT);
+			return out.toByteArray();
+		}), contentType);
+	}
+
+	/**
+	 * Evaluates the query on all shards in parallel and writes the union of
+	 * the resulting triples.
+	 */
+	@Override
+	public void describe(final OutputStream outStream, final String queryString, final String contentType)
+	{
+		RDFStreams.toLang(contentType);
+		writeTriples(outStream, onAllShards(store -> {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			store.describe(out, queryString, Constants.CT_APPLICATION_RDF_THRIFT);
+			return out.toByteArray();
+		}), contentType);
+	}
+
+
+	//================================================================================
+	// Closeable
+	//================================================================================
+
+	/**
+	 * Shuts down the executor if it was created by this store. The shards
+	 * are not closed.
+	 */
+	@Override
+	public void close()
+	{
+		if (fOwnsExecutor)
+		{
+			fExecutor.shutdown();
+			try
+			{
+				fExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+
+	//================================================================================
+	// Helpers
+	//================================================================================
+
+	private <T> T call(final String graphURI, final Function<IGraphStore, T> call)
+	{
+		final long hash = hash(graphURI);
+		final Lock stripe = fStripes.shared(graphURI);
+		stripe.lock();
+		try
+		{
+			final Topology topology = fTopology;
+			return call.apply(topology.fStores.get(topology.owner(graphURI, hash)));
+		}
+		finally
+		{
+			stripe.unlock();
+		}
+	}
+
+	private void run(final String graphURI, final Consumer<IGraphStore> call)
+	{
+		call(graphURI, store -> {
+			call.accept(store);
+			return null;
+		});
+	}
+
+	/**
+	 * Reads the default graph from the first shard, which holds it under
+	 * either policy.
+	 */
+	private <T> T readDefaultGraph(final Function<IGraphStore, T> call)
+	{
+		fDefaultGraphLock.readLock().lock();
+		try
+		{
+			return call.apply(fTopology.fStores.get(0));
+		}
+		finally
+		{
+			fDefaultGraphLock.readLock().unlock();
+		}
+	}
+
+	private void onDefaultGraph(final Consumer<IGraphStore> call)
+	{
+		fDefaultGraphLock.readLock().lock();
+		try
+		{
+			final List<IGraphStore> stores = fTopology.fStores;
+			if (fSettings.getDefaultGraphPolicy() == DefaultGraphPolicy.PRIMARY)
+			{
+				call.accept(stores.get(0));
+				return;
+			}
+
+			final List<Supplier<Void>> calls = new ArrayList<Supplier<Void>>();
+			for (IGraphStore store : stores)
+			{
+				calls.add(() -> {
+					call.accept(store);
+					return null;
+				});
+			}
+			all(calls);
+		}
+		finally
+		{
+			fDefaultGraphLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the variables that the ORDER BY of the query mentions but its
+	 * SELECT list does not contain.
+	 */
+	private static Set<Var> unselectedSortVars(final Query query)
+	{
+		final Set<Var> vars = new LinkedHashSet<Var>();
+		if (!query.hasOrderBy() || query.isQueryResultStar())
+		{
+			return vars;
+		}
+		for (SortCondition condition : query.getOrderBy())
+		{
+			vars.addAll(condition.getExpression().getVarsMentioned());
+		}
+		vars.removeAll(query.getProjectVars());
+		return vars;
+	}
+
+	/**
+	 * Returns whether the pattern of the query matches the default graph
+	 * and whether it matches named graphs, in this order. A query with a
+	 * dataset description counts as matching both.
+	 */
+	private static boolean[] matchedGraphs(final Query query)
+	{
+		final boolean[] matched = new boolean[2];
+		if (query.hasDatasetDescription())
+		{
+			matched[0] = true;
+			matched[1] = true;
+			return matched;
+		}
+
+		// in quad form, patterns of the default graph carry its generated name
+		OpWalker.walk(Algebra.toQuadForm(Algebra.compile(query)), new OpVisitorBase()
+		{
+			@Override
+			public void visit(final OpQuadPattern quadPattern)
+			{
+				match(quadPattern.getGraphNode());
+			}
+
+			@Override
+			public void visit(final OpGraph graph)
+			{
+				match(graph.getNode());
+			}
+
+			private void match(final Node graphNode)
+			{
+				if (Quad.isDefaultGraph(graphNode))
+				{
+					matched[0] = true;
+				}
+				else
+				{
+					matched[1] = true;
+				}
+			}
+		});
+		return matched;
+	}
+
+	private <T> List<T> onAllShards(final Function<IGraphStore, T> call)
+	{
+		final List<Supplier<T>> calls = new ArrayList<Supplier<T>>();
+		for (IGraphStore store : fTopology.fStores)
+		{
+			calls.add(() -> call.apply(store));
+		}
+		return all(calls);
+	}
+
+	/**
+	 * Runs the calls in parallel and waits for all of them, even if one
+	 * fails, so that no call is left running when this method returns.
+	 */
+	private <T> List<T> all(final List<Supplier<T>> calls)
+	{
+		if (calls.size() == 1)
+		{
+			return Collections.singletonList(calls.get(0).get());
+		}
+
+		final List<CompletableFuture<T>> futures = new ArrayList<CompletableFuture<T>>(calls.size());
+		for (Supplier<T> call : calls)
+		{
+			futures.add(CompletableFuture.supplyAsync(call, fExecutor));
+		}
+
+		final List<T> results = new ArrayList<T>(calls.size());
+		RuntimeException failure = null;
+		for (CompletableFuture<T> future : futures)
+		{
+			try
+			{
+				results.add(future.join());
+			}
+			catch (CompletionException e)
+			{
+				final Throwable cause = e.getCause();
+				if (cause instanceof Error)
+				{
+					throw (Error) cause;
+				}
+				final RuntimeException exception = cause instanceof RuntimeException ? (RuntimeException) cause : e;
+				if (failure == null)
+				{
+					failure = exception;
+				}
+				else
+				{
+					failure.addSuppressed(exception);
+				}
+			}
+		}
+		if (failure != null)
+		{
+			throw failure;
+		}
+		return results;
+	}
+
+	/**
+	 * Moves the graphs of the old shards that hash to the new shard and
+	 * returns how many were moved.
+	 */
+	private int moveGraphs(final Topology topology)
+	{
+		final int target = topology.fStores.size() - 1;
+		int moved = 0;
+		for (int source = 0; source < target; source++)
+		{
+			for (String graphURI : listNamedGraphs(topology.fStores.get(source)))
+			{
+				final long hash = hash(graphURI);
+				if (topology.fRing.owner(hash) == target && topology.fPreviousRing.owner(hash) == source && !topology.fMoved.contains(graphURI))
+				{
+					moveGraph(topology, graphURI, topology.fStores.get(source), topology.fStores.get(target));
+					moved++;
+				}
+			}
+		}
+		return moved;
+	}
+
+	private void moveGraph(final Topology topology, final String graphURI, final IGraphStore source, final IGraphStore target)
+	{
+		final Lock stripe = fStripes.exclusive(graphURI);
+		stripe.lock();
+		try
+		{
+			if (source.containsNamedGraph(graphURI))
+			{
+				target.deleteNamedGraph(graphURI);
+				target.createNamedGraph(graphURI, source.getNamedGraph(graphURI));
+				topology.fMoved.add(graphURI);
+				source.deleteNamedGraph(graphURI);
+			}
+			else
+			{
+				topology.fMoved.add(graphURI);
+			}
+		}
+		finally
+		{
+			stripe.unlock();
+		}
+	}
+
+	private static List<String> listNamedGraphs(final IGraphStore store)
+	{
+		final List<String> graphURIs = new ArrayList<String>();
+		try (CloseableIterator<String> graphs = store.listNamedGraphs())
+		{
+			graphs.forEachRemaining(graphURIs::add);
+		}
+		return graphURIs;
+	}
+
+	private static void writeTriples(final OutputStream outStream, final List<byte[]> shardResults, final String contentType)
+	{
+		final Graph graph = GraphFactory.createDefaultGraph();
+		for (byte[] triples : shardResults)
+		{
+			RDFParser.source(new ByteArrayInputStream(triples)).lang(Lang.RDFTHRIFT).parse(graph);
+		}
+		RDFStreams.writeTriples(outStream, graph.find(), contentType);
+	}
+
+	private static GraphBatch part(final GraphBatch[] parts, final int shard)
+	{
+		if (parts[shard] == null)
+		{
+			parts[shard] = new GraphBatch();
+		}
+		return parts[shard];
+	}
+
+	private static void add(final GraphBatch batch, final GraphBatch.Operation operation)
+	{
+		final String graphURI = operation.getGraphURI();
+		switch (operation.getType())
+		{
+			case CREATE:
+				batch.createNamedGraph(graphURI, operation.getModel());
+				break;
+			case REPLACE:
+				if (graphURI == null)
+				{
+					batch.replaceDefaultGraph(operation.getModel());
+				}
+				else
+				{
+					batch.replaceNamedGraph(graphURI, operation.getModel());
+				}
+				break;
+			case ADD:
+				if (graphURI == null)
+				{
+					batch.addToDefaultGraph(operation.getModel());
+				}
+				else
+				{
+					batch.addToNamedGraph(graphURI, operation.getModel());
+				}
+				break;
+			case DELETE:
+				if (graphURI == null)
+				{
+					batch.clearDefaultGraph();
+				}
+				else
+				{
+					batch.deleteNamedGraph(graphURI);
+				}
+				break;
+			case PATCH:
+				batch.patch(graphURI, operation.getModel(), operation.getRemovals());
+				break;
+		}
+	}
+
+	/**
+	 * 64-bit FNV-1a of the characters, finished with the MurmurHash3 mix
+	 * so that similar URIs land far apart on the ring.
+	 */
+	static long hash(final String s)
+	{
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++)
+		{
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * The points of the shards on the hash ring, sorted.
+	 */
+	private static final class Ring
+	{
+		private final long[] fPoints;
+		private final int[] fShards;
+
+		Ring(final List<String> names, final int virtualNodes)
+		{
+			final long[][] points = new long[names.size() * virtualNodes][];
+			for (int shard = 0; shard < names.size(); shard++)
+			{
+				for (int i = 0; i < virtualNodes; i++)
+				{
+					points[shard * virtualNodes + i] = new long[] { hash(names.get(shard) + "#" + i), shard };
+				}
+			}
+			Arrays.sort(points, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : names.get((int) a[1]).compareTo(names.get((int) b[1])));
+
+			fPoints = new long[points.length];
+			fShards = new int[points.length];
+			for (int i = 0; i < points.length; i++)
+			{
+				fPoints[i] = points[i][0];
+				fShards[i] = (int) points[i][1];
+			}
+		}
+
+		int owner(final long hash)
+		{
+			int i = Arrays.binarySearch(fPoints, hash);
+			if (i < 0)
+			{
+				i = -i - 1;
+			}
+			return fShards[i == fPoints.length ? 0 : i];
+		}
+	}
+
+	/**
+	 * The shards and the placement of the graphs. While a shard is being
+	 * added, graphs that hash to it but have not been moved yet are still
+	 * found on their shard of the previous ring.
+	 */
+	private static final class Topology
+	{
+		private final List<String> fNames;
+		private final List<IGraphStore> fStores;
+		private final Ring fRing;
+		private final Ring fPreviousRing;
+		private final Set<String> fMoved;
+
+		Topology(final List<String> names, final List<IGraphStore> stores, final Ring ring, final Ring previousRing, final Set<String> moved)
+		{
+			fNames = Collections.unmodifiableList(names);
+			fStores = Collections.unmodifiableList(stores);
+			fRing = ring;
+			fPreviousRing = previousRing;
+			fMoved = moved;
+		}
+
+		int owner(final String graphURI, final long hash)
+		{
+			if (fPreviousRing != null && !fMoved.contains(graphURI))
+			{
+				return fPreviousRing.owner(hash);
+			}
+			return fRing.owner(hash);
+		}
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+	private final Settings fSettings;
+	private final ExecutorService fExecutor;
+	private final boolean fOwnsExecutor;
+	private final StripedLocks fStripes = new StripedLocks();
+	private final ReadWriteLock fDefaultGraphLock = new ReentrantReadWriteLock();
+	private volatile Topology fTopology;
+}
@@ -0,0 +1,53 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore;
+
+import org.apache.jena.rdf.model.Model;
+
+/**
+ * @author resc01
+ *
+ * A graph read by {@link IVersionedGraphStore#getVersionedGraph}, or the
+ * notice that it did not change.
+ */
+public class VersionedGraph
+{
+	public VersionedGraph(final Model model, final String versionTag)
+	{
+		fModel = model;
+		fVersionTag = versionTag;
+	}
+
+	public static VersionedGraph notModified(final String versionTag)
+	{
+		return new VersionedGraph(null, versionTag);
+	}
+
+	/**
+	 * Returns the graph, or null if it is not modified.
+	 */
+	public Model getModel()
+	{
+		return fModel;
+	}
+
+	/**
+	 * Returns the version tag of the graph, or null if the store did not 
+	 * provide one.
+	 */
+	public String getVersionTag()
+	{
+		return fVersionTag;
+	}
+
+	public boolean isNotModified()
+	{
+		return fModel == null;
+	}
+
+	private final Model fModel;
+	private final String fVersionTag;
+}
@@ -0,0 +1,140 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.changes;
+
+import java.io.ByteArrayInputStream;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+
+import de.dfki.resc28.igraphstore.GraphBatch.OperationType;
+
+/**
+ * @author resc01
+ *
+ * A write to a graph as recorded in a {@link ChangeLog}. The operation has
+ * the semantics of the corresponding IGraphStore method, as in a
+ * GraphBatch: DELETE of the default graph clears it, CREATE only takes
+ * effect if the graph does not exist. Replaying the events of a log in
+ * order thus repeats the writes.
+ *
+ * The delta, if recorded, is the model of CREATE, REPLACE and ADD and the
+ * additions and removals of PATCH.
+ */
+public class ChangeEvent
+{
+	ChangeEvent(final long offset, final long nextOffset, final long timestamp, final OperationType type,
+			final String graphURI, final byte[] additions, final byte[] removals, final boolean hasDelta)
+	{
+		fOffset = offset;
+		fNextOffset = nextOffset;
+		fTimestamp = timestamp;
+		fType = type;
+		fGraphURI = graphURI;
+		fAdditions = additions;
+		fRemovals = removals;
+		fHasDelta = hasDelta;
+	}
+
+	/**
+	 * Returns the offset of the event in the log.
+	 */
+	public long getOffset()
+	{
+		return fOffset;
+	}
+
+	/**
+	 * Returns the offset of the next event, where a consumer that has
+	 * processed this event resumes.
+	 */
+	public long getNextOffset()
+	{
+		return fNextOffset;
+	}
+
+	/**
+	 * Returns the time of the write in milliseconds since the epoch.
+	 */
+	public long getTimestamp()
+	{
+		return fTimestamp;
+	}
+
+	public OperationType getType()
+	{
+		return fType;
+	}
+
+	/**
+	 * Returns the URI of the graph, or null for the default graph.
+	 */
+	public String getGraphURI()
+	{
+		return fGraphURI;
+	}
+
+	public boolean isDefaultGraph()
+	{
+		return fGraphURI == null;
+	}
+
+	/**
+	 * Returns true if the triples of the write were recorded. They are not
+	 * if the log was written without deltas or the delta did not fit into
+	 * a chunk of the log; consumers then have to read the graph.
+	 */
+	public boolean hasDelta()
+	{
+		return fHasDelta;
+	}
+
+	/**
+	 * Returns a new model with the added triples, or null if there is no
+	 * delta or the operation adds nothing.
+	 */
+	public Model getAdditions()
+	{
+		return toModel(fAdditions);
+	}
+
+	/**
+	 * Returns a new model with the removed triples, or null if there is no
+	 * delta or the operation is not a PATCH.
+	 */
+	public Model getRemovals()
+	{
+		return toModel(fRemovals);
+	}
+
+	@Override
+	public String toString()
+	{
+		return fOffset + ": " + fType + " " + (fGraphURI != null ? fGraphURI : "default graph");
+	}
+
+	private static Model toModel(final byte[] triples)
+	{
+		if (triples == null)
+		{
+			return null;
+		}
+		final Model model = ModelFactory.createDefaultModel();
+		RDFDataMgr.read(model, new ByteArrayInputStream(triples), Lang.RDFTHRIFT);
+		return model;
+	}
+
+	private final long fOffset;
+	private final long fNextOffset;
+	private final long fTimestamp;
+	private final OperationType fType;
+	private final String fGraphURI;
+	private final byte[] fAdditions;
+	private final byte[] fRemovals;
+	private final boolean fHasDelta;
+}
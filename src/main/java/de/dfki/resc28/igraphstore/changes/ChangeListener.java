@@ -0,0 +1,21 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.changes;
+
+/**
+ * @author resc01
+ *
+ * Receives the events of a {@link ChangeLogGraphStore} after they are
+ * written to its log, in log order for each graph. Events are delivered on
+ * a writing thread, not necessarily the one that made the write, after it
+ * has released its locks, so a listener may write through the store.
+ * Listeners should return quickly, e.g. by invalidating a cache entry;
+ * slower consumers read the log instead.
+ */
+public interface ChangeListener
+{
+	void onChange(ChangeEvent event);
+}
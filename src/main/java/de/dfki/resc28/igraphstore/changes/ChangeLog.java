@@ -0,0 +1,580 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.changes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+
+import de.dfki.resc28.igraphstore.CloseableIterator;
+import de.dfki.resc28.igraphstore.GraphBatch;
+import de.dfki.resc28.igraphstore.GraphBatch.OperationType;
+
+/**
+ * @author resc01
+ *
+ * An append-only, memory-mapped log of {@link ChangeEvent}s. Events are
+ * addressed by their offset in the log; the first event is at offset 0 and
+ * each event knows the offset of the next one, so a consumer that stores
+ * the last offset it processed resumes exactly there, also after a restart.
+ *
+ * The file is little-endian and laid out as follows:
+ *
+ * <pre>
+ * header   magic, version, chunk size
+ * records  per event: int payload length, int CRC32 of the payload, payload,
+ *          padded to 8 bytes; in chunks that no record crosses, a length of
+ *          -1 skips the rest of a chunk and a length of 0 ends the log
+ * payload  long timestamp, byte type, byte flags, int length (-1 for the
+ *          default graph) and UTF-8 graph URI, int length (-1 for none) and
+ *          RDF Thrift triples of the additions, same for the removals
+ * </pre>
+ *
+ * A record is written back to front, its length last, so that a torn record
+ * after a crash fails its checksum; opening the log truncates it there.
+ * Without {@link Settings#setSync(boolean) sync}, appended events survive a
+ * crash of the process but not of the operating system.
+ *
+ * The log grows until its file is deleted. Appends are serialized, reads
+ * do not block them.
+ */
+public class ChangeLog implements Closeable
+{
+	static final byte[] MAGIC = "IGCLOG\r\n".getBytes(StandardCharsets.US_ASCII);
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 64;
+
+	// header fields
+	static final int VERSION_POS = 8;
+	static final int CHUNK_SIZE_POS = 12;
+
+	// record fields
+	static final int RECORD_HEADER_SIZE = 8;
+	static final int PADDING = -1;
+	static final int END = 0;
+
+	static final byte HAS_DELTA = 1;
+
+	/**
+	 * Chunk size and durability of a new log.
+	 */
+	public static class Settings
+	{
+		private int fChunkSize = 64 << 20;
+		private boolean fSync = false;
+
+		public int getChunkSize()
+		{
+			return fChunkSize;
+		}
+
+		/**
+		 * Size in bytes of the chunks the log is mapped in, a multiple of 8.
+		 * An event whose record would be larger is logged without its delta.
+		 * Only used when a log file is created, an existing log keeps its
+		 * chunk size.
+		 */
+		public Settings setChunkSize(int chunkSize)
+		{
+			fChunkSize = chunkSize;
+			return this;
+		}
+
+		public boolean isSync()
+		{
+			return fSync;
+		}
+
+		/**
+		 * Forces every append to the storage device before returning.
+		 */
+		public Settings setSync(boolean sync)
+		{
+			fSync = sync;
+			return this;
+		}
+	}
+
+
+	//================================================================================
+	// Constructors
+	//================================================================================
+
+	private ChangeLog(final File file, final FileChannel channel, final int chunkSize, final boolean sync) throws IOException
+	{
+		fFile = file;
+		fChannel = channel;
+		fChunkSize = chunkSize;
+		fSync = sync;
+		fChunks = new MappedByteBuffer[0];
+		fEnd = recover();
+	}
+
+	/**
+	 * Opens the log in the file, creating it if it does not exist.
+	 *
+	 * @throws IOException if the file cannot be opened or is no change log
+	 */
+	public static ChangeLog open(final File file) throws IOException
+	{
+		return open(file, new Settings());
+	}
+
+	/**
+	 * Opens the log in the file, creating it with the given settings if it
+	 * does not exist.
+	 *
+	 * @throws IOException if the file cannot be opened or is no change log
+	 */
+	public static ChangeLog open(final File file, final Settings settings) throws IOException
+	{
+		if (settings.getChunkSize() < 64 || settings.getChunkSize() % 8 != 0)
+		{
+			throw new IllegalArgumentException("Chunk size must be a multiple of 8 and at least 64: " + settings.getChunkSize());
+		}
+
+		final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try
+		{
+			final int chunkSize;
+			if (channel.size() == 0)
+			{
+				chunkSize = settings.getChunkSize();
+				final ByteBuffer header = map(channel, 0, HEADER_SIZE);
+				header.put(MAGIC);
+				header.putInt(VERSION_POS, VERSION);
+				header.putInt(CHUNK_SIZE_POS, chunkSize);
+				if (settings.isSync())
+				{
+					((MappedByteBuffer) header).force();
+				}
+			}
+			else
+			{
+				if (channel.size() < HEADER_SIZE)
+				{
+					throw new IOException("Not a change log: " + file);
+				}
+				final ByteBuffer header = map(channel, 0, HEADER_SIZE);
+				final byte[] magic = new byte[MAGIC.length];
+				header.get(magic);
+				if (!Arrays.equals(magic, MAGIC))
+				{
+					throw new IOException("Not a change log: " + file);
+				}
+				if (header.getInt(VERSION_POS) != VERSION)
+				{
+					throw new IOException("Unsupported change log version " + header.getInt(VERSION_POS) + ": " + file);
+				}
+				chunkSize = header.getInt(CHUNK_SIZE_POS);
+				if (chunkSize < 64 || chunkSize % 8 != 0)
+				{
+					throw new IOException("Corrupt change log header: " + file);
+				}
+			}
+			return new ChangeLog(file, channel, chunkSize, settings.isSync());
+		}
+		catch (IOException | RuntimeException e)
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+
+	//================================================================================
+	// Appends
+	//================================================================================
+
+	/**
+	 * Appends an event for each operation of the batch, contiguously and in
+	 * order, with the triples of the operations if withDeltas is true.
+	 *
+	 * @return the appended events
+	 * @throws IOException if the log cannot be extended
+	 */
+	public synchronized List<ChangeEvent> append(final GraphBatch changes, final boolean withDeltas) throws IOException
+	{
+		if (fClosed)
+		{
+			throw new IllegalStateException("Change log is closed: " + fFile);
+		}
+
+		final long timestamp = System.currentTimeMillis();
+		final List<ChangeEvent> events = new ArrayList<ChangeEvent>(changes.size());
+		long end = fEnd;
+		for (GraphBatch.Operation operation : changes)
+		{
+			byte[] additions = null;
+			byte[] removals = null;
+			if (withDeltas)
+			{
+				additions = toBytes(operation.getModel());
+				removals = operation.getType() == OperationType.PATCH ? toBytes(operation.getRemovals()) : null;
+			}
+			boolean hasDelta = withDeltas;
+			byte[] payload = encode(timestamp, operation.getType(), operation.getGraphURI(), additions, removals, hasDelta);
+			if (recordSize(payload.length) > fChunkSize)
+			{
+				additions = null;
+				removals = null;
+				hasDelta = false;
+				payload = encode(timestamp, operation.getType(), operation.getGraphURI(), null, null, false);
+				if (recordSize(payload.length) > fChunkSize)
+				{
+					throw new IllegalArgumentException("Graph URI too long for change log: " + operation.getGraphURI());
+				}
+			}
+
+			// skip the rest of the chunk if the record does not fit
+			long position = end;
+			final int inChunk = (int) (position % fChunkSize);
+			if (inChunk > 0 && inChunk + recordSize(payload.length) > fChunkSize)
+			{
+				position += fChunkSize - inChunk;
+			}
+
+			final long next = position + recordSize(payload.length);
+			final ByteBuffer chunk = chunk((int) (position / fChunkSize));
+			final int offset = (int) (position % fChunkSize);
+
+			if (next % fChunkSize != 0)
+			{
+				chunk.putInt((int) (offset + recordSize(payload.length)), END);
+			}
+			final ByteBuffer body = chunk.duplicate();
+			body.position(offset + RECORD_HEADER_SIZE);
+			body.put(payload);
+			chunk.putInt(offset + 4, crc(payload, 0, payload.length));
+			chunk.putInt(offset, payload.length);
+
+			if (position != end)
+			{
+				chunk((int) (end / fChunkSize)).putInt((int) (end % fChunkSize), PADDING);
+			}
+
+			events.add(new ChangeEvent(position, next, timestamp, operation.getType(), operation.getGraphURI(),
+					additions, removals, hasDelta));
+			end = next;
+		}
+
+		if (fSync && end > fEnd)
+		{
+			for (int i = (int) (fEnd / fChunkSize); i <= (end - 1) / fChunkSize; i++)
+			{
+				fChunks[i].force();
+			}
+		}
+
+		fEnd = end;
+		notifyAll();
+		return events;
+	}
+
+	/**
+	 * Waits until an event at or after the offset has been appended, the
+	 * timeout elapsed or the log is closed.
+	 *
+	 * @return true if there is an event at or after the offset
+	 */
+	public synchronized boolean await(final long offset, final long timeout, final TimeUnit unit) throws InterruptedException
+	{
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (fEnd <= offset && !fClosed)
+		{
+			final long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+			{
+				break;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return fEnd > offset;
+	}
+
+
+	//================================================================================
+	// Reads
+	//================================================================================
+
+	/**
+	 * Iterates the events from the offset of an event on, or from the start
+	 * with offset 0, up to the end of the log at the time of the call. A
+	 * consumer that follows the log reads again from the next offset of the
+	 * last event, see {@link #await(long, long, TimeUnit)}.
+	 *
+	 * @throws IllegalArgumentException if the offset is beyond the end
+	 * @throws IllegalStateException while iterating, if the offset is not
+	 * the one of an event
+	 */
+	public CloseableIterator<ChangeEvent> read(final long offset)
+	{
+		final long end = fEnd;
+		if (offset < 0 || offset > end || offset % 8 != 0)
+		{
+			throw new IllegalArgumentException("No change event at offset " + offset + " of " + fFile);
+		}
+		final MappedByteBuffer[] chunks = fChunks;
+
+		return new CloseableIterator<ChangeEvent>()
+		{
+			private long fPosition = offset;
+
+			@Override
+			public boolean hasNext()
+			{
+				if (fPosition < end && chunks[(int) (fPosition / fChunkSize)].getInt((int) (fPosition % fChunkSize)) == PADDING)
+				{
+					fPosition += fChunkSize - fPosition % fChunkSize;
+				}
+				return fPosition < end;
+			}
+
+			@Override
+			public ChangeEvent next()
+			{
+				if (!hasNext())
+				{
+					throw new NoSuchElementException();
+				}
+				final ChangeEvent event = decode(chunks[(int) (fPosition / fChunkSize)], fPosition);
+				fPosition = event.getNextOffset();
+				return event;
+			}
+
+			@Override
+			public void close()
+			{
+				fPosition = end;
+			}
+		};
+	}
+
+	/**
+	 * Returns the offset after the last event, where a consumer that has
+	 * read the whole log resumes.
+	 */
+	public long getEndOffset()
+	{
+		return fEnd;
+	}
+
+	public File getFile()
+	{
+		return fFile;
+	}
+
+	/**
+	 * Closes the file. Iterators obtained before may still be used.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		synchronized (this)
+		{
+			if (fClosed)
+			{
+				return;
+			}
+			fClosed = true;
+			notifyAll();
+		}
+		fChannel.close();
+	}
+
+
+	//================================================================================
+	// Helpers
+	//================================================================================
+
+	/**
+	 * Scans the records of the file up to the first one that is missing or
+	 * fails its checksum and marks the end there.
+	 */
+	private long recover() throws IOException
+	{
+		final long dataLength = Math.max(0, fChannel.size() - HEADER_SIZE);
+		long position = 0;
+		while (position < dataLength)
+		{
+			final ByteBuffer chunk = chunk((int) (position / fChunkSize));
+			final int offset = (int) (position % fChunkSize);
+			final int length = chunk.getInt(offset);
+			if (length == PADDING)
+			{
+				position += fChunkSize - offset;
+				continue;
+			}
+			if (length <= 0 || offset + recordSize(length) > fChunkSize)
+			{
+				break;
+			}
+			final ByteBuffer body = chunk.duplicate();
+			body.position(offset + RECORD_HEADER_SIZE);
+			final byte[] payload = new byte[length];
+			body.get(payload);
+			if (crc(payload, 0, length) != chunk.getInt(offset + 4))
+			{
+				break;
+			}
+			position += recordSize(length);
+		}
+
+		if (position % fChunkSize != 0)
+		{
+			chunk((int) (position / fChunkSize)).putInt((int) (position % fChunkSize), END);
+		}
+		return position;
+	}
+
+	/**
+	 * Returns the chunk with the index, mapping it and any before it.
+	 */
+	private ByteBuffer chunk(final int index) throws IOException
+	{
+		if (index >= fChunks.length)
+		{
+			final MappedByteBuffer[] chunks = Arrays.copyOf(fChunks, index + 1);
+			for (int i = fChunks.length; i <= index; i++)
+			{
+				chunks[i] = map(fChannel, HEADER_SIZE + (long) i * fChunkSize, fChunkSize);
+			}
+			fChunks = chunks;
+		}
+		return fChunks[index];
+	}
+
+	private ChangeEvent decode(final ByteBuffer chunk, final long position)
+	{
+		final int offset = (int) (position % fChunkSize);
+		final int length = chunk.getInt(offset);
+		if (length <= 0 || offset + recordSize(length) > fChunkSize)
+		{
+			throw new IllegalStateException("No change event at offset " + position + " of " + fFile);
+		}
+
+		final ByteBuffer body = chunk.duplicate();
+		body.position(offset + RECORD_HEADER_SIZE);
+		final byte[] payload = new byte[length];
+		body.get(payload);
+		if (crc(payload, 0, length) != chunk.getInt(offset + 4))
+		{
+			throw new IllegalStateException("No change event at offset " + position + " of " + fFile);
+		}
+
+		final ByteBuffer in = ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+		final long timestamp = in.getLong();
+		final OperationType type = OperationType.values()[in.get()];
+		final boolean hasDelta = (in.get() & HAS_DELTA) != 0;
+		final byte[] graphURI = readBytes(in);
+		final byte[] additions = readBytes(in);
+		final byte[] removals = readBytes(in);
+		return new ChangeEvent(position, position + recordSize(length), timestamp, type,
+				graphURI != null ? new String(graphURI, StandardCharsets.UTF_8) : null, additions, removals, hasDelta);
+	}
+
+	private static byte[] encode(final long timestamp, final OperationType type, final String graphURI,
+			final byte[] additions, final byte[] removals, final boolean hasDelta)
+	{
+		final byte[] uri = graphURI != null ? graphURI.getBytes(StandardCharsets.UTF_8) : null;
+		final ByteBuffer out = ByteBuffer.allocate(8 + 1 + 1 + 3 * 4 + length(uri) + length(additions) + length(removals))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		out.putLong(timestamp);
+		out.put((byte) type.ordinal());
+		out.put(hasDelta ? HAS_DELTA : 0);
+		writeBytes(out, uri);
+		writeBytes(out, additions);
+		writeBytes(out, removals);
+		return out.array();
+	}
+
+	private static byte[] toBytes(final Model model)
+	{
+		if (model == null)
+		{
+			return null;
+		}
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RDFDataMgr.write(out, model, Lang.RDFTHRIFT);
+		return out.toByteArray();
+	}
+
+	private static void writeBytes(final ByteBuffer out, final byte[] bytes)
+	{
+		out.putInt(bytes != null ? bytes.length : -1);
+		if (bytes != null)
+		{
+			out.put(bytes);
+		}
+	}
+
+	private static byte[] readBytes(final ByteBuffer in)
+	{
+		final int length = in.getInt();
+		if (length < 0)
+		{
+			return null;
+		}
+		final byte[] bytes = new byte[length];
+		in.get(bytes);
+		return bytes;
+	}
+
+	private static int length(final byte[] bytes)
+	{
+		return bytes != null ? bytes.length : 0;
+	}
+
+	/**
+	 * Returns the size of a record with the payload length, padded to 8.
+	 */
+	private static long recordSize(final int length)
+	{
+		return (RECORD_HEADER_SIZE + (long) length + 7) / 8 * 8;
+	}
+
+	private static int crc(final byte[] bytes, final int offset, final int length)
+	{
+		final CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+
+	private static MappedByteBuffer map(final FileChannel channel, final long position, final long length) throws IOException
+	{
+		return (MappedByteBuffer) channel.map(FileChannel.MapMode.READ_WRITE, position, length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private final File fFile;
+	private final FileChannel fChannel;
+	private final int fChunkSize;
+	private final boolean fSync;
+	private volatile MappedByteBuffer[] fChunks;
+	private volatile long fEnd;
+	private boolean fClosed = false;
+}
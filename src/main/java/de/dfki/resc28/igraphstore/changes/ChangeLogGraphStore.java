@@ -0,0 +1,382 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.changes;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+
+import de.dfki.resc28.igraphstore.CloseableIterator;
+import de.dfki.resc28.igraphstore.ForwardingGraphStore;
+import de.dfki.resc28.igraphstore.GraphBatch;
+import de.dfki.resc28.igraphstore.IGraphStore;
+import de.dfki.resc28.igraphstore.util.RDFStreams;
+import de.dfki.resc28.igraphstore.util.StripedLocks;
+
+/**
+ * @author resc01
+ *
+ * Records every write to another IGraphStore in a {@link ChangeLog} and
+ * passes the events on to its {@link ChangeListener}s, as a feed for
+ * replicas, search indexes or caches of other processes.
+ *
+ * A write is logged after the wrapped store has applied it; a write that
+ * fails is not logged. If the write succeeds but cannot be appended to the
+ * log, e.g. because the disk is full, the caller gets a RuntimeException
+ * saying that the write was applied but not logged. The store and the feed
+ * then differ, and consumers have to resynchronise, e.g. by reading the
+ * graphs. Writes to the same graph are logged in the order
+ * they were applied, so replaying the events of the log in order on
+ * another store repeats the writes. Writes to the store that do not go
+ * through this decorator are not captured.
+ */
+public class ChangeLogGraphStore extends ForwardingGraphStore
+{
+	/**
+	 * What is recorded per write.
+	 */
+	public static class Settings
+	{
+		private boolean fRecordDeltas = true;
+
+		public boolean isRecordDeltas()
+		{
+			return fRecordDeltas;
+		}
+
+		/**
+		 * Records the triples of each write with its event. Without deltas
+		 * the log only says which graphs changed and how, and consumers
+		 * read the graphs themselves.
+		 */
+		public Settings setRecordDeltas(boolean recordDeltas)
+		{
+			fRecordDeltas = recordDeltas;
+			return this;
+		}
+	}
+
+
+	//================================================================================
+	// Constructors
+	//================================================================================
+
+	public ChangeLogGraphStore(final IGraphStore graphStore, final ChangeLog changeLog)
+	{
+		this(graphStore, changeLog, new Settings());
+	}
+
+	public ChangeLogGraphStore(final IGraphStore graphStore, final ChangeLog changeLog, final Settings settings)
+	{
+		super(graphStore);
+		if (changeLog == null)
+		{
+			throw new IllegalArgumentException("No change log given");
+		}
+		fChangeLog = changeLog;
+		fRecordDeltas = settings.isRecordDeltas();
+		for (int i = 0; i < StripedLocks.STRIPES; i++)
+		{
+			fDelivering[i] = new ReentrantLock();
+			fUndelivered[i] = new ConcurrentLinkedQueue<ChangeEvent>();
+		}
+	}
+
+
+	//================================================================================
+	// Change feed
+	//================================================================================
+
+	public ChangeLog getChangeLog()
+	{
+		return fChangeLog;
+	}
+
+	/**
+	 * Iterates the events of the log from the offset on, see
+	 * {@link ChangeLog#read(long)}.
+	 */
+	public CloseableIterator<ChangeEvent> read(final long offset)
+	{
+		return fChangeLog.read(offset);
+	}
+
+	public void addListener(final ChangeListener listener)
+	{
+		fListeners.add(listener);
+	}
+
+	public void removeListener(final ChangeListener listener)
+	{
+		fListeners.remove(listener);
+	}
+
+
+	//================================================================================
+	// CRUD-related methods for the default graph
+	//================================================================================
+
+	@Override
+	public void replaceDefaultGraph(final Model model)
+	{
+		write(new GraphBatch().replaceDefaultGraph(model), () -> fGraphStore.replaceDefaultGraph(model));
+	}
+
+	@Override
+	public void addToDefaultGraph(final Model model)
+	{
+		write(new GraphBatch().addToDefaultGraph(model), () -> fGraphStore.addToDefaultGraph(model));
+	}
+
+	@Override
+	public void clearDefaultGraph()
+	{
+		write(new GraphBatch().clearDefaultGraph(), () -> fGraphStore.clearDefaultGraph());
+	}
+
+
+	//================================================================================
+	// CRUD-related methods for named graphs
+	//================================================================================
+
+	@Override
+	public void deleteNamedGraph(final String graphURI)
+	{
+		write(new GraphBatch().deleteNamedGraph(graphURI), () -> fGraphStore.deleteNamedGraph(graphURI));
+	}
+
+	@Override
+	public void replaceNamedGraph(final String graphURI, final Model model)
+	{
+		write(new GraphBatch().replaceNamedGraph(graphURI, model), () -> fGraphStore.replaceNamedGraph(graphURI, model));
+	}
+
+	@Override
+	public void addToNamedGraph(final String graphURI, final Model model)
+	{
+		write(new GraphBatch().addToNamedGraph(graphURI, model), () -> fGraphStore.addToNamedGraph(graphURI, model));
+	}
+
+	@Override
+	public void createNamedGraph(final String graphURI, final Model model)
+	{
+		write(new GraphBatch().createNamedGraph(graphURI, model), () -> fGraphStore.createNamedGraph(graphURI, model));
+	}
+
+	/**
+	 * Recording deltas buffers the input, which is then parsed once more
+	 * for the log.
+	 */
+	@Override
+	public void replaceNamedGraph(final String graphURI, final InputStream inStream, final String contentType)
+	{
+		if (!fRecordDeltas)
+		{
+			write(new GraphBatch().replaceNamedGraph(graphURI, ModelFactory.createDefaultModel()),
+					() -> fGraphStore.replaceNamedGraph(graphURI, inStream, contentType));
+			return;
+		}
+
+		final byte[] input = buffer(inStream, contentType);
+		write(() -> new GraphBatch().replaceNamedGraph(graphURI, parse(input, contentType)), graphURI,
+				() -> fGraphStore.replaceNamedGraph(graphURI, new ByteArrayInputStream(input), contentType));
+	}
+
+	/**
+	 * Recording deltas buffers the input, which is then parsed once more
+	 * for the log.
+	 */
+	@Override
+	public void addToNamedGraph(final String graphURI, final InputStream inStream, final String contentType)
+	{
+		if (!fRecordDeltas)
+		{
+			write(new GraphBatch().addToNamedGraph(graphURI, ModelFactory.createDefaultModel()),
+					() -> fGraphStore.addToNamedGraph(graphURI, inStream, contentType));
+			return;
+		}
+
+		final byte[] input = buffer(inStream, contentType);
+		write(() -> new GraphBatch().addToNamedGraph(graphURI, parse(input, contentType)), graphURI,
+				() -> fGraphStore.addToNamedGraph(graphURI, new ByteArrayInputStream(input), contentType));
+	}
+
+
+	//================================================================================
+	// Delta- and batch-related Methods
+	//================================================================================
+
+	@Override
+	public void patch(final String graphURI, final Model additions, final Model removals)
+	{
+		write(new GraphBatch().patch(graphURI, additions, removals), () -> fGraphStore.patch(graphURI, additions, removals));
+	}
+
+	/**
+	 * Logs one event per operation, contiguously, once the whole batch has
+	 * been applied.
+	 */
+	@Override
+	public void apply(final GraphBatch batch)
+	{
+		write(batch, () -> fGraphStore.apply(batch));
+	}
+
+
+	//================================================================================
+	// Helpers
+	//================================================================================
+
+	private interface Batch
+	{
+		GraphBatch get();
+	}
+
+	private void write(final GraphBatch changes, final Runnable write)
+	{
+		final List<String> graphURIs = new ArrayList<String>();
+		for (GraphBatch.Operation operation : changes)
+		{
+			graphURIs.add(operation.getGraphURI());
+		}
+		write(() -> changes, StripedLocks.stripes(graphURIs), write);
+	}
+
+	private void write(final Batch changes, final String graphURI, final Runnable write)
+	{
+		write(changes, StripedLocks.stripes(graphURI), write);
+	}
+
+	/**
+	 * Runs the write and logs its changes while holding the locks of the
+	 * graphs, so that no other write to them can be logged in between. The
+	 * listeners are called after the locks are released.
+	 */
+	private void write(final Batch changes, final boolean[] stripes, final Runnable write)
+	{
+		fStripes.lock(stripes);
+		try
+		{
+			write.run();
+
+			final List<ChangeEvent> events;
+			try
+			{
+				events = fChangeLog.append(changes.get(), fRecordDeltas);
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException("Write applied but not logged, the change log is missing it: " + fChangeLog.getFile(), e);
+			}
+
+			// queued under the locks, so that each stripe's queue is in log order
+			for (ChangeEvent event : events)
+			{
+				fUndelivered[StripedLocks.stripe(event.getGraphURI())].add(event);
+			}
+		}
+		finally
+		{
+			fStripes.unlock(stripes);
+		}
+
+		for (int i = 0; i < stripes.length; i++)
+		{
+			if (stripes[i])
+			{
+				deliver(i);
+			}
+		}
+	}
+
+	/**
+	 * Passes the queued events of a stripe to the listeners. One thread at
+	 * a time delivers the events of a stripe, in log order; a thread that
+	 * finds another one delivering leaves its events to it. Nothing blocks,
+	 * so a listener may write through this store.
+	 */
+	private void deliver(final int stripe)
+	{
+		final Queue<ChangeEvent> undelivered = fUndelivered[stripe];
+		final ReentrantLock delivering = fDelivering[stripe];
+		// re-checked after unlocking, as events may be queued just before
+		while (!undelivered.isEmpty() && !delivering.isHeldByCurrentThread() && delivering.tryLock())
+		{
+			try
+			{
+				ChangeEvent event;
+				while ((event = undelivered.poll()) != null)
+				{
+					for (ChangeListener listener : fListeners)
+					{
+						try
+						{
+							listener.onChange(event);
+						}
+						catch (RuntimeException e)
+						{
+							LOGGER.log(Level.WARNING, "Change listener failed on " + event, e);
+						}
+					}
+				}
+			}
+			finally
+			{
+				delivering.unlock();
+			}
+		}
+	}
+
+	private static byte[] buffer(final InputStream inStream, final String contentType)
+	{
+		RDFStreams.toLang(contentType);
+		try
+		{
+			return IOUtils.toByteArray(inStream);
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException("Could not read RDF input", e);
+		}
+	}
+
+	private static Model parse(final byte[] input, final String contentType)
+	{
+		final Lang lang = RDFStreams.toLang(contentType);
+		final Model model = ModelFactory.createDefaultModel();
+		RDFDataMgr.read(model, new ByteArrayInputStream(input), lang);
+		return model;
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private static final Logger LOGGER = Logger.getLogger(ChangeLogGraphStore.class.getName());
+
+	private final ChangeLog fChangeLog;
+	private final boolean fRecordDeltas;
+	private final StripedLocks fStripes = new StripedLocks();
+	private final ReentrantLock[] fDelivering = new ReentrantLock[StripedLocks.STRIPES];
+	@SuppressWarnings("unchecked")
+	private final Queue<ChangeEvent>[] fUndelivered = new Queue[StripedLocks.STRIPES];
+	private final List<ChangeListener> fListeners = new CopyOnWriteArrayList<ChangeListener>();
+}
@@ -0,0 +1,398 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.jena;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import de.dfki.resc28.igraphstore.CloseableIterator;
+import de.dfki.resc28.igraphstore.IGraphStore;
+
+/**
+ * @author resc01
+ *
+ * Saves whole datasets to snapshot files and opens them memory-mapped.
+ *
+ * A snapshot holds the dictionary-encoded nodes and the sorted triple
+ * tables of a {@link DictionaryGraphStore} in a binary layout with a
+ * version header and a CRC32 checksum. {@link #open(File)} maps the file
+ * and queries it in place, so a service starts in milliseconds regardless
+ * of the size of the dataset, and the data lives in the OS page cache
+ * instead of the Java heap. Writes to an opened snapshot are kept on the
+ * heap and never change the file.
+ *
+ * Snapshots are written to a temporary file that replaces the target file
+ * when complete. A file must not be modified in place while it is open.
+ */
+public final class DatasetSnapshot
+{
+	private DatasetSnapshot()
+	{
+	}
+
+
+	//================================================================================
+	// Export and import
+	//================================================================================
+
+	/**
+	 * Writes the default graph and all named graphs of the store to a
+	 * snapshot file. A DictionaryGraphStore is written from its tables as
+	 * they are at the time of the call, other stores are copied graph by
+	 * graph into a DictionaryGraphStore first.
+	 */
+	public static void export(final IGraphStore store, final File file) throws IOException
+	{
+		final DictionaryGraphStore source;
+		if (store instanceof DictionaryGraphStore)
+		{
+			source = (DictionaryGraphStore) store;
+		}
+		else
+		{
+			source = new DictionaryGraphStore();
+			source.replaceDefaultGraph(store.getDefaultGraph());
+			for (String graphURI : listNamedGraphs(store))
+			{
+				source.addToNamedGraph(graphURI, store.getNamedGraph(graphURI));
+			}
+		}
+
+		// the tables first, so the dictionary holds all of their nodes
+		final Map<String, TripleTable> graphs = source.getTables();
+		write(source.getDictionary(), source.getDictionary().size(), graphs, file);
+	}
+
+	/**
+	 * Opens a snapshot memory-mapped without verifying its checksum, which
+	 * would read the whole file.
+	 *
+	 * @throws IOException if the file cannot be read or is no valid snapshot
+	 */
+	public static DictionaryGraphStore open(final File file) throws IOException
+	{
+		return open(file, false);
+	}
+
+	/**
+	 * Opens a snapshot memory-mapped, verifying its checksum first if
+	 * verify is true.
+	 *
+	 * @throws IOException if the file cannot be read, is no valid snapshot
+	 *         or its checksum does not match
+	 */
+	public static DictionaryGraphStore open(final File file, final boolean verify) throws IOException
+	{
+		return new DictionaryGraphStore(SnapshotFile.open(file, verify));
+	}
+
+	/**
+	 * Checks the header and the checksum of a snapshot file.
+	 *
+	 * @throws IOException if the file cannot be read, is no valid snapshot
+	 *         or its checksum does not match
+	 */
+	public static void verify(final File file) throws IOException
+	{
+		SnapshotFile.verify(file);
+	}
+
+	/**
+	 * Copies the graphs of a snapshot into a store, e.g. a TDBGraphStore.
+	 * The default graph and named graphs in the snapshot replace those of
+	 * the store, other named graphs of the store are kept.
+	 *
+	 * @throws IOException if the file cannot be read, is no valid snapshot
+	 *         or its checksum does not match
+	 */
+	public static void importInto(final File file, final IGraphStore target) throws IOException
+	{
+		final DictionaryGraphStore snapshot = open(file, true);
+
+		target.replaceDefaultGraph(snapshot.getDefaultGraph());
+		for (String graphURI : snapshot.getTables().keySet())
+		{
+			if (graphURI == null)
+			{
+				continue;
+			}
+			if (target.containsNamedGraph(graphURI))
+			{
+				target.replaceNamedGraph(graphURI, snapshot.getNamedGraph(graphURI));
+			}
+			else
+			{
+				target.createNamedGraph(graphURI, snapshot.getNamedGraph(graphURI));
+			}
+		}
+	}
+
+
+	//================================================================================
+	// Writer
+	//================================================================================
+
+	private static void write(final NodeDictionary dictionary, final int nodeCount, final Map<String, TripleTable> graphs, final File file) throws IOException
+	{
+		final File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+		{
+			final Output out = new Output(channel);
+
+			// node data, keeping each node within a chunk
+			final long[] offsets = new long[nodeCount];
+			final int[] hashes = new int[nodeCount];
+			for (int id = 1; id <= nodeCount; id++)
+			{
+				final byte[] record = SnapshotFile.encodeNode(dictionary.decode(id));
+				if (record == null || record.length > SnapshotFile.CHUNK_SIZE)
+				{
+					throw new IOException("Cannot store node in snapshot: " + dictionary.decode(id));
+				}
+
+				long offset = out.position() - SnapshotFile.HEADER_SIZE;
+				if (offset % SnapshotFile.CHUNK_SIZE + record.length > SnapshotFile.CHUNK_SIZE)
+				{
+					out.align(SnapshotFile.CHUNK_SIZE);
+					offset = out.position() - SnapshotFile.HEADER_SIZE;
+				}
+				offsets[id - 1] = offset;
+				hashes[id - 1] = SnapshotFile.hash(record);
+				out.putBytes(record);
+			}
+			final long nodeDataLength = out.position() - SnapshotFile.HEADER_SIZE;
+
+			out.align(8);
+			final long nodeOffsetsPos = out.position();
+			for (long offset : offsets)
+			{
+				out.putLong(offset);
+			}
+
+			final int hashCapacity = SnapshotFile.hashCapacity(nodeCount);
+			final int[] slots = new int[hashCapacity];
+			for (int id = 1; id <= nodeCount; id++)
+			{
+				int slot = hashes[id - 1] & (hashCapacity - 1);
+				while (slots[slot] != 0)
+				{
+					slot = (slot + 1) & (hashCapacity - 1);
+				}
+				slots[slot] = id;
+			}
+			out.align(8);
+			final long hashPos = out.position();
+			for (int id : slots)
+			{
+				out.putInt(id);
+			}
+
+			// the directory, with the offsets of the orders that follow it
+			final List<String> graphURIs = new ArrayList<String>(graphs.keySet());
+			final ByteBuffer directory = directory(graphURIs, graphs, 0);
+			out.align(8);
+			final long directoryPos = out.position();
+			long ordersPos = SnapshotFile.align(directoryPos + directory.remaining(), 8);
+			out.putBytes(directory(graphURIs, graphs, ordersPos));
+
+			for (String graphURI : graphURIs)
+			{
+				out.align(8);
+				final TripleTable table = graphs.get(graphURI).compact();
+				for (int order : new int[] { TripleTable.SPO, TripleTable.POS, TripleTable.OSP })
+				{
+					out.putInts(table.getIndex(order));
+				}
+			}
+			out.flush();
+
+			final ByteBuffer header = ByteBuffer.allocate(SnapshotFile.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.put(SnapshotFile.MAGIC);
+			header.putInt(SnapshotFile.VERSION_POS, SnapshotFile.VERSION);
+			header.putInt(SnapshotFile.NODE_COUNT_POS, nodeCount);
+			header.putInt(SnapshotFile.GRAPH_COUNT_POS, graphURIs.size());
+			header.putInt(SnapshotFile.HASH_CAPACITY_POS, hashCapacity);
+			header.putLong(SnapshotFile.NODE_DATA_LENGTH_POS, nodeDataLength);
+			header.putLong(SnapshotFile.NODE_OFFSETS_POS, nodeOffsetsPos);
+			header.putLong(SnapshotFile.HASH_POS, hashPos);
+			header.putLong(SnapshotFile.DIRECTORY_POS, directoryPos);
+			header.putLong(SnapshotFile.DIRECTORY_LENGTH_POS, directory.remaining());
+			header.putLong(SnapshotFile.FILE_LENGTH_POS, out.position());
+			header.putLong(SnapshotFile.CHECKSUM_POS, out.checksum());
+			header.clear();
+			while (header.hasRemaining())
+			{
+				channel.write(header, header.position());
+			}
+			channel.force(true);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			Files.deleteIfExists(tmp.toPath());
+			throw e;
+		}
+
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Encodes the graph directory for orders starting at ordersPos.
+	 */
+	private static ByteBuffer directory(final List<String> graphURIs, final Map<String, TripleTable> graphs, final long ordersPos)
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ByteBuffer entry = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+		long offset = ordersPos;
+		for (String graphURI : graphURIs)
+		{
+			final byte[] name = graphURI != null ? graphURI.getBytes(StandardCharsets.UTF_8) : new byte[0];
+			final int size = graphs.get(graphURI).size();
+
+			entry.clear();
+			entry.putInt(graphURI != null ? name.length : -1);
+			bytes.write(entry.array(), 0, 4);
+			bytes.write(name, 0, name.length);
+			while (bytes.size() % 4 != 0)
+			{
+				bytes.write(0);
+			}
+
+			entry.clear();
+			entry.putInt(size);
+			entry.putLong(offset);
+			bytes.write(entry.array(), 0, 12);
+
+			offset = SnapshotFile.align(offset + 3L * 3 * 4 * size, 8);
+		}
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+
+	/**
+	 * Buffered, checksummed output to the body of a snapshot file.
+	 */
+	private static class Output
+	{
+		private final FileChannel fChannel;
+		private final ByteBuffer fBuffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+		private final CRC32 fChecksum = new CRC32();
+		private long fPosition = SnapshotFile.HEADER_SIZE;
+
+		Output(final FileChannel channel) throws IOException
+		{
+			fChannel = channel;
+			fChannel.position(SnapshotFile.HEADER_SIZE);
+		}
+
+		long position()
+		{
+			return fPosition;
+		}
+
+		long checksum()
+		{
+			return fChecksum.getValue();
+		}
+
+		void putInt(final int value) throws IOException
+		{
+			ensure(4);
+			fBuffer.putInt(value);
+			fPosition += 4;
+		}
+
+		void putLong(final long value) throws IOException
+		{
+			ensure(8);
+			fBuffer.putLong(value);
+			fPosition += 8;
+		}
+
+		void putInts(final IntBuffer values) throws IOException
+		{
+			while (values.hasRemaining())
+			{
+				putInt(values.get());
+			}
+		}
+
+		void putBytes(final byte[] bytes) throws IOException
+		{
+			putBytes(ByteBuffer.wrap(bytes));
+		}
+
+		void putBytes(final ByteBuffer bytes) throws IOException
+		{
+			while (bytes.hasRemaining())
+			{
+				ensure(1);
+				final int n = Math.min(bytes.remaining(), fBuffer.remaining());
+				final ByteBuffer part = bytes.duplicate();
+				part.limit(part.position() + n);
+				fBuffer.put(part);
+				bytes.position(bytes.position() + n);
+				fPosition += n;
+			}
+		}
+
+		void align(final long alignment) throws IOException
+		{
+			while (fPosition % alignment != 0)
+			{
+				ensure(1);
+				final int n = (int) Math.min(fBuffer.remaining(), alignment - fPosition % alignment);
+				fBuffer.put(new byte[n]);
+				fPosition += n;
+			}
+		}
+
+		void flush() throws IOException
+		{
+			fBuffer.flip();
+			fChecksum.update(fBuffer.duplicate());
+			while (fBuffer.hasRemaining())
+			{
+				fChannel.write(fBuffer);
+			}
+			fBuffer.clear();
+		}
+
+		private void ensure(final int bytes) throws IOException
+		{
+			if (fBuffer.remaining() < bytes)
+			{
+				flush();
+			}
+		}
+	}
+
+
+	//================================================================================
+	// Helpers
+	//================================================================================
+
+	private static List<String> listNamedGraphs(final IGraphStore store)
+	{
+		final List<String> graphURIs = new ArrayList<String>();
+		try (CloseableIterator<String> graphs = store.listNamedGraphs())
+		{
+			graphs.forEachRemaining(graphURIs::add);
+		}
+		return graphURIs;
+	}
+}
@@ -0,0 +1,881 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.jena;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.impl.GraphBase;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.ResultSetFormatter;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.DatasetGraphFactory;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NullIterator;
+import org.apache.jena.util.iterator.WrappedIterator;
+
+import de.dfki.resc28.igraphstore.CloseableIterator;
+import de.dfki.resc28.igraphstore.Constants;
+import de.dfki.resc28.igraphstore.GraphBatch;
+import de.dfki.resc28.igraphstore.GraphStats;
+import de.dfki.resc28.igraphstore.IGraphStore;
+import de.dfki.resc28.igraphstore.util.RDFStreams;
+
+/**
+ * @author resc01
+ *
+ * The DictionaryGraphStore maintains an RDF-Dataset in memory in a compact
+ * form, e.g. for hot caches and test fixtures with millions of triples.
+ *
+ * Nodes are stored once in a dictionary and triples as int IDs in three
+ * sorted orders per graph (SPO, POS, OSP), about 36 bytes per triple plus
+ * the unique nodes. Every triple pattern is answered by a binary search.
+ *
+ * Readers work on an immutable snapshot and never block. Writes are
+ * serialized; each write builds new tables for the graphs it changes and
+ * publishes them at once. Adds and patches only rebuild a small set of
+ * pending changes per graph, which is merged into the sorted orders every
+ * few thousand triples, see {@link TripleTable}; creating or replacing a
+ * graph costs time linear in its size. Nodes stay in the dictionary after
+ * their triples are removed.
+ *
+ * Its semantics follow the TDBGraphStore, e.g. getNamedGraph falls back
+ * to the default graph for graphs that do not exist.
+ *
+ * A store can be saved to a snapshot file and opened from it
+ * memory-mapped, see {@link DatasetSnapshot}.
+ */
+public class DictionaryGraphStore implements IGraphStore
+{
+	//================================================================================
+	// Constructors
+	//================================================================================
+
+	public DictionaryGraphStore()
+	{
+		fDictionary = new NodeDictionary();
+		fGraphs = new HashMap<String, TripleTable>();
+	}
+
+	/**
+	 * Constructs a store on a memory-mapped snapshot. Later writes are kept
+	 * on the heap.
+	 */
+	DictionaryGraphStore(final SnapshotFile snapshot)
+	{
+		fDictionary = new NodeDictionary(snapshot);
+		fGraphs = snapshot.getGraphs();
+	}
+
+
+	//================================================================================
+	// CRUD-related methods for the default graph
+	//================================================================================
+
+	@Override
+	public Model getDefaultGraph()
+	{
+		return toModel(table(fGraphs, null));
+	}
+
+	@Override
+	public void replaceDefaultGraph(final Model model)
+	{
+		final Encoded triples = encode(model);
+		write(graphs -> put(graphs, null, TripleTable.of(triples.fTriples, triples.fCount)));
+	}
+
+	@Override
+	public void addToDefaultGraph(final Model model)
+	{
+		final Encoded triples = encode(model);
+		write(graphs -> put(graphs, null, table(graphs, null).add(triples.fTriples, triples.fCount)));
+	}
+
+	@Override
+	public void clearDefaultGraph()
+	{
+		write(graphs -> graphs.remove(null));
+	}
+
+
+	//================================================================================
+	// CRUD-related methods for named graphs
+	//================================================================================
+
+	@Override
+	public boolean containsNamedGraph(final String graphURI)
+	{
+		return fGraphs.containsKey(graphURI);
+	}
+
+	/**
+	 * Gets a graph by name as a Jena Model.
+	 * Defaults to background graph as a Jena Model.
+	 */
+	@Override
+	public Model getNamedGraph(final String graphURI)
+	{
+		final Map<String, TripleTable> graphs = fGraphs;
+		return toModel(graphs.containsKey(graphURI) ? graphs.get(graphURI) : table(graphs, null));
+	}
+
+	/**
+	 * Gets several graphs from one snapshot. Each graph is converted to a 
+	 * Model when the iterator reaches it.
+	 */
+	@Override
+	public CloseableIterator<Map.Entry<String, Model>> getNamedGraphs(final Collection<String> graphURIs)
+	{
+		final Map<String, TripleTable> graphs = fGraphs;
+		return CloseableIterator.wrap(WrappedIterator.create(new LinkedHashSet<String>(graphURIs).iterator())
+				.filterKeep(graphURI -> graphURI != null && graphs.containsKey(graphURI))
+				.mapWith(graphURI -> new AbstractMap.SimpleImmutableEntry<String, Model>(graphURI, toModel(graphs.get(graphURI)))));
+	}
+
+	@Override
+	public void deleteNamedGraph(final String graphURI)
+	{
+		write(graphs -> graphs.remove(graphURI));
+	}
+
+	/**
+	 * Replaces a named graph by the given model, if the graph exists.
+	 */
+	@Override
+	public void replaceNamedGraph(final String graphURI, final Model model)
+	{
+		final Encoded triples = encode(model);
+		write(graphs -> {
+			if (graphs.containsKey(graphURI))
+			{
+				put(graphs, graphURI, TripleTable.of(triples.fTriples, triples.fCount));
+			}
+		});
+	}
+
+	@Override
+	public void addToNamedGraph(final String graphURI, final Model model)
+	{
+		final Encoded triples = encode(model);
+		write(graphs -> put(graphs, graphURI, table(graphs, graphURI).add(triples.fTriples, triples.fCount)));
+	}
+
+	/**
+	 * Creates a graph with the given model unless it already exists.
+	 */
+	@Override
+	public void createNamedGraph(final String graphURI, final Model model)
+	{
+		final Encoded triples = encode(model);
+		write(graphs -> {
+			if (!graphURI.isEmpty() && !graphs.containsKey(graphURI))
+			{
+				put(graphs, graphURI, TripleTable.of(triples.fTriples, triples.fCount));
+			}
+		});
+	}
+
+	/**
+	 * Replaces a named graph by the RDF read from the input stream, if the
+	 * graph exists. The input is parsed straight into IDs.
+	 */
+	@Override
+	public void replaceNamedGraph(final String graphURI, final InputStream inStream, final String contentType)
+	{
+		final Lang lang = RDFStreams.toLang(contentType);
+		if (!containsNamedGraph(graphURI))
+		{
+			return;
+		}
+
+		final Encoded triples = parse(inStream, lang);
+		write(graphs -> {
+			if (graphs.containsKey(graphURI))
+			{
+				put(graphs, graphURI, TripleTable.of(triples.fTriples, triples.fCount));
+			}
+		});
+	}
+
+	/**
+	 * Adds the RDF read from the input stream to a named graph. The input is
+	 * parsed straight into IDs.
+	 */
+	@Override
+	public void addToNamedGraph(final String graphURI, final InputStream inStream, final String contentType)
+	{
+		final Encoded triples = parse(inStream, RDFStreams.toLang(contentType));
+		write(graphs -> put(graphs, graphURI, table(graphs, graphURI).add(triples.fTriples, triples.fCount)));
+	}
+
+	@Override
+	public void writeNamedGraph(final String graphURI, final OutputStream outStream, final String contentType)
+	{
+		RDFStreams.writeTriples(outStream, iterator(table(fGraphs, graphURI), TripleTable.ANY, TripleTable.ANY, TripleTable.ANY), contentType);
+	}
+
+	@Override
+	public void streamNamedGraph(final String graphURI, final StreamRDF sink)
+	{
+		final Iterator<Triple> triples = iterator(table(fGraphs, graphURI), TripleTable.ANY, TripleTable.ANY, TripleTable.ANY);
+		sink.start();
+		while (triples.hasNext())
+		{
+			sink.triple(triples.next());
+		}
+		sink.finish();
+	}
+
+	/**
+	 * Finds the triples of a named graph that match the pattern. The iterator
+	 * reads a snapshot of the graph and holds no resources.
+	 */
+	@Override
+	public CloseableIterator<Triple> find(final String graphURI, final Node s, final Node p, final Node o)
+	{
+		final TripleTable table = table(fGraphs, graphURI);
+		final int sid = fDictionary.lookup(s);
+		final int pid = fDictionary.lookup(p);
+		final int oid = fDictionary.lookup(o);
+
+		final Iterator<Triple> triples = sid < 0 || pid < 0 || oid < 0
+				? iterator(TripleTable.EMPTY, TripleTable.ANY, TripleTable.ANY, TripleTable.ANY)
+				: iterator(table, sid, pid, oid);
+
+		return new CloseableIterator<Triple>()
+		{
+			@Override
+			public boolean hasNext()
+			{
+				return triples.hasNext();
+			}
+
+			@Override
+			public Triple next()
+			{
+				return triples.next();
+			}
+
+			@Override
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close()
+			{
+			}
+		};
+	}
+
+
+	//================================================================================
+	// Catalog-related Methods
+	//================================================================================
+
+	/**
+	 * Lists the named graphs of the current snapshot. The iterator holds no
+	 * resources.
+	 */
+	@Override
+	public CloseableIterator<String> listNamedGraphs()
+	{
+		final Iterator<Map.Entry<String, TripleTable>> entries = fGraphs.entrySet().iterator();
+
+		return new CloseableIterator<String>()
+		{
+			private String fNext = null;
+
+			@Override
+			public boolean hasNext()
+			{
+				while (fNext == null && entries.hasNext())
+				{
+					final Map.Entry<String, TripleTable> entry = entries.next();
+					if (entry.getKey() != null && !entry.getValue().isEmpty())
+					{
+						fNext = entry.getKey();
+					}
+				}
+				return fNext != null;
+			}
+
+			@Override
+			public String next()
+			{
+				if (!hasNext())
+				{
+					throw new NoSuchElementException();
+				}
+				final String next = fNext;
+				fNext = null;
+				return next;
+			}
+
+			@Override
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close()
+			{
+			}
+		};
+	}
+
+	@Override
+	public long graphSize(final String graphURI)
+	{
+		return table(fGraphs, graphURI).size();
+	}
+
+	/**
+	 * Computes the statistics from the sorted orders of the graph's table:
+	 * subjects are counted in the SPO order, predicates in the POS order.
+	 * The time of the last change is known for graphs written since the
+	 * store was constructed or opened.
+	 */
+	@Override
+	public GraphStats getGraphStats(final String graphURI)
+	{
+		final Map<String, Long> modified = fModified;
+		final TripleTable table = table(fGraphs, graphURI);
+		if (graphURI != null && table.isEmpty())
+		{
+			return null;
+		}
+
+		final Long lastModified = modified.get(graphURI);
+		return new GraphStats(graphURI, table.size(), table.countDistinct(TripleTable.SPO), table.countDistinct(TripleTable.POS),
+				lastModified != null ? lastModified : GraphStats.UNKNOWN);
+	}
+
+
+	//================================================================================
+	// Delta-related Methods
+	//================================================================================
+
+	@Override
+	public void patch(final String graphURI, final Model additions, final Model removals)
+	{
+		final Encoded added = encode(additions);
+		final Encoded removed = encodeExisting(removals);
+		write(graphs -> doPatch(graphs, graphURI, added, removed));
+	}
+
+
+	//================================================================================
+	// Batch-related Methods
+	//================================================================================
+
+	/**
+	 * Applies all operations of the batch and publishes the result at once.
+	 * Either all operations take effect or, if one of them fails, none.
+	 */
+	@Override
+	public void apply(final GraphBatch batch)
+	{
+		write(graphs -> {
+			for (GraphBatch.Operation operation : batch)
+			{
+				doApply(graphs, operation);
+			}
+		});
+	}
+
+
+	//================================================================================
+	// Query-related Methods
+	//================================================================================
+
+	@Override
+	public boolean ask(final String queryString)
+	{
+		try (QueryExecution qe = QueryExecutionFactory.create(queryString, DatasetFactory.wrap(snapshot())))
+		{
+			return qe.execAsk();
+		}
+	}
+
+	@Override
+	public void select(final OutputStream outStream, final String queryString)
+	{
+		select(outStream, queryString, Constants.CT_APPLICATION_SPARQLRESULTS_JSON);
+	}
+
+	@Override
+	public void select(final OutputStream outStream, final String queryString, final String contentType)
+	{
+		final ResultsFormat format = RDFStreams.toResultsFormat(contentType);
+
+		try (QueryExecution qe = QueryExecutionFactory.create(queryString, DatasetFactory.wrap(snapshot())))
+		{
+			ResultSetFormatter.output(outStream, qe.execSelect(), format);
+		}
+	}
+
+	@Override
+	public void construct(final OutputStream outStream, final String queryString, final String contentType)
+	{
+		try (QueryExecution qe = QueryExecutionFactory.create(queryString, DatasetFactory.wrap(snapshot())))
+		{
+			RDFStreams.writeTriples(outStream, qe.execConstructTriples(), contentType);
+		}
+	}
+
+	@Override
+	public void describe(final OutputStream outStream, final String queryString, final String contentType)
+	{
+		try (QueryExecution qe = QueryExecutionFactory.create(queryString, DatasetFactory.wrap(snapshot())))
+		{
+			RDFStreams.writeTriples(outStream, qe.execDescribeTriples(), contentType);
+		}
+	}
+
+
+	//================================================================================
+	// Statistics
+	//================================================================================
+
+	/**
+	 * Returns the number of triples in all graphs.
+	 */
+	public long getTripleCount()
+	{
+		long count = 0;
+		for (TripleTable table : fGraphs.values())
+		{
+			count += table.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of nodes in the dictionary.
+	 */
+	public int getNodeCount()
+	{
+		return fDictionary.size();
+	}
+
+	/**
+	 * Returns the bytes used by the triple indexes on the heap, without the
+	 * nodes and the tables of a memory-mapped snapshot.
+	 */
+	public long getIndexMemoryUsage()
+	{
+		long bytes = 0;
+		for (TripleTable table : fGraphs.values())
+		{
+			bytes += table.getMemoryUsage();
+		}
+		return bytes;
+	}
+
+
+	//================================================================================
+	// Snapshot support
+	//================================================================================
+
+	/**
+	 * Returns the current tables, the default graph has the key null.
+	 */
+	Map<String, TripleTable> getTables()
+	{
+		return fGraphs;
+	}
+
+	NodeDictionary getDictionary()
+	{
+		return fDictionary;
+	}
+
+
+	//================================================================================
+	// Write helpers, to be called by write()
+	//================================================================================
+
+	private interface Change
+	{
+		void apply(Map<String, TripleTable> graphs);
+	}
+
+	/**
+	 * Applies the change to a copy of the graph map and publishes the copy.
+	 * Nothing is published if the change fails.
+	 */
+	private void write(final Change change)
+	{
+		fWriteLock.lock();
+		try
+		{
+			final Map<String, TripleTable> previous = fGraphs;
+			final Map<String, TripleTable> graphs = new HashMap<String, TripleTable>(previous);
+			change.apply(graphs);
+			fModified = modified(previous, graphs);
+			fGraphs = graphs;
+		}
+		finally
+		{
+			fWriteLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the times of the last change with the graphs whose tables
+	 * differ between the two maps changed now.
+	 */
+	private Map<String, Long> modified(final Map<String, TripleTable> previous, final Map<String, TripleTable> graphs)
+	{
+		final Long now = System.currentTimeMillis();
+		final Map<String, Long> modified = new HashMap<String, Long>(fModified);
+		modified.keySet().retainAll(graphs.keySet());
+		for (Map.Entry<String, TripleTable> entry : graphs.entrySet())
+		{
+			if (previous.get(entry.getKey()) != entry.getValue())
+			{
+				modified.put(entry.getKey(), now);
+			}
+		}
+		return modified;
+	}
+
+	private void doApply(final Map<String, TripleTable> graphs, final GraphBatch.Operation operation)
+	{
+		final String graphURI = operation.getGraphURI();
+		switch (operation.getType())
+		{
+			case CREATE:
+				if (!graphURI.isEmpty() && !graphs.containsKey(graphURI))
+				{
+					final Encoded created = encode(operation.getModel());
+					put(graphs, graphURI, TripleTable.of(created.fTriples, created.fCount));
+				}
+				break;
+			case REPLACE:
+				if (operation.isDefaultGraph() || graphs.containsKey(graphURI))
+				{
+					final Encoded replaced = encode(operation.getModel());
+					put(graphs, graphURI, TripleTable.of(replaced.fTriples, replaced.fCount));
+				}
+				break;
+			case ADD:
+				final Encoded added = encode(operation.getModel());
+				put(graphs, graphURI, table(graphs, graphURI).add(added.fTriples, added.fCount));
+				break;
+			case DELETE:
+				graphs.remove(graphURI);
+				break;
+			case PATCH:
+				doPatch(graphs, graphURI, encode(operation.getModel()), encodeExisting(operation.getRemovals()));
+				break;
+		}
+	}
+
+	private void doPatch(final Map<String, TripleTable> graphs, final String graphURI, final Encoded additions, final Encoded removals)
+	{
+		put(graphs, graphURI, table(graphs, graphURI)
+				.remove(removals.fTriples, removals.fCount)
+				.add(additions.fTriples, additions.fCount));
+	}
+
+	/**
+	 * Stores the table of a graph. Graphs without triples do not exist.
+	 */
+	private static void put(final Map<String, TripleTable> graphs, final String graphURI, final TripleTable table)
+	{
+		if (table.isEmpty())
+		{
+			graphs.remove(graphURI);
+		}
+		else
+		{
+			graphs.put(graphURI, table);
+		}
+	}
+
+
+	//================================================================================
+	// Helpers
+	//================================================================================
+
+	/**
+	 * Triples as (s, p, o) node IDs.
+	 */
+	private static class Encoded
+	{
+		private int[] fTriples = new int[3 * 16];
+		private int fCount = 0;
+
+		void add(final int s, final int p, final int o)
+		{
+			if (3 * fCount + 3 > fTriples.length)
+			{
+				fTriples = Arrays.copyOf(fTriples, fTriples.length * 2);
+			}
+			fTriples[3 * fCount] = s;
+			fTriples[3 * fCount + 1] = p;
+			fTriples[3 * fCount + 2] = o;
+			fCount++;
+		}
+	}
+
+	private static TripleTable table(final Map<String, TripleTable> graphs, final String graphURI)
+	{
+		final TripleTable table = graphs.get(graphURI);
+		return table != null ? table : TripleTable.EMPTY;
+	}
+
+	/**
+	 * Encodes the triples of a model, assigning IDs to new nodes.
+	 */
+	private Encoded encode(final Model model)
+	{
+		final Encoded encoded = new Encoded();
+		if (model == null)
+		{
+			return encoded;
+		}
+
+		fWriteLock.lock();
+		try
+		{
+			final ExtendedIterator<Triple> triples = model.getGraph().find(Node.ANY, Node.ANY, Node.ANY);
+			try
+			{
+				while (triples.hasNext())
+				{
+					final Triple triple = triples.next();
+					encoded.add(fDictionary.encode(triple.getSubject()), fDictionary.encode(triple.getPredicate()), fDictionary.encode(triple.getObject()));
+				}
+			}
+			finally
+			{
+				triples.close();
+			}
+		}
+		finally
+		{
+			fWriteLock.unlock();
+		}
+		return encoded;
+	}
+
+	/**
+	 * Encodes the triples of a model whose nodes all have IDs. Other triples
+	 * cannot be stored and are left out.
+	 */
+	private Encoded encodeExisting(final Model model)
+	{
+		final Encoded encoded = new Encoded();
+		if (model == null)
+		{
+			return encoded;
+		}
+
+		final ExtendedIterator<Triple> triples = model.getGraph().find(Node.ANY, Node.ANY, Node.ANY);
+		try
+		{
+			while (triples.hasNext())
+			{
+				final Triple triple = triples.next();
+				final int s = fDictionary.lookup(triple.getSubject());
+				final int p = fDictionary.lookup(triple.getPredicate());
+				final int o = fDictionary.lookup(triple.getObject());
+				if (s > 0 && p > 0 && o > 0)
+				{
+					encoded.add(s, p, o);
+				}
+			}
+		}
+		finally
+		{
+			triples.close();
+		}
+		return encoded;
+	}
+
+	/**
+	 * Parses the input stream and encodes its triples. Quads are added as
+	 * triples, i.e. their graph name is dropped.
+	 */
+	private Encoded parse(final InputStream inStream, final Lang lang)
+	{
+		final Encoded encoded = new Encoded();
+
+		fWriteLock.lock();
+		try
+		{
+			RDFDataMgr.parse(new StreamRDFBase()
+			{
+				@Override
+				public void triple(final Triple triple)
+				{
+					encoded.add(fDictionary.encode(triple.getSubject()), fDictionary.encode(triple.getPredicate()), fDictionary.encode(triple.getObject()));
+				}
+
+				@Override
+				public void quad(final Quad quad)
+				{
+					triple(quad.asTriple());
+				}
+			}, inStream, lang);
+		}
+		finally
+		{
+			fWriteLock.unlock();
+		}
+		return encoded;
+	}
+
+	private Iterator<Triple> iterator(final TripleTable table, final int s, final int p, final int o)
+	{
+		final TripleTable.Cursor cursor = table.find(s, p, o);
+		return new Iterator<Triple>()
+		{
+			private boolean fAdvanced = false;
+			private boolean fHasNext = false;
+
+			@Override
+			public boolean hasNext()
+			{
+				if (!fAdvanced)
+				{
+					fHasNext = cursor.advance();
+					fAdvanced = true;
+				}
+				return fHasNext;
+			}
+
+			@Override
+			public Triple next()
+			{
+				if (!hasNext())
+				{
+					throw new NoSuchElementException();
+				}
+				fAdvanced = false;
+				return Triple.create(fDictionary.decode(cursor.subject()), fDictionary.decode(cursor.predicate()), fDictionary.decode(cursor.object()));
+			}
+
+			@Override
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private Model toModel(final TripleTable table)
+	{
+		final Model model = ModelFactory.createDefaultModel();
+		final Graph graph = model.getGraph();
+		final Iterator<Triple> triples = iterator(table, TripleTable.ANY, TripleTable.ANY, TripleTable.ANY);
+		while (triples.hasNext())
+		{
+			graph.add(triples.next());
+		}
+		return model;
+	}
+
+	/**
+	 * Returns a read-only dataset over the current graphs for SPARQL queries.
+	 */
+	private DatasetGraph snapshot()
+	{
+		final Map<String, TripleTable> graphs = fGraphs;
+		final DatasetGraph dsg = DatasetGraphFactory.createGeneral();
+		dsg.setDefaultGraph(new TableGraph(table(graphs, null)));
+		for (Map.Entry<String, TripleTable> entry : graphs.entrySet())
+		{
+			if (entry.getKey() != null)
+			{
+				dsg.addGraph(NodeFactory.createURI(entry.getKey()), new TableGraph(entry.getValue()));
+			}
+		}
+		return dsg;
+	}
+
+	/**
+	 * A read-only Jena Graph over a table, which lets ARQ evaluate triple
+	 * patterns on the indexes.
+	 */
+	private class TableGraph extends GraphBase
+	{
+		private final TripleTable fTable;
+
+		TableGraph(final TripleTable table)
+		{
+			fTable = table;
+		}
+
+		@Override
+		protected ExtendedIterator<Triple> graphBaseFind(final Triple pattern)
+		{
+			final int s = fDictionary.lookup(pattern.getMatchSubject());
+			final int p = fDictionary.lookup(pattern.getMatchPredicate());
+			final int o = fDictionary.lookup(pattern.getMatchObject());
+			if (s < 0 || p < 0 || o < 0)
+			{
+				return NullIterator.instance();
+			}
+			return WrappedIterator.create(iterator(fTable, s, p, o));
+		}
+
+		@Override
+		protected int graphBaseSize()
+		{
+			return fTable.size();
+		}
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private final NodeDictionary fDictionary;
+	private final ReentrantLock fWriteLock = new ReentrantLock();
+
+	/**
+	 * The tables of the graphs, the default graph has the key null.
+	 * Replaced as a whole by each write and never modified once published.
+	 */
+	private volatile Map<String, TripleTable> fGraphs;
+
+	/**
+	 * The times of the last change of the graphs written since the store
+	 * was constructed, published before the tables of each write.
+	 */
+	private volatile Map<String, Long> fModified = new HashMap<String, Long>();
+}
@@ -0,0 +1,542 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.jena;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.EntityTemplate;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.apache.jena.atlas.lib.IRILib;
+import org.apache.jena.atlas.web.HttpException;
+import org.apache.jena.atlas.web.TypedInputStream;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.WebContent;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.sparql.resultset.JSONInput;
+import org.apache.jena.sparql.util.FmtUtils;
+
+import de.dfki.resc28.igraphstore.Constants;
+import de.dfki.resc28.igraphstore.VersionedGraph;
+
+/**
+ * @author resc01
+ *
+ * A FusekiConnection speaks the SPARQL 1.1 Graph Store HTTP Protocol and the
+ * SPARQL 1.1 Protocol with one Fuseki dataset over a shared, pooled HTTP
+ * client.
+ *
+ * A null graph URI denotes the default graph. Failed requests are reported
+ * as {@link HttpException} carrying the response code.
+ */
+public class FusekiConnection {
+
+    /**
+     * Encoding of the RDF sent to and requested from the graph store.
+     */
+    public static class Settings {
+
+        private boolean fBinaryRDF = false;
+        private boolean fCompressRequests = false;
+        private boolean fCompressResponses = true;
+
+        public boolean isBinaryRDF() {
+            return fBinaryRDF;
+        }
+
+        /**
+         * Sends graphs as RDF Thrift and prefers RDF Thrift in responses.
+         * Falls back to text RDF if the server does not support it.
+         */
+        public Settings setBinaryRDF(boolean binaryRDF) {
+            fBinaryRDF = binaryRDF;
+            return this;
+        }
+
+        public boolean isCompressRequests() {
+            return fCompressRequests;
+        }
+
+        /**
+         * Gzips graphs sent to the server. Falls back to uncompressed bodies if
+         * the server does not accept them.
+         */
+        public Settings setCompressRequests(boolean compressRequests) {
+            fCompressRequests = compressRequests;
+            return this;
+        }
+
+        public boolean isCompressResponses() {
+            return fCompressResponses;
+        }
+
+        /**
+         * Accepts gzip or deflate compressed responses.
+         */
+        public Settings setCompressResponses(boolean compressResponses) {
+            fCompressResponses = compressResponses;
+            return this;
+        }
+    }
+
+    //================================================================================
+    // Constructors
+    //================================================================================
+    public FusekiConnection(final String dataServerURI, final String sparqlServerURI, final String updateServerURI, final CloseableHttpClient httpClient) {
+        this(dataServerURI, sparqlServerURI, updateServerURI, httpClient, new Settings());
+    }
+
+    public FusekiConnection(final String dataServerURI, final String sparqlServerURI, final String updateServerURI, final CloseableHttpClient httpClient, final Settings settings) {
+        fDataServerURI = dataServerURI;
+        fSparqlServerURI = sparqlServerURI;
+        fUpdateServerURI = updateServerURI;
+        fHttpClient = httpClient;
+        fSettings = settings;
+        fBinaryRDF = settings.isBinaryRDF();
+        fCompressRequests = settings.isCompressRequests();
+    }
+
+    /**
+     * Derives the SPARQL Update endpoint from the SPARQL query endpoint, e.g.
+     * ".../ds/query" becomes ".../ds/update".
+     */
+    public static String deriveUpdateServerURI(final String sparqlServerURI) {
+        for (String suffix : new String[]{"/query", "/sparql"}) {
+            if (sparqlServerURI.endsWith(suffix)) {
+                return sparqlServerURI.substring(0, sparqlServerURI.length() - suffix.length()) + "/update";
+            }
+        }
+        return sparqlServerURI;
+    }
+
+    //================================================================================
+    // Graph Store Protocol
+    //================================================================================
+    /**
+     * Returns the Graph Store Protocol URL of a graph.
+     */
+    public String graphTarget(final String graphURI) {
+        final String separator = fDataServerURI.contains("?") ? "&" : "?";
+        if (graphURI == null) {
+            return fDataServerURI + separator + "default";
+        }
+        return fDataServerURI + separator + "graph=" + IRILib.encodeUriComponent(graphURI);
+    }
+
+    /**
+     * Opens the body of a graph. Returns null if the graph does not exist.
+     * The caller must close the returned stream.
+     */
+    public TypedInputStream getGraph(final String graphURI, final String accept) throws IOException {
+        final HttpGet request = new HttpGet(graphTarget(graphURI));
+        request.setHeader("Accept", accept);
+        return open(request, true);
+    }
+
+    /**
+     * Returns the Accept header for graphs that are parsed by this client.
+     * It prefers RDF Thrift if binary RDF is enabled and line-based text
+     * syntaxes otherwise; the server picks what it supports.
+     */
+    public String getGraphAcceptHeader() {
+        return fBinaryRDF ? BINARY_GRAPH_ACCEPT_HEADER : TEXT_GRAPH_ACCEPT_HEADER;
+    }
+
+    /**
+     * Gets a graph as a Model. Returns null if the graph does not exist.
+     */
+    public Model getModel(final String graphURI) throws IOException {
+        try (TypedInputStream in = getGraph(graphURI, getGraphAcceptHeader())) {
+            if (in == null) {
+                return null;
+            }
+            final Model model = ModelFactory.createDefaultModel();
+            RDFDataMgr.parse(StreamRDFLib.graph(model.getGraph()), in);
+            return model;
+        }
+    }
+
+    /**
+     * Gets a graph with a conditional GET. Returns a not modified result if
+     * the server answers 304 to ifNoneMatch and null if the graph does not
+     * exist. The version tag is the ETag of the response, if any.
+     */
+    public VersionedGraph getVersionedModel(final String graphURI, final String ifNoneMatch) throws IOException {
+        final HttpGet request = new HttpGet(graphTarget(graphURI));
+        request.setHeader("Accept", getGraphAcceptHeader());
+        if (ifNoneMatch != null) {
+            request.setHeader("If-None-Match", ifNoneMatch);
+        }
+        try (CloseableHttpResponse response = execute(request)) {
+            final int status = response.getStatusLine().getStatusCode();
+            if (status == 404) {
+                EntityUtils.consume(response.getEntity());
+                return null;
+            }
+            if (status == 304) {
+                return VersionedGraph.notModified(ifNoneMatch);
+            }
+            checkStatus(response);
+
+            final HttpEntity entity = response.getEntity();
+            final String contentType = entity.getContentType() == null ? null : entity.getContentType().getValue();
+            final Model model = ModelFactory.createDefaultModel();
+            try (TypedInputStream in = new TypedInputStream(entity.getContent(), contentType)) {
+                RDFDataMgr.parse(StreamRDFLib.graph(model.getGraph()), in);
+            }
+            final Header etag = response.getFirstHeader("ETag");
+            return new VersionedGraph(model, etag == null ? null : etag.getValue());
+        }
+    }
+
+    /**
+     * Gets several graphs with one CONSTRUCT query whose template keeps the
+     * graph of each triple, so that the response holds quads. Returns the
+     * graphs that exist, in the order of the given URIs.
+     */
+    public Map<String, Model> getModels(final List<String> graphURIs) throws IOException {
+        final StringBuilder query = new StringBuilder("CONSTRUCT { GRAPH ?g { ?s ?p ?o } } WHERE { VALUES ?g {");
+        for (String graphURI : graphURIs) {
+            query.append(' ').append(FmtUtils.stringForNode(NodeFactory.createURI(graphURI)));
+        }
+        query.append(" } GRAPH ?g { ?s ?p ?o } }");
+
+        final Map<String, Graph> graphs = new HashMap<>();
+        try (TypedInputStream in = query(query.toString(), fBinaryRDF ? BINARY_QUADS_ACCEPT_HEADER : Constants.CT_APPLICATION_NQUADS)) {
+            RDFDataMgr.parse(new StreamRDFBase() {
+                @Override
+                public void quad(final Quad quad) {
+                    graphs.computeIfAbsent(quad.getGraph().getURI(), g -> GraphFactory.createDefaultGraph()).add(quad.asTriple());
+                }
+            }, in);
+        }
+
+        final Map<String, Model> models = new LinkedHashMap<>();
+        for (String graphURI : graphURIs) {
+            final Graph graph = graphs.get(graphURI);
+            if (graph != null) {
+                models.put(graphURI, ModelFactory.createModelForGraph(graph));
+            }
+        }
+        return models;
+    }
+
+    public boolean containsGraph(final String graphURI) throws IOException {
+        final HttpHead request = new HttpHead(graphTarget(graphURI));
+        try (CloseableHttpResponse response = execute(request)) {
+            final int status = response.getStatusLine().getStatusCode();
+            if (status == 404) {
+                return false;
+            }
+            checkStatus(response);
+            return true;
+        }
+    }
+
+    public void putGraph(final String graphURI, final HttpEntity entity) throws IOException {
+        final HttpPut request = new HttpPut(graphTarget(graphURI));
+        send(request, entity);
+    }
+
+    public void postGraph(final String graphURI, final HttpEntity entity) throws IOException {
+        final HttpPost request = new HttpPost(graphTarget(graphURI));
+        send(request, entity);
+    }
+
+    public void putModel(final String graphURI, final Model model) throws IOException {
+        sendModel(HttpPut.METHOD_NAME, graphURI, model);
+    }
+
+    public void postModel(final String graphURI, final Model model) throws IOException {
+        sendModel(HttpPost.METHOD_NAME, graphURI, model);
+    }
+
+    /**
+     * Sends the model with the configured encoding. If the server rejects
+     * RDF Thrift (415) or a gzipped body (415, or 400 with a body that names
+     * the encoding), the model is sent again without one option at a time,
+     * gzip first. An option is not used by this connection any more once a
+     * request without it succeeded. Other 400s, e.g. for invalid RDF, fail
+     * at once.
+     */
+    private void sendModel(final String method, final String graphURI, final Model model) throws IOException {
+        boolean binaryRDF = fBinaryRDF;
+        boolean compress = fCompressRequests;
+
+        while (true) {
+            final HttpEntityEnclosingRequestBase request = HttpPut.METHOD_NAME.equals(method)
+                    ? new HttpPut(graphTarget(graphURI))
+                    : new HttpPost(graphTarget(graphURI));
+            final HttpEntity entity = modelEntity(model, binaryRDF ? RDFFormat.RDF_THRIFT : TEXT_FORMAT);
+            try {
+                send(request, compress ? new GzipCompressingEntity(entity) : entity);
+            } catch (HttpException ex) {
+                if (compress && rejectsContentEncoding(ex)) {
+                    compress = false;
+                } else if (binaryRDF && ex.getResponseCode() == 415) {
+                    // not the gzip then, so try again with it
+                    binaryRDF = false;
+                    compress = fCompressRequests;
+                } else {
+                    throw ex;
+                }
+                continue;
+            }
+
+            if (fBinaryRDF && !binaryRDF) {
+                fBinaryRDF = false;
+                LOGGER.log(Level.INFO, "{0} does not accept RDF Thrift, falling back to text RDF", fDataServerURI);
+            }
+            if (fCompressRequests && !compress) {
+                fCompressRequests = false;
+                LOGGER.log(Level.INFO, "{0} does not accept gzipped requests, falling back to uncompressed", fDataServerURI);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Deletes a graph. Deleting a graph that does not exist is not an error.
+     */
+    public void deleteGraph(final String graphURI) throws IOException {
+        final HttpDelete request = new HttpDelete(graphTarget(graphURI));
+        try (CloseableHttpResponse response = execute(request)) {
+            if (response.getStatusLine().getStatusCode() != 404) {
+                checkStatus(response);
+            }
+            EntityUtils.consume(response.getEntity());
+        }
+    }
+
+    /**
+     * Wraps the RDF read from the input stream as a request body, unparsed.
+     */
+    public static HttpEntity streamEntity(final InputStream inStream, final String contentType) {
+        return new InputStreamEntity(inStream, -1, ContentType.parse(contentType));
+    }
+
+    /**
+     * Serializes the model as a request body. The model is written while the
+     * request is sent, without an intermediate buffer.
+     */
+    public static HttpEntity modelEntity(final Model model, final RDFFormat format) {
+        final EntityTemplate entity = new EntityTemplate(new ContentProducer() {
+            @Override
+            public void writeTo(OutputStream outStream) throws IOException {
+                RDFDataMgr.write(outStream, model, format);
+            }
+        });
+        entity.setContentType(format.getLang().getContentType().getContentType());
+        return entity;
+    }
+
+    //================================================================================
+    // SPARQL Protocol
+    //================================================================================
+    /**
+     * Posts a query to the SPARQL endpoint and opens the response body. The
+     * caller must close the returned stream.
+     */
+    public TypedInputStream query(final String queryString, final String accept) throws IOException {
+        final List<NameValuePair> params = new ArrayList<>();
+        params.add(new BasicNameValuePair("query", queryString));
+
+        final HttpPost request = new HttpPost(fSparqlServerURI);
+        request.setHeader("Accept", accept);
+        request.setEntity(new UrlEncodedFormEntity(params, "UTF-8"));
+        return open(request, false);
+    }
+
+    public boolean ask(final String queryString) throws IOException {
+        try (TypedInputStream in = query(queryString, Constants.CT_APPLICATION_SPARQLRESULTS_JSON)) {
+            return JSONInput.booleanFromJSON(in);
+        }
+    }
+
+    public void update(final String updateString) throws IOException {
+        final HttpPost request = new HttpPost(fUpdateServerURI);
+        send(request, new StringEntity(updateString, ContentType.create(WebContent.contentTypeSPARQLUpdate, "UTF-8")));
+    }
+
+    //================================================================================
+    // Helpers
+    //================================================================================
+    /**
+     * Executes the request and opens the response body. Returns null for a
+     * 404 response if notFoundAsNull is set.
+     */
+    private TypedInputStream open(final HttpUriRequest request, final boolean notFoundAsNull) throws IOException {
+        final CloseableHttpResponse response = execute(request);
+        try {
+            if (notFoundAsNull && response.getStatusLine().getStatusCode() == 404) {
+                EntityUtils.consume(response.getEntity());
+                response.close();
+                return null;
+            }
+            checkStatus(response);
+
+            final HttpEntity entity = response.getEntity();
+            final String contentType = entity.getContentType() == null ? null : entity.getContentType().getValue();
+            return new TypedInputStream(entity.getContent(), contentType) {
+                @Override
+                public void close() {
+                    try {
+                        super.close();
+                    } finally {
+                        try {
+                            response.close();
+                        } catch (IOException ex) {
+                            // connection is discarded anyway
+                        }
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException ex) {
+            response.close();
+            throw ex;
+        }
+    }
+
+    private void send(final HttpEntityEnclosingRequestBase request, final HttpEntity entity) throws IOException {
+        request.setEntity(entity);
+        try (CloseableHttpResponse response = execute(request)) {
+            checkStatus(response);
+            EntityUtils.consume(response.getEntity());
+        }
+    }
+
+    /**
+     * Returns whether the server refused a request because of its
+     * Content-Encoding: a 415, or a 400 whose body says so.
+     */
+    private static boolean rejectsContentEncoding(final HttpException ex) {
+        final int status = ex.getResponseCode();
+        if (status == 415) {
+            return true;
+        }
+        final String body = ex.getResponse() == null ? "" : ex.getResponse().toLowerCase(Locale.ROOT);
+        return status == 400 && (body.contains("encoding") || body.contains("gzip"));
+    }
+
+    /**
+     * Executes a request with the headers of the connection settings. Every
+     * request of the connection goes through here.
+     */
+    private CloseableHttpResponse execute(final HttpUriRequest request) throws IOException {
+        if (!fSettings.isCompressResponses()) {
+            request.setHeader("Accept-Encoding", "identity");
+        }
+        return fHttpClient.execute(request);
+    }
+
+    /**
+     * Returns whether a failure is caused by the server or the network
+     * rather than by the request, which fails on every server alike.
+     */
+    static boolean isServerFault(final Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof HttpException) {
+                final int status = ((HttpException) cause).getResponseCode();
+                return status < 400 || status >= 500 || status == 408 || status == 429;
+            }
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void checkStatus(final CloseableHttpResponse response) throws IOException {
+        final int status = response.getStatusLine().getStatusCode();
+        if (status >= 200 && status < 300) {
+            return;
+        }
+        final String body = response.getEntity() == null ? null : EntityUtils.toString(response.getEntity());
+        throw new HttpException(status, response.getStatusLine().toString(), body);
+    }
+
+    //================================================================================
+    // Getters
+    //================================================================================
+    public String getDataServerURI() {
+        return fDataServerURI;
+    }
+
+    public String getSparqlServerURI() {
+        return fSparqlServerURI;
+    }
+
+    public String getUpdateServerURI() {
+        return fUpdateServerURI;
+    }
+
+    public CloseableHttpClient getHttpClient() {
+        return fHttpClient;
+    }
+
+    public Settings getSettings() {
+        return fSettings;
+    }
+
+    //================================================================================
+    // Member variables
+    //================================================================================
+    private static final Logger LOGGER = Logger.getLogger(FusekiConnection.class.getName());
+
+    private static final RDFFormat TEXT_FORMAT = RDFFormat.TURTLE_BLOCKS;
+
+    private static final String TEXT_GRAPH_ACCEPT_HEADER
+            = Constants.CT_APPLICATION_NTRIPLES + ", " + Constants.CT_TEXT_TURTLE + ";q=0.9, "
+            + Constants.CT_APPLICATION_RDFXML + ";q=0.5, */*;q=0.1";
+    private static final String BINARY_GRAPH_ACCEPT_HEADER
+            = Constants.CT_APPLICATION_RDF_THRIFT + ", " + TEXT_GRAPH_ACCEPT_HEADER.replace("n-triples,", "n-triples;q=0.95,");
+
+    private static final String BINARY_QUADS_ACCEPT_HEADER
+            = Constants.CT_APPLICATION_RDF_THRIFT + ", " + Constants.CT_APPLICATION_NQUADS + ";q=0.9";
+
+    private final String fDataServerURI;
+    private final String fSparqlServerURI;
+    private final String fUpdateServerURI;
+    private final CloseableHttpClient fHttpClient;
+    private final Settings fSettings;
+    private volatile boolean fBinaryRDF;
+    private volatile boolean fCompressRequests;
+}
@@ -5,11 +5,53 @@
  */
 package de.dfki.resc28.igraphstore.jena;
 
+import de.dfki.resc28.igraphstore.util.HttpConnectionPool;
+import de.dfki.resc28.igraphstore.util.PagedIterator;
 import de.dfki.resc28.igraphstore.util.ProxyConfigurator;
-import org.apache.jena.query.DatasetAccessorFactory;
+import de.dfki.resc28.igraphstore.util.RDFStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import org.apache.commons.io.IOUtils;
+import org.apache.jena.atlas.web.TypedInputStream;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.query.ResultSetFactory;
+import org.apache.jena.query.ResultSetFormatter;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.WebContent;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.sparql.modify.request.QuadDataAcc;
+import org.apache.jena.sparql.modify.request.Target;
+import org.apache.jena.sparql.modify.request.UpdateClear;
+import org.apache.jena.sparql.modify.request.UpdateDataDelete;
+import org.apache.jena.sparql.modify.request.UpdateDataInsert;
+import org.apache.jena.sparql.modify.request.UpdateDrop;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+import org.apache.jena.sparql.util.FmtUtils;
+import org.apache.jena.update.Update;
+import org.apache.jena.update.UpdateRequest;
+import org.apache.jena.util.iterator.ExtendedIterator;
 
-import de.dfki.resc28.igraphstore.IGraphStore;
+import de.dfki.resc28.igraphstore.CloseableIterator;
+import de.dfki.resc28.igraphstore.Constants;
+import de.dfki.resc28.igraphstore.GraphBatch;
+import de.dfki.resc28.igraphstore.GraphStats;
+import de.dfki.resc28.igraphstore.IVersionedGraphStore;
+import de.dfki.resc28.igraphstore.VersionedGraph;
 
 /**
  * @author resc01
@@ -19,7 +61,7 @@ import de.dfki.resc28.igraphstore.IGraphStore;
  * An RDF-Dataset is a collection of named graphs and a background graph (also
  * called the default or unnamed graph).
  */
-public class FusekiGraphStore implements IGraphStore {
+public class FusekiGraphStore implements IVersionedGraphStore {
 
     static {
         ProxyConfigurator.initHttpClient();
@@ -28,9 +70,66 @@ public class FusekiGraphStore implements IGraphStore {
     //================================================================================
     // Constructors
     //================================================================================
+    /**
+     * Constructs a FusekiGraphStore whose SPARQL Update endpoint is derived
+     * from the SPARQL query endpoint, e.g. ".../ds/query" becomes
+     * ".../ds/update".
+     * @param dataServerURI
+     * @param sparqlServerURI
+     */
     public FusekiGraphStore(final String dataServerURI, final String sparqlServerURI) {
+        this(dataServerURI, sparqlServerURI, FusekiConnection.deriveUpdateServerURI(sparqlServerURI));
+    }
+
+    /**
+     * Constructs a FusekiGraphStore that uses the shared default connection
+     * pool.
+     * @param dataServerURI
+     * @param sparqlServerURI
+     * @param updateServerURI
+     */
+    public FusekiGraphStore(final String dataServerURI, final String sparqlServerURI, final String updateServerURI) {
+        this(dataServerURI, sparqlServerURI, updateServerURI, HttpConnectionPool.getDefault());
+    }
+
+    /**
+     * Constructs a FusekiGraphStore that sends all requests through the given
+     * connection pool. The pool is owned by the caller, who closes it once
+     * the store is no longer used.
+     * @param dataServerURI
+     * @param sparqlServerURI
+     * @param updateServerURI
+     * @param connectionPool
+     */
+    public FusekiGraphStore(final String dataServerURI, final String sparqlServerURI, final String updateServerURI, final HttpConnectionPool connectionPool) {
+        this(dataServerURI, sparqlServerURI, updateServerURI, connectionPool, new FusekiConnection.Settings());
+    }
+
+    /**
+     * Constructs a FusekiGraphStore that sends all requests through the given
+     * connection pool and encodes graphs as configured, e.g. as gzipped RDF
+     * Thrift.
+     * @param dataServerURI
+     * @param sparqlServerURI
+     * @param updateServerURI
+     * @param connectionPool
+     * @param transportSettings
+     */
+    public FusekiGraphStore(final String dataServerURI, final String sparqlServerURI, final String updateServerURI, final HttpConnectionPool connectionPool, final FusekiConnection.Settings transportSettings) {
         fDataServerURI = dataServerURI;
         fSparqlServerURI = sparqlServerURI;
+        fUpdateServerURI = updateServerURI;
+        fConnectionPool = connectionPool;
+        fConnection = new FusekiConnection(dataServerURI, sparqlServerURI, updateServerURI, connectionPool.getHttpClient(), transportSettings);
+    }
+
+    /**
+     * Returns the connection pool of this store, e.g. to monitor its
+     * statistics with {@link HttpConnectionPool#getStats()}.
+     * @return
+     */
+    public HttpConnectionPool getConnectionPool() {
+        return fConnectionPool;
     }
 
     //================================================================================
@@ -43,7 +142,7 @@ public class FusekiGraphStore implements IGraphStore {
     @Override
     public Model getDefaultGraph() {
         try {
-            return DatasetAccessorFactory.createHTTP(fDataServerURI).getModel();
+            return fConnection.getModel(null);
         } catch (Exception ex) {
             throw new RuntimeException("Could not get default graph at URI: " + fDataServerURI, ex);
         }
@@ -56,7 +155,7 @@ public class FusekiGraphStore implements IGraphStore {
     @Override
     public void replaceDefaultGraph(final Model model) {
         try {
-            DatasetAccessorFactory.createHTTP(fDataServerURI).putModel(model);
+            fConnection.putModel(null, model);
         } catch (Exception ex) {
             throw new RuntimeException("Could not replace default graph at URI: " + fDataServerURI, ex);
         }
@@ -70,7 +169,7 @@ public class FusekiGraphStore implements IGraphStore {
     @Override
     public void addToDefaultGraph(Model model) {
         try {
-            DatasetAccessorFactory.createHTTP(fDataServerURI).add(model);
+            fConnection.postModel(null, model);
         } catch (Exception ex) {
             throw new RuntimeException("Could not add model to default graph at URI: " + fDataServerURI, ex);
         }
@@ -82,7 +181,7 @@ public class FusekiGraphStore implements IGraphStore {
     @Override
     public void clearDefaultGraph() {
         try {
-            DatasetAccessorFactory.createHTTP(fDataServerURI).deleteDefault();
+            fConnection.deleteGraph(null);
         } catch (Exception ex) {
             throw new RuntimeException("Could not clear default graph at URI: " + fDataServerURI, ex);
         }
@@ -98,7 +197,7 @@ public class FusekiGraphStore implements IGraphStore {
     @Override
     public boolean containsNamedGraph(final String graphURI) {
         try {
-            return DatasetAccessorFactory.createHTTP(fDataServerURI).containsModel(graphURI);
+            return fConnection.containsGraph(graphURI);
         } catch (Exception ex) {
             throw new RuntimeException("Could not check if named graph " + graphURI + " contained at URI: " + fDataServerURI, ex);
         }
@@ -113,7 +212,73 @@ public class FusekiGraphStore implements IGraphStore {
     @Override
     public Model getNamedGraph(final String graphURI) {
         try {
-            return DatasetAccessorFactory.createHTTP(fDataServerURI).getModel(graphURI);
+            return fConnection.getModel(graphURI);
+        } catch (Exception ex) {
+            throw new RuntimeException("Could not get named graph " + graphURI + " at URI: " + fDataServerURI, ex);
+        }
+    }
+
+    /**
+     * Gets the graphs in batches of GRAPH_BATCH_SIZE graphs, each with a
+     * single CONSTRUCT request that returns quads. The next batch is
+     * requested once the graphs of the previous one are consumed.
+     * @param graphURIs
+     * @return
+     */
+    @Override
+    public CloseableIterator<Map.Entry<String, Model>> getNamedGraphs(final Collection<String> graphURIs) {
+        final List<String> uris = new ArrayList<>(new LinkedHashSet<>(graphURIs));
+        return new CloseableIterator<Map.Entry<String, Model>>() {
+            private int fOffset = 0;
+            private Iterator<Map.Entry<String, Model>> fBatch = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!fBatch.hasNext() && fOffset < uris.size()) {
+                    final List<String> batch = uris.subList(fOffset, Math.min(fOffset + GRAPH_BATCH_SIZE, uris.size()));
+                    fOffset += batch.size();
+                    try {
+                        fBatch = fConnection.getModels(batch).entrySet().iterator();
+                    } catch (Exception ex) {
+                        close();
+                        throw new RuntimeException("Could not get named graphs at URI: " + fSparqlServerURI, ex);
+                    }
+                }
+                return fBatch.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, Model> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return fBatch.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+                fOffset = uris.size();
+                fBatch = Collections.emptyIterator();
+            }
+        };
+    }
+
+    /**
+     * Gets a graph with a conditional GET, so that a graph whose ETag still
+     * matches costs a 304 response instead of a full transfer.
+     * @param graphURI
+     * @param ifNoneMatch
+     * @return
+     */
+    @Override
+    public VersionedGraph getVersionedGraph(final String graphURI, final String ifNoneMatch) {
+        try {
+            return fConnection.getVersionedModel(graphURI, ifNoneMatch);
         } catch (Exception ex) {
             throw new RuntimeException("Could not get named graph " + graphURI + " at URI: " + fDataServerURI, ex);
         }
@@ -126,7 +291,7 @@ public class FusekiGraphStore implements IGraphStore {
     @Override
     public void deleteNamedGraph(final String graphURI) {
         try {
-            DatasetAccessorFactory.createHTTP(fDataServerURI).deleteModel(graphURI);
+            fConnection.deleteGraph(graphURI);
         } catch (Exception ex) {
             throw new RuntimeException("Could not delete default graph at URI: " + fDataServerURI, ex);
         }
@@ -140,7 +305,7 @@ public class FusekiGraphStore implements IGraphStore {
     @Override
     public void replaceNamedGraph(final String graphURI, final Model model) {
         try {
-            DatasetAccessorFactory.createHTTP(fDataServerURI).putModel(graphURI, model);
+            fConnection.putModel(graphURI, model);
         } catch (Exception ex) {
             throw new RuntimeException("Could not replace named graph " + graphURI + " at URI: " + fDataServerURI, ex);
         }
@@ -155,7 +320,7 @@ public class FusekiGraphStore implements IGraphStore {
     @Override
     public void addToNamedGraph(String graphURI, Model model) {
         try {
-            DatasetAccessorFactory.createHTTP(fDataServerURI).add(graphURI, model);
+            fConnection.postModel(graphURI, model);
         } catch (Exception ex) {
             throw new RuntimeException("Could not add model to named graph " + graphURI + " at URI: " + fDataServerURI, ex);
         }
@@ -169,18 +334,527 @@ public class FusekiGraphStore implements IGraphStore {
     @Override
     public void createNamedGraph(final String graphURI, final Model model) {
         try {
-            DatasetAccessorFactory.createHTTP(fDataServerURI).putModel(graphURI, model);
+            fConnection.putModel(graphURI, model);
         } catch (Exception ex) {
             throw new RuntimeException("Could not create named graph " + graphURI + " at URI: " + fDataServerURI, ex);
         }
     }
 
+    /**
+     * Replaces a named graph in the RDF-Dataset by the RDF read from the input
+     * stream. The bytes are sent to the graph store unparsed.
+     * @param graphURI
+     * @param inStream
+     * @param contentType
+     */
+    @Override
+    public void replaceNamedGraph(final String graphURI, final InputStream inStream, final String contentType) {
+        RDFStreams.toLang(contentType);
+        try {
+            fConnection.putGraph(graphURI, FusekiConnection.streamEntity(inStream, contentType));
+        } catch (Exception ex) {
+            throw new RuntimeException("Could not replace named graph " + graphURI + " at URI: " + fDataServerURI, ex);
+        }
+    }
+
+    /**
+     * Adds the RDF read from the input stream to the named graph in the
+     * RDF-Dataset. The bytes are sent to the graph store unparsed.
+     * @param graphURI
+     * @param inStream
+     * @param contentType
+     */
+    @Override
+    public void addToNamedGraph(final String graphURI, final InputStream inStream, final String contentType) {
+        RDFStreams.toLang(contentType);
+        try {
+            fConnection.postGraph(graphURI, FusekiConnection.streamEntity(inStream, contentType));
+        } catch (Exception ex) {
+            throw new RuntimeException("Could not add to named graph " + graphURI + " at URI: " + fDataServerURI, ex);
+        }
+    }
+
+    /**
+     * Writes a named graph to the output stream in the given RDF content type.
+     * The response body of the graph store is copied unparsed.
+     * @param graphURI
+     * @param outStream
+     * @param contentType
+     */
+    @Override
+    public void writeNamedGraph(final String graphURI, final OutputStream outStream, final String contentType) {
+        RDFStreams.toLang(contentType);
+        try (TypedInputStream in = fConnection.getGraph(graphURI, contentType)) {
+            if (in == null) {
+                RDFStreams.writeTriples(outStream, Collections.<Triple>emptyIterator(), contentType);
+            } else {
+                IOUtils.copy(in, outStream);
+            }
+            outStream.flush();
+        } catch (Exception ex) {
+            throw new RuntimeException("Could not write named graph " + graphURI + " at URI: " + fDataServerURI, ex);
+        }
+    }
+
+    /**
+     * Sends the triples of a named graph to the sink. The response body of the
+     * graph store is parsed as it arrives, no Model is built.
+     * @param graphURI
+     * @param sink
+     */
+    @Override
+    public void streamNamedGraph(final String graphURI, final StreamRDF sink) {
+        try (TypedInputStream in = fConnection.getGraph(graphURI, fConnection.getGraphAcceptHeader())) {
+            if (in == null) {
+                sink.start();
+                sink.finish();
+            } else {
+                RDFDataMgr.parse(sink, in);
+            }
+        } catch (Exception ex) {
+            throw new RuntimeException("Could not stream named graph " + graphURI + " at URI: " + fDataServerURI, ex);
+        }
+    }
+
+    /**
+     * Finds the triples of a named graph that match the given pattern. The
+     * pattern is evaluated at the SPARQL endpoint and fetched lazily in pages
+     * of {@value #FIND_PAGE_SIZE} triples.
+     * @param graphURI
+     * @param s
+     * @param p
+     * @param o
+     * @return
+     */
+    @Override
+    public CloseableIterator<Triple> find(final String graphURI, final Node s, final Node p, final Node o) {
+        return new PagedFindIterator(fConnection, graphURI, s, p, o, FIND_PAGE_SIZE);
+    }
+
+    //================================================================================
+    // Catalog-related Methods
+    //================================================================================
+    /**
+     * Lists the named graphs page by page with SELECT queries ordered by
+     * URI, each resuming after the last URI of the previous one.
+     * @return
+     */
+    @Override
+    public CloseableIterator<String> listNamedGraphs() {
+        return new PagedIterator<String>(GRAPH_PAGE_SIZE) {
+            @Override
+            protected List<String> fetch(final String after, final int limit) {
+                final String filter = (after == null) ? "isIRI(?g)"
+                        : "isIRI(?g) && STR(?g) > " + FmtUtils.stringForNode(NodeFactory.createLiteral(after));
+                final List<String> graphs = new ArrayList<>();
+                for (QuerySolution solution : selectRows("SELECT ?g WHERE { GRAPH ?g { } FILTER(" + filter + ") } ORDER BY STR(?g) LIMIT " + limit)) {
+                    graphs.add(solution.getResource("g").getURI());
+                }
+                return graphs;
+            }
+        };
+    }
+
+    /**
+     * Counts the triples of a graph with a SELECT COUNT query.
+     * @param graphURI
+     * @return
+     */
+    @Override
+    public long graphSize(final String graphURI) {
+        final String query = "SELECT (COUNT(*) AS ?triples) WHERE { " + graphPattern(graphURI, "?s ?p ?o") + " }";
+        return selectRows(query).get(0).getLiteral("triples").getLong();
+    }
+
+    /**
+     * Computes the statistics of a graph with a single SELECT query of
+     * COUNT aggregates. Fuseki does not record when a graph was changed,
+     * so the time of the last change is unknown.
+     * @param graphURI
+     * @return
+     */
+    @Override
+    public GraphStats getGraphStats(final String graphURI) {
+        final String query = "SELECT (COUNT(*) AS ?triples) (COUNT(DISTINCT ?s) AS ?subjects) (COUNT(DISTINCT ?p) AS ?predicates) WHERE { "
+                + graphPattern(graphURI, "?s ?p ?o") + " }";
+        final QuerySolution solution = selectRows(query).get(0);
+        final long triples = solution.getLiteral("triples").getLong();
+        if (triples == 0 && graphURI != null && !containsNamedGraph(graphURI)) {
+            return null;
+        }
+        return new GraphStats(graphURI, triples, solution.getLiteral("subjects").getLong(),
+                solution.getLiteral("predicates").getLong(), GraphStats.UNKNOWN);
+    }
+
+    private static String graphPattern(final String graphURI, final String pattern) {
+        if (graphURI == null) {
+            return pattern;
+        }
+        return "GRAPH " + FmtUtils.stringForNode(NodeFactory.createURI(graphURI)) + " { " + pattern + " }";
+    }
+
+    /**
+     * Evaluates a SELECT query and reads all of its rows.
+     */
+    private List<QuerySolution> selectRows(final String queryString) {
+        try (TypedInputStream in = fConnection.query(queryString, Constants.CT_APPLICATION_SPARQLRESULTS_XML)) {
+            final List<QuerySolution> rows = new ArrayList<>();
+            ResultSetFactory.fromXML(in).forEachRemaining(rows::add);
+            return rows;
+        } catch (Exception ex) {
+            throw new RuntimeException("Could not evaluate SELECT query at URI: " + fSparqlServerURI, ex);
+        }
+    }
+
+    //================================================================================
+    // Delta-related Methods
+    //================================================================================
+    /**
+     * Removes the removals from and adds the additions to a graph with a
+     * single DELETE DATA/INSERT DATA SPARQL Update request.
+     * @param graphURI
+     * @param additions
+     * @param removals
+     */
+    @Override
+    public void patch(final String graphURI, final Model additions, final Model removals) {
+        final UpdateRequest request = new UpdateRequest();
+        addPatch(request, graphURI == null ? Quad.defaultGraphNodeGenerated : NodeFactory.createURI(graphURI), additions, removals);
+        if (request.getOperations().isEmpty()) {
+            return;
+        }
+
+        try {
+            fConnection.update(request.toString());
+        } catch (Exception ex) {
+            throw new RuntimeException("Could not patch graph " + graphURI + " at URI: " + fUpdateServerURI, ex);
+        }
+    }
+
+    //================================================================================
+    // Batch-related Methods
+    //================================================================================
+    /**
+     * Applies all operations of the batch as a single SPARQL Update request,
+     * which Fuseki executes in one transaction.
+     * @param batch
+     */
+    @Override
+    public void apply(final GraphBatch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        final UpdateRequest request = new UpdateRequest();
+        for (GraphBatch.Operation operation : batch) {
+            final Node graphName = operation.isDefaultGraph()
+                    ? Quad.defaultGraphNodeGenerated
+                    : NodeFactory.createURI(operation.getGraphURI());
+
+            switch (operation.getType()) {
+                case CREATE:
+                case REPLACE:
+                    request.add(dropGraph(operation));
+                    request.add(insertData(graphName, operation.getModel()));
+                    break;
+                case ADD:
+                    request.add(insertData(graphName, operation.getModel()));
+                    break;
+                case DELETE:
+                    request.add(dropGraph(operation));
+                    break;
+                case PATCH:
+                    addPatch(request, graphName, operation.getModel(), operation.getRemovals());
+                    break;
+            }
+        }
+
+        try {
+            fConnection.update(request.toString());
+        } catch (Exception ex) {
+            throw new RuntimeException("Could not apply batch of " + batch.size() + " operations at URI: " + fUpdateServerURI, ex);
+        }
+    }
+
+    private static Update dropGraph(final GraphBatch.Operation operation) {
+        return operation.isDefaultGraph()
+                ? new UpdateClear(Target.DEFAULT, true)
+                : new UpdateDrop(NodeFactory.createURI(operation.getGraphURI()), true);
+    }
+
+    private static Update insertData(final Node graphName, final Model model) {
+        return new UpdateDataInsert(new QuadDataAcc(toQuads(graphName, model)));
+    }
+
+    /**
+     * Adds a DELETE DATA and an INSERT DATA operation for the delta.
+     * DELETE DATA must not contain blank nodes, so removals with blank nodes
+     * are rejected.
+     */
+    private static void addPatch(final UpdateRequest request, final Node graphName, final Model additions, final Model removals) {
+        if (removals != null && !removals.isEmpty()) {
+            final List<Quad> quads = toQuads(graphName, removals);
+            for (Quad quad : quads) {
+                if (quad.getSubject().isBlank() || quad.getObject().isBlank()) {
+                    throw new IllegalArgumentException("Statements with blank nodes cannot be removed remotely: " + quad);
+                }
+            }
+            request.add(new UpdateDataDelete(new QuadDataAcc(quads)));
+        }
+        if (additions != null && !additions.isEmpty()) {
+            request.add(insertData(graphName, additions));
+        }
+    }
+
+    private static List<Quad> toQuads(final Node graphName, final Model model) {
+        final List<Quad> quads = new ArrayList<>();
+        final ExtendedIterator<Triple> triples = model.getGraph().find(Node.ANY, Node.ANY, Node.ANY);
+        try {
+            while (triples.hasNext()) {
+                quads.add(new Quad(graphName, triples.next()));
+            }
+        } finally {
+            triples.close();
+        }
+        return quads;
+    }
+
     //================================================================================
     // Query-related Methods
     //================================================================================
+    /**
+     * Evaluates a SPARQL ASK query at the SPARQL endpoint.
+     * @param queryString
+     * @return
+     */
+    @Override
+    public boolean ask(final String queryString) {
+        try {
+            return fConnection.ask(queryString);
+        } catch (Exception ex) {
+            throw new RuntimeException("Could not evaluate ASK query at URI: " + fSparqlServerURI, ex);
+        }
+    }
+
+    /**
+     * Streams the results of a SPARQL SELECT query as SPARQL results in JSON.
+     * @param outStream
+     * @param queryString
+     */
+    @Override
+    public void select(final OutputStream outStream, final String queryString) {
+        select(outStream, queryString, Constants.CT_APPLICATION_SPARQLRESULTS_JSON);
+    }
+
+    /**
+     * Streams the results of a SPARQL SELECT query in the given result format.
+     * The response body of the SPARQL endpoint is copied unparsed, except for
+     * formats Fuseki does not produce (SSE), which are re-encoded on the fly.
+     * @param outStream
+     * @param queryString
+     * @param contentType
+     */
+    @Override
+    public void select(final OutputStream outStream, final String queryString, final String contentType) {
+        final ResultsFormat format = RDFStreams.toResultsFormat(contentType);
+        try {
+            if (format == ResultsFormat.FMT_RS_JSON || format == ResultsFormat.FMT_RS_XML || format == ResultsFormat.FMT_RS_THRIFT) {
+                forwardQuery(outStream, queryString, contentType);
+            } else if (format == ResultsFormat.FMT_RS_CSV) {
+                forwardQuery(outStream, queryString, WebContent.contentTypeTextCSV + ", " + contentType);
+            } else if (format == ResultsFormat.FMT_RS_TSV) {
+                forwardQuery(outStream, queryString, WebContent.contentTypeTextTSV + ", " + contentType);
+            } else {
+                // Fuseki does not produce this format, re-encode XML results while they are read
+                try (TypedInputStream in = fConnection.query(queryString, Constants.CT_APPLICATION_SPARQLRESULTS_XML)) {
+                    ResultSetFormatter.output(outStream, ResultSetFactory.fromXML(in), format);
+                }
+                outStream.flush();
+            }
+        } catch (Exception ex) {
+            throw new RuntimeException("Could not evaluate SELECT query at URI: " + fSparqlServerURI, ex);
+        }
+    }
+
+    /**
+     * Streams the triples of a SPARQL CONSTRUCT query in the given RDF content
+     * type. The response body of the SPARQL endpoint is copied unparsed.
+     * @param outStream
+     * @param queryString
+     * @param contentType
+     */
+    @Override
+    public void construct(final OutputStream outStream, final String queryString, final String contentType) {
+        RDFStreams.toLang(contentType);
+        try {
+            forwardQuery(outStream, queryString, contentType);
+        } catch (Exception ex) {
+            throw new RuntimeException("Could not evaluate CONSTRUCT query at URI: " + fSparqlServerURI, ex);
+        }
+    }
+
+    /**
+     * Streams the triples of a SPARQL DESCRIBE query in the given RDF content
+     * type. The response body of the SPARQL endpoint is copied unparsed.
+     * @param outStream
+     * @param queryString
+     * @param contentType
+     */
+    @Override
+    public void describe(final OutputStream outStream, final String queryString, final String contentType) {
+        RDFStreams.toLang(contentType);
+        try {
+            forwardQuery(outStream, queryString, contentType);
+        } catch (Exception ex) {
+            throw new RuntimeException("Could not evaluate DESCRIBE query at URI: " + fSparqlServerURI, ex);
+        }
+    }
+
+    /**
+     * Posts the query to the SPARQL endpoint and copies the response body to
+     * the output stream.
+     */
+    private void forwardQuery(final OutputStream outStream, final String queryString, final String accept) throws IOException {
+        try (TypedInputStream in = fConnection.query(queryString, accept)) {
+            IOUtils.copy(in, outStream);
+        }
+        outStream.flush();
+    }
+
+    //================================================================================
+    // Helper classes
+    //================================================================================
+    /**
+     * Iterates the solutions of a triple pattern query page by page. Each page
+     * is a separate SELECT with LIMIT/OFFSET; the solutions are ordered so that
+     * pages do not overlap. A page is parsed as it is read from the response.
+     */
+    private static class PagedFindIterator implements CloseableIterator<Triple> {
+
+        private final FusekiConnection fConnection;
+        private final String fQueryPrefix;
+        private final Node fS, fP, fO;
+        private final int fPageSize;
+
+        private long fOffset = 0;
+        private int fPageCount = 0;
+        private TypedInputStream fPage = null;
+        private ResultSet fResults = null;
+        private boolean fClosed = false;
+
+        PagedFindIterator(final FusekiConnection connection, final String graphURI, final Node s, final Node p, final Node o, final int pageSize) {
+            fConnection = connection;
+            fS = s;
+            fP = p;
+            fO = o;
+            fPageSize = pageSize;
+
+            final StringBuilder query = new StringBuilder("SELECT * WHERE { GRAPH ");
+            query.append(FmtUtils.stringForNode(NodeFactory.createURI(graphURI))).append(" { ");
+            query.append(patternTerm(s, "s")).append(' ');
+            query.append(patternTerm(p, "p")).append(' ');
+            query.append(patternTerm(o, "o")).append(" } }");
+            final String order = (isVariable(s) ? " ?s" : "") + (isVariable(p) ? " ?p" : "") + (isVariable(o) ? " ?o" : "");
+            if (!order.isEmpty()) {
+                query.append(" ORDER BY").append(order);
+            }
+            fQueryPrefix = query.toString();
+        }
+
+        private static boolean isVariable(final Node node) {
+            return node == null || Node.ANY.equals(node);
+        }
+
+        private static String patternTerm(final Node node, final String var) {
+            if (isVariable(node)) {
+                return "?" + var;
+            }
+            if (node.isBlank()) {
+                throw new IllegalArgumentException("Blank nodes cannot be matched remotely: " + node);
+            }
+            return FmtUtils.stringForNode(node);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (fClosed) {
+                return false;
+            }
+            if (fResults != null && fResults.hasNext()) {
+                return true;
+            }
+            if (fResults != null && fPageCount < fPageSize) {
+                close();
+                return false;
+            }
+            nextPage();
+            return hasNext();
+        }
+
+        private void nextPage() {
+            if (fPage != null) {
+                fPage.close();
+            }
+            final String query = fQueryPrefix + " LIMIT " + fPageSize + " OFFSET " + fOffset;
+            try {
+                fPage = fConnection.query(query, Constants.CT_APPLICATION_SPARQLRESULTS_XML);
+                fResults = ResultSetFactory.fromXML(fPage);
+            } catch (IOException | RuntimeException ex) {
+                close();
+                throw new RuntimeException("Could not evaluate triple pattern at URI: " + fConnection.getSparqlServerURI(), ex);
+            }
+            fOffset += fPageSize;
+            fPageCount = 0;
+        }
+
+        @Override
+        public Triple next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final QuerySolution solution = fResults.next();
+            fPageCount++;
+            return Triple.create(
+                    isVariable(fS) ? solution.get("s").asNode() : fS,
+                    isVariable(fP) ? solution.get("p").asNode() : fP,
+                    isVariable(fO) ? solution.get("o").asNode() : fO);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            if (!fClosed) {
+                fClosed = true;
+                if (fPage != null) {
+                    fPage.close();
+                }
+            }
+        }
+    }
+
     //================================================================================
     // Member variables
     //================================================================================
+    /**
+     * Number of triples fetched per request by {@link #find}.
+     */
+    private static final int FIND_PAGE_SIZE = 10000;
+    /**
+     * Number of graph URIs fetched per request by {@link #listNamedGraphs}.
+     */
+    private static final int GRAPH_PAGE_SIZE = 1000;
+    /**
+     * Number of graphs fetched per request by {@link #getNamedGraphs}.
+     */
+    private static final int GRAPH_BATCH_SIZE = 100;
+
     private final String fDataServerURI;
     private final String fSparqlServerURI;
+    private final String fUpdateServerURI;
+    private final HttpConnectionPool fConnectionPool;
+    private final FusekiConnection fConnection;
 }
@@ -0,0 +1,418 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.jena;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.ReadWrite;
+
+import de.dfki.resc28.igraphstore.metrics.MetricsRegistry;
+
+/**
+ * @author resc01
+ *
+ * Merges the writes of concurrent callers into one write transaction, so
+ * that they share a single commit and journal sync.
+ *
+ * A writer thread takes the queued writes, waits at most maxDelay for more
+ * until maxBatchSize writes are collected, runs them in one transaction and
+ * commits. Each caller blocks until the commit that holds its write. If a
+ * write fails, the transaction is aborted, the failure is reported to that
+ * caller only and the remaining writes are run again without it.
+ *
+ * Enabled by constructing a TDBGraphStore with {@link Settings}.
+ */
+public class GroupCommitter
+{
+	/**
+	 * Size and latency of the groups.
+	 */
+	public static class Settings
+	{
+		private int fMaxBatchSize = 1000;
+		private long fMaxDelay = 2;
+
+		public int getMaxBatchSize()
+		{
+			return fMaxBatchSize;
+		}
+
+		/**
+		 * Maximum number of writes committed together.
+		 */
+		public Settings setMaxBatchSize(int maxBatchSize)
+		{
+			fMaxBatchSize = maxBatchSize;
+			return this;
+		}
+
+		public long getMaxDelay()
+		{
+			return fMaxDelay;
+		}
+
+		/**
+		 * Maximum time in milliseconds the first write of a group waits for
+		 * further writes. Zero commits whatever is queued at once.
+		 */
+		public Settings setMaxDelay(long maxDelay)
+		{
+			fMaxDelay = maxDelay;
+			return this;
+		}
+	}
+
+	//================================================================================
+	// Constructors
+	//================================================================================
+
+	/**
+	 * The transaction lock is held around each group's transaction, so
+	 * that the store can keep transactions out, e.g. during a bulk load.
+	 */
+	GroupCommitter(final Dataset dataset, final Lock transactionLock, final Settings settings)
+	{
+		if (settings.getMaxBatchSize() < 1)
+		{
+			throw new IllegalArgumentException("maxBatchSize must be positive: " + settings.getMaxBatchSize());
+		}
+
+		fDataset = dataset;
+		fTransactionLock = transactionLock;
+		fSettings = settings;
+		fWriter = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				runWriter();
+			}
+		}, "igraphstore-group-commit");
+		fWriter.setDaemon(true);
+		fWriter.start();
+	}
+
+
+	//================================================================================
+	// Writes
+	//================================================================================
+
+	/**
+	 * Runs the write in the next group and returns once it is committed.
+	 * Rethrows the exception of a failed write.
+	 */
+	void execute(final Runnable write)
+	{
+		final Pending pending = new Pending(write);
+		synchronized (this)
+		{
+			if (fStopped)
+			{
+				throw new IllegalStateException("Group commit is stopped");
+			}
+			fQueue.add(pending);
+		}
+
+		boolean interrupted = false;
+		try
+		{
+			while (true)
+			{
+				try
+				{
+					pending.fDone.get();
+					return;
+				}
+				catch (InterruptedException e)
+				{
+					// the write may already be committed, so wait for the outcome
+					interrupted = true;
+				}
+				catch (ExecutionException e)
+				{
+					final Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException)
+					{
+						throw (RuntimeException) cause;
+					}
+					if (cause instanceof Error)
+					{
+						throw (Error) cause;
+					}
+					throw new RuntimeException(cause);
+				}
+			}
+		}
+		finally
+		{
+			if (interrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Commits the queued writes and stops the writer thread. Later writes
+	 * are rejected.
+	 */
+	void stop()
+	{
+		synchronized (this)
+		{
+			if (fStopped)
+			{
+				return;
+			}
+			fStopped = true;
+			fQueue.add(STOP);
+		}
+		try
+		{
+			fWriter.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	Settings getSettings()
+	{
+		return fSettings;
+	}
+
+	/**
+	 * Reports how long each write waits until the transaction of its group
+	 * has begun. Null stops reporting.
+	 */
+	void setMetricsRegistry(final MetricsRegistry registry)
+	{
+		fMetricsRegistry = registry;
+	}
+
+
+	//================================================================================
+	// Helpers
+	//================================================================================
+
+	private static class Pending
+	{
+		private final Runnable fWrite;
+		private final CompletableFuture<Void> fDone = new CompletableFuture<Void>();
+		private final long fQueued = System.nanoTime();
+		private boolean fWaitRecorded = false;
+
+		Pending(final Runnable write)
+		{
+			fWrite = write;
+		}
+	}
+
+	private void runWriter()
+	{
+		final List<Pending> group = new ArrayList<Pending>();
+
+		// the writer is never interrupted, since an interrupt closes the 
+		// file channels of TDB; stop() queues STOP instead
+		while (true)
+		{
+			try
+			{
+				collect(group);
+			}
+			catch (InterruptedException e)
+			{
+				continue;
+			}
+
+			final boolean stopped = group.remove(STOP);
+			try
+			{
+				commit(group);
+			}
+			catch (Throwable e)
+			{
+				// commit releases the callers itself; this keeps the only writer alive
+				LOGGER.log(Level.SEVERE, "Group commit failed unexpectedly", e);
+				for (Pending pending : group)
+				{
+					pending.fDone.completeExceptionally(e);
+				}
+				group.clear();
+			}
+			if (stopped)
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Waits for a write and then adds further writes to the group until it
+	 * is full or maxDelay has passed.
+	 */
+	private void collect(final List<Pending> group) throws InterruptedException
+	{
+		group.add(fQueue.take());
+
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(fSettings.getMaxDelay());
+		while (group.size() < fSettings.getMaxBatchSize() && !group.contains(STOP))
+		{
+			fQueue.drainTo(group, fSettings.getMaxBatchSize() - group.size());
+			final long remaining = deadline - System.nanoTime();
+			if (group.size() >= fSettings.getMaxBatchSize() || remaining <= 0)
+			{
+				break;
+			}
+			final Pending next = fQueue.poll(remaining, TimeUnit.NANOSECONDS);
+			if (next == null)
+			{
+				break;
+			}
+			group.add(next);
+		}
+	}
+
+	/**
+	 * Runs the group in one transaction, dropping failed writes until the
+	 * rest commits, and releases the callers. The group is empty afterwards.
+	 */
+	private void commit(final List<Pending> group)
+	{
+		while (!group.isEmpty())
+		{
+			Pending failed = null;
+			Throwable failure = null;
+			boolean begun = false;
+
+			fTransactionLock.lock();
+			try
+			{
+				fDataset.begin(ReadWrite.WRITE);
+				begun = true;
+				recordWaits(group);
+				for (Pending pending : group)
+				{
+					try
+					{
+						pending.fWrite.run();
+					}
+					catch (RuntimeException e)
+					{
+						failed = pending;
+						failure = e;
+						break;
+					}
+				}
+
+				if (failed == null)
+				{
+					fDataset.commit();
+					for (Pending pending : group)
+					{
+						pending.fDone.complete(null);
+					}
+					group.clear();
+					return;
+				}
+
+				fDataset.abort();
+			}
+			catch (RuntimeException | Error e)
+			{
+				LOGGER.log(Level.WARNING, "Group commit of " + group.size() + " writes failed", e);
+				if (begun && fDataset.isInTransaction())
+				{
+					fDataset.abort();
+				}
+				for (Pending pending : group)
+				{
+					pending.fDone.completeExceptionally(e);
+				}
+				group.clear();
+				return;
+			}
+			finally
+			{
+				try
+				{
+					if (begun)
+					{
+						fDataset.end();
+					}
+				}
+				finally
+				{
+					fTransactionLock.unlock();
+				}
+			}
+
+			failed.fDone.completeExceptionally(failure);
+			group.remove(failed);
+		}
+	}
+
+
+	/**
+	 * Reports the wait of the writes in the group that have not been
+	 * reported by an earlier attempt. A failing registry is logged, so
+	 * that it cannot fail the group.
+	 */
+	private void recordWaits(final List<Pending> group)
+	{
+		final MetricsRegistry registry = fMetricsRegistry;
+		if (registry == null)
+		{
+			return;
+		}
+
+		final long now = System.nanoTime();
+		for (Pending pending : group)
+		{
+			if (!pending.fWaitRecorded)
+			{
+				pending.fWaitRecorded = true;
+				try
+				{
+					registry.recordTransactionWait(true, now - pending.fQueued);
+				}
+				catch (RuntimeException e)
+				{
+					LOGGER.log(Level.WARNING, "Could not record transaction wait", e);
+					return;
+				}
+			}
+		}
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private static final Logger LOGGER = Logger.getLogger(GroupCommitter.class.getName());
+
+	private static final Pending STOP = new Pending(null);
+
+	private final Dataset fDataset;
+	private final Lock fTransactionLock;
+	private final Settings fSettings;
+	private final BlockingQueue<Pending> fQueue = new LinkedBlockingQueue<Pending>();
+	private final Thread fWriter;
+	private boolean fStopped = false;
+	private volatile MetricsRegistry fMetricsRegistry = null;
+}
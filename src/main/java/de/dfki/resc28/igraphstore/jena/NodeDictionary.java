@@ -0,0 +1,124 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.jena;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.jena.graph.Node;
+
+/**
+ * @author resc01
+ *
+ * Maps RDF nodes to dense positive int IDs and back.
+ *
+ * IDs are only assigned by a single writer, see {@link #encode(Node)}, while
+ * any number of readers may look up nodes and IDs concurrently. IDs are
+ * never reused, so the dictionary only grows.
+ *
+ * A dictionary may extend the dictionary of a memory-mapped snapshot,
+ * whose nodes keep their IDs and are decoded from the file on access.
+ */
+final class NodeDictionary
+{
+	//================================================================================
+	// Constructors
+	//================================================================================
+
+	NodeDictionary()
+	{
+		this(null);
+	}
+
+	/**
+	 * Constructs a dictionary whose first IDs are those of the snapshot.
+	 */
+	NodeDictionary(final SnapshotFile base)
+	{
+		fBase = base;
+		fBaseSize = base != null ? base.getNodeCount() : 0;
+	}
+
+
+	//================================================================================
+	// Reads
+	//================================================================================
+
+	/**
+	 * Returns the ID of a node, or {@link TripleTable#ANY} for null and
+	 * Node.ANY, or -1 if the node has no ID.
+	 */
+	int lookup(final Node node)
+	{
+		if (node == null || Node.ANY.equals(node))
+		{
+			return TripleTable.ANY;
+		}
+		if (fBase != null)
+		{
+			final int id = fBase.lookup(node);
+			if (id > 0)
+			{
+				return id;
+			}
+		}
+		final Integer id = fIds.get(node);
+		return id != null ? id : -1;
+	}
+
+	/**
+	 * Returns the node of an ID that was handed out by this dictionary.
+	 */
+	Node decode(final int id)
+	{
+		return id <= fBaseSize ? fBase.decode(id) : fNodes[id - fBaseSize];
+	}
+
+	int size()
+	{
+		return fBaseSize + fSize;
+	}
+
+
+	//================================================================================
+	// Writes
+	//================================================================================
+
+	/**
+	 * Returns the ID of a node, assigning the next free ID to a new node.
+	 * Must only be called by one thread at a time.
+	 */
+	int encode(final Node node)
+	{
+		final int id = lookup(node);
+		if (id > 0)
+		{
+			return id;
+		}
+
+		final int next = fSize + 1;
+		if (next == fNodes.length)
+		{
+			fNodes = Arrays.copyOf(fNodes, fNodes.length * 2);
+		}
+		fNodes[next] = node;
+		fSize = next;
+		// publish the node before its ID becomes visible to readers
+		fIds.put(node, fBaseSize + next);
+		return fBaseSize + next;
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private final SnapshotFile fBase;
+	private final int fBaseSize;
+	private final ConcurrentHashMap<Node, Integer> fIds = new ConcurrentHashMap<Node, Integer>();
+	private volatile Node[] fNodes = new Node[1024];
+	private volatile int fSize = 0;
+}
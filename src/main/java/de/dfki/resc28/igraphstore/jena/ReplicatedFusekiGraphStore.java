@@ -0,0 +1,567 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.jena;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.system.StreamRDF;
+
+import de.dfki.resc28.igraphstore.CloseableIterator;
+import de.dfki.resc28.igraphstore.GraphBatch;
+import de.dfki.resc28.igraphstore.GraphStats;
+import de.dfki.resc28.igraphstore.IVersionedGraphStore;
+import de.dfki.resc28.igraphstore.VersionedGraph;
+
+/**
+ * @author resc01
+ *
+ * A Fuseki dataset served by a primary server and read replicas. All writes
+ * go to the primary. Reads go to the healthy replica with the fewest
+ * outstanding requests, so read throughput grows with the number of
+ * replicas.
+ *
+ * A replica is ejected when a health check (an empty ASK query) fails, or
+ * when failureThreshold requests in a row fail with an I/O error or a server
+ * error. It takes reads again after its next successful health check. Reads
+ * that return a value are retried on another replica if a replica fails;
+ * reads that stream into an output stream or sink are not, as part of the
+ * result may have been written. If no replica is healthy, reads go to the
+ * primary.
+ *
+ * Replicas lag behind the primary. A caller that has to read its own writes
+ * uses a view created by {@link #withReadYourWrites()}, which reads from the
+ * primary for readYourWritesWindow milliseconds after each of its writes.
+ */
+public class ReplicatedFusekiGraphStore implements IVersionedGraphStore, Closeable {
+
+    /**
+     * Health check and read routing settings.
+     */
+    public static class Settings {
+
+        private long fHealthCheckInterval = 5000;
+        private int fFailureThreshold = 3;
+        private long fReadYourWritesWindow = 10000;
+
+        public long getHealthCheckInterval() {
+            return fHealthCheckInterval;
+        }
+
+        /**
+         * Milliseconds between health checks of each replica. Zero or less
+         * disables health checks and thereby ejection.
+         */
+        public Settings setHealthCheckInterval(long healthCheckInterval) {
+            fHealthCheckInterval = healthCheckInterval;
+            return this;
+        }
+
+        public int getFailureThreshold() {
+            return fFailureThreshold;
+        }
+
+        /**
+         * Number of failed requests in a row after which a replica is
+         * ejected until it passes a health check.
+         */
+        public Settings setFailureThreshold(int failureThreshold) {
+            fFailureThreshold = failureThreshold;
+            return this;
+        }
+
+        public long getReadYourWritesWindow() {
+            return fReadYourWritesWindow;
+        }
+
+        /**
+         * Milliseconds after a write during which a view created by
+         * withReadYourWrites() reads from the primary. Should exceed the
+         * replication lag.
+         */
+        public Settings setReadYourWritesWindow(long readYourWritesWindow) {
+            fReadYourWritesWindow = readYourWritesWindow;
+            return this;
+        }
+    }
+
+    //================================================================================
+    // Constructors
+    //================================================================================
+    /**
+     * Constructs a store over a primary and its replicas with the default
+     * settings.
+     * @param primary
+     * @param replicas
+     */
+    public ReplicatedFusekiGraphStore(final FusekiGraphStore primary, final List<FusekiGraphStore> replicas) {
+        this(primary, replicas, new Settings());
+    }
+
+    /**
+     * Constructs a store over a primary and its replicas and starts the
+     * health checks of the replicas.
+     * @param primary
+     * @param replicas
+     * @param settings
+     */
+    public ReplicatedFusekiGraphStore(final FusekiGraphStore primary, final List<FusekiGraphStore> replicas, final Settings settings) {
+        if (primary == null) {
+            throw new IllegalArgumentException("No primary given");
+        }
+        if (settings.getFailureThreshold() < 1) {
+            throw new IllegalArgumentException("failureThreshold must be positive: " + settings.getFailureThreshold());
+        }
+        fCluster = new Cluster(primary, replicas, settings);
+        fLastWrite = null;
+    }
+
+    private ReplicatedFusekiGraphStore(final Cluster cluster) {
+        fCluster = cluster;
+        fLastWrite = new AtomicLong(System.nanoTime() - cluster.fReadYourWritesWindowNanos);
+    }
+
+    /**
+     * Returns a view of this store for a single caller that reads its own
+     * writes: after each write through the view, its reads go to the
+     * primary for readYourWritesWindow milliseconds. The view shares the
+     * replicas and health checks of this store.
+     * @return
+     */
+    public ReplicatedFusekiGraphStore withReadYourWrites() {
+        return new ReplicatedFusekiGraphStore(fCluster);
+    }
+
+    public FusekiGraphStore getPrimary() {
+        return fCluster.fPrimary;
+    }
+
+    public int getReplicaCount() {
+        return fCluster.fReplicas.length;
+    }
+
+    /**
+     * Returns whether a replica takes reads.
+     * @param replica
+     * @return
+     */
+    public boolean isHealthy(final int replica) {
+        return fCluster.fReplicas[replica].fHealthy;
+    }
+
+    /**
+     * Returns the number of requests running against a replica.
+     * @param replica
+     * @return
+     */
+    public int getOutstandingRequests(final int replica) {
+        return fCluster.fReplicas[replica].fOutstanding.get();
+    }
+
+    /**
+     * Stops the health checks. Closing a view created by
+     * withReadYourWrites() also stops them for this store.
+     */
+    @Override
+    public void close() {
+        fCluster.close();
+    }
+
+    //================================================================================
+    // CRUD-related methods for the default graph
+    //================================================================================
+    @Override
+    public Model getDefaultGraph() {
+        return read(store -> store.getDefaultGraph(), true);
+    }
+
+    @Override
+    public void replaceDefaultGraph(final Model model) {
+        write(store -> store.replaceDefaultGraph(model));
+    }
+
+    @Override
+    public void addToDefaultGraph(final Model model) {
+        write(store -> store.addToDefaultGraph(model));
+    }
+
+    @Override
+    public void clearDefaultGraph() {
+        write(store -> store.clearDefaultGraph());
+    }
+
+    //================================================================================
+    // CRUD-related methods for named graphs
+    //================================================================================
+    @Override
+    public boolean containsNamedGraph(final String graphURI) {
+        return read(store -> store.containsNamedGraph(graphURI), true);
+    }
+
+    @Override
+    public Model getNamedGraph(final String graphURI) {
+        return read(store -> store.getNamedGraph(graphURI), true);
+    }
+
+    /**
+     * Gets the graphs from a replica. Like {@link #find}, only the first
+     * batch is routed and retried; later batches are read from the same
+     * replica.
+     */
+    @Override
+    public CloseableIterator<Map.Entry<String, Model>> getNamedGraphs(final Collection<String> graphURIs) {
+        return read(store -> {
+            final CloseableIterator<Map.Entry<String, Model>> graphs = store.getNamedGraphs(graphURIs);
+            graphs.hasNext();
+            return graphs;
+        }, true);
+    }
+
+    @Override
+    public VersionedGraph getVersionedGraph(final String graphURI, final String ifNoneMatch) {
+        return read(store -> store.getVersionedGraph(graphURI, ifNoneMatch), true);
+    }
+
+    @Override
+    public void deleteNamedGraph(final String graphURI) {
+        write(store -> store.deleteNamedGraph(graphURI));
+    }
+
+    @Override
+    public void replaceNamedGraph(final String graphURI, final Model model) {
+        write(store -> store.replaceNamedGraph(graphURI, model));
+    }
+
+    @Override
+    public void addToNamedGraph(final String graphURI, final Model model) {
+        write(store -> store.addToNamedGraph(graphURI, model));
+    }
+
+    @Override
+    public void createNamedGraph(final String graphURI, final Model model) {
+        write(store -> store.createNamedGraph(graphURI, model));
+    }
+
+    @Override
+    public void replaceNamedGraph(final String graphURI, final InputStream inStream, final String contentType) {
+        write(store -> store.replaceNamedGraph(graphURI, inStream, contentType));
+    }
+
+    @Override
+    public void addToNamedGraph(final String graphURI, final InputStream inStream, final String contentType) {
+        write(store -> store.addToNamedGraph(graphURI, inStream, contentType));
+    }
+
+    @Override
+    public void writeNamedGraph(final String graphURI, final OutputStream outStream, final String contentType) {
+        read(store -> {
+            store.writeNamedGraph(graphURI, outStream, contentType);
+            return null;
+        }, false);
+    }
+
+    @Override
+    public void streamNamedGraph(final String graphURI, final StreamRDF sink) {
+        read(store -> {
+            store.streamNamedGraph(graphURI, sink);
+            return null;
+        }, false);
+    }
+
+    /**
+     * Finds the triples on a replica. The replica counts as busy only while
+     * the first page is requested; later pages are read from the same
+     * replica.
+     */
+    @Override
+    public CloseableIterator<Triple> find(final String graphURI, final Node s, final Node p, final Node o) {
+        return read(store -> {
+            final CloseableIterator<Triple> triples = store.find(graphURI, s, p, o);
+            triples.hasNext();
+            return triples;
+        }, true);
+    }
+
+    //================================================================================
+    // Catalog-related Methods
+    //================================================================================
+    /**
+     * Lists the named graphs on a replica. Like {@link #find}, only the
+     * first page is routed and retried; later pages are read from the same
+     * replica.
+     */
+    @Override
+    public CloseableIterator<String> listNamedGraphs() {
+        return read(store -> {
+            final CloseableIterator<String> graphs = store.listNamedGraphs();
+            graphs.hasNext();
+            return graphs;
+        }, true);
+    }
+
+    @Override
+    public long graphSize(final String graphURI) {
+        return read(store -> store.graphSize(graphURI), true);
+    }
+
+    @Override
+    public GraphStats getGraphStats(final String graphURI) {
+        return read(store -> store.getGraphStats(graphURI), true);
+    }
+
+    //================================================================================
+    // Delta-related Methods
+    //================================================================================
+    @Override
+    public void patch(final String graphURI, final Model additions, final Model removals) {
+        write(store -> store.patch(graphURI, additions, removals));
+    }
+
+    //================================================================================
+    // Batch-related Methods
+    //================================================================================
+    @Override
+    public void apply(final GraphBatch batch) {
+        write(store -> store.apply(batch));
+    }
+
+    //================================================================================
+    // Query-related Methods
+    //================================================================================
+    @Override
+    public boolean ask(final String queryString) {
+        return read(store -> store.ask(queryString), true);
+    }
+
+    @Override
+    public void select(final OutputStream outStream, final String queryString) {
+        read(store -> {
+            store.select(outStream, queryString);
+            return null;
+        }, false);
+    }
+
+    @Override
+    public void select(final OutputStream outStream, final String queryString, final String contentType) {
+        read(store -> {
+            store.select(outStream, queryString, contentType);
+            return null;
+        }, false);
+    }
+
+    @Override
+    public void construct(final OutputStream outStream, final String queryString, final String contentType) {
+        read(store -> {
+            store.construct(outStream, queryString, contentType);
+            return null;
+        }, false);
+    }
+
+    @Override
+    public void describe(final OutputStream outStream, final String queryString, final String contentType) {
+        read(store -> {
+            store.describe(outStream, queryString, contentType);
+            return null;
+        }, false);
+    }
+
+    //================================================================================
+    // Helpers
+    //================================================================================
+    private interface Write {
+
+        void run(FusekiGraphStore store);
+    }
+
+    private void write(final Write write) {
+        try {
+            write.run(fCluster.fPrimary);
+        } finally {
+            if (fLastWrite != null) {
+                fLastWrite.set(System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * Runs a read on the least busy healthy replica, on the primary if there
+     * is none or if this view has written recently. If retry is set, a read
+     * that fails because of the replica is tried on the other replicas and
+     * finally on the primary.
+     */
+    private <T> T read(final Function<FusekiGraphStore, T> read, final boolean retry) {
+        if (fLastWrite != null && System.nanoTime() - fLastWrite.get() < fCluster.fReadYourWritesWindowNanos) {
+            return read.apply(fCluster.fPrimary);
+        }
+
+        final boolean[] tried = new boolean[fCluster.fReplicas.length];
+        while (true) {
+            final Replica replica = fCluster.pick(tried);
+            if (replica == null) {
+                return read.apply(fCluster.fPrimary);
+            }
+
+            replica.fOutstanding.incrementAndGet();
+            try {
+                final T result = read.apply(replica.fStore);
+                replica.succeeded();
+                return result;
+            } catch (RuntimeException ex) {
+                if (!FusekiConnection.isServerFault(ex)) {
+                    throw ex;
+                }
+                replica.failed(fCluster.fSettings.getFailureThreshold(), fCluster.fHealthChecks != null);
+                if (!retry) {
+                    throw ex;
+                }
+                tried[replica.fIndex] = true;
+            } finally {
+                replica.fOutstanding.decrementAndGet();
+            }
+        }
+    }
+
+    //================================================================================
+    // Helper classes
+    //================================================================================
+    /**
+     * A replica and its load and health.
+     */
+    private static class Replica {
+
+        private final int fIndex;
+        private final FusekiGraphStore fStore;
+        private final AtomicInteger fOutstanding = new AtomicInteger();
+        private final AtomicInteger fFailures = new AtomicInteger();
+        private volatile boolean fHealthy = true;
+
+        Replica(final int index, final FusekiGraphStore store) {
+            fIndex = index;
+            fStore = store;
+        }
+
+        void succeeded() {
+            if (fFailures.get() != 0) {
+                fFailures.set(0);
+            }
+        }
+
+        void failed(final int threshold, final boolean eject) {
+            if (fFailures.incrementAndGet() >= threshold && eject && fHealthy) {
+                fHealthy = false;
+                LOGGER.log(Level.WARNING, "Ejected replica {0} after {1} failed requests", new Object[]{fIndex, threshold});
+            }
+        }
+
+        void check() {
+            try {
+                fStore.ask(HEALTH_CHECK_QUERY);
+                fFailures.set(0);
+                if (!fHealthy) {
+                    fHealthy = true;
+                    LOGGER.log(Level.INFO, "Replica {0} passed its health check", fIndex);
+                }
+            } catch (RuntimeException ex) {
+                if (fHealthy) {
+                    fHealthy = false;
+                    LOGGER.log(Level.WARNING, "Ejected replica " + fIndex + " after a failed health check", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * The servers and health checks shared by a store and its views.
+     */
+    private static class Cluster {
+
+        private final FusekiGraphStore fPrimary;
+        private final Replica[] fReplicas;
+        private final Settings fSettings;
+        private final long fReadYourWritesWindowNanos;
+        private final ScheduledExecutorService fHealthChecks;
+
+        Cluster(final FusekiGraphStore primary, final List<FusekiGraphStore> replicas, final Settings settings) {
+            fPrimary = primary;
+            fSettings = settings;
+            fReadYourWritesWindowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, settings.getReadYourWritesWindow()));
+
+            final List<FusekiGraphStore> stores = replicas != null ? replicas : Collections.<FusekiGraphStore>emptyList();
+            fReplicas = new Replica[stores.size()];
+            for (int i = 0; i < fReplicas.length; i++) {
+                fReplicas[i] = new Replica(i, stores.get(i));
+            }
+
+            if (settings.getHealthCheckInterval() > 0 && fReplicas.length > 0) {
+                // one thread per replica, so that a hanging replica does not delay the checks of the others
+                final AtomicInteger threads = new AtomicInteger();
+                fHealthChecks = Executors.newScheduledThreadPool(fReplicas.length, runnable -> {
+                    final Thread thread = new Thread(runnable, "igraphstore-replica-check-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                for (Replica replica : fReplicas) {
+                    fHealthChecks.scheduleWithFixedDelay(replica::check, settings.getHealthCheckInterval(), settings.getHealthCheckInterval(), TimeUnit.MILLISECONDS);
+                }
+            } else {
+                fHealthChecks = null;
+            }
+        }
+
+        /**
+         * Returns the healthy replica with the fewest outstanding requests
+         * that has not been tried yet, or null. Ties are broken at random so
+         * that idle replicas share the load.
+         */
+        Replica pick(final boolean[] tried) {
+            Replica best = null;
+            int bestOutstanding = Integer.MAX_VALUE;
+            final int start = fReplicas.length > 1 ? ThreadLocalRandom.current().nextInt(fReplicas.length) : 0;
+            for (int i = 0; i < fReplicas.length; i++) {
+                final Replica replica = fReplicas[(start + i) % fReplicas.length];
+                if (replica.fHealthy && !tried[replica.fIndex]) {
+                    final int outstanding = replica.fOutstanding.get();
+                    if (outstanding < bestOutstanding) {
+                        best = replica;
+                        bestOutstanding = outstanding;
+                    }
+                }
+            }
+            return best;
+        }
+
+        void close() {
+            if (fHealthChecks != null) {
+                fHealthChecks.shutdownNow();
+            }
+        }
+    }
+
+    //================================================================================
+    // Member variables
+    //================================================================================
+    private static final Logger LOGGER = Logger.getLogger(ReplicatedFusekiGraphStore.class.getName());
+    private static final String HEALTH_CHECK_QUERY = "ASK {}";
+
+    private final Cluster fCluster;
+    private final AtomicLong fLastWrite;
+}
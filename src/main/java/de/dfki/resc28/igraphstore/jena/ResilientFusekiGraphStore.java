@@ -0,0 +1,940 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.jena;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.system.StreamRDF;
+
+import de.dfki.resc28.igraphstore.CloseableIterator;
+import de.dfki.resc28.igraphstore.GraphBatch;
+import de.dfki.resc28.igraphstore.GraphStats;
+import de.dfki.resc28.igraphstore.IVersionedGraphStore;
+import de.dfki.resc28.igraphstore.VersionedGraph;
+import de.dfki.resc28.igraphstore.metrics.LatencyHistogram;
+
+/**
+ * @author resc01
+ *
+ * A Fuseki dataset served by a primary server and optional alternate servers
+ * with the same data, e.g. read replicas, that keeps slow or failing servers
+ * from stalling the calling threads.
+ *
+ * Every operation that returns a value fails after a deadline, even if the
+ * server does not answer. Reads that return a value are hedged: if the
+ * first request has not answered once the hedgeQuantile (p95 by default) of
+ * the recent latencies of its server has passed, a second request goes to
+ * an alternate server and the first answer wins. A read that fails with an
+ * I/O error or a server error is retried after a jittered, exponentially
+ * growing pause while the deadline allows. Writes go to the primary and are
+ * neither hedged nor retried, and a write that missed its deadline may
+ * still be applied. Operations that use a stream of the caller, i.e. reads
+ * into an output stream or sink and writes from an input stream, run on
+ * the calling thread, so that a late request cannot touch the stream once
+ * the call has returned. They are only bounded by the socket timeout of the
+ * connection pool. The other requests run on a pool of at most maxInFlight
+ * threads per server; a request that would exceed it fails at once.
+ *
+ * Each server has a circuit breaker, which opens after failureThreshold
+ * failed requests in a row, counting requests that missed their deadline.
+ * While it is open, the server gets no requests and operations that need it
+ * fail at once with a {@link CircuitOpenException}. After openDuration
+ * milliseconds a single request probes the server and closes the breaker if
+ * it succeeds.
+ *
+ * Servers are ordinary FusekiGraphStores, so the behaviour can be tested
+ * against local HTTP servers that delay or fail requests.
+ */
+public class ResilientFusekiGraphStore implements IVersionedGraphStore, Closeable {
+
+    /**
+     * Deadline, hedging, retry and circuit breaker settings. All durations
+     * are in milliseconds.
+     */
+    public static class Settings {
+
+        private long fDeadline = 10000;
+        private double fHedgeQuantile = 0.95;
+        private long fMinHedgeDelay = 5;
+        private int fMaxRetries = 2;
+        private long fRetryBackoff = 50;
+        private int fFailureThreshold = 5;
+        private long fOpenDuration = 30000;
+        private int fMaxInFlight = 64;
+
+        public long getDeadline() {
+            return fDeadline;
+        }
+
+        /**
+         * Time after which an operation fails, including its hedged
+         * requests and retries.
+         */
+        public Settings setDeadline(long deadline) {
+            fDeadline = deadline;
+            return this;
+        }
+
+        public double getHedgeQuantile() {
+            return fHedgeQuantile;
+        }
+
+        /**
+         * Quantile of the latencies of a server after which a read is
+         * hedged. One or more disables hedging.
+         */
+        public Settings setHedgeQuantile(double hedgeQuantile) {
+            fHedgeQuantile = hedgeQuantile;
+            return this;
+        }
+
+        public long getMinHedgeDelay() {
+            return fMinHedgeDelay;
+        }
+
+        /**
+         * Lower bound of the time after which a read is hedged, so that a
+         * server that answers fast does not get every read twice.
+         */
+        public Settings setMinHedgeDelay(long minHedgeDelay) {
+            fMinHedgeDelay = minHedgeDelay;
+            return this;
+        }
+
+        public int getMaxRetries() {
+            return fMaxRetries;
+        }
+
+        /**
+         * Number of times a failed read is retried.
+         */
+        public Settings setMaxRetries(int maxRetries) {
+            fMaxRetries = maxRetries;
+            return this;
+        }
+
+        public long getRetryBackoff() {
+            return fRetryBackoff;
+        }
+
+        /**
+         * Upper bound of the pause before the first retry, which doubles
+         * with every further retry. The pause is chosen at random below it.
+         */
+        public Settings setRetryBackoff(long retryBackoff) {
+            fRetryBackoff = retryBackoff;
+            return this;
+        }
+
+        public int getFailureThreshold() {
+            return fFailureThreshold;
+        }
+
+        /**
+         * Number of failed requests in a row after which the circuit
+         * breaker of a server opens.
+         */
+        public Settings setFailureThreshold(int failureThreshold) {
+            fFailureThreshold = failureThreshold;
+            return this;
+        }
+
+        public long getOpenDuration() {
+            return fOpenDuration;
+        }
+
+        /**
+         * Time a circuit breaker stays open before a request probes the
+         * server.
+         */
+        public Settings setOpenDuration(long openDuration) {
+            fOpenDuration = openDuration;
+            return this;
+        }
+
+        public int getMaxInFlight() {
+            return fMaxInFlight;
+        }
+
+        /**
+         * Number of requests a server may have running at once, counting
+         * requests that missed their deadline but have not returned yet. A
+         * request beyond it fails at once and counts as a failure of the
+         * server.
+         */
+        public Settings setMaxInFlight(int maxInFlight) {
+            fMaxInFlight = maxInFlight;
+            return this;
+        }
+    }
+
+    /**
+     * Thrown when an operation fails at once because the circuit breakers
+     * of all servers it could use are open.
+     */
+    public static class CircuitOpenException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public CircuitOpenException(final String message) {
+            super(message);
+        }
+    }
+
+    //================================================================================
+    // Constructors
+    //================================================================================
+    /**
+     * Constructs a store over a single server with the default settings.
+     * Reads are not hedged, as there is no alternate server.
+     * @param primary
+     */
+    public ResilientFusekiGraphStore(final FusekiGraphStore primary) {
+        this(primary, Collections.<FusekiGraphStore>emptyList(), new Settings());
+    }
+
+    /**
+     * Constructs a store over a primary and alternate servers with the
+     * default settings.
+     * @param primary
+     * @param alternates
+     */
+    public ResilientFusekiGraphStore(final FusekiGraphStore primary, final List<FusekiGraphStore> alternates) {
+        this(primary, alternates, new Settings());
+    }
+
+    /**
+     * Constructs a store over a primary and alternate servers.
+     * @param primary
+     * @param alternates
+     * @param settings
+     */
+    public ResilientFusekiGraphStore(final FusekiGraphStore primary, final List<FusekiGraphStore> alternates, final Settings settings) {
+        if (primary == null) {
+            throw new IllegalArgumentException("No primary given");
+        }
+        if (settings.getDeadline() <= 0) {
+            throw new IllegalArgumentException("deadline must be positive: " + settings.getDeadline());
+        }
+        if (settings.getFailureThreshold() < 1) {
+            throw new IllegalArgumentException("failureThreshold must be positive: " + settings.getFailureThreshold());
+        }
+        if (settings.getMaxInFlight() < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + settings.getMaxInFlight());
+        }
+        fSettings = settings;
+        fDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(settings.getDeadline());
+
+        final List<FusekiGraphStore> stores = new ArrayList<>();
+        stores.add(primary);
+        if (alternates != null) {
+            stores.addAll(alternates);
+        }
+        fServers = new Server[stores.size()];
+        for (int i = 0; i < fServers.length; i++) {
+            fServers[i] = new Server(i, stores.get(i), settings);
+        }
+
+        // requests that missed their deadline keep their thread until the socket timeout,
+        // so a hanging server may hold at most maxInFlight threads
+        final AtomicInteger threads = new AtomicInteger();
+        fExecutor = new ThreadPoolExecutor(0, fServers.length * settings.getMaxInFlight(), 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), runnable -> {
+                    final Thread thread = new Thread(runnable, "igraphstore-resilient-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    public FusekiGraphStore getPrimary() {
+        return fServers[0].fStore;
+    }
+
+    /**
+     * Returns the number of servers, the primary being server 0.
+     */
+    public int getServerCount() {
+        return fServers.length;
+    }
+
+    /**
+     * Returns whether the circuit breaker of a server is open, i.e. it gets
+     * no requests apart from a probe.
+     * @param server
+     * @return
+     */
+    public boolean isCircuitOpen(final int server) {
+        return fServers[server].fOpenedAt != CLOSED;
+    }
+
+    /**
+     * Returns the time in milliseconds after which a read sent to a server
+     * is hedged, or 0 while too few latencies are recorded.
+     * @param server
+     * @return
+     */
+    public long getHedgeDelay(final int server) {
+        return TimeUnit.NANOSECONDS.toMillis(fServers[server].hedgeDelayNanos());
+    }
+
+    /**
+     * Stops the threads that run the requests. Requests that are still
+     * running finish.
+     */
+    @Override
+    public void close() {
+        fExecutor.shutdown();
+    }
+
+    //================================================================================
+    // CRUD-related methods for the default graph
+    //================================================================================
+    @Override
+    public Model getDefaultGraph() {
+        return read(store -> store.getDefaultGraph());
+    }
+
+    @Override
+    public void replaceDefaultGraph(final Model model) {
+        write(store -> store.replaceDefaultGraph(model));
+    }
+
+    @Override
+    public void addToDefaultGraph(final Model model) {
+        write(store -> store.addToDefaultGraph(model));
+    }
+
+    @Override
+    public void clearDefaultGraph() {
+        write(store -> store.clearDefaultGraph());
+    }
+
+    //================================================================================
+    // CRUD-related methods for named graphs
+    //================================================================================
+    @Override
+    public boolean containsNamedGraph(final String graphURI) {
+        return read(store -> store.containsNamedGraph(graphURI));
+    }
+
+    @Override
+    public Model getNamedGraph(final String graphURI) {
+        return read(store -> store.getNamedGraph(graphURI));
+    }
+
+    /**
+     * Gets the graphs from the server that answers first. Only the first
+     * batch is protected; later batches are read from the same server
+     * without a deadline.
+     */
+    @Override
+    public CloseableIterator<Map.Entry<String, Model>> getNamedGraphs(final Collection<String> graphURIs) {
+        return read(store -> {
+            final CloseableIterator<Map.Entry<String, Model>> graphs = store.getNamedGraphs(graphURIs);
+            graphs.hasNext();
+            return graphs;
+        });
+    }
+
+    @Override
+    public VersionedGraph getVersionedGraph(final String graphURI, final String ifNoneMatch) {
+        return read(store -> store.getVersionedGraph(graphURI, ifNoneMatch));
+    }
+
+    @Override
+    public void deleteNamedGraph(final String graphURI) {
+        write(store -> store.deleteNamedGraph(graphURI));
+    }
+
+    @Override
+    public void replaceNamedGraph(final String graphURI, final Model model) {
+        write(store -> store.replaceNamedGraph(graphURI, model));
+    }
+
+    @Override
+    public void addToNamedGraph(final String graphURI, final Model model) {
+        write(store -> store.addToNamedGraph(graphURI, model));
+    }
+
+    @Override
+    public void createNamedGraph(final String graphURI, final Model model) {
+        write(store -> store.createNamedGraph(graphURI, model));
+    }
+
+    @Override
+    public void replaceNamedGraph(final String graphURI, final InputStream inStream, final String contentType) {
+        writeStream(store -> store.replaceNamedGraph(graphURI, inStream, contentType));
+    }
+
+    @Override
+    public void addToNamedGraph(final String graphURI, final InputStream inStream, final String contentType) {
+        writeStream(store -> store.addToNamedGraph(graphURI, inStream, contentType));
+    }
+
+    @Override
+    public void writeNamedGraph(final String graphURI, final OutputStream outStream, final String contentType) {
+        stream(store -> store.writeNamedGraph(graphURI, outStream, contentType));
+    }
+
+    @Override
+    public void streamNamedGraph(final String graphURI, final StreamRDF sink) {
+        stream(store -> store.streamNamedGraph(graphURI, sink));
+    }
+
+    /**
+     * Finds the triples on the server that answers first. Only the first
+     * page is protected; later pages are read from the same server without
+     * a deadline.
+     */
+    @Override
+    public CloseableIterator<Triple> find(final String graphURI, final Node s, final Node p, final Node o) {
+        return read(store -> {
+            final CloseableIterator<Triple> triples = store.find(graphURI, s, p, o);
+            triples.hasNext();
+            return triples;
+        });
+    }
+
+    //================================================================================
+    // Catalog-related Methods
+    //================================================================================
+    /**
+     * Lists the named graphs on the server that answers first. Like
+     * {@link #find}, only the first page is protected.
+     */
+    @Override
+    public CloseableIterator<String> listNamedGraphs() {
+        return read(store -> {
+            final CloseableIterator<String> graphs = store.listNamedGraphs();
+            graphs.hasNext();
+            return graphs;
+        });
+    }
+
+    @Override
+    public long graphSize(final String graphURI) {
+        return read(store -> store.graphSize(graphURI));
+    }
+
+    @Override
+    public GraphStats getGraphStats(final String graphURI) {
+        return read(store -> store.getGraphStats(graphURI));
+    }
+
+    //================================================================================
+    // Delta-related Methods
+    //================================================================================
+    @Override
+    public void patch(final String graphURI, final Model additions, final Model removals) {
+        write(store -> store.patch(graphURI, additions, removals));
+    }
+
+    //================================================================================
+    // Batch-related Methods
+    //================================================================================
+    @Override
+    public void apply(final GraphBatch batch) {
+        write(store -> store.apply(batch));
+    }
+
+    //================================================================================
+    // Query-related Methods
+    //================================================================================
+    @Override
+    public boolean ask(final String queryString) {
+        return read(store -> store.ask(queryString));
+    }
+
+    @Override
+    public void select(final OutputStream outStream, final String queryString) {
+        stream(store -> store.select(outStream, queryString));
+    }
+
+    @Override
+    public void select(final OutputStream outStream, final String queryString, final String contentType) {
+        stream(store -> store.select(outStream, queryString, contentType));
+    }
+
+    @Override
+    public void construct(final OutputStream outStream, final String queryString, final String contentType) {
+        stream(store -> store.construct(outStream, queryString, contentType));
+    }
+
+    @Override
+    public void describe(final OutputStream outStream, final String queryString, final String contentType) {
+        stream(store -> store.describe(outStream, queryString, contentType));
+    }
+
+    //================================================================================
+    // Helpers
+    //================================================================================
+    private interface Operation {
+
+        void run(FusekiGraphStore store);
+    }
+
+    /**
+     * Runs a write on the primary within the deadline.
+     */
+    private void write(final Operation write) {
+        final Server primary = fServers[0];
+        if (!primary.allowRequest()) {
+            throw new CircuitOpenException("Circuit breaker of the primary is open: " + primary);
+        }
+        final Call<Object> call = new Call<>(System.nanoTime() + fDeadlineNanos, store -> {
+            write.run(store);
+            return null;
+        });
+        call.submit(primary);
+        call.await(false);
+    }
+
+    /**
+     * Runs a write that reads from a stream of the caller on the primary,
+     * on the calling thread.
+     */
+    private void writeStream(final Operation write) {
+        final Server primary = fServers[0];
+        if (!primary.allowRequest()) {
+            throw new CircuitOpenException("Circuit breaker of the primary is open: " + primary);
+        }
+        stream(primary, write);
+    }
+
+    /**
+     * Runs a read that streams its result on the calling thread, on the
+     * first server whose circuit breaker is closed.
+     */
+    private void stream(final Operation read) {
+        stream(pick(null), read);
+    }
+
+    /**
+     * Runs an operation that uses a stream of the caller on the calling
+     * thread, so that no request can still use the stream after this
+     * method has returned. The server's circuit breaker has let it through.
+     */
+    private void stream(final Server server, final Operation operation) {
+        final long start = System.nanoTime();
+        try {
+            operation.run(server.fStore);
+            server.succeeded(System.nanoTime() - start);
+        } catch (RuntimeException ex) {
+            server.failed(ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Runs a read that returns a value, hedged and retried, within the
+     * deadline. A retry prefers another server than the one that failed.
+     */
+    private <T> T read(final Function<FusekiGraphStore, T> read) {
+        final long deadline = System.nanoTime() + fDeadlineNanos;
+        Server failed = null;
+        for (int attempt = 0; ; attempt++) {
+            final Call<T> call = new Call<>(deadline, read);
+            final Server first = pick(failed);
+            call.submit(first);
+            try {
+                return call.await(fServers.length > 1);
+            } catch (RuntimeException ex) {
+                if (attempt >= fSettings.getMaxRetries() || !isRetryable(ex)) {
+                    throw ex;
+                }
+                final long pause = TimeUnit.MILLISECONDS.toNanos(
+                        ThreadLocalRandom.current().nextLong(Math.max(1, fSettings.getRetryBackoff() << attempt)));
+                if (System.nanoTime() + pause >= deadline) {
+                    throw ex;
+                }
+                LOGGER.log(Level.FINE, "Retrying read after failure on " + first, ex);
+                sleep(pause);
+                failed = first;
+            }
+        }
+    }
+
+    private static boolean isRetryable(final RuntimeException failure) {
+        if (failure instanceof CircuitOpenException) {
+            return false;
+        }
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TimeoutException) {
+                return false;
+            }
+        }
+        return FusekiConnection.isServerFault(failure);
+    }
+
+    /**
+     * Returns the first server whose circuit breaker lets a request through,
+     * starting with the primary unless it is to be avoided.
+     * @throws CircuitOpenException if there is none
+     */
+    private Server pick(final Server avoid) {
+        for (Server server : fServers) {
+            if (server != avoid && server.allowRequest()) {
+                return server;
+            }
+        }
+        if (avoid != null && avoid.allowRequest()) {
+            return avoid;
+        }
+        throw new CircuitOpenException("Circuit breakers of all " + fServers.length + " servers are open");
+    }
+
+    /**
+     * Returns a server for the hedged request other than the one of the
+     * first request, or null.
+     */
+    private Server pickHedge(final Server first) {
+        final int start = ThreadLocalRandom.current().nextInt(fServers.length);
+        for (int i = 0; i < fServers.length; i++) {
+            final Server server = fServers[(start + i) % fServers.length];
+            if (server != first && server.allowRequest()) {
+                return server;
+            }
+        }
+        return null;
+    }
+
+    private static void sleep(final long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting to retry");
+        }
+    }
+
+    /**
+     * Closes a result that lost the race against the hedged request.
+     */
+    private static void discard(final Object result) {
+        if (result instanceof CloseableIterator) {
+            ((CloseableIterator<?>) result).close();
+        }
+    }
+
+    //================================================================================
+    // Helper classes
+    //================================================================================
+    /**
+     * A server with its circuit breaker and recent latencies.
+     */
+    private static class Server {
+
+        private final int fIndex;
+        private final FusekiGraphStore fStore;
+        private final int fFailureThreshold;
+        private final long fOpenDurationNanos;
+        private final double fHedgeQuantile;
+        private final long fMinHedgeDelayNanos;
+
+        private final Semaphore fInFlight;
+        private final AtomicInteger fFailures = new AtomicInteger();
+        private final AtomicBoolean fProbing = new AtomicBoolean();
+        private volatile long fOpenedAt = CLOSED;
+
+        private volatile LatencyHistogram fLatencies = new LatencyHistogram();
+        private volatile long fHedgeDelayNanos = 0;
+        private volatile long fHedgeDelayUpdated = System.nanoTime();
+
+        Server(final int index, final FusekiGraphStore store, final Settings settings) {
+            fIndex = index;
+            fStore = store;
+            fFailureThreshold = settings.getFailureThreshold();
+            fOpenDurationNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, settings.getOpenDuration()));
+            fHedgeQuantile = settings.getHedgeQuantile();
+            fMinHedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, settings.getMinHedgeDelay()));
+            fInFlight = new Semaphore(settings.getMaxInFlight());
+        }
+
+        /**
+         * Returns whether the circuit breaker lets a request through. Once
+         * the open duration has passed, it lets a single probe through.
+         */
+        boolean allowRequest() {
+            final long openedAt = fOpenedAt;
+            if (openedAt == CLOSED) {
+                return true;
+            }
+            return System.nanoTime() - openedAt >= fOpenDurationNanos && fProbing.compareAndSet(false, true);
+        }
+
+        void succeeded(final long nanos) {
+            fLatencies.record(nanos);
+            reset();
+        }
+
+        private void reset() {
+            fFailures.set(0);
+            if (fOpenedAt != CLOSED) {
+                fOpenedAt = CLOSED;
+                fProbing.set(false);
+                LOGGER.log(Level.INFO, "Closed circuit breaker of {0}", this);
+            }
+        }
+
+        /**
+         * Records a failed request. A failure caused by the request rather
+         * than the server shows that the server answers.
+         */
+        void failed(final Throwable failure) {
+            if (FusekiConnection.isServerFault(failure)) {
+                timedOut();
+            } else {
+                reset();
+            }
+        }
+
+        /**
+         * Records a request that failed because of the server or missed its
+         * deadline.
+         */
+        void timedOut() {
+            if (fOpenedAt != CLOSED) {
+                if (fProbing.get()) {
+                    fOpenedAt = System.nanoTime();
+                    fProbing.set(false);
+                }
+                return;
+            }
+            if (fFailures.incrementAndGet() >= fFailureThreshold) {
+                fOpenedAt = System.nanoTime();
+                LOGGER.log(Level.WARNING, "Opened circuit breaker of {0} after {1} failed requests", new Object[]{this, fFailureThreshold});
+            }
+        }
+
+        /**
+         * Returns the hedge quantile of the recent latencies, recomputed at
+         * most once per HEDGE_DELAY_UPDATE_NANOS. The histogram is replaced
+         * once it holds HEDGE_WINDOW latencies, so that the delay follows
+         * changes of the server's latency.
+         */
+        long hedgeDelayNanos() {
+            if (fHedgeQuantile >= 1) {
+                return 0;
+            }
+            final long now = System.nanoTime();
+            if (now - fHedgeDelayUpdated >= HEDGE_DELAY_UPDATE_NANOS) {
+                fHedgeDelayUpdated = now;
+                final LatencyHistogram.Snapshot snapshot = fLatencies.snapshot();
+                if (snapshot.getCount() >= HEDGE_MIN_SAMPLES) {
+                    fHedgeDelayNanos = Math.max(fMinHedgeDelayNanos, snapshot.getPercentile(fHedgeQuantile));
+                }
+                if (snapshot.getCount() >= HEDGE_WINDOW) {
+                    fLatencies = new LatencyHistogram();
+                }
+            }
+            return fHedgeDelayNanos;
+        }
+
+        @Override
+        public String toString() {
+            return fIndex == 0 ? "primary" : "alternate " + fIndex;
+        }
+    }
+
+    /**
+     * The outcome of a request of a call.
+     */
+    private static class Outcome<T> {
+
+        private final Server fServer;
+        private final T fResult;
+        private final RuntimeException fFailure;
+
+        Outcome(final Server server, final T result, final RuntimeException failure) {
+            fServer = server;
+            fResult = result;
+            fFailure = failure;
+        }
+    }
+
+    /**
+     * The requests made for one attempt of an operation, at most a first
+     * and a hedged one, of which the first successful one wins. Results
+     * that arrive after the call has ended are discarded.
+     */
+    private class Call<T> {
+
+        private final long fDeadline;
+        private final Function<FusekiGraphStore, T> fRequest;
+        private final BlockingQueue<Outcome<T>> fOutcomes = new LinkedBlockingQueue<>();
+        private final List<Server> fRunning = new ArrayList<>();
+        private boolean fEnded = false;
+
+        Call(final long deadline, final Function<FusekiGraphStore, T> request) {
+            fDeadline = deadline;
+            fRequest = request;
+        }
+
+        /**
+         * Sends the request to the server on a thread of the pool. If the
+         * server has too many requests in flight or the pool is shut down,
+         * the request fails at once.
+         */
+        void submit(final Server server) {
+            fRunning.add(server);
+            if (!server.fInFlight.tryAcquire()) {
+                server.timedOut();
+                fOutcomes.add(new Outcome<>(server, null,
+                        new RejectedExecutionException(server + " has " + fSettings.getMaxInFlight() + " requests in flight")));
+                return;
+            }
+            try {
+                fExecutor.execute(() -> {
+                    final long start = System.nanoTime();
+                    Outcome<T> outcome;
+                    try {
+                        final T result = fRequest.apply(server.fStore);
+                        server.succeeded(System.nanoTime() - start);
+                        outcome = new Outcome<>(server, result, null);
+                    } catch (RuntimeException ex) {
+                        server.failed(ex);
+                        outcome = new Outcome<>(server, null, ex);
+                    } finally {
+                        server.fInFlight.release();
+                    }
+                    synchronized (this) {
+                        if (!fEnded) {
+                            fOutcomes.add(outcome);
+                            return;
+                        }
+                    }
+                    discard(outcome.fResult);
+                });
+            } catch (RejectedExecutionException ex) {
+                server.fInFlight.release();
+                fOutcomes.add(new Outcome<>(server, null, ex));
+            }
+        }
+
+        /**
+         * Waits for the first successful request, hedging the first request
+         * if hedge is set and it is slower than the hedge delay of its
+         * server. Fails with the first failure if all requests failed.
+         */
+        T await(final boolean hedge) {
+            final Server first = fRunning.get(0);
+            final long hedgeDelay = hedge ? first.hedgeDelayNanos() : 0;
+            final long hedgeAt = System.nanoTime() + hedgeDelay;
+            boolean hedgePending = hedgeDelay > 0;
+            RuntimeException failure = null;
+            try {
+                while (!fRunning.isEmpty()) {
+                    final long now = System.nanoTime();
+                    if (now - fDeadline >= 0) {
+                        for (Server server : fRunning) {
+                            server.timedOut();
+                        }
+                        throw new RuntimeException("Deadline of " + fSettings.getDeadline() + " ms exceeded waiting for " + fRunning,
+                                new TimeoutException());
+                    }
+
+                    final long wait = hedgePending ? Math.min(fDeadline - now, hedgeAt - now) : fDeadline - now;
+                    final Outcome<T> outcome = fOutcomes.poll(Math.max(0, wait), TimeUnit.NANOSECONDS);
+                    if (outcome == null) {
+                        if (hedgePending && System.nanoTime() - hedgeAt >= 0) {
+                            hedgePending = false;
+                            hedge(first);
+                        }
+                        continue;
+                    }
+
+                    fRunning.remove(outcome.fServer);
+                    hedgePending = false;
+                    if (outcome.fFailure == null) {
+                        return outcome.fResult;
+                    }
+                    if (failure == null) {
+                        failure = outcome.fFailure;
+                    } else {
+                        failure.addSuppressed(outcome.fFailure);
+                    }
+                }
+                throw failure;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted while waiting for " + fRunning);
+            } finally {
+                end();
+            }
+        }
+
+        /**
+         * Sends the hedged request, if there is a server for it.
+         */
+        private void hedge(final Server first) {
+            final Server alternate = pickHedge(first);
+            if (alternate == null) {
+                return;
+            }
+            LOGGER.log(Level.FINE, "Hedging read on {0} to {1}", new Object[]{first, alternate});
+            submit(alternate);
+        }
+
+        /**
+         * Discards the results that arrived after the winner.
+         */
+        private void end() {
+            synchronized (this) {
+                fEnded = true;
+            }
+            Outcome<T> outcome;
+            while ((outcome = fOutcomes.poll()) != null) {
+                discard(outcome.fResult);
+            }
+        }
+    }
+
+    //================================================================================
+    // Member variables
+    //================================================================================
+    private static final Logger LOGGER = Logger.getLogger(ResilientFusekiGraphStore.class.getName());
+
+    private static final long CLOSED = Long.MIN_VALUE;
+    /**
+     * Number of latencies a server needs before its reads are hedged.
+     */
+    private static final long HEDGE_MIN_SAMPLES = 20;
+    /**
+     * Number of latencies after which a server's histogram starts over.
+     */
+    private static final long HEDGE_WINDOW = 10000;
+    private static final long HEDGE_DELAY_UPDATE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Settings fSettings;
+    private final long fDeadlineNanos;
+    private final Server[] fServers;
+    private final ExecutorService fExecutor;
+}
@@ -0,0 +1,499 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.jena;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+
+/**
+ * @author resc01
+ *
+ * A memory-mapped snapshot file, see {@link DatasetSnapshot}. Nodes are
+ * decoded and looked up in the file on access, the triple tables are views
+ * of the file, so opening a snapshot reads nothing but the header and the
+ * graph directory. The orders of consecutive graphs share one mapping of up
+ * to 1 GiB, so that a snapshot with many small graphs stays well below the
+ * number of mappings a process may have (vm.max_map_count on Linux).
+ *
+ * The file is little-endian and laid out as follows, each section after
+ * the node data aligned to 8 bytes:
+ *
+ * <pre>
+ * header        magic, version, counts, section offsets, length, CRC32 of the body
+ * node data     per node: int length, byte kind, length-prefixed UTF-8 strings;
+ *               in chunks of 1 GiB that no node crosses
+ * node offsets  long[nodeCount], start of node i + 1 in the node data
+ * node hash     int[hashCapacity], open addressing with linear probing, 0 is free
+ * directory     per graph: int name length (-1 for the default graph), name,
+ *               int triple count, long offset of its orders
+ * orders        per graph: SPO, POS and OSP entries as in {@link TripleTable}
+ * </pre>
+ */
+final class SnapshotFile
+{
+	static final byte[] MAGIC = "IGSNAP\r\n".getBytes(StandardCharsets.US_ASCII);
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 128;
+	static final long CHUNK_SIZE = 1L << 30;
+
+	static final byte URI = 1;
+	static final byte BLANK = 2;
+	static final byte LITERAL = 3;
+
+	// header fields
+	static final int VERSION_POS = 8;
+	static final int NODE_COUNT_POS = 12;
+	static final int GRAPH_COUNT_POS = 16;
+	static final int HASH_CAPACITY_POS = 20;
+	static final int NODE_DATA_LENGTH_POS = 24;
+	static final int NODE_OFFSETS_POS = 32;
+	static final int HASH_POS = 40;
+	static final int DIRECTORY_POS = 48;
+	static final int DIRECTORY_LENGTH_POS = 56;
+	static final int FILE_LENGTH_POS = 64;
+	static final int CHECKSUM_POS = 72;
+
+	//================================================================================
+	// Constructors
+	//================================================================================
+
+	private SnapshotFile(final File file, final int nodeCount, final int hashCapacity, final ByteBuffer[] chunks,
+			final LongBuffer nodeOffsets, final IntBuffer hash, final Map<String, TripleTable> graphs)
+	{
+		fFile = file;
+		fNodeCount = nodeCount;
+		fHashCapacity = hashCapacity;
+		fChunks = chunks;
+		fNodeOffsets = nodeOffsets;
+		fHash = hash;
+		fGraphs = Collections.unmodifiableMap(graphs);
+	}
+
+	/**
+	 * Maps a snapshot file after checking its header and, if verify is true,
+	 * its checksum.
+	 *
+	 * @throws IOException if the file cannot be read or is no valid snapshot
+	 */
+	static SnapshotFile open(final File file, final boolean verify) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			final ByteBuffer header = readHeader(file, channel);
+			final long fileLength = header.getLong(FILE_LENGTH_POS);
+
+			if (verify && checksum(channel, fileLength) != header.getLong(CHECKSUM_POS))
+			{
+				throw new IOException("Snapshot checksum mismatch: " + file);
+			}
+
+			final int nodeCount = header.getInt(NODE_COUNT_POS);
+			final int hashCapacity = header.getInt(HASH_CAPACITY_POS);
+
+			final long nodeDataLength = header.getLong(NODE_DATA_LENGTH_POS);
+			final ByteBuffer[] chunks = new ByteBuffer[(int) ((nodeDataLength + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+			for (int i = 0; i < chunks.length; i++)
+			{
+				final long start = i * CHUNK_SIZE;
+				chunks[i] = map(channel, HEADER_SIZE + start, Math.min(CHUNK_SIZE, nodeDataLength - start));
+			}
+
+			final LongBuffer nodeOffsets = map(channel, header.getLong(NODE_OFFSETS_POS), 8L * nodeCount).asLongBuffer();
+			final IntBuffer hash = map(channel, header.getLong(HASH_POS), 4L * hashCapacity).asIntBuffer();
+
+			final ByteBuffer directory = map(channel, header.getLong(DIRECTORY_POS), header.getLong(DIRECTORY_LENGTH_POS));
+			final Map<String, TripleTable> graphs = new HashMap<String, TripleTable>();
+			ByteBuffer chunk = null;
+			long chunkStart = 0;
+			for (int i = header.getInt(GRAPH_COUNT_POS); i > 0; i--)
+			{
+				final int nameLength = directory.getInt();
+				final String graphURI = nameLength < 0 ? null : readString(directory, nameLength);
+				directory.position(align(directory.position(), 4));
+				final int size = directory.getInt();
+				final long offset = directory.getLong();
+				final long length = 3L * 4 * size;
+
+				if (3 * length > CHUNK_SIZE)
+				{
+					// a graph that fills a chunk on its own gets a mapping per order
+					graphs.put(graphURI, TripleTable.wrap(
+							map(channel, offset, length).asIntBuffer(),
+							map(channel, offset + length, length).asIntBuffer(),
+							map(channel, offset + 2 * length, length).asIntBuffer(),
+							size));
+					continue;
+				}
+
+				if (chunk == null || offset < chunkStart || offset + 3 * length > chunkStart + chunk.capacity())
+				{
+					chunkStart = offset;
+					chunk = map(channel, offset, Math.min(CHUNK_SIZE, fileLength - offset));
+				}
+				final long start = offset - chunkStart;
+				graphs.put(graphURI, TripleTable.wrap(
+						slice(chunk, start, length),
+						slice(chunk, start + length, length),
+						slice(chunk, start + 2 * length, length),
+						size));
+			}
+			return new SnapshotFile(file, nodeCount, hashCapacity, chunks, nodeOffsets, hash, graphs);
+		}
+		catch (RuntimeException e)
+		{
+			throw new IOException("Corrupt snapshot: " + file, e);
+		}
+	}
+
+	/**
+	 * Checks the header and the checksum of a snapshot file.
+	 *
+	 * @throws IOException if the file cannot be read or is no valid snapshot
+	 */
+	static void verify(final File file) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			final ByteBuffer header = readHeader(file, channel);
+			if (checksum(channel, header.getLong(FILE_LENGTH_POS)) != header.getLong(CHECKSUM_POS))
+			{
+				throw new IOException("Snapshot checksum mismatch: " + file);
+			}
+		}
+	}
+
+
+	//================================================================================
+	// Reads
+	//================================================================================
+
+	int getNodeCount()
+	{
+		return fNodeCount;
+	}
+
+	/**
+	 * Returns the tables of the graphs, the default graph has the key null.
+	 */
+	Map<String, TripleTable> getGraphs()
+	{
+		return fGraphs;
+	}
+
+	File getFile()
+	{
+		return fFile;
+	}
+
+	/**
+	 * Returns the ID of a node, or -1 if the snapshot does not contain it.
+	 */
+	int lookup(final Node node)
+	{
+		final byte[] record = encodeNode(node);
+		if (record == null)
+		{
+			return -1;
+		}
+
+		final int mask = fHashCapacity - 1;
+		for (int slot = hash(record) & mask; ; slot = (slot + 1) & mask)
+		{
+			final int id = fHash.get(slot);
+			if (id == 0)
+			{
+				return -1;
+			}
+			if (matches(id, record))
+			{
+				return id;
+			}
+		}
+	}
+
+	/**
+	 * Decodes the node with the given ID, which must be at most
+	 * {@link #getNodeCount()}. Recently decoded nodes are cached, which pays
+	 * off for predicates and classes that occur in many triples.
+	 */
+	Node decode(final int id)
+	{
+		final int slot = id & (DECODE_CACHE_SIZE - 1);
+		final CachedNode cached = fDecodeCache[slot];
+		if (cached != null && cached.fId == id)
+		{
+			return cached.fNode;
+		}
+
+		final Node node = read(id);
+		fDecodeCache[slot] = new CachedNode(id, node);
+		return node;
+	}
+
+	private Node read(final int id)
+	{
+		final ByteBuffer buffer = record(id);
+		buffer.getInt();
+		final byte kind = buffer.get();
+		switch (kind)
+		{
+			case URI:
+				return NodeFactory.createURI(readString(buffer));
+			case BLANK:
+				return NodeFactory.createBlankNode(readString(buffer));
+			case LITERAL:
+				final String lexicalForm = readString(buffer);
+				final String datatypeURI = readString(buffer);
+				final String language = readString(buffer);
+				return language.isEmpty()
+						? NodeFactory.createLiteral(lexicalForm, TypeMapper.getInstance().getSafeTypeByName(datatypeURI))
+						: NodeFactory.createLiteral(lexicalForm, language);
+			default:
+				throw new IllegalStateException("Unknown node kind " + kind + " in snapshot " + fFile);
+		}
+	}
+
+
+	//================================================================================
+	// Encoding, shared with the DatasetSnapshot writer
+	//================================================================================
+
+	/**
+	 * Encodes a node as stored in the node data, or returns null if the node
+	 * cannot be stored, e.g. a variable.
+	 */
+	static byte[] encodeNode(final Node node)
+	{
+		final byte kind;
+		final byte[][] strings;
+		if (node.isURI())
+		{
+			kind = URI;
+			strings = new byte[][] { utf8(node.getURI()) };
+		}
+		else if (node.isBlank())
+		{
+			kind = BLANK;
+			strings = new byte[][] { utf8(node.getBlankNodeLabel()) };
+		}
+		else if (node.isLiteral())
+		{
+			kind = LITERAL;
+			strings = new byte[][] {
+					utf8(node.getLiteralLexicalForm()),
+					utf8(node.getLiteralDatatypeURI()),
+					utf8(node.getLiteralLanguage()) };
+		}
+		else
+		{
+			return null;
+		}
+
+		int length = 4 + 1;
+		for (byte[] string : strings)
+		{
+			length += 4 + string.length;
+		}
+
+		final ByteBuffer record = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		record.putInt(length);
+		record.put(kind);
+		for (byte[] string : strings)
+		{
+			record.putInt(string.length);
+			record.put(string);
+		}
+		return record.array();
+	}
+
+	/**
+	 * Hashes an encoded node for the node hash (FNV-1a with a final mix).
+	 */
+	static int hash(final byte[] record)
+	{
+		int h = 0x811c9dc5;
+		for (byte b : record)
+		{
+			h = (h ^ (b & 0xff)) * 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	/**
+	 * Returns the capacity of the node hash for the given number of nodes,
+	 * a power of two at most half full.
+	 */
+	static int hashCapacity(final int nodeCount)
+	{
+		return Integer.highestOneBit(Math.max(2, nodeCount) * 2 - 1) << 1;
+	}
+
+	static long align(final long position, final int alignment)
+	{
+		return (position + alignment - 1) / alignment * alignment;
+	}
+
+	private static int align(final int position, final int alignment)
+	{
+		return (int) align((long) position, alignment);
+	}
+
+
+	//================================================================================
+	// Helpers
+	//================================================================================
+
+	/**
+	 * An entry of the decode cache, immutable so that readers may race.
+	 */
+	private static final class CachedNode
+	{
+		private final int fId;
+		private final Node fNode;
+
+		CachedNode(final int id, final Node node)
+		{
+			fId = id;
+			fNode = node;
+		}
+	}
+
+	private static ByteBuffer readHeader(final File file, final FileChannel channel) throws IOException
+	{
+		if (channel.size() < HEADER_SIZE)
+		{
+			throw new IOException("Not a graph store snapshot: " + file);
+		}
+
+		final ByteBuffer header = map(channel, 0, HEADER_SIZE);
+		final byte[] magic = new byte[MAGIC.length];
+		header.get(magic);
+		if (!Arrays.equals(magic, MAGIC))
+		{
+			throw new IOException("Not a graph store snapshot: " + file);
+		}
+		if (header.getInt(VERSION_POS) != VERSION)
+		{
+			throw new IOException("Unsupported snapshot version " + header.getInt(VERSION_POS) + ": " + file);
+		}
+		if (header.getLong(FILE_LENGTH_POS) != channel.size())
+		{
+			throw new IOException("Truncated snapshot, expected " + header.getLong(FILE_LENGTH_POS) + " bytes: " + file);
+		}
+		return header;
+	}
+
+	private static long checksum(final FileChannel channel, final long fileLength) throws IOException
+	{
+		final CRC32 crc = new CRC32();
+		for (long position = HEADER_SIZE; position < fileLength; position += CHUNK_SIZE)
+		{
+			crc.update(map(channel, position, Math.min(CHUNK_SIZE, fileLength - position)));
+		}
+		return crc.getValue();
+	}
+
+	private static ByteBuffer map(final FileChannel channel, final long position, final long length) throws IOException
+	{
+		if (length > Integer.MAX_VALUE)
+		{
+			throw new IOException("Snapshot section of " + length + " bytes exceeds the 2 GiB mapping limit");
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Returns the ints of a section of a mapped chunk.
+	 */
+	private static IntBuffer slice(final ByteBuffer chunk, final long position, final long length)
+	{
+		final ByteBuffer section = chunk.duplicate();
+		section.position((int) position);
+		section.limit((int) (position + length));
+		return section.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+	}
+
+	/**
+	 * Returns a buffer positioned at the start of a node record.
+	 */
+	private ByteBuffer record(final int id)
+	{
+		final long offset = fNodeOffsets.get(id - 1);
+		final ByteBuffer buffer = fChunks[(int) (offset / CHUNK_SIZE)].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		buffer.position((int) (offset % CHUNK_SIZE));
+		return buffer;
+	}
+
+	private boolean matches(final int id, final byte[] record)
+	{
+		final ByteBuffer buffer = record(id);
+		final int start = buffer.position();
+		if (buffer.getInt(start) != record.length)
+		{
+			return false;
+		}
+		for (int i = 4; i < record.length; i++)
+		{
+			if (buffer.get(start + i) != record[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] utf8(final String string)
+	{
+		return string != null ? string.getBytes(StandardCharsets.UTF_8) : new byte[0];
+	}
+
+	private static String readString(final ByteBuffer buffer)
+	{
+		return readString(buffer, buffer.getInt());
+	}
+
+	private static String readString(final ByteBuffer buffer, final int length)
+	{
+		final byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private static final int DECODE_CACHE_SIZE = 1 << 14;
+
+	private final File fFile;
+	private final int fNodeCount;
+	private final int fHashCapacity;
+	private final ByteBuffer[] fChunks;
+	private final LongBuffer fNodeOffsets;
+	private final IntBuffer fHash;
+	private final Map<String, TripleTable> fGraphs;
+	private final CachedNode[] fDecodeCache = new CachedNode[DECODE_CACHE_SIZE];
+}
@@ -0,0 +1,257 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.jena;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jena.tdb2.DatabaseMgr;
+import org.apache.jena.tdb2.TDB2Factory;
+
+/**
+ * @author resc01
+ *
+ * The TDB2GraphStore maintains an RDF-Dataset in TDB2.
+ *
+ * Unlike TDB1, TDB2 keeps old versions of the data while they are read
+ * (MVCC), so readers never block the writer and the writer never blocks
+ * readers. Space freed by deletes is only reclaimed by {@link #compact},
+ * which copies the live data into a new generation directory of the
+ * dataset while the store keeps serving reads; writes wait for it.
+ */
+public class TDB2GraphStore extends TDBGraphStore
+{
+	/**
+	 * Receives the progress of a compaction. Methods are called from the
+	 * compacting thread and from a monitor thread.
+	 */
+	public interface CompactionListener
+	{
+		/**
+		 * Called before the live data is copied.
+		 * sizeBefore is the size of the current generation in bytes.
+		 */
+		void started(long sizeBefore);
+
+		/**
+		 * Called periodically with the bytes written to the new generation
+		 * so far. The final size is usually well below sizeBefore.
+		 */
+		void progress(long bytesWritten, long sizeBefore);
+
+		/**
+		 * Called once the store has switched to the new generation.
+		 */
+		void finished(long sizeBefore, long sizeAfter, long millis);
+	}
+
+
+	//================================================================================
+	// Constructors
+	//================================================================================
+
+	/**
+	 * Constructs in-memory TDB2GraphStore with default RDF-dataset.
+	 */
+	public TDB2GraphStore()
+	{
+		super(TDB2Factory.createDataset(), null, null);
+	}
+
+	/**
+	 * Constructs disk-based TDB2GraphStore with default RDF-dataset in user-specified directory.
+	 */
+	public TDB2GraphStore(final String datasetDir)
+	{
+		super(TDB2Factory.connectDataset(datasetDir), datasetDir, null);
+	}
+
+	/**
+	 * Constructs disk-based TDB2GraphStore that commits the writes of
+	 * concurrent threads in groups, see {@link GroupCommitter}.
+	 */
+	public TDB2GraphStore(final String datasetDir, final GroupCommitter.Settings groupCommit)
+	{
+		super(TDB2Factory.connectDataset(datasetDir), datasetDir, groupCommit);
+	}
+
+
+	//================================================================================
+	// Compaction
+	//================================================================================
+
+	/**
+	 * Compacts the dataset without progress reporting, see
+	 * {@link #compact(CompactionListener, boolean)}.
+	 */
+	public void compact(final boolean deleteOld)
+	{
+		compact(null, deleteOld);
+	}
+
+	/**
+	 * Copies the live data into a new generation of the dataset and switches
+	 * to it. Reads continue while the data is copied. Writes, including
+	 * those of the group-commit writer, block until the copy is done and the
+	 * store has switched generations, so they stall for the whole
+	 * compaction: about the time to read and rewrite the live data, which
+	 * the listener reports as the millis of finished and can estimate from
+	 * progress. Compact when few writes are expected. If deleteOld is true,
+	 * the directory of the previous generation is deleted afterwards to
+	 * reclaim the disk space.
+	 *
+	 * @throws IllegalStateException if the dataset is in-memory
+	 */
+	public synchronized void compact(final CompactionListener listener, final boolean deleteOld)
+	{
+		if (getDatasetDir() == null)
+		{
+			throw new IllegalStateException("In-memory datasets cannot be compacted");
+		}
+
+		final File oldGeneration = currentGeneration();
+		final long sizeBefore = oldGeneration != null ? FileUtils.sizeOfDirectory(oldGeneration) : 0;
+		final long start = System.nanoTime();
+
+		if (listener != null)
+		{
+			listener.started(sizeBefore);
+		}
+
+		final ScheduledExecutorService monitor = listener != null ? startMonitor(listener, oldGeneration, sizeBefore) : null;
+		try
+		{
+			DatabaseMgr.compact(getDataset().asDatasetGraph());
+		}
+		finally
+		{
+			if (monitor != null)
+			{
+				monitor.shutdownNow();
+			}
+		}
+
+		final File newGeneration = currentGeneration();
+		final long sizeAfter = newGeneration != null ? FileUtils.sizeOfDirectory(newGeneration) : 0;
+
+		if (deleteOld && oldGeneration != null && !oldGeneration.equals(newGeneration))
+		{
+			try
+			{
+				FileUtils.deleteDirectory(oldGeneration);
+			}
+			catch (IOException e)
+			{
+				LOGGER.log(Level.WARNING, "Could not delete old TDB2 generation " + oldGeneration, e);
+			}
+		}
+
+		if (listener != null)
+		{
+			listener.finished(sizeBefore, sizeAfter, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		}
+	}
+
+	/**
+	 * Returns the size in bytes of the current generation of the dataset,
+	 * or 0 for an in-memory dataset.
+	 */
+	public long getStorageSize()
+	{
+		final File generation = currentGeneration();
+		return generation != null ? FileUtils.sizeOfDirectory(generation) : 0;
+	}
+
+
+	//================================================================================
+	// Helpers
+	//================================================================================
+
+	/**
+	 * Returns the directory of the newest generation, "Data-NNNN" in the
+	 * dataset directory, or null if there is none.
+	 */
+	private File currentGeneration()
+	{
+		if (getDatasetDir() == null)
+		{
+			return null;
+		}
+
+		final File[] generations = new File(getDatasetDir()).listFiles();
+		File current = null;
+		if (generations != null)
+		{
+			for (File generation : generations)
+			{
+				if (generation.isDirectory() && generation.getName().startsWith(GENERATION_PREFIX)
+						&& (current == null || generation.getName().compareTo(current.getName()) > 0))
+				{
+					current = generation;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Reports the size of the generation that is being written until the
+	 * returned executor is shut down.
+	 */
+	private ScheduledExecutorService startMonitor(final CompactionListener listener, final File oldGeneration, final long sizeBefore)
+	{
+		final ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable runnable)
+			{
+				final Thread thread = new Thread(runnable, "igraphstore-tdb2-compaction");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		monitor.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				final File generation = currentGeneration();
+				if (generation != null && !generation.equals(oldGeneration))
+				{
+					try
+					{
+						listener.progress(FileUtils.sizeOfDirectory(generation), sizeBefore);
+					}
+					catch (RuntimeException e)
+					{
+						// files come and go while the generation is written
+					}
+				}
+			}
+		}, PROGRESS_INTERVAL_MILLIS, PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+		return monitor;
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private static final Logger LOGGER = Logger.getLogger(TDB2GraphStore.class.getName());
+
+	private static final String GENERATION_PREFIX = "Data-";
+
+	private static final long PROGRESS_INTERVAL_MILLIS = 500;
+}
@@ -0,0 +1,552 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.jena;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.lang.LabelToNode;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.tdb.StoreConnection;
+import org.apache.jena.tdb.store.DatasetGraphTDB;
+import org.apache.jena.tdb.store.bulkloader.BulkLoader;
+import org.apache.jena.tdb.store.bulkloader.LoaderNodeTupleTable;
+import org.apache.jena.tdb.sys.TDBInternal;
+import org.apache.jena.tdb2.loader.DataLoader;
+import org.apache.jena.tdb2.loader.LoaderFactory;
+
+/**
+ * @author resc01
+ *
+ * Loads N-Quads and TriG files into a TDB1 or TDB2 dataset, see
+ * {@link TDBGraphStore#bulkLoad}.
+ *
+ * The files are parsed in parallel: N-Quads files, which are line-based,
+ * in segments of {@link #SEGMENT_SIZE} bytes, TriG files each as a whole.
+ * Blank node labels are scoped by file, as if every file was parsed in one
+ * piece. The parsers hand the quads in batches to the loading thread, which
+ * passes them to the bulk loader of the TDB version:
+ *
+ * <ul>
+ * <li>TDB2: the parallel loader, which encodes the nodes of a batch at a
+ * time and builds each index on a thread of its own</li>
+ * <li>TDB1: the loaders of the node tuple tables, which, if the dataset is
+ * empty, fill the primary indexes only and build the others from them in
+ * index order afterwards</li>
+ * </ul>
+ */
+final class TDBBulkLoader
+{
+	static final long SEGMENT_SIZE = 64L << 20;
+	static final int BATCH_SIZE = 10000;
+	static final long PROGRESS_INTERVAL_MILLIS = 1000;
+
+	//================================================================================
+	// Constructors
+	//================================================================================
+
+	TDBBulkLoader(final DatasetGraph dsg, final TDBGraphStore.BulkLoadListener listener)
+	{
+		fDatasetGraph = dsg;
+		fListener = listener;
+	}
+
+
+	//================================================================================
+	// Loading
+	//================================================================================
+
+	/**
+	 * Loads the files, which are all in the given language, and returns the
+	 * number of quads read.
+	 */
+	long load(final List<File> files, final Lang lang)
+	{
+		final List<Segment> segments = new ArrayList<Segment>();
+		for (File file : files)
+		{
+			segments.addAll(split(file, lang));
+		}
+
+		final int threads = Math.max(1, Math.min(segments.size(), Runtime.getRuntime().availableProcessors() - 1));
+		final BlockingQueue<List<Quad>> batches = new ArrayBlockingQueue<List<Quad>>(4 * threads);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final AtomicLong quads = new AtomicLong();
+		final long start = System.nanoTime();
+
+		final Destination destination = destination(fDatasetGraph);
+		final ExecutorService parsers = Executors.newFixedThreadPool(threads, daemon("igraphstore-bulkload-parser"));
+		final ScheduledExecutorService monitor = fListener != null ? startMonitor(quads, start) : null;
+		try
+		{
+			destination.start();
+			for (Segment segment : segments)
+			{
+				parsers.execute(() -> parse(segment, lang, batches, failure));
+			}
+
+			int running = segments.size();
+			while (running > 0)
+			{
+				final List<Quad> batch = batches.take();
+				if (batch == END)
+				{
+					running--;
+					if (failure.get() != null)
+					{
+						throw new RuntimeException("Could not parse bulk load input", failure.get());
+					}
+					continue;
+				}
+				for (Quad quad : batch)
+				{
+					destination.add(quad);
+				}
+				quads.addAndGet(batch.size());
+			}
+
+			if (monitor != null)
+			{
+				monitor.shutdownNow();
+				fListener.indexing(quads.get());
+			}
+			destination.finish();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			final CancellationException cancelled = new CancellationException("Bulk load interrupted");
+			abort(destination, cancelled);
+			throw cancelled;
+		}
+		catch (RuntimeException e)
+		{
+			abort(destination, e);
+			throw e;
+		}
+		finally
+		{
+			parsers.shutdownNow();
+			if (monitor != null)
+			{
+				monitor.shutdownNow();
+			}
+		}
+
+		final long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		LOGGER.log(Level.INFO, "Bulk loaded {0} quads in {1} ms ({2} quads/s)",
+				new Object[] { quads.get(), millis, quads.get() * 1000 / millis });
+		if (fListener != null)
+		{
+			fListener.finished(quads.get(), millis, quads.get() * 1000 / millis);
+		}
+		return quads.get();
+	}
+
+
+	//================================================================================
+	// Parsing
+	//================================================================================
+
+	/**
+	 * A part of a file that is parsed on its own. The segments of a file
+	 * share the scope of its blank node labels.
+	 */
+	private static class Segment
+	{
+		final File fFile;
+		final long fStart;
+		final long fLength;
+		final UUID fScope;
+
+		Segment(final File file, final long start, final long length, final UUID scope)
+		{
+			fFile = file;
+			fStart = start;
+			fLength = length;
+			fScope = scope;
+		}
+	}
+
+	/**
+	 * Splits an N-Quads file into segments that end at line breaks. Files in
+	 * other languages are a single segment.
+	 */
+	private static List<Segment> split(final File file, final Lang lang)
+	{
+		final long length = file.length();
+		final UUID scope = UUID.randomUUID();
+		if (!Lang.NQUADS.equals(lang) || length <= SEGMENT_SIZE)
+		{
+			return Collections.singletonList(new Segment(file, 0, length, scope));
+		}
+
+		final List<Segment> segments = new ArrayList<Segment>();
+		try (FileInputStream in = new FileInputStream(file))
+		{
+			long start = 0;
+			while (start < length)
+			{
+				long end = Math.min(length, start + SEGMENT_SIZE);
+				if (end < length)
+				{
+					in.getChannel().position(end);
+					final InputStream rest = new BufferedInputStream(in, 1 << 16);
+					int b;
+					while ((b = rest.read()) >= 0 && b != '\n')
+					{
+						end++;
+					}
+					end = Math.min(length, end + 1);
+				}
+				segments.add(new Segment(file, start, end - start, scope));
+				start = end;
+			}
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException("Could not read " + file, e);
+		}
+		return segments;
+	}
+
+	/**
+	 * Parses a segment into batches of quads, followed by END, also if the
+	 * segment cannot be parsed.
+	 */
+	private static void parse(final Segment segment, final Lang lang, final BlockingQueue<List<Quad>> batches, final AtomicReference<Throwable> failure)
+	{
+		final StreamRDF sink = new StreamRDFBase()
+		{
+			private List<Quad> fBatch = new ArrayList<Quad>(BATCH_SIZE);
+
+			@Override
+			public void triple(final Triple triple)
+			{
+				quad(new Quad(Quad.defaultGraphNodeGenerated, triple));
+			}
+
+			@Override
+			public void quad(final Quad quad)
+			{
+				fBatch.add(quad);
+				if (fBatch.size() == BATCH_SIZE)
+				{
+					flush();
+				}
+			}
+
+			@Override
+			public void finish()
+			{
+				if (!fBatch.isEmpty())
+				{
+					flush();
+				}
+			}
+
+			private void flush()
+			{
+				put(batches, fBatch);
+				fBatch = new ArrayList<Quad>(BATCH_SIZE);
+			}
+		};
+
+		boolean cancelled = false;
+		try (FileInputStream file = new FileInputStream(segment.fFile))
+		{
+			file.getChannel().position(segment.fStart);
+			final InputStream in = new BufferedInputStream(new BoundedInputStream(file, segment.fLength), 1 << 16);
+			RDFParser.create()
+					.source(in)
+					.lang(lang)
+					.base(segment.fFile.toURI().toString())
+					.labelToNode(LabelToNode.createScopeByDocumentHash(segment.fScope))
+					.parse(sink);
+		}
+		catch (CancellationException e)
+		{
+			cancelled = true;
+		}
+		catch (Throwable e)
+		{
+			// also errors, e.g. a StackOverflowError on deeply nested TriG, so that load() learns of them
+			failure.compareAndSet(null, new RuntimeException("Could not parse " + segment.fFile + " from byte " + segment.fStart, e));
+		}
+		finally
+		{
+			if (!cancelled)
+			{
+				put(batches, END);
+			}
+		}
+	}
+
+	private static void put(final BlockingQueue<List<Quad>> batches, final List<Quad> batch)
+	{
+		try
+		{
+			batches.put(batch);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new CancellationException();
+		}
+	}
+
+
+	//================================================================================
+	// Destinations
+	//================================================================================
+
+	/**
+	 * Receives the quads on the loading thread.
+	 */
+	private interface Destination
+	{
+		void start();
+
+		void add(Quad quad);
+
+		/**
+		 * Completes the indexes and syncs the dataset.
+		 */
+		void finish();
+
+		void abort(Exception e);
+	}
+
+	private static Destination destination(final DatasetGraph dsg)
+	{
+		if (TDBInternal.isTDB1(dsg))
+		{
+			return new TDB1(dsg);
+		}
+		if (org.apache.jena.tdb2.sys.TDBInternal.isTDB2(dsg))
+		{
+			return new TDB2(dsg);
+		}
+		throw new IllegalStateException("Bulk loading needs a TDB dataset");
+	}
+
+	/**
+	 * Loads into the storage of a TDB1 dataset below its transactions, which
+	 * is why no transaction may be active; TDBGraphStore.bulkLoad keeps the
+	 * transactions of the store out meanwhile. A failed load leaves the quads
+	 * read so far in the dataset.
+	 */
+	private static class TDB1 implements Destination
+	{
+		private final DatasetGraphTDB fDataset;
+		private final LoaderNodeTupleTable fTriples;
+		private final LoaderNodeTupleTable fQuads;
+		private boolean fFinished = false;
+
+		TDB1(final DatasetGraph dsg)
+		{
+			final StoreConnection connection = TDBInternal.getStoreConnection(dsg);
+			if (connection.activeTransactions())
+			{
+				throw new IllegalStateException("Cannot bulk load a TDB dataset while transactions are active");
+			}
+			connection.flush();
+
+			fDataset = TDBInternal.getBaseDatasetGraphTDB(dsg);
+			fTriples = new LoaderNodeTupleTable(fDataset.getTripleTable().getNodeTupleTable(), "triples",
+					BulkLoader.createLoadMonitor(fDataset, "triples", false));
+			fQuads = new LoaderNodeTupleTable(fDataset.getQuadTable().getNodeTupleTable(), "quads",
+					BulkLoader.createLoadMonitor(fDataset, "quads", false));
+		}
+
+		@Override
+		public void start()
+		{
+			fTriples.loadStart();
+			fQuads.loadStart();
+			fTriples.loadDataStart();
+			fQuads.loadDataStart();
+		}
+
+		@Override
+		public void add(final Quad quad)
+		{
+			if (quad.isTriple() || quad.isDefaultGraph())
+			{
+				fTriples.load(quad.getSubject(), quad.getPredicate(), quad.getObject());
+			}
+			else
+			{
+				fQuads.load(quad.getGraph(), quad.getSubject(), quad.getPredicate(), quad.getObject());
+			}
+		}
+
+		@Override
+		public void finish()
+		{
+			fFinished = true;
+			fTriples.loadDataFinish();
+			fQuads.loadDataFinish();
+			fTriples.loadIndexStart();
+			fQuads.loadIndexStart();
+			fTriples.loadIndexFinish();
+			fQuads.loadIndexFinish();
+			fTriples.loadFinish();
+			fQuads.loadFinish();
+
+			fDataset.getTripleTable().getNodeTupleTable().getNodeTable().sync();
+			fDataset.getQuadTable().getNodeTupleTable().getNodeTable().sync();
+			fDataset.sync();
+		}
+
+		/**
+		 * Still builds the secondary indexes, which are dropped while
+		 * loading into an empty dataset.
+		 */
+		@Override
+		public void abort(final Exception e)
+		{
+			if (!fFinished)
+			{
+				finish();
+			}
+		}
+	}
+
+	/**
+	 * Loads into a TDB2 dataset in a transaction of its own, so a failed
+	 * load leaves the dataset unchanged.
+	 */
+	private static class TDB2 implements Destination
+	{
+		private final DataLoader fLoader;
+		private StreamRDF fStream;
+
+		TDB2(final DatasetGraph dsg)
+		{
+			fLoader = LoaderFactory.parallelLoader(dsg,
+					(format, args) -> LOGGER.log(Level.FINE, String.format(format, args)));
+		}
+
+		@Override
+		public void start()
+		{
+			fLoader.startBulk();
+			fStream = fLoader.stream();
+			fStream.start();
+		}
+
+		@Override
+		public void add(final Quad quad)
+		{
+			if (quad.isTriple() || quad.isDefaultGraph())
+			{
+				fStream.triple(quad.asTriple());
+			}
+			else
+			{
+				fStream.quad(quad);
+			}
+		}
+
+		@Override
+		public void finish()
+		{
+			fStream.finish();
+			fLoader.finishBulk();
+		}
+
+		@Override
+		public void abort(final Exception e)
+		{
+			fLoader.finishException(e);
+		}
+	}
+
+
+	//================================================================================
+	// Helpers
+	//================================================================================
+
+	private static void abort(final Destination destination, final RuntimeException e)
+	{
+		try
+		{
+			destination.abort(e);
+		}
+		catch (RuntimeException suppressed)
+		{
+			e.addSuppressed(suppressed);
+		}
+	}
+
+	/**
+	 * Reports the quads loaded so far until the returned executor is shut
+	 * down.
+	 */
+	private ScheduledExecutorService startMonitor(final AtomicLong quads, final long start)
+	{
+		final ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(daemon("igraphstore-bulkload-monitor"));
+		monitor.scheduleWithFixedDelay(() -> {
+			final long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			fListener.progress(quads.get(), quads.get() * 1000 / millis);
+		}, PROGRESS_INTERVAL_MILLIS, PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+		return monitor;
+	}
+
+	private static ThreadFactory daemon(final String name)
+	{
+		final AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			final Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private static final Logger LOGGER = Logger.getLogger(TDBBulkLoader.class.getName());
+
+	/**
+	 * Marks the end of the quads of a segment.
+	 */
+	private static final List<Quad> END = Collections.unmodifiableList(new ArrayList<Quad>());
+
+	private final DatasetGraph fDatasetGraph;
+	private final TDBGraphStore.BulkLoadListener fListener;
+}
@@ -5,12 +5,51 @@
  */
 package de.dfki.resc28.igraphstore.jena;
 
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphUtil;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.query.Dataset;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
 import org.apache.jena.query.ReadWrite;
+import org.apache.jena.query.ResultSetFormatter;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.resultset.ResultsFormat;
 import org.apache.jena.tdb.TDBFactory;
+import org.apache.jena.util.iterator.ExtendedIterator;
 
+import de.dfki.resc28.igraphstore.CloseableIterator;
+import de.dfki.resc28.igraphstore.Constants;
+import de.dfki.resc28.igraphstore.GraphBatch;
+import de.dfki.resc28.igraphstore.GraphStats;
 import de.dfki.resc28.igraphstore.IGraphStore;
+import de.dfki.resc28.igraphstore.metrics.MetricsRegistry;
+import de.dfki.resc28.igraphstore.util.PagedIterator;
+import de.dfki.resc28.igraphstore.util.RDFStreams;
 
 /**
  * @author resc01
@@ -25,6 +64,31 @@ import de.dfki.resc28.igraphstore.IGraphStore;
  */
 public class TDBGraphStore implements IGraphStore 
 {
+	/**
+	 * Receives the progress of a bulk load. Methods are called from the
+	 * loading thread and from a monitor thread.
+	 */
+	public interface BulkLoadListener
+	{
+		/**
+		 * Called every second while the input is read, with the quads read
+		 * so far and the average rate since the start.
+		 */
+		void progress(long quads, long quadsPerSecond);
+
+		/**
+		 * Called once all input is read, before the remaining index work
+		 * is done.
+		 */
+		void indexing(long quads);
+
+		/**
+		 * Called once the loaded data is indexed and synced.
+		 */
+		void finished(long quads, long millis, long quadsPerSecond);
+	}
+
+
 	//================================================================================
 	// Constructors
 	//================================================================================
@@ -45,6 +109,31 @@ public class TDBGraphStore implements IGraphStore
 		fDatasetDir = datasetDir;
 		fDataset = TDBFactory.createDataset(fDatasetDir);
 	}
+	
+	/**
+	 * Constructs disk-based TDBGraphStore that commits the writes of 
+	 * concurrent threads in groups, see {@link GroupCommitter}. 
+	 * Writes from input streams are not grouped.
+	 */
+	public TDBGraphStore(final String datasetDir, final GroupCommitter.Settings groupCommit)
+	{
+		this(TDBFactory.createDataset(datasetDir), datasetDir, groupCommit);
+	}
+	
+	/**
+	 * Constructs a TDBGraphStore on a transactional dataset, e.g. of another 
+	 * TDB version. The dataset directory is null for in-memory datasets, 
+	 * group commit is disabled if groupCommit is null.
+	 */
+	protected TDBGraphStore(final Dataset dataset, final String datasetDir, final GroupCommitter.Settings groupCommit)
+	{
+		fDataset = dataset;
+		fDatasetDir = datasetDir;
+		if (groupCommit != null)
+		{
+			fGroupCommitter = new GroupCommitter(fDataset, fLoadLock.readLock(), groupCommit);
+		}
+	}
 
 
 	//================================================================================
@@ -53,19 +142,15 @@ public class TDBGraphStore implements IGraphStore
 
 	/**
 	 * Gets the default graph by name as a Jena Model from the RDF-Dataset.
+	 * The graph is copied into memory, since views of the dataset cannot 
+	 * be read outside of a transaction. The copy belongs to the caller and 
+	 * does not change with the dataset. Use {@link #read(String, Function)} 
+	 * to read the graph without copying it.
 	 */
 	@Override
 	public Model getDefaultGraph()
 	{
-		Model graph = null;
-		
-		fDataset.begin(ReadWrite.READ);
-		
-		graph = fDataset.getDefaultModel(); 
-		
-		fDataset.end();
-		
-		return graph;
+		return read(null, TDBGraphStore::copy);
 	}
 	
 	/**
@@ -74,12 +159,7 @@ public class TDBGraphStore implements IGraphStore
 	@Override
 	public void replaceDefaultGraph(final Model model)
 	{
-		fDataset.begin(ReadWrite.WRITE);
-		
-		fDataset.setDefaultModel(model);
-		
-		fDataset.commit();
-		fDataset.end();
+		write(() -> doReplaceDefaultGraph(model));
 	}
 
 	/**
@@ -88,12 +168,7 @@ public class TDBGraphStore implements IGraphStore
 	@Override
 	public void addToDefaultGraph(final Model model) 
 	{
-		fDataset.begin(ReadWrite.WRITE);
-		
-		fDataset.setDefaultModel(fDataset.getDefaultModel().add(model));
-		
-		fDataset.commit();
-		fDataset.end();
+		write(() -> doAddToDefaultGraph(model));
 	}
 
 	/**
@@ -102,12 +177,7 @@ public class TDBGraphStore implements IGraphStore
 	@Override
 	public void clearDefaultGraph()
 	{
-		fDataset.begin(ReadWrite.WRITE);
-		
-		fDataset.setDefaultModel(fDataset.getDefaultModel().removeAll());
-		
-		fDataset.commit();
-		fDataset.end();	
+		write(() -> doClearDefaultGraph());
 	}
 
 	//================================================================================
@@ -120,34 +190,126 @@ public class TDBGraphStore implements IGraphStore
 	@Override
 	public boolean containsNamedGraph(final String graphURI) 
 	{
-		return fDataset.containsNamedModel(graphURI);
+		begin(ReadWrite.READ);
+		
+		try
+		{
+			return fDataset.containsNamedModel(graphURI);
+		}
+		finally
+		{
+			end();
+		}
 	}
 	
 	/**
 	 * Gets a graph by name as a Jena Model from the RDF-Dataset.
 	 * Defaults to background graph as a Jena Model.
+	 * The graph is copied into memory within the transaction; the copy 
+	 * belongs to the caller and does not change with the dataset. Use 
+	 * {@link #read(String, Function)} to read the graph without copying it.
 	 * Implemented transactionally.
 	 */
 	@Override
 	public Model getNamedGraph(final String graphURI) 
 	{
-		Model graph = null;
+		begin(ReadWrite.READ);
 		
-		fDataset.begin(ReadWrite.READ);
-		
-		// http://bit.ly/1U4TS85 
-		if (fDataset.containsNamedModel(graphURI))
+		try
 		{
-			graph = fDataset.getNamedModel(graphURI);
+			// http://bit.ly/1U4TS85 
+			if (fDataset.containsNamedModel(graphURI))
+			{
+				return copy(fDataset.getNamedModel(graphURI));
+			}
+			else
+			{
+				return copy(fDataset.getDefaultModel());
+			}
 		}
-		else
+		finally
 		{
-			graph = fDataset.getDefaultModel();
+			end();
 		}
+	}
+
+	/**
+	 * Gets several graphs in one read transaction. Each graph is copied into 
+	 * memory when the iterator reaches it; the transaction stays open until 
+	 * the iterator is exhausted or closed, so the iterator must be consumed 
+	 * on the calling thread.
+	 */
+	@Override
+	public CloseableIterator<Map.Entry<String, Model>> getNamedGraphs(final Collection<String> graphURIs)
+	{
+		final Iterator<String> uris = new LinkedHashSet<String>(graphURIs).iterator();
 		
-		fDataset.end();
+		begin(ReadWrite.READ);
 		
-		return graph;
+		return new CloseableIterator<Map.Entry<String, Model>>()
+		{
+			private Map.Entry<String, Model> fNext = null;
+			private boolean fClosed = false;
+			
+			@Override
+			public boolean hasNext()
+			{
+				if (fClosed)
+				{
+					return false;
+				}
+				try
+				{
+					while (fNext == null && uris.hasNext())
+					{
+						final String graphURI = uris.next();
+						if (fDataset.containsNamedModel(graphURI))
+						{
+							fNext = new AbstractMap.SimpleImmutableEntry<String, Model>(graphURI, copy(fDataset.getNamedModel(graphURI)));
+						}
+					}
+				}
+				catch (RuntimeException e)
+				{
+					close();
+					throw e;
+				}
+				if (fNext != null)
+				{
+					return true;
+				}
+				close();
+				return false;
+			}
+
+			@Override
+			public Map.Entry<String, Model> next()
+			{
+				if (!hasNext())
+				{
+					throw new NoSuchElementException();
+				}
+				final Map.Entry<String, Model> next = fNext;
+				fNext = null;
+				return next;
+			}
+
+			@Override
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close()
+			{
+				if (!fClosed)
+				{
+					fClosed = true;
+					end();
+				}
+			}
+		};
 	}
 
 	/**
@@ -157,77 +319,957 @@ public class TDBGraphStore implements IGraphStore
 	@Override
 	public void deleteNamedGraph(final String graphURI) 
 	{
-		fDataset.begin(ReadWrite.WRITE);
+		write(() -> doDeleteNamedGraph(graphURI));
+	}
+
+	/**
+	 * Replaces a named graph in the RDF-Dataset by the given model.
+	 */
+	@Override
+	public void replaceNamedGraph(final String graphURI, final Model model) 
+	{
+		write(() -> doReplaceNamedGraph(graphURI, model));
+	}
+
+	/**
+	 * Adds the statements of the given model to the named graph in the RDF-Dataset.
+	 */
+	@Override
+	public void addToNamedGraph(final String graphURI, final Model model) 
+	{
+		write(() -> doAddToNamedGraph(graphURI, model));
+	}
+
+	/**
+	 * Creates a graph in the RDF-Dataset by name with the given model.
+	 */
+	@Override
+	public void createNamedGraph(final String graphURI, final Model model) 
+	{
+		write(() -> doCreateNamedGraph(graphURI, model));
+	}
+
+	
+	/**
+	 * Replaces a named graph in the RDF-Dataset by the RDF read from the input stream.
+	 * The input is parsed straight into the dataset, no intermediate model is built.
+	 * Implemented transactionally.
+	 */
+	@Override
+	public void replaceNamedGraph(final String graphURI, final InputStream inStream, final String contentType)
+	{
+		final Lang lang = RDFStreams.toLang(contentType);
 		
-		if (fDataset.containsNamedModel(graphURI))
+		begin(ReadWrite.WRITE);
+		
+		try
 		{
-			fDataset.removeNamedModel(graphURI);
+			if (fDataset.containsNamedModel(graphURI))
+			{
+				final Node graphName = NodeFactory.createURI(graphURI);
+				final DatasetGraph dsg = fDataset.asDatasetGraph();
+				
+				dsg.deleteAny(graphName, Node.ANY, Node.ANY, Node.ANY);
+				RDFDataMgr.parse(RDFStreams.toGraph(dsg.getGraph(graphName)), inStream, lang);
+			}
+			
+			fDataset.commit();
+		}
+		catch (RuntimeException e)
+		{
+			fDataset.abort();
+			throw e;
+		}
+		finally
+		{
+			end();
 		}
+	}
+	
+	/**
+	 * Adds the RDF read from the input stream to the named graph in the RDF-Dataset.
+	 * The input is parsed straight into the dataset, no intermediate model is built.
+	 * Implemented transactionally.
+	 */
+	@Override
+	public void addToNamedGraph(final String graphURI, final InputStream inStream, final String contentType)
+	{
+		final Lang lang = RDFStreams.toLang(contentType);
 		
-		fDataset.commit();
-		fDataset.end();
+		begin(ReadWrite.WRITE);
+		
+		try
+		{
+			final Graph graph = fDataset.asDatasetGraph().getGraph(NodeFactory.createURI(graphURI));
+			
+			RDFDataMgr.parse(RDFStreams.toGraph(graph), inStream, lang);
+			
+			fDataset.commit();
+		}
+		catch (RuntimeException e)
+		{
+			fDataset.abort();
+			throw e;
+		}
+		finally
+		{
+			end();
+		}
 	}
 
+	
 	/**
-	 * Replaces a named graph in the RDF-Dataset by the given model.
+	 * Writes a named graph to the output stream in the given RDF content type.
+	 * Triples are read from the quad indexes while they are written.
+	 * Implemented transactionally.
 	 */
 	@Override
-	public void replaceNamedGraph(final String graphURI, final Model model) 
+	public void writeNamedGraph(final String graphURI, final OutputStream outStream, final String contentType)
 	{
-		fDataset.begin(ReadWrite.WRITE);
+		RDFStreams.toLang(contentType);
 		
-		if (fDataset.containsNamedModel(graphURI))
+		begin(ReadWrite.READ);
+		
+		try
 		{
+			final ExtendedIterator<Triple> triples = findTriples(graphURI);
+			try
+			{
+				RDFStreams.writeTriples(outStream, triples, contentType);
+			}
+			finally
+			{
+				triples.close();
+			}
+		}
+		finally
+		{
+			end();
+		}
+	}
+	
+	/**
+	 * Sends the triples of a named graph to the sink.
+	 * Triples are read from the quad indexes while they are sent.
+	 * Implemented transactionally.
+	 */
+	@Override
+	public void streamNamedGraph(final String graphURI, final StreamRDF sink)
+	{
+		begin(ReadWrite.READ);
+		
+		try
+		{
+			final ExtendedIterator<Triple> triples = findTriples(graphURI);
+			try
+			{
+				sink.start();
+				while (triples.hasNext())
+				{
+					sink.triple(triples.next());
+				}
+				sink.finish();
+			}
+			finally
+			{
+				triples.close();
+			}
+		}
+		finally
+		{
+			end();
+		}
+	}
+	
+	/**
+	 * Finds the triples of a named graph that match the given pattern.
+	 * The pattern is answered from the best matching quad index. The read 
+	 * transaction stays open until the iterator is exhausted or closed, 
+	 * so the iterator must be consumed on the calling thread.
+	 */
+	@Override
+	public CloseableIterator<Triple> find(final String graphURI, final Node s, final Node p, final Node o)
+	{
+		begin(ReadWrite.READ);
+		
+		try
+		{
+			final ExtendedIterator<Triple> triples = fDataset.asDatasetGraph()
+					.getGraph(NodeFactory.createURI(graphURI)).find(s, p, o);
 			
-			fDataset.replaceNamedModel(graphURI, model);
+			return new CloseableIterator<Triple>()
+			{
+				private boolean fClosed = false;
+				
+				@Override
+				public boolean hasNext()
+				{
+					if (fClosed)
+					{
+						return false;
+					}
+					if (triples.hasNext())
+					{
+						return true;
+					}
+					close();
+					return false;
+				}
+
+				@Override
+				public Triple next()
+				{
+					if (!hasNext())
+					{
+						throw new NoSuchElementException();
+					}
+					return triples.next();
+				}
+
+				@Override
+				public void remove()
+				{
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public void close()
+				{
+					if (!fClosed)
+					{
+						fClosed = true;
+						triples.close();
+						end();
+					}
+				}
+			};
+		}
+		catch (RuntimeException e)
+		{
+			end();
+			throw e;
 		}
+	}
+	
+	/**
+	 * Copies a model into memory. Must be called inside a transaction.
+	 */
+	private static Model copy(final Model model)
+	{
+		final Model copy = ModelFactory.createDefaultModel();
+		copy.setNsPrefixes(model.getNsPrefixMap());
+		copy.add(model);
+		return copy;
+	}
+	
+	/**
+	 * Iterates all triples of a named graph. Must be called inside a transaction.
+	 */
+	private ExtendedIterator<Triple> findTriples(final String graphURI)
+	{
+		return fDataset.asDatasetGraph().getGraph(NodeFactory.createURI(graphURI)).find(Node.ANY, Node.ANY, Node.ANY);
+	}
+
+
+	//================================================================================
+	// Scoped access
+	//================================================================================
+
+	/**
+	 * Runs the reader on a graph inside a read transaction and returns its 
+	 * result. The model is a view of the dataset, nothing is copied; it is 
+	 * only valid until the reader returns and must not escape it, neither 
+	 * itself nor any of its statements, resources or iterators. A null 
+	 * graph URI denotes the default graph, a graph that does not exist reads 
+	 * as empty. The reader must not call other methods of this store.
+	 * 
+	 * E.g. read(uri, graph -> graph.contains(s, p)) answers from the indexes
+	 * without materializing the graph.
+	 */
+	public <T> T read(final String graphURI, final Function<Model, T> reader)
+	{
+		begin(ReadWrite.READ);
 		
-		fDataset.commit();
-		fDataset.end();
+		try
+		{
+			return reader.apply(model(graphURI));
+		}
+		finally
+		{
+			end();
+		}
+	}
+	
+	/**
+	 * Runs the writer on a graph inside a write transaction that is committed 
+	 * once the writer returns, or aborted if it throws. The writer changes 
+	 * the model in place, so only the quads it adds or removes are written. 
+	 * The model must not escape the writer. A null graph URI denotes the 
+	 * default graph; a named graph that does not exist is created by adding 
+	 * statements to it. The writer must not call other methods of this store.
+	 * 
+	 * With group commit the writer runs on the group-commit thread and is 
+	 * run again if another write of its group fails, so it must not have 
+	 * side effects outside the model.
+	 */
+	public void write(final String graphURI, final Consumer<Model> writer)
+	{
+		write(() -> writer.accept(model(graphURI)));
+	}
+	
+	/**
+	 * Returns the dataset view of a graph. Must be called inside a transaction.
+	 */
+	private Model model(final String graphURI)
+	{
+		return (graphURI == null) ? fDataset.getDefaultModel() : fDataset.getNamedModel(graphURI);
 	}
 
+
+	//================================================================================
+	// Query-related Methods
+	//================================================================================
+
 	/**
-	 * Adds the statements of the given model to the named graph in the RDF-Dataset.
+	 * Evaluates a SPARQL ASK query against the RDF-Dataset.
+	 * Implemented transactionally.
 	 */
 	@Override
-	public void addToNamedGraph(final String graphURI, final Model model) 
+	public boolean ask(final String queryString)
 	{
-		fDataset.begin(ReadWrite.WRITE);
+		begin(ReadWrite.READ);
 		
-		fDataset.replaceNamedModel(graphURI, fDataset.getNamedModel(graphURI).add(model));
+		try (QueryExecution qe = QueryExecutionFactory.create(queryString, fDataset))
+		{
+			return qe.execAsk();
+		}
+		finally
+		{
+			end();
+		}
+	}
+
+	/**
+	 * Streams the results of a SPARQL SELECT query as SPARQL results in JSON.
+	 * Implemented transactionally.
+	 */
+	@Override
+	public void select(final OutputStream outStream, final String queryString)
+	{
+		select(outStream, queryString, Constants.CT_APPLICATION_SPARQLRESULTS_JSON);
+	}
+
+	/**
+	 * Streams the results of a SPARQL SELECT query in the given result format.
+	 * Rows are written while the query is evaluated, never collected in memory.
+	 * Implemented transactionally.
+	 */
+	@Override
+	public void select(final OutputStream outStream, final String queryString, final String contentType)
+	{
+		final ResultsFormat format = RDFStreams.toResultsFormat(contentType);
 		
-		fDataset.commit();
-		fDataset.end();
+		begin(ReadWrite.READ);
+		
+		try (QueryExecution qe = QueryExecutionFactory.create(queryString, fDataset))
+		{
+			ResultSetFormatter.output(outStream, qe.execSelect(), format);
+		}
+		finally
+		{
+			end();
+		}
 	}
 
 	/**
-	 * Creates a graph in the RDF-Dataset by name with the given model.
+	 * Streams the triples of a SPARQL CONSTRUCT query in the given RDF content type.
+	 * Implemented transactionally.
 	 */
 	@Override
-	public void createNamedGraph(final String graphURI, final Model model) 
+	public void construct(final OutputStream outStream, final String queryString, final String contentType)
+	{
+		begin(ReadWrite.READ);
+		
+		try (QueryExecution qe = QueryExecutionFactory.create(queryString, fDataset))
+		{
+			RDFStreams.writeTriples(outStream, qe.execConstructTriples(), contentType);
+		}
+		finally
+		{
+			end();
+		}
+	}
+
+	/**
+	 * Streams the triples of a SPARQL DESCRIBE query in the given RDF content type.
+	 * Implemented transactionally.
+	 */
+	@Override
+	public void describe(final OutputStream outStream, final String queryString, final String contentType)
+	{
+		begin(ReadWrite.READ);
+		
+		try (QueryExecution qe = QueryExecutionFactory.create(queryString, fDataset))
+		{
+			RDFStreams.writeTriples(outStream, qe.execDescribeTriples(), contentType);
+		}
+		finally
+		{
+			end();
+		}
+	}
+
+
+	//================================================================================
+	// Catalog-related Methods
+	//================================================================================
+
+	/**
+	 * Lists the named graphs by seeking from one graph to the next in the 
+	 * GSPO index, without reading their triples. Each page of graphs is 
+	 * read in a read transaction of its own.
+	 */
+	@Override
+	public CloseableIterator<String> listNamedGraphs()
+	{
+		return new PagedIterator<String>(GRAPH_PAGE_SIZE)
+		{
+			@Override
+			protected List<String> fetch(final String after, final int limit)
+			{
+				return listNamedGraphs(after, limit);
+			}
+		};
+	}
+
+	/**
+	 * Counts the keys of the graph in the GSPO index, or in the SPO index 
+	 * for the default graph, without decoding its triples.
+	 * Implemented transactionally.
+	 */
+	@Override
+	public long graphSize(final String graphURI)
+	{
+		begin(ReadWrite.READ);
+		
+		try
+		{
+			final TDBIndexes indexes = TDBIndexes.of(fDataset.asDatasetGraph());
+			if (indexes == null)
+			{
+				return model(graphURI).size();
+			}
+			if (graphURI == null)
+			{
+				return indexes.count(TDBIndexes.SPO, new byte[0], -1)[0];
+			}
+			
+			final byte[] graph = indexes.nodeId(NodeFactory.createURI(graphURI));
+			return (graph == null) ? 0 : indexes.count(TDBIndexes.GSPO, graph, -1)[0];
+		}
+		finally
+		{
+			end();
+		}
+	}
+
+	/**
+	 * Computes the statistics of a graph from the indexes: triples and 
+	 * subjects in one pass over the graph's range of the GSPO index, 
+	 * predicates by seeking through its range of the GPOS index. For the 
+	 * default graph the SPO and POS indexes are used.
+	 * Implemented transactionally.
+	 */
+	@Override
+	public GraphStats getGraphStats(final String graphURI)
+	{
+		begin(ReadWrite.READ);
+		
+		try
+		{
+			final TDBIndexes indexes = TDBIndexes.of(fDataset.asDatasetGraph());
+			if (indexes == null)
+			{
+				return statsOf(graphURI);
+			}
+			if (graphURI == null)
+			{
+				final long[] counts = indexes.count(TDBIndexes.SPO, new byte[0], 0);
+				return new GraphStats(null, counts[0], counts[1], indexes.countDistinct(TDBIndexes.POS, new byte[0]), GraphStats.UNKNOWN);
+			}
+			
+			final byte[] graph = indexes.nodeId(NodeFactory.createURI(graphURI));
+			if (graph == null)
+			{
+				return null;
+			}
+			final long[] counts = indexes.count(TDBIndexes.GSPO, graph, TDBIndexes.ID);
+			if (counts[0] == 0)
+			{
+				return null;
+			}
+			return new GraphStats(graphURI, counts[0], counts[1], indexes.countDistinct(TDBIndexes.GPOS, graph), GraphStats.UNKNOWN);
+		}
+		finally
+		{
+			end();
+		}
+	}
+	
+	/**
+	 * Lists at most limit named graphs following the given one. The page 
+	 * resumes at the node id of the last graph, which stays the same as 
+	 * long as the node is in the node table.
+	 */
+	private List<String> listNamedGraphs(final String after, final int limit)
+	{
+		begin(ReadWrite.READ);
+		
+		try
+		{
+			final List<String> graphs = new ArrayList<String>();
+			final TDBIndexes indexes = TDBIndexes.of(fDataset.asDatasetGraph());
+			if (indexes == null)
+			{
+				// not paged, the first page holds all graphs
+				if (after == null)
+				{
+					fDataset.listNames().forEachRemaining(graphs::add);
+				}
+				return graphs;
+			}
+			
+			byte[] graph = (after == null) ? null : indexes.nodeId(NodeFactory.createURI(after));
+			if (after != null && graph == null)
+			{
+				return graphs;
+			}
+			while (graphs.size() < limit && (graph = indexes.nextGraph(graph)) != null)
+			{
+				final Node node = indexes.node(graph, 0);
+				if (node.isURI())
+				{
+					graphs.add(node.getURI());
+				}
+			}
+			return graphs;
+		}
+		finally
+		{
+			end();
+		}
+	}
+	
+	/**
+	 * Computes the statistics of a graph with the Graph API, for datasets 
+	 * that are not stored in TDB. Must be called inside a transaction.
+	 */
+	private GraphStats statsOf(final String graphURI)
+	{
+		if (graphURI != null && !fDataset.containsNamedModel(graphURI))
+		{
+			return null;
+		}
+		
+		final Graph graph = model(graphURI).getGraph();
+		final Set<Node> subjects = new HashSet<Node>();
+		final Set<Node> predicates = new HashSet<Node>();
+		long size = 0;
+		for (ExtendedIterator<Triple> it = graph.find(); it.hasNext(); size++)
+		{
+			final Triple triple = it.next();
+			subjects.add(triple.getSubject());
+			predicates.add(triple.getPredicate());
+		}
+		return new GraphStats(graphURI, size, subjects.size(), predicates.size(), GraphStats.UNKNOWN);
+	}
+
+
+	//================================================================================
+	// Delta-related Methods
+	//================================================================================
+
+	/**
+	 * Removes the removals from and adds the additions to a graph.
+	 * Only the quads of the delta are written, so the cost depends on the 
+	 * size of the delta and not on the size of the graph.
+	 * Implemented transactionally.
+	 */
+	@Override
+	public void patch(final String graphURI, final Model additions, final Model removals)
+	{
+		write(() -> doPatch(graphURI, additions, removals));
+	}
+
+
+	//================================================================================
+	// Batch-related Methods
+	//================================================================================
+
+	/**
+	 * Applies all operations of the batch in a single write transaction.
+	 * Either all operations take effect or, if one of them fails, none.
+	 */
+	@Override
+	public void apply(final GraphBatch batch)
+	{
+		if (batch.isEmpty())
+		{
+			return;
+		}
+		
+		write(() -> {
+			for (GraphBatch.Operation operation : batch)
+			{
+				doApply(operation);
+			}
+		});
+	}
+
+
+	//================================================================================
+	// Bulk loading
+	//================================================================================
+
+	/**
+	 * Loads N-Quads or TriG files without progress reporting, see
+	 * {@link #bulkLoad(List, String, BulkLoadListener)}.
+	 */
+	public long bulkLoad(final List<File> files, final String contentType)
+	{
+		return bulkLoad(files, contentType, null);
+	}
+
+	/**
+	 * Loads the quads of the files, given in Constants.CT_APPLICATION_NQUADS
+	 * or Constants.CT_TEXT_TRIG, into the dataset, adding them to the graphs
+	 * that already exist. The files are parsed in parallel and the indexes
+	 * built by the bulk loader of the TDB version, which is much faster than
+	 * creating the graphs one by one, above all into an empty dataset, see
+	 * {@link TDBBulkLoader}.
+	 *
+	 * The load waits until the running transactions of the store, including
+	 * open iterators, have ended, and transactions begun meanwhile wait
+	 * until the load is done, as TDB1 is loaded below its transactions. A
+	 * failed load leaves a TDB2 dataset unchanged and a TDB1 dataset with
+	 * the quads read before the failure.
+	 *
+	 * @return the number of quads read, including duplicates
+	 * @throws IllegalArgumentException if the content type is not N-Quads or TriG
+	 */
+	public long bulkLoad(final List<File> files, final String contentType, final BulkLoadListener listener)
 	{
-		fDataset.begin(ReadWrite.WRITE);
+		final Lang lang = RDFStreams.toLang(contentType);
+		if (!Lang.NQUADS.equals(lang) && !Lang.TRIG.equals(lang))
+		{
+			throw new IllegalArgumentException("Bulk loading needs N-Quads or TriG: " + contentType);
+		}
+		if (fLoadLock.getReadHoldCount() > 0)
+		{
+			throw new IllegalStateException("Cannot bulk load while this thread is in a transaction of the store");
+		}
+
+		fLoadLock.writeLock().lock();
+		try
+		{
+			return new TDBBulkLoader(fDataset.asDatasetGraph(), listener).load(files, lang);
+		}
+		finally
+		{
+			fLoadLock.writeLock().unlock();
+		}
+	}
+
+
+	//================================================================================
+	// Write transactions
+	//================================================================================
+
+	/**
+	 * Runs the write in a write transaction that is committed before this 
+	 * method returns. With group commit, the transaction may be shared with 
+	 * the writes of other threads; otherwise it is a transaction of its own.
+	 */
+	private void write(final Runnable write)
+	{
+		if (fGroupCommitter != null)
+		{
+			fGroupCommitter.execute(write);
+			return;
+		}
+		
+		begin(ReadWrite.WRITE);
 		
+		try
+		{
+			write.run();
+			
+			fDataset.commit();
+		}
+		catch (RuntimeException e)
+		{
+			fDataset.abort();
+			throw e;
+		}
+		finally
+		{
+			end();
+		}
+	}
+	
+	/**
+	 * Begins a transaction, reporting the time spent waiting for it to the
+	 * metrics registry, if any. The transaction holds the load lock shared
+	 * until {@link #end()}, so that it cannot overlap a bulk load.
+	 */
+	private void begin(final ReadWrite mode)
+	{
+		final MetricsRegistry registry = fMetricsRegistry;
+		final long start = registry != null ? System.nanoTime() : 0;
+		fLoadLock.readLock().lock();
+		try
+		{
+			fDataset.begin(mode);
+		}
+		catch (RuntimeException | Error e)
+		{
+			fLoadLock.readLock().unlock();
+			throw e;
+		}
+		if (registry != null)
+		{
+			registry.recordTransactionWait(mode == ReadWrite.WRITE, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Ends a transaction begun by {@link #begin(ReadWrite)}.
+	 */
+	private void end()
+	{
+		try
+		{
+			fDataset.end();
+		}
+		finally
+		{
+			fLoadLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Stops the group-commit writer after committing the queued writes.
+	 * Later writes run in transactions of their own. Does nothing if group
+	 * commit is not enabled.
+	 */
+	public void stopGroupCommit()
+	{
+		final GroupCommitter groupCommitter = fGroupCommitter;
+		if (groupCommitter != null)
+		{
+			fGroupCommitter = null;
+			groupCommitter.stop();
+		}
+	}
+
+
+	//================================================================================
+	// Write helpers, to be called inside a write transaction
+	//================================================================================
+
+	/**
+	 * Applies a single batch operation.
+	 * Must be called inside a write transaction.
+	 */
+	private void doApply(final GraphBatch.Operation operation)
+	{
+		switch (operation.getType())
+		{
+			case CREATE:
+				doCreateNamedGraph(operation.getGraphURI(), operation.getModel());
+				break;
+			case REPLACE:
+				if (operation.isDefaultGraph())
+				{
+					doReplaceDefaultGraph(operation.getModel());
+				}
+				else
+				{
+					doReplaceNamedGraph(operation.getGraphURI(), operation.getModel());
+				}
+				break;
+			case ADD:
+				if (operation.isDefaultGraph())
+				{
+					doAddToDefaultGraph(operation.getModel());
+				}
+				else
+				{
+					doAddToNamedGraph(operation.getGraphURI(), operation.getModel());
+				}
+				break;
+			case DELETE:
+				if (operation.isDefaultGraph())
+				{
+					doClearDefaultGraph();
+				}
+				else
+				{
+					doDeleteNamedGraph(operation.getGraphURI());
+				}
+				break;
+			case PATCH:
+				doPatch(operation.getGraphURI(), operation.getModel(), operation.getRemovals());
+				break;
+		}
+	}
+
+	/**
+	 * Replaces the default graph by the given model.
+	 * Must be called inside a write transaction.
+	 */
+	private void doReplaceDefaultGraph(final Model model)
+	{
+		final Graph graph = fDataset.asDatasetGraph().getDefaultGraph();
+		
+		graph.clear();
+		GraphUtil.addInto(graph, model.getGraph());
+	}
+
+	/**
+	 * Adds the statements of the given model to the default graph.
+	 * Only the quads of the added statements are written.
+	 * Must be called inside a write transaction.
+	 */
+	private void doAddToDefaultGraph(final Model model)
+	{
+		GraphUtil.addInto(fDataset.asDatasetGraph().getDefaultGraph(), model.getGraph());
+	}
+
+	/**
+	 * Clears the default graph.
+	 * Must be called inside a write transaction.
+	 */
+	private void doClearDefaultGraph()
+	{
+		fDataset.asDatasetGraph().getDefaultGraph().clear();
+	}
+
+	/**
+	 * Deletes a graph by name.
+	 * Must be called inside a write transaction.
+	 */
+	private void doDeleteNamedGraph(final String graphURI)
+	{
+		if (fDataset.containsNamedModel(graphURI))
+		{
+			fDataset.removeNamedModel(graphURI);
+		}
+	}
+
+	/**
+	 * Replaces an existing named graph by the given model.
+	 * Must be called inside a write transaction.
+	 */
+	private void doReplaceNamedGraph(final String graphURI, final Model model)
+	{
+		if (fDataset.containsNamedModel(graphURI))
+		{
+			fDataset.replaceNamedModel(graphURI, model);
+		}
+	}
+
+	/**
+	 * Adds the statements of the given model to the named graph.
+	 * Only the quads of the added statements are written.
+	 * Must be called inside a write transaction.
+	 */
+	private void doAddToNamedGraph(final String graphURI, final Model model)
+	{
+		GraphUtil.addInto(fDataset.asDatasetGraph().getGraph(NodeFactory.createURI(graphURI)), model.getGraph());
+	}
+
+	/**
+	 * Removes the removals from and adds the additions to a graph.
+	 * Only the quads of the delta are written.
+	 * Must be called inside a write transaction.
+	 */
+	private void doPatch(final String graphURI, final Model additions, final Model removals)
+	{
+		final DatasetGraph dsg = fDataset.asDatasetGraph();
+		final Graph graph = (graphURI == null) ? dsg.getDefaultGraph() : dsg.getGraph(NodeFactory.createURI(graphURI));
+		
+		if (removals != null)
+		{
+			GraphUtil.deleteFrom(graph, removals.getGraph());
+		}
+		if (additions != null)
+		{
+			GraphUtil.addInto(graph, additions.getGraph());
+		}
+	}
+
+	/**
+	 * Creates a named graph with the given model unless it already exists.
+	 * Must be called inside a write transaction.
+	 */
+	private void doCreateNamedGraph(final String graphURI, final Model model)
+	{
 		// http://bit.ly/1JwYYmT
 		if ( !graphURI.isEmpty() && !fDataset.containsNamedModel(graphURI))	
 		{
 			fDataset.addNamedModel(graphURI, model);
 		}
-		
-		fDataset.commit();
-		fDataset.end();
 	}
 
 
 	//================================================================================
-	// Query-related Methods
+	// Accessors
 	//================================================================================
 
+	protected Dataset getDataset()
+	{
+		return fDataset;
+	}
+	
+	/**
+	 * Returns the dataset directory, or null for an in-memory dataset.
+	 */
+	public String getDatasetDir()
+	{
+		return fDatasetDir;
+	}
+
+	/**
+	 * Reports the time spent waiting to begin transactions to the registry,
+	 * e.g. the one of a MetricsGraphStore wrapping this store. With group
+	 * commit, the wait of a write lasts until its group's transaction has
+	 * begun. Null stops reporting.
+	 */
+	public void setMetricsRegistry(final MetricsRegistry registry)
+	{
+		fMetricsRegistry = registry;
+		final GroupCommitter groupCommitter = fGroupCommitter;
+		if (groupCommitter != null)
+		{
+			groupCommitter.setMetricsRegistry(registry);
+		}
+	}
+
 
 	//================================================================================
 	// Member variables
 	//================================================================================
 	
+	private static final int GRAPH_PAGE_SIZE = 1000;
+	
 	private Dataset fDataset;
 	private String fDatasetDir = null;
+	private volatile GroupCommitter fGroupCommitter = null;
+	private volatile MetricsRegistry fMetricsRegistry = null;
+	/**
+	 * Held shared by every transaction of the store, including those of the
+	 * group-commit writer, and exclusively by a bulk load.
+	 */
+	private final ReentrantReadWriteLock fLoadLock = new ReentrantReadWriteLock();
 }
@@ -0,0 +1,347 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.jena;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.function.Function;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.tdb.base.record.Record;
+import org.apache.jena.tdb.index.RangeIndex;
+import org.apache.jena.tdb.store.DatasetGraphTDB;
+import org.apache.jena.tdb.store.NodeId;
+import org.apache.jena.tdb.store.tupletable.TupleIndex;
+import org.apache.jena.tdb.store.tupletable.TupleIndexRecord;
+import org.apache.jena.tdb.store.tupletable.TupleTable;
+import org.apache.jena.tdb.sys.TDBInternal;
+import org.apache.jena.tdb2.store.NodeIdFactory;
+
+/**
+ * @author resc01
+ *
+ * Reads the B+tree indexes of a TDB1 or TDB2 dataset as sorted byte keys,
+ * e.g. the key of the GSPO index is the 8-byte node ids of graph, subject,
+ * predicate and object. Counting the keys of a range and seeking from one
+ * distinct prefix to the next answer catalog queries without decoding a
+ * single triple.
+ *
+ * Instances belong to the transaction they were created in.
+ */
+abstract class TDBIndexes
+{
+	static final String GSPO = "GSPO";
+	static final String GPOS = "GPOS";
+	static final String SPO = "SPO";
+	static final String POS = "POS";
+
+	/**
+	 * The length of a node id in a key.
+	 */
+	static final int ID = 8;
+
+	/**
+	 * Returns the indexes of the dataset, or null if it is not stored in TDB.
+	 * Must be called inside a transaction.
+	 */
+	static TDBIndexes of(final DatasetGraph dsg)
+	{
+		if (TDBInternal.isTDB1(dsg))
+		{
+			return new TDB1(TDBInternal.getDatasetGraphTDB(dsg));
+		}
+		if (org.apache.jena.tdb2.sys.TDBInternal.isTDB2(dsg))
+		{
+			return new TDB2(org.apache.jena.tdb2.sys.TDBInternal.getDatasetGraphTDB(dsg));
+		}
+		return null;
+	}
+
+
+	//================================================================================
+	// Storage access
+	//================================================================================
+
+	/**
+	 * Iterates the keys of the index from the key from on, up to but
+	 * excluding the key to, or to the end if to is null.
+	 */
+	abstract Iterator<byte[]> keys(String index, byte[] from, byte[] to);
+
+	/**
+	 * Returns the length of the keys of the index.
+	 */
+	abstract int keyLength(String index);
+
+	/**
+	 * Returns the id of the node, or null if the dataset does not know it.
+	 */
+	abstract byte[] nodeId(Node node);
+
+	/**
+	 * Decodes the node whose id is at the offset of the key.
+	 */
+	abstract Node node(byte[] key, int offset);
+
+
+	//================================================================================
+	// Scans
+	//================================================================================
+
+	/**
+	 * Returns the id of the first graph whose id follows the given one, the
+	 * first graph if after is null, or null if there is none.
+	 */
+	byte[] nextGraph(final byte[] after)
+	{
+		final int length = keyLength(GSPO);
+		final byte[] from = after == null ? new byte[length] : successor(after, length);
+		if (from == null)
+		{
+			return null;
+		}
+		final Iterator<byte[]> keys = keys(GSPO, from, null);
+		return keys.hasNext() ? Arrays.copyOf(keys.next(), ID) : null;
+	}
+
+	/**
+	 * Returns the number of keys starting with the prefix, and with
+	 * distinctAt >= 0 also the number of distinct ids at that offset, which
+	 * must be the one right after the prefix.
+	 */
+	long[] count(final String index, final byte[] prefix, final int distinctAt)
+	{
+		final int length = keyLength(index);
+		final Iterator<byte[]> keys = keys(index, pad(prefix, length), successor(prefix, length));
+
+		long count = 0;
+		long distinct = 0;
+		byte[] last = null;
+		while (keys.hasNext())
+		{
+			final byte[] key = keys.next();
+			count++;
+			if (distinctAt >= 0 && (last == null || !regionEquals(key, last, distinctAt)))
+			{
+				distinct++;
+				last = key;
+			}
+		}
+		return new long[] { count, distinct };
+	}
+
+	/**
+	 * Returns the number of distinct ids right after the prefix, seeking
+	 * from one to the next. Costs a B+tree descent per distinct id, which
+	 * beats a scan if there are few of them, such as predicates.
+	 */
+	long countDistinct(final String index, final byte[] prefix)
+	{
+		final int length = keyLength(index);
+		final byte[] to = successor(prefix, length);
+
+		long distinct = 0;
+		byte[] from = pad(prefix, length);
+		while (from != null)
+		{
+			final Iterator<byte[]> keys = keys(index, from, to);
+			if (!keys.hasNext())
+			{
+				break;
+			}
+			distinct++;
+			from = successor(Arrays.copyOf(keys.next(), prefix.length + ID), length);
+		}
+		return distinct;
+	}
+
+
+	//================================================================================
+	// Helpers
+	//================================================================================
+
+	/**
+	 * Returns the prefix padded with zeros to the key length.
+	 */
+	static byte[] pad(final byte[] prefix, final int length)
+	{
+		return Arrays.copyOf(prefix, length);
+	}
+
+	/**
+	 * Returns the first key of the given length after all keys starting with
+	 * the prefix, or null if there is none.
+	 */
+	static byte[] successor(final byte[] prefix, final int length)
+	{
+		final byte[] key = Arrays.copyOf(prefix, length);
+		for (int i = prefix.length - 1; i >= 0; i--)
+		{
+			if (++key[i] != 0)
+			{
+				return key;
+			}
+		}
+		return null;
+	}
+
+	private static boolean regionEquals(final byte[] a, final byte[] b, final int offset)
+	{
+		for (int i = offset; i < offset + ID; i++)
+		{
+			if (a[i] != b[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static <R> Iterator<byte[]> keysOf(final Iterator<R> records, final Function<R, byte[]> key)
+	{
+		return new Iterator<byte[]>()
+		{
+			@Override
+			public boolean hasNext()
+			{
+				return records.hasNext();
+			}
+
+			@Override
+			public byte[] next()
+			{
+				return key.apply(records.next());
+			}
+		};
+	}
+
+
+	//================================================================================
+	// TDB1
+	//================================================================================
+
+	private static class TDB1 extends TDBIndexes
+	{
+		private final DatasetGraphTDB fDataset;
+
+		TDB1(final DatasetGraphTDB dataset)
+		{
+			fDataset = dataset;
+		}
+
+		private RangeIndex index(final String name)
+		{
+			final TupleTable table = name.length() == 4
+					? fDataset.getQuadTable().getNodeTupleTable().getTupleTable()
+					: fDataset.getTripleTable().getNodeTupleTable().getTupleTable();
+			for (TupleIndex index : table.getIndexes())
+			{
+				if (name.equalsIgnoreCase(index.getName()) && index instanceof TupleIndexRecord)
+				{
+					return ((TupleIndexRecord) index).getRangeIndex();
+				}
+			}
+			throw new IllegalStateException("No " + name + " index in TDB dataset");
+		}
+
+		@Override
+		Iterator<byte[]> keys(final String name, final byte[] from, final byte[] to)
+		{
+			final RangeIndex index = index(name);
+			return keysOf(index.iterator(index.getRecordFactory().create(from), to != null ? index.getRecordFactory().create(to) : null),
+					Record::getKey);
+		}
+
+		@Override
+		int keyLength(final String name)
+		{
+			return index(name).getRecordFactory().keyLength();
+		}
+
+		@Override
+		byte[] nodeId(final Node node)
+		{
+			final NodeId id = fDataset.getQuadTable().getNodeTupleTable().getNodeTable().getNodeIdForNode(node);
+			if (NodeId.isDoesNotExist(id))
+			{
+				return null;
+			}
+			final byte[] bytes = new byte[ID];
+			id.toBytes(bytes, 0);
+			return bytes;
+		}
+
+		@Override
+		Node node(final byte[] key, final int offset)
+		{
+			return fDataset.getQuadTable().getNodeTupleTable().getNodeTable().getNodeForNodeId(NodeId.create(key, offset));
+		}
+	}
+
+
+	//================================================================================
+	// TDB2
+	//================================================================================
+
+	private static class TDB2 extends TDBIndexes
+	{
+		private final org.apache.jena.tdb2.store.DatasetGraphTDB fDataset;
+
+		TDB2(final org.apache.jena.tdb2.store.DatasetGraphTDB dataset)
+		{
+			fDataset = dataset;
+		}
+
+		private org.apache.jena.dboe.index.RangeIndex index(final String name)
+		{
+			final org.apache.jena.tdb2.store.tupletable.TupleTable table = name.length() == 4
+					? fDataset.getQuadTable().getNodeTupleTable().getTupleTable()
+					: fDataset.getTripleTable().getNodeTupleTable().getTupleTable();
+			for (org.apache.jena.tdb2.store.tupletable.TupleIndex index : table.getIndexes())
+			{
+				if (name.equalsIgnoreCase(index.getName()) && index instanceof org.apache.jena.tdb2.store.tupletable.TupleIndexRecord)
+				{
+					return ((org.apache.jena.tdb2.store.tupletable.TupleIndexRecord) index).getRangeIndex();
+				}
+			}
+			throw new IllegalStateException("No " + name + " index in TDB2 dataset");
+		}
+
+		@Override
+		Iterator<byte[]> keys(final String name, final byte[] from, final byte[] to)
+		{
+			final org.apache.jena.dboe.index.RangeIndex index = index(name);
+			return keysOf(index.iterator(index.getRecordFactory().create(from), to != null ? index.getRecordFactory().create(to) : null),
+					org.apache.jena.dboe.base.record.Record::getKey);
+		}
+
+		@Override
+		int keyLength(final String name)
+		{
+			return index(name).getRecordFactory().keyLength();
+		}
+
+		@Override
+		byte[] nodeId(final Node node)
+		{
+			final org.apache.jena.tdb2.store.NodeId id = fDataset.getQuadTable().getNodeTupleTable().getNodeTable().getNodeIdForNode(node);
+			if (org.apache.jena.tdb2.store.NodeId.isDoesNotExist(id))
+			{
+				return null;
+			}
+			final byte[] bytes = new byte[ID];
+			NodeIdFactory.set(id, bytes, 0);
+			return bytes;
+		}
+
+		@Override
+		Node node(final byte[] key, final int offset)
+		{
+			return fDataset.getQuadTable().getNodeTupleTable().getNodeTable().getNodeForNodeId(NodeIdFactory.get(key, offset));
+		}
+	}
+}
@@ -0,0 +1,726 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.jena;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * @author resc01
+ *
+ * An immutable set of triples of node IDs, kept in three sorted orders
+ * (SPO, POS, OSP) so that every triple pattern is answered by a binary
+ * search and a sequential scan.
+ *
+ * Each order is an int buffer with three entries per triple, either a heap
+ * array or a view of a memory-mapped snapshot, see {@link SnapshotFile}.
+ * Changes return a new table and leave this one untouched, so readers can
+ * use a table without locking while a writer builds its successor.
+ *
+ * Rebuilding the orders costs O(n) per change, which dominates small writes
+ * to large graphs. A change therefore only rebuilds two small tables of the
+ * triples added to and removed from the orders, and a read merges their
+ * matches with those of the orders. Once the changes exceed
+ * {@link #MAX_CHANGES} triples or an eighth of the orders they are merged
+ * into new heap orders, so a write costs O(c + k log n) for c pending
+ * changes and k written triples, and the copies are amortised over many
+ * writes.
+ *
+ * Node IDs are positive, {@link #ANY} matches any node in a pattern.
+ */
+final class TripleTable
+{
+	static final int ANY = 0;
+
+	static final TripleTable EMPTY = new TripleTable(new IntBuffer[] { IntBuffer.allocate(0), IntBuffer.allocate(0), IntBuffer.allocate(0) }, 0, null, null);
+
+	/**
+	 * The positions of subject, predicate and object in the entries of an
+	 * order: SPO stores (s, p, o), POS (p, o, s), OSP (o, s, p).
+	 */
+	private static final int[][] ORDERS = { { 0, 1, 2 }, { 1, 2, 0 }, { 2, 0, 1 } };
+	static final int SPO = 0;
+	static final int POS = 1;
+	static final int OSP = 2;
+
+	//================================================================================
+	// Constructors
+	//================================================================================
+
+	/**
+	 * Creates a table of the orders and, unless they are null, the changes
+	 * to them. The added triples are not in the orders, the removed ones are.
+	 */
+	private TripleTable(final IntBuffer[] indexes, final int indexSize, final TripleTable added, final TripleTable removed)
+	{
+		fIndexes = indexes;
+		fIndexSize = indexSize;
+		fAdded = added;
+		fRemoved = removed;
+		fSize = added == null ? indexSize : indexSize + added.fSize - removed.fSize;
+	}
+
+	/**
+	 * Builds a table of the first count triples of the array, which holds
+	 * (s, p, o) entries in any order and may contain duplicates.
+	 */
+	static TripleTable of(final int[] triples, final int count)
+	{
+		return EMPTY.add(triples, count);
+	}
+
+	/**
+	 * Wraps sorted and duplicate-free orders without copying them, e.g. the
+	 * buffers of a memory-mapped snapshot.
+	 */
+	static TripleTable wrap(final IntBuffer spo, final IntBuffer pos, final IntBuffer osp, final int size)
+	{
+		return size == 0 ? EMPTY : new TripleTable(new IntBuffer[] { spo, pos, osp }, size, null, null);
+	}
+
+
+	//================================================================================
+	// Reads
+	//================================================================================
+
+	int size()
+	{
+		return fSize;
+	}
+
+	boolean isEmpty()
+	{
+		return fSize == 0;
+	}
+
+	boolean contains(final int s, final int p, final int o)
+	{
+		return find(s, p, o).advance();
+	}
+
+	/**
+	 * Returns the number of distinct leading terms of an order, e.g. the
+	 * number of distinct subjects for {@link #SPO}. Scans the order once.
+	 */
+	int countDistinct(final int order)
+	{
+		final Cursor cursor = new Cursor(this, order, new int[0]);
+		int count = 0;
+		int previous = ANY;
+		while (cursor.advance())
+		{
+			if (cursor.lead() != previous)
+			{
+				previous = cursor.lead();
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns a cursor over the triples matching the pattern.
+	 */
+	Cursor find(final int s, final int p, final int o)
+	{
+		final int order;
+		final int[] key;
+		if (s != ANY)
+		{
+			if (p == ANY && o != ANY)
+			{
+				order = OSP;
+				key = new int[] { o, s };
+			}
+			else
+			{
+				order = SPO;
+				key = p == ANY ? new int[] { s } : o == ANY ? new int[] { s, p } : new int[] { s, p, o };
+			}
+		}
+		else if (p != ANY)
+		{
+			order = POS;
+			key = o == ANY ? new int[] { p } : new int[] { p, o };
+		}
+		else if (o != ANY)
+		{
+			order = OSP;
+			key = new int[] { o };
+		}
+		else
+		{
+			order = SPO;
+			key = new int[0];
+		}
+
+		return new Cursor(this, order, key);
+	}
+
+
+	//================================================================================
+	// Changes
+	//================================================================================
+
+	/**
+	 * Returns a table with the first count (s, p, o) triples of the array
+	 * added. The array is not modified.
+	 */
+	TripleTable add(final int[] triples, final int count)
+	{
+		if (count == 0)
+		{
+			return this;
+		}
+
+		final int[] missing = select(triples, count, false);
+		return withChanges(added().merge(missing, missing.length / 3), removed().subtract(triples, count));
+	}
+
+	/**
+	 * Returns a table without the first count (s, p, o) triples of the
+	 * array. The array is not modified.
+	 */
+	TripleTable remove(final int[] triples, final int count)
+	{
+		if (count == 0 || fSize == 0)
+		{
+			return this;
+		}
+
+		final int[] present = select(triples, count, true);
+		final TripleTable added = added().subtract(triples, count);
+		final TripleTable removed = removed().merge(present, present.length / 3);
+		if (added.fSize == added().fSize && removed.fSize == removed().fSize)
+		{
+			return this;
+		}
+		return withChanges(added, removed);
+	}
+
+	/**
+	 * Returns this table with its changes merged into new orders, e.g.
+	 * before its orders are written to a snapshot.
+	 */
+	TripleTable compact()
+	{
+		if (fAdded == null)
+		{
+			return this;
+		}
+		final TripleTable orders = fIndexSize == 0 ? EMPTY : new TripleTable(fIndexes, fIndexSize, null, null);
+		return orders.subtract(fRemoved.entries(SPO), fRemoved.fSize).merge(fAdded.entries(SPO), fAdded.fSize);
+	}
+
+	/**
+	 * Returns the number of bytes of the index arrays on the heap, which is
+	 * zero for a memory-mapped table without changes.
+	 */
+	long getMemoryUsage()
+	{
+		final long orders = fIndexes[SPO].isDirect() ? 0 : 3L * 3 * 4 * fIndexSize;
+		return fAdded == null ? orders : orders + fAdded.getMemoryUsage() + fRemoved.getMemoryUsage();
+	}
+
+	/**
+	 * Returns a read-only view of the entries of {@link #SPO}, {@link #POS}
+	 * or {@link #OSP}.
+	 */
+	IntBuffer getIndex(final int order)
+	{
+		if (fAdded != null)
+		{
+			return compact().getIndex(order);
+		}
+		final IntBuffer index = fIndexes[order].duplicate();
+		index.limit(3 * fIndexSize);
+		return index.slice().asReadOnlyBuffer();
+	}
+
+
+	//================================================================================
+	// Cursor
+	//================================================================================
+
+	/**
+	 * Iterates the matches of a pattern in the order of its index, merging
+	 * the matching entries of the orders, without the removed ones, with
+	 * the added ones. Call {@link #advance()} before reading the first triple.
+	 */
+	static final class Cursor
+	{
+		private final IntBuffer fIndex;
+		private final int fTo;
+		private final IntBuffer fAdded;
+		private final int fAddedTo;
+		private final IntBuffer fRemoved;
+		private final int fRemovedTo;
+		private final int fSubjectOffset;
+		private final int fPredicateOffset;
+		private final int fObjectOffset;
+		private int fPos;
+		private int fAddedPos;
+		private int fRemovedPos;
+		private IntBuffer fCurrent;
+		private int fCurrentPos;
+
+		Cursor(final TripleTable table, final int order, final int[] key)
+		{
+			final TripleTable added = table.added();
+			final TripleTable removed = table.removed();
+			fIndex = table.fIndexes[order];
+			fPos = bound(fIndex, table.fIndexSize, key, false);
+			fTo = bound(fIndex, table.fIndexSize, key, true);
+			fAdded = added.fIndexes[order];
+			fAddedPos = bound(fAdded, added.fIndexSize, key, false);
+			fAddedTo = bound(fAdded, added.fIndexSize, key, true);
+			fRemoved = removed.fIndexes[order];
+			fRemovedPos = bound(fRemoved, removed.fIndexSize, key, false);
+			fRemovedTo = bound(fRemoved, removed.fIndexSize, key, true);
+
+			final int[] offsets = new int[3];
+			for (int i = 0; i < 3; i++)
+			{
+				offsets[ORDERS[order][i]] = i;
+			}
+			fSubjectOffset = offsets[0];
+			fPredicateOffset = offsets[1];
+			fObjectOffset = offsets[2];
+		}
+
+		boolean advance()
+		{
+			// skip the removed entries, which are all in the orders
+			while (fPos < fTo && fRemovedPos < fRemovedTo)
+			{
+				final int cmp = compare(fRemoved, fRemovedPos, fIndex, fPos);
+				if (cmp > 0)
+				{
+					break;
+				}
+				if (cmp == 0)
+				{
+					fPos++;
+				}
+				fRemovedPos++;
+			}
+
+			// the added entries are not in the orders, so the two never tie
+			if (fPos < fTo && (fAddedPos == fAddedTo || compare(fIndex, fPos, fAdded, fAddedPos) < 0))
+			{
+				fCurrent = fIndex;
+				fCurrentPos = fPos++;
+				return true;
+			}
+			if (fAddedPos < fAddedTo)
+			{
+				fCurrent = fAdded;
+				fCurrentPos = fAddedPos++;
+				return true;
+			}
+			fCurrent = null;
+			return false;
+		}
+
+		int subject()
+		{
+			return fCurrent.get(3 * fCurrentPos + fSubjectOffset);
+		}
+
+		int predicate()
+		{
+			return fCurrent.get(3 * fCurrentPos + fPredicateOffset);
+		}
+
+		int object()
+		{
+			return fCurrent.get(3 * fCurrentPos + fObjectOffset);
+		}
+
+		/**
+		 * Returns the first term of the triple in the order of the index.
+		 */
+		int lead()
+		{
+			return fCurrent.get(3 * fCurrentPos);
+		}
+	}
+
+
+	//================================================================================
+	// Helpers
+	//================================================================================
+
+	private TripleTable added()
+	{
+		return fAdded != null ? fAdded : EMPTY;
+	}
+
+	private TripleTable removed()
+	{
+		return fRemoved != null ? fRemoved : EMPTY;
+	}
+
+	/**
+	 * Returns a table of the orders of this one with the given changes,
+	 * merged into new orders if there are too many of them.
+	 */
+	private TripleTable withChanges(final TripleTable added, final TripleTable removed)
+	{
+		final TripleTable table = new TripleTable(fIndexes, fIndexSize, added, removed);
+		return added.fSize + removed.fSize > Math.min(MAX_CHANGES, fIndexSize / 8) ? table.compact() : table;
+	}
+
+	/**
+	 * Returns the (s, p, o) triples of the array that are in the orders of
+	 * this table if in is true, or those that are not if it is false.
+	 */
+	private int[] select(final int[] triples, final int count, final boolean in)
+	{
+		final IntBuffer index = fIndexes[SPO];
+		final int[] selected = new int[3 * count];
+		int n = 0;
+		for (int i = 0; i < count; i++)
+		{
+			final int pos = bound(index, fIndexSize, new int[] { triples[3 * i], triples[3 * i + 1], triples[3 * i + 2] }, false);
+			if ((pos < fIndexSize && compare(index, pos, triples, i) == 0) == in)
+			{
+				System.arraycopy(triples, 3 * i, selected, 3 * n, 3);
+				n++;
+			}
+		}
+		return n == count ? selected : Arrays.copyOf(selected, 3 * n);
+	}
+
+	/**
+	 * Returns a copy of the entries of an order of a table without changes.
+	 */
+	private int[] entries(final int order)
+	{
+		final int[] entries = new int[3 * fIndexSize];
+		getIndex(order).get(entries);
+		return entries;
+	}
+
+	/**
+	 * Returns a table without changes with the triples added to the orders
+	 * of this one, which must not have changes either.
+	 */
+	private TripleTable merge(final int[] triples, final int count)
+	{
+		if (count == 0)
+		{
+			return this;
+		}
+
+		final int[][] indexes = new int[3][];
+		int size = 0;
+		for (int order = 0; order < 3; order++)
+		{
+			final int[] delta = permute(triples, count, ORDERS[order]);
+			final int deltaSize = dedup(delta, sort(delta, count));
+			indexes[order] = union(fIndexes[order], fIndexSize, delta, deltaSize);
+			size = indexes[order].length / 3;
+		}
+		return new TripleTable(new IntBuffer[] { IntBuffer.wrap(indexes[SPO]), IntBuffer.wrap(indexes[POS]), IntBuffer.wrap(indexes[OSP]) }, size, null, null);
+	}
+
+	/**
+	 * Returns a table without changes with the triples removed from the
+	 * orders of this one, which must not have changes either.
+	 */
+	private TripleTable subtract(final int[] triples, final int count)
+	{
+		if (count == 0 || fIndexSize == 0)
+		{
+			return this;
+		}
+
+		final int[][] indexes = new int[3][];
+		int size = 0;
+		for (int order = 0; order < 3; order++)
+		{
+			final int[] delta = permute(triples, count, ORDERS[order]);
+			final int deltaSize = dedup(delta, sort(delta, count));
+			indexes[order] = difference(fIndexes[order], fIndexSize, delta, deltaSize);
+			size = indexes[order].length / 3;
+		}
+		if (size == fIndexSize)
+		{
+			return this;
+		}
+		return size == 0 ? EMPTY : new TripleTable(new IntBuffer[] { IntBuffer.wrap(indexes[SPO]), IntBuffer.wrap(indexes[POS]), IntBuffer.wrap(indexes[OSP]) }, size, null, null);
+	}
+
+	/**
+	 * Copies the triples into entries of the given order.
+	 */
+	private static int[] permute(final int[] triples, final int count, final int[] order)
+	{
+		final int[] entries = new int[3 * count];
+		for (int i = 0; i < count; i++)
+		{
+			for (int j = 0; j < 3; j++)
+			{
+				entries[3 * i + j] = triples[3 * i + order[j]];
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Returns the first or, if upper, one past the last entry whose prefix
+	 * equals the key.
+	 */
+	private static int bound(final IntBuffer index, final int size, final int[] key, final boolean upper)
+	{
+		int low = 0;
+		int high = size;
+		while (low < high)
+		{
+			final int mid = (low + high) >>> 1;
+			int cmp = 0;
+			for (int j = 0; j < key.length && cmp == 0; j++)
+			{
+				cmp = Integer.compare(index.get(3 * mid + j), key[j]);
+			}
+			if (cmp < 0 || (upper && cmp == 0))
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private static int compare(final int[] a, final int i, final int[] b, final int j)
+	{
+		int cmp = Integer.compare(a[3 * i], b[3 * j]);
+		if (cmp == 0)
+		{
+			cmp = Integer.compare(a[3 * i + 1], b[3 * j + 1]);
+			if (cmp == 0)
+			{
+				cmp = Integer.compare(a[3 * i + 2], b[3 * j + 2]);
+			}
+		}
+		return cmp;
+	}
+
+	private static int compare(final IntBuffer a, final int i, final IntBuffer b, final int j)
+	{
+		int cmp = Integer.compare(a.get(3 * i), b.get(3 * j));
+		if (cmp == 0)
+		{
+			cmp = Integer.compare(a.get(3 * i + 1), b.get(3 * j + 1));
+			if (cmp == 0)
+			{
+				cmp = Integer.compare(a.get(3 * i + 2), b.get(3 * j + 2));
+			}
+		}
+		return cmp;
+	}
+
+	private static int compare(final IntBuffer a, final int i, final int[] b, final int j)
+	{
+		int cmp = Integer.compare(a.get(3 * i), b[3 * j]);
+		if (cmp == 0)
+		{
+			cmp = Integer.compare(a.get(3 * i + 1), b[3 * j + 1]);
+			if (cmp == 0)
+			{
+				cmp = Integer.compare(a.get(3 * i + 2), b[3 * j + 2]);
+			}
+		}
+		return cmp;
+	}
+
+	private static void copy(final IntBuffer from, final int i, final int[] to, final int j)
+	{
+		to[3 * j] = from.get(3 * i);
+		to[3 * j + 1] = from.get(3 * i + 1);
+		to[3 * j + 2] = from.get(3 * i + 2);
+	}
+
+	private static int[] union(final IntBuffer a, final int sizeA, final int[] b, final int sizeB)
+	{
+		final int[] out = new int[3 * (sizeA + sizeB)];
+		int i = 0;
+		int j = 0;
+		int n = 0;
+		while (i < sizeA || j < sizeB)
+		{
+			final int cmp = i == sizeA ? 1 : j == sizeB ? -1 : compare(a, i, b, j);
+			if (cmp <= 0)
+			{
+				copy(a, i, out, n);
+				i++;
+				if (cmp == 0)
+				{
+					j++;
+				}
+			}
+			else
+			{
+				System.arraycopy(b, 3 * j, out, 3 * n, 3);
+				j++;
+			}
+			n++;
+		}
+		return n == sizeA + sizeB ? out : Arrays.copyOf(out, 3 * n);
+	}
+
+	private static int[] difference(final IntBuffer a, final int sizeA, final int[] b, final int sizeB)
+	{
+		final int[] out = new int[3 * sizeA];
+		int j = 0;
+		int n = 0;
+		for (int i = 0; i < sizeA; i++)
+		{
+			while (j < sizeB && compare(a, i, b, j) > 0)
+			{
+				j++;
+			}
+			if (j < sizeB && compare(a, i, b, j) == 0)
+			{
+				continue;
+			}
+			copy(a, i, out, n);
+			n++;
+		}
+		return n == sizeA ? out : Arrays.copyOf(out, 3 * n);
+	}
+
+	/**
+	 * Removes adjacent duplicates of the sorted entries and returns the new
+	 * number of entries.
+	 */
+	private static int dedup(final int[] entries, final int count)
+	{
+		if (count == 0)
+		{
+			return 0;
+		}
+		int n = 1;
+		for (int i = 1; i < count; i++)
+		{
+			if (compare(entries, i, entries, n - 1) != 0)
+			{
+				if (i != n)
+				{
+					System.arraycopy(entries, 3 * i, entries, 3 * n, 3);
+				}
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Sorts the entries in place and returns their number.
+	 */
+	private static int sort(final int[] entries, final int count)
+	{
+		quicksort(entries, 0, count - 1);
+		return count;
+	}
+
+	/**
+	 * Three-way quicksort of the entries low..high, which copes with the many
+	 * equal leading terms of RDF data.
+	 */
+	private static void quicksort(final int[] a, int low, int high)
+	{
+		while (high - low > INSERTION_SORT_THRESHOLD)
+		{
+			final int mid = (low + high) >>> 1;
+			if (compare(a, mid, a, low) < 0)
+			{
+				swap(a, mid, low);
+			}
+			if (compare(a, high, a, low) < 0)
+			{
+				swap(a, high, low);
+			}
+			if (compare(a, high, a, mid) < 0)
+			{
+				swap(a, high, mid);
+			}
+			final int[] pivot = { a[3 * mid], a[3 * mid + 1], a[3 * mid + 2] };
+
+			int lt = low;
+			int gt = high;
+			int i = low;
+			while (i <= gt)
+			{
+				final int cmp = compare(a, i, pivot, 0);
+				if (cmp < 0)
+				{
+					swap(a, lt++, i++);
+				}
+				else if (cmp > 0)
+				{
+					swap(a, i, gt--);
+				}
+				else
+				{
+					i++;
+				}
+			}
+
+			// recurse into the smaller part to bound the stack depth
+			if (lt - low < high - gt)
+			{
+				quicksort(a, low, lt - 1);
+				low = gt + 1;
+			}
+			else
+			{
+				quicksort(a, gt + 1, high);
+				high = lt - 1;
+			}
+		}
+
+		for (int i = low + 1; i <= high; i++)
+		{
+			for (int j = i; j > low && compare(a, j, a, j - 1) < 0; j--)
+			{
+				swap(a, j, j - 1);
+			}
+		}
+	}
+
+	private static void swap(final int[] a, final int i, final int j)
+	{
+		for (int k = 0; k < 3; k++)
+		{
+			final int tmp = a[3 * i + k];
+			a[3 * i + k] = a[3 * j + k];
+			a[3 * j + k] = tmp;
+		}
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private static final int INSERTION_SORT_THRESHOLD = 16;
+
+	/**
+	 * The most changes kept apart from the orders.
+	 */
+	private static final int MAX_CHANGES = 4096;
+
+	private final IntBuffer[] fIndexes;
+	private final int fIndexSize;
+	private final TripleTable fAdded;
+	private final TripleTable fRemoved;
+	private final int fSize;
+}
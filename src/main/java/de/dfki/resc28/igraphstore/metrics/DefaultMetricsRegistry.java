@@ -0,0 +1,174 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * @author resc01
+ *
+ * Keeps the measurements in memory, one {@link OperationMetrics} per
+ * operation and per kind of transaction wait, and exposes them as MBeans.
+ *
+ * After {@link #registerMBeans(String)} they show up in JMX consoles as
+ * de.dfki.resc28.igraphstore:type=GraphStoreMetrics,name=NAME,metric=METRIC
+ * where METRIC is the name of the operation, readTransactionWait or
+ * writeTransactionWait.
+ */
+public class DefaultMetricsRegistry implements MetricsRegistry
+{
+	public static final String JMX_DOMAIN = "de.dfki.resc28.igraphstore";
+
+	//================================================================================
+	// Constructors
+	//================================================================================
+
+	public DefaultMetricsRegistry()
+	{
+		final GraphStoreOperation[] operations = GraphStoreOperation.values();
+		fOperations = new OperationMetrics[operations.length];
+		for (int i = 0; i < operations.length; i++)
+		{
+			fOperations[i] = new OperationMetrics();
+		}
+	}
+
+
+	//================================================================================
+	// MetricsRegistry
+	//================================================================================
+
+	@Override
+	public void recordCall(final GraphStoreOperation operation, final long latencyNanos, final Throwable failure)
+	{
+		fOperations[operation.ordinal()].recordCall(latencyNanos, failure);
+	}
+
+	@Override
+	public void recordTriples(final GraphStoreOperation operation, final long triples)
+	{
+		fOperations[operation.ordinal()].recordTriples(triples);
+	}
+
+	@Override
+	public void recordBytes(final GraphStoreOperation operation, final long bytes)
+	{
+		fOperations[operation.ordinal()].recordBytes(bytes);
+	}
+
+	@Override
+	public void recordTransactionWait(final boolean write, final long waitNanos)
+	{
+		(write ? fWriteTransactionWait : fReadTransactionWait).recordCall(waitNanos, null);
+	}
+
+
+	//================================================================================
+	// Reading
+	//================================================================================
+
+	public OperationMetrics getOperationMetrics(final GraphStoreOperation operation)
+	{
+		return fOperations[operation.ordinal()];
+	}
+
+	/**
+	 * Returns the time spent waiting for transactions; the count is the
+	 * number of transactions begun.
+	 */
+	public OperationMetrics getTransactionWaitMetrics(final boolean write)
+	{
+		return write ? fWriteTransactionWait : fReadTransactionWait;
+	}
+
+	public void reset()
+	{
+		for (OperationMetrics metrics : fOperations)
+		{
+			metrics.reset();
+		}
+		fReadTransactionWait.reset();
+		fWriteTransactionWait.reset();
+	}
+
+
+	//================================================================================
+	// JMX
+	//================================================================================
+
+	/**
+	 * Registers the MBeans with the platform MBean server under the given
+	 * name, which tells several registries apart.
+	 *
+	 * @throws IllegalStateException if the MBeans are registered already
+	 */
+	public synchronized void registerMBeans(final String name) throws JMException
+	{
+		if (!fRegistered.isEmpty())
+		{
+			throw new IllegalStateException("MBeans are registered already");
+		}
+
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try
+		{
+			for (GraphStoreOperation operation : GraphStoreOperation.values())
+			{
+				register(server, name, operation.getName(), fOperations[operation.ordinal()]);
+			}
+			register(server, name, "readTransactionWait", fReadTransactionWait);
+			register(server, name, "writeTransactionWait", fWriteTransactionWait);
+		}
+		catch (JMException e)
+		{
+			unregisterMBeans();
+			throw e;
+		}
+	}
+
+	/**
+	 * Removes the MBeans registered by {@link #registerMBeans(String)}.
+	 */
+	public synchronized void unregisterMBeans()
+	{
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName objectName : fRegistered)
+		{
+			try
+			{
+				server.unregisterMBean(objectName);
+			}
+			catch (JMException e)
+			{
+				// gone already
+			}
+		}
+		fRegistered.clear();
+	}
+
+	private void register(final MBeanServer server, final String name, final String metric, final OperationMetrics metrics) throws JMException
+	{
+		final ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=GraphStoreMetrics,name=" + ObjectName.quote(name) + ",metric=" + metric);
+		server.registerMBean(metrics, objectName);
+		fRegistered.add(objectName);
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private final OperationMetrics[] fOperations;
+	private final OperationMetrics fReadTransactionWait = new OperationMetrics();
+	private final OperationMetrics fWriteTransactionWait = new OperationMetrics();
+	private final List<ObjectName> fRegistered = new ArrayList<ObjectName>();
+}
@@ -0,0 +1,54 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.metrics;
+
+/**
+ * @author resc01
+ *
+ * The operations of an IGraphStore that are measured, named after the
+ * methods. Overloads share an operation.
+ */
+public enum GraphStoreOperation
+{
+	GET_DEFAULT_GRAPH("getDefaultGraph"),
+	REPLACE_DEFAULT_GRAPH("replaceDefaultGraph"),
+	ADD_TO_DEFAULT_GRAPH("addToDefaultGraph"),
+	CLEAR_DEFAULT_GRAPH("clearDefaultGraph"),
+	CONTAINS_NAMED_GRAPH("containsNamedGraph"),
+	GET_NAMED_GRAPH("getNamedGraph"),
+	GET_NAMED_GRAPHS("getNamedGraphs"),
+	DELETE_NAMED_GRAPH("deleteNamedGraph"),
+	REPLACE_NAMED_GRAPH("replaceNamedGraph"),
+	ADD_TO_NAMED_GRAPH("addToNamedGraph"),
+	CREATE_NAMED_GRAPH("createNamedGraph"),
+	WRITE_NAMED_GRAPH("writeNamedGraph"),
+	STREAM_NAMED_GRAPH("streamNamedGraph"),
+	FIND("find"),
+	LIST_NAMED_GRAPHS("listNamedGraphs"),
+	GRAPH_SIZE("graphSize"),
+	GET_GRAPH_STATS("getGraphStats"),
+	PATCH("patch"),
+	APPLY("apply"),
+	ASK("ask"),
+	SELECT("select"),
+	CONSTRUCT("construct"),
+	DESCRIBE("describe");
+
+	private final String fName;
+
+	GraphStoreOperation(final String name)
+	{
+		fName = name;
+	}
+
+	/**
+	 * Returns the name of the IGraphStore method.
+	 */
+	public String getName()
+	{
+		return fName;
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author resc01
+ *
+ * A lock-free histogram of latencies in nanoseconds with log-linear
+ * buckets: each power of two is split into 8 buckets, so a percentile is
+ * off by at most about 6%.
+ *
+ * Recording is a single atomic increment. The counters are striped by
+ * thread, so concurrent callers rarely touch the same cache line.
+ */
+public class LatencyHistogram
+{
+	//================================================================================
+	// Constructors
+	//================================================================================
+
+	public LatencyHistogram()
+	{
+		fStripes = new AtomicLongArray[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+		{
+			fStripes[i] = new AtomicLongArray(BUCKETS);
+		}
+	}
+
+
+	//================================================================================
+	// Recording
+	//================================================================================
+
+	public void record(final long nanos)
+	{
+		fStripes[(int) Thread.currentThread().getId() & (STRIPES - 1)].incrementAndGet(bucket(nanos));
+	}
+
+
+	//================================================================================
+	// Reading
+	//================================================================================
+
+	/**
+	 * Returns a consistent enough copy of the counts for computing several
+	 * percentiles.
+	 */
+	public Snapshot snapshot()
+	{
+		final long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (AtomicLongArray stripe : fStripes)
+		{
+			for (int i = 0; i < BUCKETS; i++)
+			{
+				final long count = stripe.get(i);
+				counts[i] += count;
+				total += count;
+			}
+		}
+		return new Snapshot(counts, total);
+	}
+
+	/**
+	 * The counts of a histogram at one point in time.
+	 */
+	public static class Snapshot
+	{
+		private final long[] fCounts;
+		private final long fTotal;
+
+		Snapshot(final long[] counts, final long total)
+		{
+			fCounts = counts;
+			fTotal = total;
+		}
+
+		public long getCount()
+		{
+			return fTotal;
+		}
+
+		/**
+		 * Returns the latency in nanoseconds below which the fraction q of
+		 * the recorded latencies fall, or 0 if nothing was recorded.
+		 */
+		public long getPercentile(final double q)
+		{
+			if (fTotal == 0)
+			{
+				return 0;
+			}
+			final long rank = Math.max(1, (long) Math.ceil(q * fTotal));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++)
+			{
+				seen += fCounts[i];
+				if (seen >= rank)
+				{
+					return middle(i);
+				}
+			}
+			return middle(BUCKETS - 1);
+		}
+
+		/**
+		 * Returns the upper end of the highest bucket with a count.
+		 */
+		public long getMax()
+		{
+			for (int i = BUCKETS - 1; i >= 0; i--)
+			{
+				if (fCounts[i] > 0)
+				{
+					return lower(i) + width(i) - 1;
+				}
+			}
+			return 0;
+		}
+	}
+
+
+	//================================================================================
+	// Helpers
+	//================================================================================
+
+	static int bucket(final long nanos)
+	{
+		if (nanos < SUB_BUCKETS)
+		{
+			return nanos < 0 ? 0 : (int) nanos;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		final int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long lower(final int bucket)
+	{
+		if (bucket < SUB_BUCKETS)
+		{
+			return bucket;
+		}
+		final int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+	}
+
+	static long width(final int bucket)
+	{
+		return bucket < SUB_BUCKETS ? 1 : 1L << (bucket / SUB_BUCKETS - 1);
+	}
+
+	private static long middle(final int bucket)
+	{
+		return lower(bucket) + width(bucket) / 2;
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = bucket(Long.MAX_VALUE) + 1;
+	private static final int STRIPES = Math.min(8, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors())));
+
+	private final AtomicLongArray[] fStripes;
+}
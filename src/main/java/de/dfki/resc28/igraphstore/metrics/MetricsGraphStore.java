@@ -0,0 +1,489 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.metrics;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWrapper;
+
+import de.dfki.resc28.igraphstore.CloseableIterator;
+import de.dfki.resc28.igraphstore.ForwardingGraphStore;
+import de.dfki.resc28.igraphstore.GraphBatch;
+import de.dfki.resc28.igraphstore.GraphStats;
+import de.dfki.resc28.igraphstore.IGraphStore;
+
+/**
+ * @author resc01
+ *
+ * Measures the calls to another IGraphStore: the latency and outcome of
+ * every call, the triples of the graphs read and written, and the bytes
+ * of serialized RDF and query results. The measurements go to a
+ * {@link MetricsRegistry}, e.g. a {@link DefaultMetricsRegistry} that
+ * exposes them over JMX.
+ *
+ * The overhead is two clock reads and a few uncontended atomic increments
+ * per call. The latency of find covers creating the iterator; its triples
+ * are recorded when the iterator is closed.
+ *
+ * TDB transaction waits are reported by the TDBGraphStore itself once it
+ * is given the registry, see TDBGraphStore#setMetricsRegistry.
+ */
+public class MetricsGraphStore extends ForwardingGraphStore
+{
+	//================================================================================
+	// Constructors
+	//================================================================================
+
+	public MetricsGraphStore(final IGraphStore graphStore, final MetricsRegistry registry)
+	{
+		super(graphStore);
+		if (registry == null)
+		{
+			throw new IllegalArgumentException("No metrics registry given");
+		}
+		fRegistry = registry;
+	}
+
+	public MetricsRegistry getRegistry()
+	{
+		return fRegistry;
+	}
+
+
+	//================================================================================
+	// CRUD-related methods for the default graph
+	//================================================================================
+
+	@Override
+	public Model getDefaultGraph()
+	{
+		final Model model = measure(GraphStoreOperation.GET_DEFAULT_GRAPH, () -> fGraphStore.getDefaultGraph());
+		fRegistry.recordTriples(GraphStoreOperation.GET_DEFAULT_GRAPH, model.size());
+		return model;
+	}
+
+	@Override
+	public void replaceDefaultGraph(final Model model)
+	{
+		measure(GraphStoreOperation.REPLACE_DEFAULT_GRAPH, () -> fGraphStore.replaceDefaultGraph(model));
+		fRegistry.recordTriples(GraphStoreOperation.REPLACE_DEFAULT_GRAPH, size(model));
+	}
+
+	@Override
+	public void addToDefaultGraph(final Model model)
+	{
+		measure(GraphStoreOperation.ADD_TO_DEFAULT_GRAPH, () -> fGraphStore.addToDefaultGraph(model));
+		fRegistry.recordTriples(GraphStoreOperation.ADD_TO_DEFAULT_GRAPH, size(model));
+	}
+
+	@Override
+	public void clearDefaultGraph()
+	{
+		measure(GraphStoreOperation.CLEAR_DEFAULT_GRAPH, () -> fGraphStore.clearDefaultGraph());
+	}
+
+
+	//================================================================================
+	// CRUD-related methods for named graphs
+	//================================================================================
+
+	@Override
+	public boolean containsNamedGraph(final String graphURI)
+	{
+		return measure(GraphStoreOperation.CONTAINS_NAMED_GRAPH, () -> fGraphStore.containsNamedGraph(graphURI));
+	}
+
+	@Override
+	public Model getNamedGraph(final String graphURI)
+	{
+		final Model model = measure(GraphStoreOperation.GET_NAMED_GRAPH, () -> fGraphStore.getNamedGraph(graphURI));
+		fRegistry.recordTriples(GraphStoreOperation.GET_NAMED_GRAPH, model.size());
+		return model;
+	}
+
+	/**
+	 * The latency covers fetching the first graph; the triples of the 
+	 * graphs are recorded once the iterator is closed.
+	 */
+	@Override
+	public CloseableIterator<Map.Entry<String, Model>> getNamedGraphs(final Collection<String> graphURIs)
+	{
+		final CloseableIterator<Map.Entry<String, Model>> graphs = measure(GraphStoreOperation.GET_NAMED_GRAPHS, () -> {
+			final CloseableIterator<Map.Entry<String, Model>> it = fGraphStore.getNamedGraphs(graphURIs);
+			it.hasNext();
+			return it;
+		});
+		return new CloseableIterator<Map.Entry<String, Model>>()
+		{
+			private long fCount = 0;
+			private boolean fClosed = false;
+
+			@Override
+			public boolean hasNext()
+			{
+				if (graphs.hasNext())
+				{
+					return true;
+				}
+				close();
+				return false;
+			}
+
+			@Override
+			public Map.Entry<String, Model> next()
+			{
+				final Map.Entry<String, Model> graph = graphs.next();
+				fCount += graph.getValue().size();
+				return graph;
+			}
+
+			@Override
+			public void remove()
+			{
+				graphs.remove();
+			}
+
+			@Override
+			public void close()
+			{
+				if (!fClosed)
+				{
+					fClosed = true;
+					fRegistry.recordTriples(GraphStoreOperation.GET_NAMED_GRAPHS, fCount);
+				}
+				graphs.close();
+			}
+		};
+	}
+
+	@Override
+	public void deleteNamedGraph(final String graphURI)
+	{
+		measure(GraphStoreOperation.DELETE_NAMED_GRAPH, () -> fGraphStore.deleteNamedGraph(graphURI));
+	}
+
+	@Override
+	public void replaceNamedGraph(final String graphURI, final Model model)
+	{
+		measure(GraphStoreOperation.REPLACE_NAMED_GRAPH, () -> fGraphStore.replaceNamedGraph(graphURI, model));
+		fRegistry.recordTriples(GraphStoreOperation.REPLACE_NAMED_GRAPH, size(model));
+	}
+
+	@Override
+	public void addToNamedGraph(final String graphURI, final Model model)
+	{
+		measure(GraphStoreOperation.ADD_TO_NAMED_GRAPH, () -> fGraphStore.addToNamedGraph(graphURI, model));
+		fRegistry.recordTriples(GraphStoreOperation.ADD_TO_NAMED_GRAPH, size(model));
+	}
+
+	@Override
+	public void createNamedGraph(final String graphURI, final Model model)
+	{
+		measure(GraphStoreOperation.CREATE_NAMED_GRAPH, () -> fGraphStore.createNamedGraph(graphURI, model));
+		fRegistry.recordTriples(GraphStoreOperation.CREATE_NAMED_GRAPH, size(model));
+	}
+
+	@Override
+	public void replaceNamedGraph(final String graphURI, final InputStream inStream, final String contentType)
+	{
+		final CountingInputStream in = new CountingInputStream(inStream);
+		try
+		{
+			measure(GraphStoreOperation.REPLACE_NAMED_GRAPH, () -> fGraphStore.replaceNamedGraph(graphURI, in, contentType));
+		}
+		finally
+		{
+			fRegistry.recordBytes(GraphStoreOperation.REPLACE_NAMED_GRAPH, in.getByteCount());
+		}
+	}
+
+	@Override
+	public void addToNamedGraph(final String graphURI, final InputStream inStream, final String contentType)
+	{
+		final CountingInputStream in = new CountingInputStream(inStream);
+		try
+		{
+			measure(GraphStoreOperation.ADD_TO_NAMED_GRAPH, () -> fGraphStore.addToNamedGraph(graphURI, in, contentType));
+		}
+		finally
+		{
+			fRegistry.recordBytes(GraphStoreOperation.ADD_TO_NAMED_GRAPH, in.getByteCount());
+		}
+	}
+
+	@Override
+	public void writeNamedGraph(final String graphURI, final OutputStream outStream, final String contentType)
+	{
+		final CountingOutputStream out = new CountingOutputStream(outStream);
+		try
+		{
+			measure(GraphStoreOperation.WRITE_NAMED_GRAPH, () -> fGraphStore.writeNamedGraph(graphURI, out, contentType));
+		}
+		finally
+		{
+			fRegistry.recordBytes(GraphStoreOperation.WRITE_NAMED_GRAPH, out.getByteCount());
+		}
+	}
+
+	@Override
+	public void streamNamedGraph(final String graphURI, final StreamRDF sink)
+	{
+		final long[] triples = { 0 };
+		final StreamRDF counting = new StreamRDFWrapper(sink)
+		{
+			@Override
+			public void triple(final Triple triple)
+			{
+				triples[0]++;
+				super.triple(triple);
+			}
+		};
+
+		try
+		{
+			measure(GraphStoreOperation.STREAM_NAMED_GRAPH, () -> fGraphStore.streamNamedGraph(graphURI, counting));
+		}
+		finally
+		{
+			fRegistry.recordTriples(GraphStoreOperation.STREAM_NAMED_GRAPH, triples[0]);
+		}
+	}
+
+	@Override
+	public CloseableIterator<Triple> find(final String graphURI, final Node s, final Node p, final Node o)
+	{
+		final CloseableIterator<Triple> triples = measure(GraphStoreOperation.FIND, () -> fGraphStore.find(graphURI, s, p, o));
+		return new CloseableIterator<Triple>()
+		{
+			private long fCount = 0;
+			private boolean fClosed = false;
+
+			@Override
+			public boolean hasNext()
+			{
+				return triples.hasNext();
+			}
+
+			@Override
+			public Triple next()
+			{
+				final Triple triple = triples.next();
+				fCount++;
+				return triple;
+			}
+
+			@Override
+			public void remove()
+			{
+				triples.remove();
+			}
+
+			@Override
+			public void close()
+			{
+				if (!fClosed)
+				{
+					fClosed = true;
+					fRegistry.recordTriples(GraphStoreOperation.FIND, fCount);
+				}
+				triples.close();
+			}
+		};
+	}
+
+
+	//================================================================================
+	// Catalog-related Methods
+	//================================================================================
+
+	/**
+	 * The latency covers fetching the first page; the number of graphs is 
+	 * not recorded.
+	 */
+	@Override
+	public CloseableIterator<String> listNamedGraphs()
+	{
+		return measure(GraphStoreOperation.LIST_NAMED_GRAPHS, () -> {
+			final CloseableIterator<String> graphURIs = fGraphStore.listNamedGraphs();
+			graphURIs.hasNext();
+			return graphURIs;
+		});
+	}
+
+	@Override
+	public long graphSize(final String graphURI)
+	{
+		return measure(GraphStoreOperation.GRAPH_SIZE, () -> fGraphStore.graphSize(graphURI));
+	}
+
+	@Override
+	public GraphStats getGraphStats(final String graphURI)
+	{
+		return measure(GraphStoreOperation.GET_GRAPH_STATS, () -> fGraphStore.getGraphStats(graphURI));
+	}
+
+
+	//================================================================================
+	// Delta-related Methods
+	//================================================================================
+
+	@Override
+	public void patch(final String graphURI, final Model additions, final Model removals)
+	{
+		measure(GraphStoreOperation.PATCH, () -> fGraphStore.patch(graphURI, additions, removals));
+		fRegistry.recordTriples(GraphStoreOperation.PATCH, size(additions) + size(removals));
+	}
+
+
+	//================================================================================
+	// Batch-related Methods
+	//================================================================================
+
+	@Override
+	public void apply(final GraphBatch batch)
+	{
+		measure(GraphStoreOperation.APPLY, () -> fGraphStore.apply(batch));
+
+		long triples = 0;
+		for (GraphBatch.Operation operation : batch)
+		{
+			triples += size(operation.getModel()) + size(operation.getRemovals());
+		}
+		fRegistry.recordTriples(GraphStoreOperation.APPLY, triples);
+	}
+
+
+	//================================================================================
+	// Query-related Methods
+	//================================================================================
+
+	@Override
+	public boolean ask(final String queryString)
+	{
+		return measure(GraphStoreOperation.ASK, () -> fGraphStore.ask(queryString));
+	}
+
+	@Override
+	public void select(final OutputStream outStream, final String queryString)
+	{
+		final CountingOutputStream out = new CountingOutputStream(outStream);
+		try
+		{
+			measure(GraphStoreOperation.SELECT, () -> fGraphStore.select(out, queryString));
+		}
+		finally
+		{
+			fRegistry.recordBytes(GraphStoreOperation.SELECT, out.getByteCount());
+		}
+	}
+
+	@Override
+	public void select(final OutputStream outStream, final String queryString, final String contentType)
+	{
+		final CountingOutputStream out = new CountingOutputStream(outStream);
+		try
+		{
+			measure(GraphStoreOperation.SELECT, () -> fGraphStore.select(out, queryString, contentType));
+		}
+		finally
+		{
+			fRegistry.recordBytes(GraphStoreOperation.SELECT, out.getByteCount());
+		}
+	}
+
+	@Override
+	public void construct(final OutputStream outStream, final String queryString, final String contentType)
+	{
+		final CountingOutputStream out = new CountingOutputStream(outStream);
+		try
+		{
+			measure(GraphStoreOperation.CONSTRUCT, () -> fGraphStore.construct(out, queryString, contentType));
+		}
+		finally
+		{
+			fRegistry.recordBytes(GraphStoreOperation.CONSTRUCT, out.getByteCount());
+		}
+	}
+
+	@Override
+	public void describe(final OutputStream outStream, final String queryString, final String contentType)
+	{
+		final CountingOutputStream out = new CountingOutputStream(outStream);
+		try
+		{
+			measure(GraphStoreOperation.DESCRIBE, () -> fGraphStore.describe(out, queryString, contentType));
+		}
+		finally
+		{
+			fRegistry.recordBytes(GraphStoreOperation.DESCRIBE, out.getByteCount());
+		}
+	}
+
+
+	//================================================================================
+	// Helpers
+	//================================================================================
+
+	private <T> T measure(final GraphStoreOperation operation, final Supplier<T> call)
+	{
+		final long start = System.nanoTime();
+		Throwable failure = null;
+		try
+		{
+			return call.get();
+		}
+		catch (RuntimeException | Error e)
+		{
+			failure = e;
+			throw e;
+		}
+		finally
+		{
+			fRegistry.recordCall(operation, System.nanoTime() - start, failure);
+		}
+	}
+
+	private void measure(final GraphStoreOperation operation, final Runnable call)
+	{
+		final long start = System.nanoTime();
+		Throwable failure = null;
+		try
+		{
+			call.run();
+		}
+		catch (RuntimeException | Error e)
+		{
+			failure = e;
+			throw e;
+		}
+		finally
+		{
+			fRegistry.recordCall(operation, System.nanoTime() - start, failure);
+		}
+	}
+
+	private static long size(final Model model)
+	{
+		return model != null ? model.size() : 0;
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private final MetricsRegistry fRegistry;
+}
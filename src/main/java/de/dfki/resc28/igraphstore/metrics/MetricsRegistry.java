@@ -0,0 +1,40 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.metrics;
+
+/**
+ * @author resc01
+ *
+ * Receives the measurements of a {@link MetricsGraphStore} and of stores
+ * that report transaction waits, e.g. TDBGraphStore.
+ *
+ * {@link DefaultMetricsRegistry} keeps them in memory and exposes them
+ * over JMX; other implementations may forward them to a metrics library.
+ * Methods are called on the hot path by any number of threads and must
+ * be fast and thread-safe.
+ */
+public interface MetricsRegistry
+{
+	/**
+	 * Records a completed call, failure being null on success.
+	 */
+	void recordCall(GraphStoreOperation operation, long latencyNanos, Throwable failure);
+
+	/**
+	 * Records triples read or written by a call.
+	 */
+	void recordTriples(GraphStoreOperation operation, long triples);
+
+	/**
+	 * Records bytes of serialized RDF or query results transferred by a call.
+	 */
+	void recordBytes(GraphStoreOperation operation, long bytes);
+
+	/**
+	 * Records the time spent waiting to begin a read or write transaction.
+	 */
+	void recordTransactionWait(boolean write, long waitNanos);
+}
@@ -0,0 +1,234 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author resc01
+ *
+ * The calls, failures, latencies and payload of one operation, see
+ * {@link DefaultMetricsRegistry}.
+ */
+public class OperationMetrics implements OperationMetricsMBean
+{
+	//================================================================================
+	// Constructors
+	//================================================================================
+
+	OperationMetrics()
+	{
+		fState = new State();
+	}
+
+
+	//================================================================================
+	// Recording
+	//================================================================================
+
+	void recordCall(final long latencyNanos, final Throwable failure)
+	{
+		final State state = fState;
+		state.fLatency.record(latencyNanos);
+		state.fCount.increment();
+		state.fRate.mark();
+		if (failure != null)
+		{
+			state.fErrors.increment();
+			fLastError = failure.getClass().getName() + ": " + failure.getMessage();
+		}
+	}
+
+	void recordTriples(final long triples)
+	{
+		fState.fTriples.add(triples);
+	}
+
+	void recordBytes(final long bytes)
+	{
+		fState.fBytes.add(bytes);
+	}
+
+
+	//================================================================================
+	// Reading
+	//================================================================================
+
+	/**
+	 * Returns the latencies in nanoseconds.
+	 */
+	public LatencyHistogram.Snapshot getLatencySnapshot()
+	{
+		return fState.fLatency.snapshot();
+	}
+
+	@Override
+	public long getCount()
+	{
+		return fState.fCount.sum();
+	}
+
+	@Override
+	public long getErrorCount()
+	{
+		return fState.fErrors.sum();
+	}
+
+	@Override
+	public String getLastError()
+	{
+		return fLastError;
+	}
+
+	@Override
+	public long getTriples()
+	{
+		return fState.fTriples.sum();
+	}
+
+	@Override
+	public long getBytes()
+	{
+		return fState.fBytes.sum();
+	}
+
+	@Override
+	public double getMeanRate()
+	{
+		final State state = fState;
+		final double seconds = (System.nanoTime() - state.fStart) / 1e9;
+		return seconds > 0 ? state.fCount.sum() / seconds : 0;
+	}
+
+	@Override
+	public double getOneMinuteRate()
+	{
+		return fState.fRate.get();
+	}
+
+	@Override
+	public double getLatencyP50()
+	{
+		return toMillis(getLatencySnapshot().getPercentile(0.5));
+	}
+
+	@Override
+	public double getLatencyP99()
+	{
+		return toMillis(getLatencySnapshot().getPercentile(0.99));
+	}
+
+	@Override
+	public double getLatencyP999()
+	{
+		return toMillis(getLatencySnapshot().getPercentile(0.999));
+	}
+
+	@Override
+	public double getLatencyMax()
+	{
+		return toMillis(getLatencySnapshot().getMax());
+	}
+
+	/**
+	 * Starts over with empty counters. Calls recorded concurrently may be
+	 * lost.
+	 */
+	@Override
+	public void reset()
+	{
+		fState = new State();
+		fLastError = null;
+	}
+
+
+	//================================================================================
+	// Helpers
+	//================================================================================
+
+	private static double toMillis(final long nanos)
+	{
+		return nanos / 1e6;
+	}
+
+	/**
+	 * The counters, replaced as a whole by reset().
+	 */
+	private static class State
+	{
+		private final long fStart = System.nanoTime();
+		private final LatencyHistogram fLatency = new LatencyHistogram();
+		private final LongAdder fCount = new LongAdder();
+		private final LongAdder fErrors = new LongAdder();
+		private final LongAdder fTriples = new LongAdder();
+		private final LongAdder fBytes = new LongAdder();
+		private final Rate fRate = new Rate();
+	}
+
+	/**
+	 * A rate of events, exponentially weighted over one minute and updated
+	 * every five seconds.
+	 */
+	private static class Rate
+	{
+		private final LongAdder fUncounted = new LongAdder();
+		private final AtomicLong fLastTick = new AtomicLong(System.nanoTime());
+		private volatile double fRate = 0;
+		private volatile boolean fInitialized = false;
+
+		void mark()
+		{
+			fUncounted.increment();
+			tickIfNecessary();
+		}
+
+		double get()
+		{
+			tickIfNecessary();
+			return fRate;
+		}
+
+		private void tickIfNecessary()
+		{
+			final long last = fLastTick.get();
+			final long age = System.nanoTime() - last;
+			if (age > TICK_NANOS && fLastTick.compareAndSet(last, last + age - age % TICK_NANOS))
+			{
+				for (long ticks = age / TICK_NANOS; ticks > 0; ticks--)
+				{
+					tick();
+				}
+			}
+		}
+
+		private void tick()
+		{
+			final double instantRate = fUncounted.sumThenReset() / (double) TimeUnit.NANOSECONDS.toSeconds(TICK_NANOS);
+			if (fInitialized)
+			{
+				fRate += ALPHA * (instantRate - fRate);
+			}
+			else
+			{
+				fRate = instantRate;
+				fInitialized = true;
+			}
+		}
+	}
+
+
+	//================================================================================
+	// Member variables
+	//================================================================================
+
+	private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(5);
+	private static final double ALPHA = 1 - Math.exp(-5.0 / 60.0);
+
+	private volatile State fState;
+	private volatile String fLastError;
+}
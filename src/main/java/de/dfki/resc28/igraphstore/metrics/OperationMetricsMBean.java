@@ -0,0 +1,45 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.metrics;
+
+/**
+ * @author resc01
+ *
+ * The JMX view of the {@link OperationMetrics} of one operation.
+ * Latencies are in milliseconds, rates in calls per second.
+ */
+public interface OperationMetricsMBean
+{
+	long getCount();
+
+	long getErrorCount();
+
+	/**
+	 * Returns the class and message of the last failure, or null.
+	 */
+	String getLastError();
+
+	long getTriples();
+
+	long getBytes();
+
+	double getMeanRate();
+
+	/**
+	 * Returns the rate of calls, exponentially weighted over one minute.
+	 */
+	double getOneMinuteRate();
+
+	double getLatencyP50();
+
+	double getLatencyP99();
+
+	double getLatencyP999();
+
+	double getLatencyMax();
+
+	void reset();
+}
@@ -0,0 +1,222 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * A pooled HTTP client that is meant to be created once and shared by all
+ * requests to a server for the lifetime of the application.
+ *
+ * The underlying connection manager honours the proxy and SSL settings of
+ * {@link ProxyConfigurator}. Idle and expired connections are evicted by a
+ * background thread that is stopped by {@link #close()}.
+ *
+ * @author resc01
+ */
+public class HttpConnectionPool implements Closeable {
+
+    /**
+     * Pool limits and timeouts. All durations are in milliseconds.
+     */
+    public static class Settings {
+
+        private int fMaxTotal = 200;
+        private int fMaxPerRoute = 50;
+        private long fKeepAlive = 30000;
+        private int fConnectTimeout = 10000;
+        private int fSocketTimeout = 60000;
+        private int fConnectionRequestTimeout = 30000;
+        private long fMaxIdleTime = 30000;
+
+        public int getMaxTotal() {
+            return fMaxTotal;
+        }
+
+        /**
+         * Maximum number of connections in the pool.
+         */
+        public Settings setMaxTotal(int maxTotal) {
+            fMaxTotal = maxTotal;
+            return this;
+        }
+
+        public int getMaxPerRoute() {
+            return fMaxPerRoute;
+        }
+
+        /**
+         * Maximum number of connections to a single host.
+         */
+        public Settings setMaxPerRoute(int maxPerRoute) {
+            fMaxPerRoute = maxPerRoute;
+            return this;
+        }
+
+        public long getKeepAlive() {
+            return fKeepAlive;
+        }
+
+        /**
+         * How long an idle connection is kept for reuse when the server does
+         * not send a Keep-Alive timeout.
+         */
+        public Settings setKeepAlive(long keepAlive) {
+            fKeepAlive = keepAlive;
+            return this;
+        }
+
+        public int getConnectTimeout() {
+            return fConnectTimeout;
+        }
+
+        public Settings setConnectTimeout(int connectTimeout) {
+            fConnectTimeout = connectTimeout;
+            return this;
+        }
+
+        public int getSocketTimeout() {
+            return fSocketTimeout;
+        }
+
+        /**
+         * Maximum time of inactivity while waiting for data.
+         */
+        public Settings setSocketTimeout(int socketTimeout) {
+            fSocketTimeout = socketTimeout;
+            return this;
+        }
+
+        public int getConnectionRequestTimeout() {
+            return fConnectionRequestTimeout;
+        }
+
+        /**
+         * Maximum time to wait for a connection from the pool.
+         */
+        public Settings setConnectionRequestTimeout(int connectionRequestTimeout) {
+            fConnectionRequestTimeout = connectionRequestTimeout;
+            return this;
+        }
+
+        public long getMaxIdleTime() {
+            return fMaxIdleTime;
+        }
+
+        /**
+         * Idle time after which a pooled connection is evicted.
+         */
+        public Settings setMaxIdleTime(long maxIdleTime) {
+            fMaxIdleTime = maxIdleTime;
+            return this;
+        }
+    }
+
+    private static HttpConnectionPool defaultPool;
+
+    /**
+     * Returns the pool shared by all stores that are not given a pool of
+     * their own. It is created with the default settings on first use.
+     */
+    public static synchronized HttpConnectionPool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new HttpConnectionPool(new Settings());
+        }
+        return defaultPool;
+    }
+
+    public HttpConnectionPool(final Settings settings) {
+        fSettings = settings;
+
+        fConnectionManager = ProxyConfigurator.createConnectionManager();
+        fConnectionManager.setMaxTotal(settings.getMaxTotal());
+        fConnectionManager.setDefaultMaxPerRoute(settings.getMaxPerRoute());
+
+        final RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(settings.getConnectTimeout())
+                .setSocketTimeout(settings.getSocketTimeout())
+                .setConnectionRequestTimeout(settings.getConnectionRequestTimeout())
+                .build();
+
+        fHttpClient = HttpClientBuilder.create()
+                .setConnectionManager(fConnectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(new DefaultKeepAliveStrategy(settings.getKeepAlive()))
+                .evictExpiredConnections()
+                .evictIdleConnections(settings.getMaxIdleTime(), TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    public CloseableHttpClient getHttpClient() {
+        return fHttpClient;
+    }
+
+    public Settings getSettings() {
+        return fSettings;
+    }
+
+    /**
+     * Returns the number of leased, pending and available connections of the
+     * whole pool, e.g. for monitoring and sizing the pool.
+     */
+    public PoolStats getStats() {
+        return fConnectionManager.getTotalStats();
+    }
+
+    /**
+     * Closes all pooled connections and stops the eviction thread.
+     */
+    @Override
+    public void close() throws IOException {
+        fHttpClient.close();
+    }
+
+    /**
+     * Uses the timeout of the server's Keep-Alive header, if any, and the
+     * configured default otherwise.
+     */
+    private static class DefaultKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+        private final long fDefaultKeepAlive;
+
+        DefaultKeepAliveStrategy(long defaultKeepAlive) {
+            fDefaultKeepAlive = defaultKeepAlive;
+        }
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            final BasicHeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (it.hasNext()) {
+                final HeaderElement element = it.nextElement();
+                if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                    try {
+                        return Long.parseLong(element.getValue()) * 1000;
+                    } catch (NumberFormatException ex) {
+                        break;
+                    }
+                }
+            }
+            return fDefaultKeepAlive;
+        }
+    }
+
+    private final Settings fSettings;
+    private final PoolingHttpClientConnectionManager fConnectionManager;
+    private final CloseableHttpClient fHttpClient;
+}
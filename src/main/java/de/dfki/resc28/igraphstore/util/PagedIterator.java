@@ -0,0 +1,69 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.util;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import de.dfki.resc28.igraphstore.CloseableIterator;
+
+/**
+ * Iterates results that are fetched page by page, each page starting after
+ * the last element of the previous one (keyset paging). No resources are
+ * held between pages, so closing only stops further fetches.
+ *
+ * @author resc01
+ */
+public abstract class PagedIterator<T> implements CloseableIterator<T> {
+
+    private final int fPageSize;
+    private Iterator<T> fPage = null;
+    private T fLast = null;
+    private boolean fExhausted = false;
+
+    /**
+     * @param pageSize the number of elements to fetch at a time
+     */
+    protected PagedIterator(final int pageSize) {
+        fPageSize = pageSize;
+    }
+
+    /**
+     * Fetches at most limit elements following the given one, or the first
+     * ones if after is null. A page shorter than limit ends the iteration.
+     */
+    protected abstract List<T> fetch(T after, int limit);
+
+    @Override
+    public boolean hasNext() {
+        if (fPage != null && fPage.hasNext()) {
+            return true;
+        }
+        if (fExhausted) {
+            return false;
+        }
+        final List<T> next = fetch(fLast, fPageSize);
+        fExhausted = next.size() < fPageSize;
+        fPage = next.iterator();
+        return fPage.hasNext();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        fLast = fPage.next();
+        return fLast;
+    }
+
+    @Override
+    public void close() {
+        fExhausted = true;
+        fPage = null;
+    }
+}
@@ -117,25 +117,26 @@ public class ProxyConfigurator {
             return HttpClients.createDefault();
         }
 
-        final SSLContextBuilder sslB = SSLContextBuilder.create();
-        final HostnameVerifier hostnameVerifier;
-        if (insecureSSL) {
-            // don't check Hostnames, either.
-            hostnameVerifier = NoopHostnameVerifier.INSTANCE;
+        // finally, build the HttpClient;
+        //      -- done!
+        return HttpClientBuilder.create().setSSLContext(createSSLContext(insecureSSL))
+                .setConnectionManager(createConnectionManager(insecureSSL, useSocks)).build();
+    }
 
-            // setup a Trust Strategy that allows all certificates.
-            //
-            sslB.loadTrustMaterial(null, new TrustStrategy() {
-                @Override
-                public boolean isTrusted(X509Certificate[] arg0, String arg1) throws CertificateException {
-                    return true;
-                }
-            });
-        } else {
-            hostnameVerifier = SSLConnectionSocketFactory.getDefaultHostnameVerifier();
+    /**
+     * Creates a pooling connection manager that honours the insecure SSL and
+     * SOCKS settings. The pool limits are left at their defaults.
+     */
+    public static PoolingHttpClientConnectionManager createConnectionManager(boolean insecureSSL, boolean useSocks) throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+        if (!insecureSSL && !useSocks) {
+            return new PoolingHttpClientConnectionManager();
         }
 
-        final SSLContext sslContext = sslB.build();
+        final SSLContext sslContext = createSSLContext(insecureSSL);
+        final HostnameVerifier hostnameVerifier = insecureSSL
+                // don't check Hostnames, either.
+                ? NoopHostnameVerifier.INSTANCE
+                : SSLConnectionSocketFactory.getDefaultHostnameVerifier();
 
         final SSLConnectionSocketFactory sslSocketFactory;
         final PlainConnectionSocketFactory plainSocketFactory;
@@ -159,15 +160,58 @@ public class ProxyConfigurator {
 
         // now, we create connection-manager using our Registry.
         //      -- allows multi-threaded use
-        PoolingHttpClientConnectionManager connMgr
-                = new PoolingHttpClientConnectionManager(
-                        socketFactoryRegistry,
-                        useSocks ? new FakeDnsResolver() : null);
+        return new PoolingHttpClientConnectionManager(
+                socketFactoryRegistry,
+                useSocks ? new FakeDnsResolver() : null);
+    }
 
-        // finally, build the HttpClient;
-        //      -- done!
-        return HttpClientBuilder.create().setSSLContext(sslContext)
-                .setConnectionManager(connMgr).build();
+    private static SSLContext createSSLContext(boolean insecureSSL) throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+        final SSLContextBuilder sslB = SSLContextBuilder.create();
+        if (insecureSSL) {
+            // setup a Trust Strategy that allows all certificates.
+            //
+            sslB.loadTrustMaterial(null, new TrustStrategy() {
+                @Override
+                public boolean isTrusted(X509Certificate[] arg0, String arg1) throws CertificateException {
+                    return true;
+                }
+            });
+        }
+        return sslB.build();
+    }
+
+    /**
+     * Creates a pooling connection manager configured from the system
+     * properties socksProxyHost, socksProxyPort and ssl.insecure.
+     */
+    public static PoolingHttpClientConnectionManager createConnectionManager() {
+        final boolean insecureSSL = isInsecureSSL();
+        final boolean useSocks = isSocksProxy();
+
+        try {
+            return createConnectionManager(insecureSSL, useSocks);
+        } catch (NoSuchAlgorithmException ex) {
+            Logger.getLogger(ProxyConfigurator.class.getName()).log(
+                    Level.SEVERE, "Could not create HTTP connection manager with insecure SSL", ex);
+        } catch (KeyStoreException ex) {
+            Logger.getLogger(ProxyConfigurator.class.getName()).log(
+                    Level.SEVERE, "Could not create HTTP connection manager with insecure SSL", ex);
+        } catch (KeyManagementException ex) {
+            Logger.getLogger(ProxyConfigurator.class.getName()).log(
+                    Level.SEVERE, "Could not create HTTP connection manager with insecure SSL", ex);
+        }
+
+        return new PoolingHttpClientConnectionManager();
+    }
+
+    private static boolean isInsecureSSL() {
+        String insecureSSLValue = System.getProperty("ssl.insecure");
+        return ("true".equalsIgnoreCase(insecureSSLValue)
+                || "1".equals(insecureSSLValue));
+    }
+
+    private static boolean isSocksProxy() {
+        return System.getProperty("socksProxyHost") != null && System.getProperty("socksProxyPort") != null;
     }
 
     public static CloseableHttpClient createHttpClient() {
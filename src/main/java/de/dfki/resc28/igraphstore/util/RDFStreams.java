@@ -0,0 +1,134 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.util;
+
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+
+import de.dfki.resc28.igraphstore.Constants;
+
+/**
+ * Helpers for mapping the content types in {@link Constants} to Jena
+ * languages and result formats, and for writing RDF without building a Model.
+ *
+ * @author resc01
+ */
+public final class RDFStreams {
+
+    private RDFStreams() {
+    }
+
+    /**
+     * Strips media type parameters, e.g. "text/n3; charset=utf-8" becomes
+     * "text/n3".
+     */
+    public static String mediaType(final String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        final int i = contentType.indexOf(';');
+        return (i < 0 ? contentType : contentType.substring(0, i)).trim().toLowerCase();
+    }
+
+    /**
+     * Maps an RDF content type to a Jena language.
+     *
+     * @throws IllegalArgumentException if the content type is not an RDF syntax
+     */
+    public static Lang toLang(final String contentType) {
+        final String mediaType = mediaType(contentType);
+        if (Constants.CT_APPLICATION_JSON.equals(mediaType)) {
+            return Lang.JSONLD;
+        }
+        final Lang lang = RDFLanguages.contentTypeToLang(mediaType);
+        if (lang == null) {
+            throw new IllegalArgumentException("Unsupported RDF content type: " + contentType);
+        }
+        return lang;
+    }
+
+    /**
+     * Maps a SPARQL result content type to a Jena result format.
+     *
+     * @throws IllegalArgumentException if the content type is not a SPARQL
+     * result syntax
+     */
+    public static ResultsFormat toResultsFormat(final String contentType) {
+        final String mediaType = mediaType(contentType);
+        if (Constants.CT_APPLICATION_SPARQLRESULTS_JSON.equals(mediaType)
+                || Constants.CT_APPLICATION_JSON.equals(mediaType)) {
+            return ResultsFormat.FMT_RS_JSON;
+        } else if (Constants.CT_APPLICATION_SPARQLRESULTS_XML.equals(mediaType)) {
+            return ResultsFormat.FMT_RS_XML;
+        } else if (Constants.CT_APPLICATION_SPARQLRESULTS_CSV.equals(mediaType)) {
+            return ResultsFormat.FMT_RS_CSV;
+        } else if (Constants.CT_APPLICATION_SPARQLRESULTS_TSV.equals(mediaType)) {
+            return ResultsFormat.FMT_RS_TSV;
+        } else if (Constants.CT_APPLICATION_SPARQLRESULTS_SSE.equals(mediaType)) {
+            return ResultsFormat.FMT_RS_SSE;
+        } else if (Constants.CT_APPLICATION_SPARQLRESULTS_THRIFT.equals(mediaType)) {
+            return ResultsFormat.FMT_RS_THRIFT;
+        }
+        throw new IllegalArgumentException("Unsupported SPARQL result content type: " + contentType);
+    }
+
+    /**
+     * Writes the triples to the output stream in the given RDF content type.
+     *
+     * Syntaxes with a streaming writer (N-Triples, Turtle, N-Quads, TriG,
+     * RDF Thrift, ...) are written triple by triple. Other syntaxes, such as
+     * RDF/XML or JSON-LD, have to see the whole graph and are collected into a
+     * temporary graph first.
+     */
+    public static void writeTriples(final OutputStream out, final Iterator<Triple> triples, final String contentType) {
+        final Lang lang = toLang(contentType);
+
+        if (StreamRDFWriter.registered(lang)) {
+            final StreamRDF stream = StreamRDFWriter.getWriterStream(out, lang);
+            stream.start();
+            while (triples.hasNext()) {
+                stream.triple(triples.next());
+            }
+            stream.finish();
+        } else {
+            final Graph graph = GraphFactory.createDefaultGraph();
+            while (triples.hasNext()) {
+                graph.add(triples.next());
+            }
+            RDFDataMgr.write(out, graph, lang);
+        }
+    }
+
+    /**
+     * Returns a sink that adds every triple it receives to the graph. Quads
+     * are added as triples, i.e. their graph name is dropped.
+     */
+    public static StreamRDF toGraph(final Graph graph) {
+        return new StreamRDFBase() {
+            @Override
+            public void triple(Triple triple) {
+                graph.add(triple);
+            }
+
+            @Override
+            public void quad(Quad quad) {
+                graph.add(quad.asTriple());
+            }
+        };
+    }
+}
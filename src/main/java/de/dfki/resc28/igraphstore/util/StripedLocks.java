@@ -0,0 +1,135 @@
+/*
+ * This file is part of IGraphStore. It is subject to the license terms in
+ * the LICENSE file found in the top-level directory of this distribution.
+ * You may not use this file except in compliance with the License.
+ */
+package de.dfki.resc28.igraphstore.util;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Per-graph locking with a fixed number of read-write locks. Each graph URI
+ * maps to one of {@link #STRIPES} stripes, so that operations on different
+ * graphs rarely wait for each other without a lock per graph.
+ *
+ * Sets of stripes are locked in ascending order and unlocked in descending
+ * order, so that threads locking overlapping sets cannot deadlock. The
+ * default graph, a null graph URI, has stripe 0.
+ *
+ * @author resc01
+ */
+public final class StripedLocks {
+
+    public static final int STRIPES = 64;
+
+    private final ReadWriteLock[] fLocks = new ReadWriteLock[STRIPES];
+
+    public StripedLocks() {
+        for (int i = 0; i < fLocks.length; i++) {
+            fLocks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Returns the stripe of a graph.
+     */
+    public static int stripe(final String graphURI) {
+        if (graphURI == null) {
+            return 0;
+        }
+        final int h = graphURI.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * Returns the set of stripes of the graphs, to be passed to the lock
+     * and unlock methods.
+     */
+    public static boolean[] stripes(final Iterable<String> graphURIs) {
+        final boolean[] stripes = new boolean[STRIPES];
+        for (String graphURI : graphURIs) {
+            stripes[stripe(graphURI)] = true;
+        }
+        return stripes;
+    }
+
+    /**
+     * Returns the set holding the stripe of one graph.
+     */
+    public static boolean[] stripes(final String graphURI) {
+        final boolean[] stripes = new boolean[STRIPES];
+        stripes[stripe(graphURI)] = true;
+        return stripes;
+    }
+
+    /**
+     * Locks the stripes for exclusive access.
+     */
+    public void lock(final boolean[] stripes) {
+        for (int i = 0; i < STRIPES; i++) {
+            if (stripes[i]) {
+                fLocks[i].writeLock().lock();
+            }
+        }
+    }
+
+    public void unlock(final boolean[] stripes) {
+        unlock(stripes, false);
+    }
+
+    /**
+     * Locks the stripes for shared access, which only excludes exclusive
+     * access.
+     */
+    public void lockShared(final boolean[] stripes) {
+        for (int i = 0; i < STRIPES; i++) {
+            if (stripes[i]) {
+                fLocks[i].readLock().lock();
+            }
+        }
+    }
+
+    public void unlockShared(final boolean[] stripes) {
+        unlock(stripes, true);
+    }
+
+    /**
+     * Returns the exclusive lock of the stripe of a graph.
+     */
+    public Lock exclusive(final String graphURI) {
+        return fLocks[stripe(graphURI)].writeLock();
+    }
+
+    /**
+     * Returns the shared lock of the stripe of a graph.
+     */
+    public Lock shared(final String graphURI) {
+        return fLocks[stripe(graphURI)].readLock();
+    }
+
+    /**
+     * Locks all stripes for exclusive access, e.g. to change what every
+     * graph maps to.
+     */
+    public void lockAll() {
+        for (ReadWriteLock lock : fLocks) {
+            lock.writeLock().lock();
+        }
+    }
+
+    public void unlockAll() {
+        for (int i = STRIPES - 1; i >= 0; i--) {
+            fLocks[i].writeLock().unlock();
+        }
+    }
+
+    private void unlock(final boolean[] stripes, final boolean shared) {
+        for (int i = STRIPES - 1; i >= 0; i--) {
+            if (stripes[i]) {
+                (shared ? fLocks[i].readLock() : fLocks[i].writeLock()).unlock();
+            }
+        }
+    }
+}